@@ -0,0 +1,246 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.galagosearch.tupleflow.DataStream;
+import org.galagosearch.tupleflow.VByteInput;
+
+/**
+ * <p>A patched frame-of-reference (PForDelta) codec.  Integers are grouped
+ * into blocks of up to 128 values.  Every value in a block is stored in the
+ * same number of bits, chosen to make the block as small as possible; the
+ * few values that don't fit are stored as exceptions, which hold the high
+ * bits of the value in VByte form.</p>
+ *
+ * <p>Block layout: the value count, the bit width and the exception count
+ * (each as a VByte), then the packed low bits of every value, least
+ * significant bit first, then one (index, high bits) VByte pair per
+ * exception.</p>
+ *
+ * <p>Decoding unpacks a whole block into an int[] at once, which is much
+ * cheaper than decoding VByte numbers one byte at a time.</p>
+ *
+ * @author trevor
+ */
+public class BlockCodec extends PostingsCodec {
+    public static final int BLOCK_SIZE = 128;
+
+    static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    public static class Encoder implements PostingsCodec.Encoder {
+        BackedCompressedByteBuffer buffer = new BackedCompressedByteBuffer();
+        int[] pending = new int[BLOCK_SIZE];
+        int pendingCount = 0;
+        int[] histogram = new int[33];
+
+        public void add(int value) throws IOException {
+            pending[pendingCount++] = value;
+
+            if (pendingCount == BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Picks the bit width that minimizes the size of the block, counting
+         * each exception as one index byte plus the VByte length of its high bits.
+         */
+        int chooseBits() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = 0;
+            }
+            for (int i = 0; i < pendingCount; i++) {
+                histogram[bitLength(pending[i])]++;
+            }
+
+            int bestBits = 32;
+            long bestCost = Long.MAX_VALUE;
+
+            for (int bits = 32; bits >= 0; bits--) {
+                long cost = (pendingCount * bits + 7) / 8;
+
+                for (int length = bits + 1; length <= 32; length++) {
+                    cost += histogram[length] * (1 + (length - bits + 6) / 7);
+                }
+
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestBits = bits;
+                }
+            }
+
+            return bestBits;
+        }
+
+        public void flush() throws IOException {
+            if (pendingCount == 0) {
+                return;
+            }
+
+            int bits = chooseBits();
+            long mask = (1L << bits) - 1;
+            int exceptions = 0;
+
+            for (int i = 0; i < pendingCount; i++) {
+                if (bitLength(pending[i]) > bits) {
+                    exceptions++;
+                }
+            }
+
+            buffer.add(pendingCount);
+            buffer.add(bits);
+            buffer.add(exceptions);
+
+            long packed = 0;
+            int used = 0;
+
+            for (int i = 0; i < pendingCount; i++) {
+                packed |= ((pending[i] & 0xffffffffL) & mask) << used;
+                used += bits;
+
+                while (used >= 8) {
+                    buffer.addRaw((int) (packed & 0xff));
+                    packed >>>= 8;
+                    used -= 8;
+                }
+            }
+
+            if (used > 0) {
+                buffer.addRaw((int) (packed & 0xff));
+            }
+
+            for (int i = 0; i < pendingCount; i++) {
+                if (bitLength(pending[i]) > bits) {
+                    buffer.add(i);
+                    buffer.add(pending[i] >>> bits);
+                }
+            }
+
+            pendingCount = 0;
+        }
+
+        public long length() {
+            return buffer.length();
+        }
+
+        public void write(OutputStream output) throws IOException {
+            flush();
+            buffer.write(output);
+        }
+
+        public void clear() {
+            buffer.clear();
+            pendingCount = 0;
+        }
+    }
+
+    public static class Decoder implements PostingsCodec.Decoder {
+        DataStream stream;
+        VByteInput input;
+        int[] values = new int[BLOCK_SIZE];
+        byte[] packed = new byte[BLOCK_SIZE * 4];
+        int size = 0;
+        int index = 0;
+        int bits;
+        int exceptions;
+
+        public Decoder(DataStream stream) {
+            this.stream = stream;
+            this.input = new VByteInput(stream);
+        }
+
+        private void readHeader() throws IOException {
+            size = input.readInt();
+            bits = input.readInt();
+            exceptions = input.readInt();
+            index = 0;
+        }
+
+        private void readBody() throws IOException {
+            int byteCount = (size * bits + 7) / 8;
+            stream.readFully(packed, 0, byteCount);
+
+            long mask = (1L << bits) - 1;
+            long buffer = 0;
+            int available = 0;
+            int p = 0;
+
+            for (int i = 0; i < size; i++) {
+                while (available < bits) {
+                    buffer |= (long) (packed[p++] & 0xff) << available;
+                    available += 8;
+                }
+                values[i] = (int) (buffer & mask);
+                buffer >>>= bits;
+                available -= bits;
+            }
+
+            for (int i = 0; i < exceptions; i++) {
+                int position = input.readInt();
+                int high = input.readInt();
+                values[position] |= high << bits;
+            }
+        }
+
+        private void skipBody() throws IOException {
+            int byteCount = (size * bits + 7) / 8;
+            stream.seek(stream.getPosition() + byteCount);
+
+            for (int i = 0; i < exceptions; i++) {
+                input.readInt();
+                input.readInt();
+            }
+            index = size;
+        }
+
+        public int readInt() throws IOException {
+            if (index == size) {
+                readHeader();
+                readBody();
+            }
+            return values[index++];
+        }
+
+        public void skip(long count) throws IOException {
+            while (count > 0) {
+                if (index == size) {
+                    readHeader();
+
+                    // whole blocks can be skipped without unpacking them
+                    if (count >= size) {
+                        skipBody();
+                        count -= size;
+                        continue;
+                    }
+                    readBody();
+                }
+
+                int step = (int) Math.min(count, size - index);
+                index += step;
+                count -= step;
+            }
+        }
+
+        public void seek(long offset) throws IOException {
+            stream.seek(offset);
+            size = 0;
+            index = 0;
+        }
+    }
+
+    public String getName() {
+        return "block";
+    }
+
+    public Encoder getEncoder() {
+        return new Encoder();
+    }
+
+    public Decoder getDecoder(DataStream stream) {
+        return new Decoder(stream);
+    }
+}
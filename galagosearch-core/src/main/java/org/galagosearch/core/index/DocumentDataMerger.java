@@ -0,0 +1,62 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.File;
+import java.io.IOException;
+import org.galagosearch.core.types.NumberedDocumentData;
+import org.galagosearch.tupleflow.ExNihiloSource;
+import org.galagosearch.tupleflow.IncompatibleProcessorException;
+import org.galagosearch.tupleflow.Linkage;
+import org.galagosearch.tupleflow.OutputClass;
+import org.galagosearch.tupleflow.Parameters.Value;
+import org.galagosearch.tupleflow.Processor;
+import org.galagosearch.tupleflow.Step;
+import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+
+/**
+ * Reads the document names and lengths of each <tt>index</tt>, in order,
+ * and numbers the documents as if the indexes were one collection: the
+ * documents of each index follow those of the indexes before it.  The
+ * output is meant for DocumentLengthsWriter and DocumentNameWriter.
+ *
+ * @author trevor
+ */
+@OutputClass(className = "org.galagosearch.core.types.NumberedDocumentData", order = {"+number"})
+public class DocumentDataMerger implements ExNihiloSource<NumberedDocumentData> {
+    public Processor<NumberedDocumentData> processor;
+    TupleFlowParameters parameters;
+
+    public DocumentDataMerger(TupleFlowParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    public void run() throws IOException {
+        int number = 0;
+
+        for (Value index : parameters.getXML().list("index")) {
+            String path = index.toString();
+            DocumentLengthsReader lengths = new DocumentLengthsReader(path + File.separator + "documentLengths");
+            DocumentNameReader names = new DocumentNameReader(path + File.separator + "documentNames");
+
+            for (int i = 0; i < lengths.getDocumentCount(); i++) {
+                processor.process(new NumberedDocumentData(names.get(i), "", number, lengths.getLength(i)));
+                number++;
+            }
+            lengths.close();
+        }
+
+        processor.close();
+    }
+
+    public void setProcessor(Step processor) throws IncompatibleProcessorException {
+        Linkage.link(this, processor);
+    }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        if (!parameters.getXML().containsKey("index")) {
+            handler.addError("DocumentDataMerger requires at least one 'index' parameter.");
+        }
+    }
+}
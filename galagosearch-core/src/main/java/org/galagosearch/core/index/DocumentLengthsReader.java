@@ -29,6 +29,11 @@ public class DocumentLengthsReader {
         file.close();
     }
     
+    /// The number of documents with a stored length.
+    public int getDocumentCount() {
+        return buffer.capacity() / 4;
+    }
+
     public int getLength(int document) {
         return buffer.getInt(document*4);
     }
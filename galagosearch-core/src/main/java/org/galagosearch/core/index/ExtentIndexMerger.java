@@ -0,0 +1,68 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import org.galagosearch.core.types.NumberedExtent;
+import org.galagosearch.core.util.ExtentArray;
+import org.galagosearch.tupleflow.ExNihiloSource;
+import org.galagosearch.tupleflow.IncompatibleProcessorException;
+import org.galagosearch.tupleflow.Linkage;
+import org.galagosearch.tupleflow.OutputClass;
+import org.galagosearch.tupleflow.Step;
+import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+
+/**
+ * Merges the extent lists of several extents parts, and passes them on
+ * in order, usually to an ExtentIndexWriter.
+ *
+ * @author trevor
+ */
+@OutputClass(className = "org.galagosearch.core.types.NumberedExtent", order = {"+extentName", "+number", "+begin"})
+public class ExtentIndexMerger extends IndexPartMerger implements ExNihiloSource<NumberedExtent> {
+    public NumberedExtent.ExtentNameNumberBeginOrder.ShreddedProcessor processor;
+    ExtentIndexReader[] parts;
+
+    public ExtentIndexMerger(TupleFlowParameters parameters) throws IOException {
+        super(parameters);
+        parts = new ExtentIndexReader[inputs.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new ExtentIndexReader(inputs.get(i).reader);
+        }
+    }
+
+    protected void processKey(byte[] key) throws IOException {
+        processor.processExtentName(key);
+    }
+
+    protected void processList(int index, Input input) throws IOException {
+        ExtentIndexReader.Iterator list = parts[index].new Iterator(input.iterator);
+
+        while (!list.isDone()) {
+            processor.processNumber(list.document() + input.documentOffset);
+            ExtentArray extents = list.extents();
+
+            // extents that share a begin are sent as one begin with several ends
+            for (int i = 0; i < extents.getPosition(); i++) {
+                if (i == 0 || extents.begin(i) != extents.begin(i - 1)) {
+                    processor.processBegin(extents.begin(i));
+                }
+                processor.processTuple(extents.end(i));
+            }
+            list.nextDocument();
+        }
+    }
+
+    protected void close() throws IOException {
+        processor.close();
+    }
+
+    public void setProcessor(Step processor) throws IncompatibleProcessorException {
+        Linkage.link(this, processor);
+    }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        IndexPartMerger.verify(parameters, handler);
+    }
+}
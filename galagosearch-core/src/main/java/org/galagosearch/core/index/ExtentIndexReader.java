@@ -22,6 +22,7 @@ public class ExtentIndexReader implements StructuredIndexPartReader {
         IndexReader.Iterator iterator;
         DataInput stream;
         int documentCount;
+        long totalExtentCount;
         int options;
         boolean done;
         int document;
@@ -57,9 +58,9 @@ public class ExtentIndexReader implements StructuredIndexPartReader {
             builder.append(document);
             for (int i = 0; i < extents.getPosition(); ++i) {
                 builder.append(",(");
-                builder.append(extents.getBuffer()[i].begin);
+                builder.append(extents.begin(i));
                 builder.append(",");
-                builder.append(extents.getBuffer()[i].end);
+                builder.append(extents.end(i));
                 builder.append(")");
            }
            return builder.toString();
@@ -81,6 +82,10 @@ public class ExtentIndexReader implements StructuredIndexPartReader {
 
             options = stream.readInt();
             documentCount = stream.readInt();
+            totalExtentCount = -1;
+            if ((options & ExtentListBuffer.HAS_STATISTICS) != 0) {
+                totalExtentCount = stream.readLong();
+            }
             termDocs = 0;
             done = false;
 
@@ -129,6 +134,14 @@ public class ExtentIndexReader implements StructuredIndexPartReader {
         public boolean isDone() {
             return done;
         }
+
+        public long collectionFrequency() {
+            return totalExtentCount;
+        }
+
+        public long documentFrequency() {
+            return documentCount;
+        }
     }
     IndexReader reader;
 
@@ -158,6 +171,28 @@ public class ExtentIndexReader implements StructuredIndexPartReader {
         return null;
     }
 
+    /**
+     * Returns the statistics stored in the header of an extent list.  Lists
+     * written by older versions don't store the total extent count, so
+     * collectionFrequency is -1 for them.
+     */
+    public TermStatistics getTermStatistics(String term) throws IOException {
+        IndexReader.Iterator iterator = reader.getIterator(term);
+
+        if (iterator == null) {
+            return new TermStatistics(0, 0);
+        }
+
+        DataInput stream = new VByteInput(reader.blockStream(iterator));
+        int options = stream.readInt();
+        long documentCount = stream.readInt();
+        long totalExtentCount = -1;
+        if ((options & ExtentListBuffer.HAS_STATISTICS) != 0) {
+            totalExtentCount = stream.readLong();
+        }
+        return new TermStatistics(totalExtentCount, documentCount);
+    }
+
     public void close() throws IOException {
         reader.close();
     }
@@ -176,4 +211,13 @@ public class ExtentIndexReader implements StructuredIndexPartReader {
                                                     " isn't supported.");
         }
     }
+
+    public TermStatistics getStatistics(Node node) throws IOException {
+        if (node.getOperator().equals("extents")) {
+            return getTermStatistics(node.getDefaultParameter());
+        } else {
+            throw new UnsupportedOperationException("Node type " + node.getOperator() +
+                                                    " isn't supported.");
+        }
+    }
 }
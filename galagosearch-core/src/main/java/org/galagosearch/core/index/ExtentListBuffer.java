@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 public class ExtentListBuffer implements IndexElement {
+    /// Set in the options of lists that store their total extent count.
+    public static final int HAS_STATISTICS = 1;
+
     public ExtentListBuffer() {
         super();
         documentCount = 0;
@@ -43,6 +46,7 @@ public class ExtentListBuffer implements IndexElement {
 
     private void storePreviousDocument() {
         if (data.position > 0) {
+            totalExtentCount += extentCount;
             data.add(extentCount);
             data.add(documentExtents);
             documentExtents.clear();
@@ -78,10 +82,11 @@ public class ExtentListBuffer implements IndexElement {
     }
 
     public void close() {
-        int options = 0;
+        int options = HAS_STATISTICS;
         storePreviousDocument();
         header.add(options);
         header.add(documentCount);
+        header.add(totalExtentCount);
     }
 
     private long value;
@@ -91,6 +96,7 @@ public class ExtentListBuffer implements IndexElement {
     private int extentCount;
     private int endCount;
     private int documentCount;
+    private long totalExtentCount;
     public byte[] word;
     public CompressedByteBuffer header;
     public CompressedByteBuffer data;
@@ -0,0 +1,116 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.galagosearch.tupleflow.Parameters.Value;
+import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.Utility;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+
+/**
+ * <p>Merges the same part from several indexes, key by key.  Each
+ * <tt>input</tt> parameter names an index file, and the matching
+ * <tt>documentOffset</tt> is added to every document number read from it.
+ * The inputs are given in document order, so the offsets never decrease.</p>
+ *
+ * <p>Every input is already sorted by key, so the merge only walks the
+ * inputs side by side: the smallest current key is written next, with the
+ * lists of every input that has it, in input order.  Since the documents of
+ * each later input come after those of the earlier ones, the merged lists
+ * are in document order without any sorting.</p>
+ *
+ * <p>Subclasses decode the lists of one kind of part, and pass them on
+ * to the writer for that kind of part.</p>
+ *
+ * @author trevor
+ */
+public abstract class IndexPartMerger {
+    public static class Input {
+        IndexReader reader;
+        IndexReader.Iterator iterator;
+        byte[] key;
+        int documentOffset;
+
+        void nextKey() throws IOException {
+            if (iterator.nextKey()) {
+                key = Utility.makeBytes(iterator.getKey());
+            } else {
+                key = null;
+            }
+        }
+    }
+
+    ArrayList<Input> inputs = new ArrayList<Input>();
+
+    public IndexPartMerger(TupleFlowParameters parameters) throws IOException {
+        List<Value> paths = parameters.getXML().list("input");
+        List<Value> offsets = parameters.getXML().list("documentOffset");
+
+        for (int i = 0; i < paths.size(); i++) {
+            Input input = new Input();
+            input.reader = new IndexReader(paths.get(i).toString());
+            input.documentOffset = Integer.parseInt(offsets.get(i).toString());
+
+            if (!input.reader.isEmpty()) {
+                input.iterator = input.reader.getIterator();
+                input.key = Utility.makeBytes(input.iterator.getKey());
+            }
+            inputs.add(input);
+        }
+    }
+
+    /// Starts the merged list for key.
+    protected abstract void processKey(byte[] key) throws IOException;
+
+    /// Copies the list at the current key of input, renumbering its documents.
+    protected abstract void processList(int index, Input input) throws IOException;
+
+    /// Finishes the merged part.
+    protected abstract void close() throws IOException;
+
+    public void run() throws IOException {
+        while (true) {
+            byte[] key = null;
+            for (Input input : inputs) {
+                if (input.key != null && (key == null || Utility.compare(input.key, key) < 0)) {
+                    key = input.key;
+                }
+            }
+            if (key == null) {
+                break;
+            }
+
+            processKey(key);
+            for (int i = 0; i < inputs.size(); i++) {
+                Input input = inputs.get(i);
+
+                if (input.key != null && Utility.compare(input.key, key) == 0) {
+                    processList(i, input);
+                    input.nextKey();
+                }
+            }
+        }
+
+        for (Input input : inputs) {
+            input.reader.close();
+        }
+        close();
+    }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        if (!parameters.getXML().containsKey("input")) {
+            handler.addError("An index merger requires at least one 'input' parameter.");
+            return;
+        }
+
+        int inputs = parameters.getXML().list("input").size();
+        int offsets = parameters.getXML().list("documentOffset").size();
+        if (inputs != offsets) {
+            handler.addError("An index merger needs one 'documentOffset' for each 'input', " +
+                             "but it has " + inputs + " inputs and " + offsets + " offsets.");
+        }
+    }
+}
@@ -8,12 +8,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import org.galagosearch.core.index.IndexWriter;
-import org.galagosearch.core.index.VocabularyReader.TermSlot;
 import org.galagosearch.core.index.VocabularyReader;
 import org.galagosearch.tupleflow.BufferedFileDataStream;
 import org.galagosearch.tupleflow.DataStream;
+import org.galagosearch.tupleflow.MappedFile;
 import org.galagosearch.tupleflow.MemoryDataStream;
 import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.Utility;
@@ -37,33 +41,62 @@ import org.galagosearch.tupleflow.Utility;
  * 
  * <p>Typically this class is extended by composition instead of inheritance.</p>
  * 
+ * <p>By default, all reads go through a single RandomAccessFile, which means
+ * an IndexReader can't be shared between threads.  If the <tt>memoryMapped</tt>
+ * flag is set, either in the parameters passed to the constructor or in the
+ * manifest of the file itself, the whole file is memory mapped instead, and
+ * every DataStream returned by the reader has its own independent position.
+ * In that mode, many threads can read from the same IndexReader at once.
+ * Either way, readBytes and prefetchIterator are safe to call from any thread,
+ * so lists can be read ahead of time on other threads.</p>
+ *
+ * <p>Decoded vocabulary blocks are kept in a cache shared by every thread,
+ * so looking up a term in a block that was used recently doesn't read
+ * or decode anything.  The <tt>vocabularyCacheBlocks</tt> parameter sets
+ * the most blocks kept (default 1024); 0 turns the cache off.</p>
+ * 
  * @author trevor
  */
 public class IndexReader {
-    VocabularyReader vocabulary;
+    volatile VocabularyReader vocabulary;
+    volatile TermFilter termFilter;
+    long termFilterLength;
     RandomAccessFile input;
+    MappedFile mappedInput;
     Parameters manifest;
     int blockSize = 65536;
     int vocabGroup = 16;
     long vocabularyOffset;
     long manifestOffset;
     long footerOffset;
+    long fileLength;
     boolean isCompressed;
+    BlockCache blockCache;
     
-    private static class VocabularyBlock {
+    /**
+     * The decoded vocabulary of one block.  The keys are kept as they are
+     * on disk, one after another in keyData, so looking up a key costs no
+     * allocation: the block is sorted in the same unsigned byte order that
+     * VocabularyReader uses, so findIndex is a binary search.  Blocks are
+     * never changed after they're decoded, so they can be cached and shared
+     * by every thread.
+     */
+    static class VocabularyBlock {
         long startFileOffset;
         long startValueFileOffset;
         long endValueFileOffset;
 
         long[] endValueOffsets;
-        String[] keys;
+        byte[] keyData;
+        int[] keyEnds;
 
         public VocabularyBlock(
                 long startFileOffset,
                 long startValueFileOffset,
                 long endValueFileOffset,
-                long[] endValueOffsets, String[] keys) {
-            this.keys = keys;
+                long[] endValueOffsets, byte[] keyData, int[] keyEnds) {
+            this.keyData = keyData;
+            this.keyEnds = keyEnds;
             this.endValueOffsets = endValueOffsets;
             this.startFileOffset = startFileOffset;
             this.startValueFileOffset = startValueFileOffset;
@@ -101,19 +134,83 @@ public class IndexReader {
             return endValueOffsets.length > (index + 1);
         }
 
-        public int findIndex(String term) {
-            // Need to do a linear search here because the vocabulary order
-            // does not necessarily match Java's idea of alphabetical order
-            for (int i = 0; i < keys.length; i++) {
-                if (keys[i].equals(term)) {
-                    return i;
+        public int getKeyCount() {
+            return keyEnds.length;
+        }
+
+        int keyStart(int index) {
+            return index == 0 ? 0 : keyEnds[index - 1];
+        }
+
+        /**
+         * Compares key number index with key, in unsigned byte order.
+         */
+        int compareKey(int index, byte[] key) {
+            int start = keyStart(index);
+            int length = keyEnds[index] - start;
+            int sharedLength = Math.min(length, key.length);
+
+            for (int i = 0; i < sharedLength; i++) {
+                int a = keyData[start + i] & 0xFF;
+                int b = key[i] & 0xFF;
+
+                if (a != b) {
+                    return a - b;
+                }
+            }
+            return length - key.length;
+        }
+
+        /**
+         * Returns the index of the first key that is greater than or equal
+         * to key, or getKeyCount() if there isn't one.
+         */
+        public int findFirst(byte[] key) {
+            int small = 0;
+            int big = keyEnds.length;
+
+            while (small < big) {
+                int middle = (small + big) >>> 1;
+
+                if (compareKey(middle, key) < 0) {
+                    small = middle + 1;
+                } else {
+                    big = middle;
                 }
             }
+            return small;
+        }
+
+        public int findIndex(byte[] key) {
+            int index = findFirst(key);
+
+            if (index < keyEnds.length && compareKey(index, key) == 0) {
+                return index;
+            }
             return -1;
         }
 
         private String getKey(int termIndex) {
-            return this.keys[termIndex];
+            int start = keyStart(termIndex);
+            return Utility.makeString(keyData, start, keyEnds[termIndex] - start);
+        }
+    }
+
+    /**
+     * Decoded vocabulary blocks, keyed by their file offset, in least
+     * recently used order.  Every access must synchronize on the cache.
+     */
+    static class BlockCache extends LinkedHashMap<Long, VocabularyBlock> {
+        int capacity;
+
+        BlockCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, VocabularyBlock> eldest) {
+            return size() > capacity;
         }
     }
 
@@ -134,13 +231,13 @@ public class IndexReader {
         }
 
         void loadIndex() throws IOException {
-            key = "";
+            // the key is only decoded if someone asks for it
+            key = null;
 
             if (block == null || keyIndex < 0) {
                 done = true;
-                return;
+                key = "";
             }
-            key = block.getKey(keyIndex);
         }
 
         void invalidateBlock() {
@@ -150,8 +247,7 @@ public class IndexReader {
         void decompressBlock() throws IOException {
             int blockLength = (int) (block.getValuesEnd() - block.getValuesStart());
             byte[] data = new byte[blockLength];
-            input.seek(block.getValuesStart());
-            input.readFully(data);
+            blockStream(block.getValuesStart(), blockLength).readFully(data);
             
             ByteArrayInputStream in = new ByteArrayInputStream(data);
             DataInputStream dataIn = new DataInputStream(in);
@@ -171,20 +267,16 @@ public class IndexReader {
         }
         
         public void skipTo(byte[] key) throws IOException {
-            TermSlot slot = vocabulary.get(key);
-            if (slot == null) {
+            long begin = getVocabulary().findBlock(key);
+            if (begin < 0) {
                 done = true;
             } else {
                 invalidateBlock();
-                block = readVocabularyBlock(slot.begin);
-                keyIndex = 0;
-                while (keyIndex < block.keys.length) {
-                    byte[] blockKey = Utility.makeBytes(block.keys[keyIndex]);
-                    if (Utility.compare(key, blockKey) <= 0) {
-                        loadIndex();
-                        return;
-                    }
-                    keyIndex++;
+                block = readVocabularyBlock(begin);
+                keyIndex = block.findFirst(key);
+                if (keyIndex < block.getKeyCount()) {
+                    loadIndex();
+                    return;
                 }
                 done = true;
             }
@@ -208,6 +300,9 @@ public class IndexReader {
          * Returns the key associated with the current inverted list.
          */
         public String getKey() {
+            if (key == null) {
+                key = block.getKey(keyIndex);
+            }
             return key;
         }
         
@@ -314,10 +409,25 @@ public class IndexReader {
      * @throws IOException
      */
     public IndexReader(String pathname) throws FileNotFoundException, IOException {
+        this(pathname, new Parameters());
+    }
+
+    /**
+     * Opens an index found at pathname.  If parameters contains
+     * <tt>memoryMapped=true</tt>, or the index manifest does, the file
+     * is memory mapped (see the class documentation).
+     *
+     * @param pathname Filename of the index to open.
+     * @param parameters Options for reading the index.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public IndexReader(String pathname, Parameters parameters) throws FileNotFoundException, IOException {
         input = new RandomAccessFile(pathname, "r");
 
         // Seek to the end of the file
         long length = input.length();
+        fileLength = length;
         footerOffset = length - 2*Integer.SIZE/8 - 3*Long.SIZE/8 - 1; 
         input.seek(footerOffset);
         
@@ -332,16 +442,21 @@ public class IndexReader {
         if (magicNumber != IndexWriter.MAGIC_NUMBER) {
             throw new IOException("This does not appear to be an index file (wrong magic number)");
         }
-        long invertedListLength = vocabularyOffset;
-        long vocabularyLength = manifestOffset - vocabularyOffset;
-        
-        input.seek(vocabularyOffset);
-        vocabulary = new VocabularyReader(input, invertedListLength, vocabularyLength);
-        
+        // the vocabulary is read by getVocabulary, the first time it's needed
         input.seek(manifestOffset);
         byte[] xmlData = new byte[(int) (footerOffset - manifestOffset)];
         input.read(xmlData);
         manifest = new Parameters(xmlData);
+        termFilterLength = manifest.get("termFilterLength", 0L);
+
+        if (parameters.get("memoryMapped", manifest.get("memoryMapped", false))) {
+            mappedInput = new MappedFile(input);
+        }
+
+        int blockCacheSize = (int) parameters.get("vocabularyCacheBlocks", 1024);
+        if (blockCacheSize > 0) {
+            blockCache = new BlockCache(blockCacheSize);
+        }
     }
 
     /**
@@ -380,14 +495,90 @@ public class IndexReader {
         this(pathname.toString());
     }
 
+    /**
+     * Returns true if this reader is memory mapped, and therefore safe to use from
+     * multiple threads at once.
+     */
+    public boolean isMemoryMapped() {
+        return mappedInput != null;
+    }
+
     /**
      * Returns the vocabulary structure for this IndexReader.  Note that the vocabulary
      * contains only the first key in each block.
+     *
+     * The vocabulary is opened the first time it's needed, so opening an
+     * index is cheap even if the vocabulary is big.  A packed vocabulary
+     * is memory mapped and searched in place, so it takes almost no heap;
+     * older vocabularies are read into memory.
      */
-    public VocabularyReader getVocabulary() {
-        return vocabulary;
+    public VocabularyReader getVocabulary() throws IOException {
+        VocabularyReader result = vocabulary;
+
+        if (result == null) {
+            synchronized (this) {
+                if (vocabulary == null) {
+                    vocabulary = openVocabulary();
+                }
+                result = vocabulary;
+            }
+        }
+        return result;
+    }
+
+    VocabularyReader openVocabulary() throws IOException {
+        long invertedListLength = vocabularyOffset;
+        long vocabularyLength = manifestOffset - termFilterLength - vocabularyOffset;
+
+        if (manifest.get("vocabularyFormat", "").equals(VocabularyWriter.PACKED)) {
+            ByteBuffer packed = input.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                       vocabularyOffset, vocabularyLength);
+            return new VocabularyReader(packed, invertedListLength);
+        }
+        return new VocabularyReader(readBytes(vocabularyOffset, (int) vocabularyLength),
+                                    invertedListLength);
     }
     
+    /**
+     * Returns the Bloom filter of this file's keys, or null if the file
+     * doesn't have one.  Like the vocabulary, it's memory mapped the first
+     * time it's needed.
+     */
+    public TermFilter getTermFilter() throws IOException {
+        if (termFilterLength == 0) {
+            return null;
+        }
+
+        TermFilter result = termFilter;
+        if (result == null) {
+            synchronized (this) {
+                if (termFilter == null) {
+                    ByteBuffer data = input.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            manifestOffset - termFilterLength, termFilterLength);
+                    termFilter = new TermFilter(data);
+                }
+                result = termFilter;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns false if this key is certainly not in the index, using the
+     * term filter; returns true if it may be, or if there's no filter.
+     */
+    public boolean mightContain(byte[] key) throws IOException {
+        TermFilter filter = getTermFilter();
+        return filter == null || filter.mightContain(key);
+    }
+
+    /**
+     * Returns true if the index has no keys at all.
+     */
+    public boolean isEmpty() throws IOException {
+        return getVocabulary().findBlock(new byte[0]) < 0;
+    }
+
     /**
      * Returns an iterator pointing to the very first key in the index.
      * This is typically used for iterating through the entire index,
@@ -401,19 +592,42 @@ public class IndexReader {
         return result;
     }
 
+    /**
+     * Encodes a key as UTF-8, once per lookup; the same bytes are used by
+     * the term filter, the vocabulary and the block.  Most keys are ASCII,
+     * and those are copied straight into the array, without going through
+     * a charset.
+     */
+    static byte[] keyBytes(String key) {
+        byte[] bytes = new byte[key.length()];
+
+        for (int i = 0; i < bytes.length; i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                return Utility.makeBytes(key);
+            }
+            bytes[i] = (byte) c;
+        }
+        return bytes;
+    }
+
     /**
      * Returns an iterator pointing at a specific key.  Returns
-     * null if the key is not found in the index.
+     * null if the key is not found in the index.  Keys that the term
+     * filter rejects are found missing without reading anything.
      */
     public Iterator getIterator(String key) throws IOException {
-        // read from offset to offset in the vocab structure (right?)
-        VocabularyReader.TermSlot slot = vocabulary.get(key);
+        byte[] keyBytes = keyBytes(key);
+        if (!mightContain(keyBytes)) {
+            return null;
+        }
+        long begin = getVocabulary().findBlock(keyBytes);
 
-        if (slot == null) {
+        if (begin < 0) {
             return null;
         }
-        VocabularyBlock block = readVocabularyBlock(slot.begin);
-        int index = block.findIndex(key);
+        VocabularyBlock block = readVocabularyBlock(begin);
+        int index = block.findIndex(keyBytes);
 
         if (index >= 0) {
             return new Iterator(block, index);
@@ -421,6 +635,62 @@ public class IndexReader {
         return null;
     }
     
+    /**
+     * Like getIterator(String), but the vocabulary block is read with
+     * readBytes, so this is safe to call from any thread, even while
+     * another thread is reading through blockStream.
+     */
+    public Iterator prefetchIterator(String key) throws IOException {
+        byte[] keyBytes = keyBytes(key);
+        if (!mightContain(keyBytes)) {
+            return null;
+        }
+        long begin = getVocabulary().findBlock(keyBytes);
+
+        if (begin < 0) {
+            return null;
+        }
+        VocabularyBlock block = getCachedBlock(begin);
+
+        if (block == null) {
+            int length = (int) Math.min(blockSize, fileLength - begin);
+            byte[] data = readBytes(begin, length);
+            block = decodeVocabularyBlock(begin, new MemoryDataStream(data, 0, length));
+            cacheBlock(block);
+        }
+        int index = block.findIndex(keyBytes);
+
+        if (index >= 0) {
+            return new Iterator(block, index);
+        }
+        return null;
+    }
+
+    /**
+     * Reads length bytes starting at offset.  Unlike blockStream, this
+     * is safe to call from any thread: memory mapped files are read through
+     * their own stream, and other files with positional reads on the
+     * file channel, which don't move the file pointer.
+     */
+    public byte[] readBytes(long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+
+        if (mappedInput != null) {
+            mappedInput.getStream(offset, offset + length).readFully(data);
+            return data;
+        }
+
+        FileChannel channel = input.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Read past the end of the file at " + offset);
+            }
+        }
+        return data;
+    }
+
     /**
      * Gets the value stored in the index associated with this key.
      * @param key
@@ -476,6 +746,14 @@ public class IndexReader {
      * a region of an inverted file.
      */
     public DataStream blockStream(long offset, long length) throws IOException {
+        if (mappedInput != null) {
+            long fileLength = mappedInput.length();
+            assert offset <= fileLength;
+            length = Math.min(fileLength - offset, length);
+
+            return mappedInput.getStream(offset, length + offset);
+        }
+
         long fileLength = input.length();
         assert offset <= fileLength;
         length = Math.min(fileLength - offset, length);
@@ -488,12 +766,16 @@ public class IndexReader {
      * the region of the inverted file pointed to by the iterator.
      */
     public DataStream blockStream(Iterator iter) throws IOException {
+        if (mappedInput != null) {
+            return mappedInput.getStream(iter.getDataStart(), iter.getDataEnd());
+        }
         return new BufferedFileDataStream(input, iter.getDataStart(), iter.getDataEnd());
     }
 
     /**
      * Returns the file object for the inverted file.  This is useful for actually
-     * reading the data from a byte range returned by the iterator.
+     * reading the data from a byte range returned by the iterator.  Reading
+     * through this object is not thread-safe; use blockStream instead.
      */
     public RandomAccessFile getInput() {
         return input;
@@ -503,6 +785,9 @@ public class IndexReader {
      * Closes all files associated with the IndexReader.
      */
     public void close() throws IOException {
+        if (mappedInput != null) {
+            mappedInput.close();
+        }
         input.close();
     }
     
@@ -523,9 +808,39 @@ public class IndexReader {
      * over the entire inverted file possible.
      */
     VocabularyBlock readVocabularyBlock(long slotBegin) throws IOException {
-        // read in a block of data here
-        DataStream blockStream = blockStream(slotBegin, blockSize);
+        VocabularyBlock block = getCachedBlock(slotBegin);
 
+        if (block == null) {
+            // read in a block of data here
+            block = decodeVocabularyBlock(slotBegin, blockStream(slotBegin, blockSize));
+            cacheBlock(block);
+        }
+        return block;
+    }
+
+    VocabularyBlock getCachedBlock(long slotBegin) {
+        if (blockCache == null) {
+            return null;
+        }
+        synchronized (blockCache) {
+            return blockCache.get(slotBegin);
+        }
+    }
+
+    /**
+     * Adds a decoded block to the cache.  When the cache is full, the least
+     * recently used block is dropped to make room.
+     */
+    void cacheBlock(VocabularyBlock block) {
+        if (blockCache == null) {
+            return;
+        }
+        synchronized (blockCache) {
+            blockCache.put(block.startFileOffset, block);
+        }
+    }
+
+    VocabularyBlock decodeVocabularyBlock(long slotBegin, DataStream blockStream) throws IOException {
         // now we decode everything from the stream
         long endBlock = blockStream.readLong();
         long wordCount = blockStream.readLong();
@@ -536,7 +851,7 @@ public class IndexReader {
 
         int wordBlockCount = (int) Math.ceil((double) wordCount / vocabGroup);
         short[] wordBlockEnds = new short[wordBlockCount];
-        String[] words = new String[(int) wordCount];
+        int[] wordEnds = new int[(int) wordCount];
         long[] invertedListEnds = new long[(int) wordCount];
 
         for (int i = 0; i < wordBlockCount; i++) {
@@ -547,37 +862,39 @@ public class IndexReader {
             invertedListEnds[i] = blockStream.readShort();
         }
 
+        // grown as needed; the words are copied out at the end
+        byte[] wordData = new byte[(int) wordCount * (prefixLength + 16)];
+        int dataLength = 0;
+
         for (int i = 0; i < wordCount; i += vocabGroup) {
             int suffixLength = blockStream.readUnsignedByte();
             int wordLength = suffixLength + prefixLength;
-            byte[] wordBytes = new byte[wordLength];
-            byte[] lastWordBytes = wordBytes;
-            System.arraycopy(prefixBytes, 0, wordBytes, 0, prefixBytes.length);
+            wordData = ensureCapacity(wordData, dataLength + wordLength);
+            int lastWordStart = dataLength;
+            System.arraycopy(prefixBytes, 0, wordData, dataLength, prefixLength);
+            blockStream.readFully(wordData, dataLength + prefixLength, suffixLength);
+            dataLength += wordLength;
+            wordEnds[i] = dataLength;
             int end = (int) Math.min(wordCount, i + vocabGroup);
 
-            blockStream.readFully(wordBytes, prefixBytes.length,
-                                  wordBytes.length - prefixBytes.length);
-            words[i] = Utility.makeString(wordBytes);
-
             for (int j = i + 1; j < end; j++) {
                 int common = blockStream.readUnsignedByte();
                 wordLength = blockStream.readUnsignedByte();
                 assert wordLength >= 0 : "Negative word length: " + wordLength + " " + j;
                 assert wordLength >= common : "word length too small: " + wordLength + " " + common + " " + j;
-                wordBytes = new byte[wordLength];
-
-                try {
-                    System.arraycopy(lastWordBytes, 0, wordBytes, 0, common);
-                    blockStream.readFully(wordBytes, common, wordLength - common);
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    System.out.println("wl: " + wordLength + " c: " + common);
-                    throw e;
-                }
-                words[j] = Utility.makeString(wordBytes);
-                lastWordBytes = wordBytes;
+
+                wordData = ensureCapacity(wordData, dataLength + wordLength);
+                System.arraycopy(wordData, lastWordStart, wordData, dataLength, common);
+                blockStream.readFully(wordData, dataLength + common, wordLength - common);
+                lastWordStart = dataLength;
+                dataLength += wordLength;
+                wordEnds[j] = dataLength;
             }
         }
 
+        byte[] keyData = new byte[dataLength];
+        System.arraycopy(wordData, 0, keyData, 0, dataLength);
+
         int suffixBytes = wordBlockEnds[wordBlockEnds.length - 1];
         long headerLength = 8 + // word count
                 8 + // block end
@@ -587,6 +904,16 @@ public class IndexReader {
                 suffixBytes;          // suffix storage 
 
         long startInvertedLists = slotBegin + headerLength;
-        return new VocabularyBlock(slotBegin, startInvertedLists, endBlock, invertedListEnds, words);
+        return new VocabularyBlock(slotBegin, startInvertedLists, endBlock, invertedListEnds,
+                                   keyData, wordEnds);
+    }
+
+    private static byte[] ensureCapacity(byte[] data, int length) {
+        if (length <= data.length) {
+            return data;
+        }
+        byte[] larger = new byte[Math.max(length, data.length * 2)];
+        System.arraycopy(data, 0, larger, 0, data.length);
+        return larger;
     }
 }
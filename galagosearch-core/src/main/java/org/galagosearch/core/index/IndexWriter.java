@@ -30,6 +30,10 @@ import org.galagosearch.tupleflow.Utility;
  * 
  * Keys cannot be longer than 256 bytes, and they must be added in sorted order.
  * 
+ * A Bloom filter of the keys (TermFilter) is stored after the vocabulary,
+ * with <tt>termFilterBitsPerKey</tt> bits per key (10 by default; 0 leaves
+ * it out), so readers can reject missing keys without any I/O.
+ * 
  * @author trevor
  */
 public class IndexWriter {
@@ -37,6 +41,7 @@ public class IndexWriter {
 
     DataOutputStream output;
     final VocabularyWriter vocabulary;
+    TermFilter.Builder termFilter;
     Parameters manifest;
     ArrayList<IndexElement> lists;
 
@@ -62,27 +67,64 @@ public class IndexWriter {
         isCompressed = parameters.get("isCompressed", false);
         output = new DataOutputStream(new BufferedOutputStream(
                                       new FileOutputStream(outputFilename)));
-        vocabulary = new VocabularyWriter();
+        vocabulary = new VocabularyWriter(true);
         manifest = new Parameters();
         manifest.copy(parameters);
         lists = new ArrayList<IndexElement>();
+
+        int bitsPerKey = (int) parameters.get("termFilterBitsPerKey", TermFilter.DEFAULT_BITS_PER_KEY);
+        if (bitsPerKey > 0) {
+            termFilter = new TermFilter.Builder(bitsPerKey);
+        }
     }
     
     public IndexWriter(String outputFilename)
             throws FileNotFoundException, IOException {
         output = new DataOutputStream(new BufferedOutputStream(
                                       new FileOutputStream(outputFilename)));
-        vocabulary = new VocabularyWriter();
+        vocabulary = new VocabularyWriter(true);
         manifest = new Parameters();
         lists = new ArrayList<IndexElement>();
+        termFilter = new TermFilter.Builder(TermFilter.DEFAULT_BITS_PER_KEY);
     }
 
+    /**
+     * Creates the index file named by the <tt>filename</tt> parameter.  If
+     * <tt>partitionCount</tt> is more than one, each instance of the stage
+     * writes one partition of the keys, and <tt>filename</tt> becomes a
+     * directory holding one file per instance.  PartitionedIndexReader
+     * reads the directory back as a single index.
+     */
     public IndexWriter(TupleFlowParameters parameters) throws FileNotFoundException, IOException {
-        this(parameters.getXML().get("filename"), parameters.getXML());
+        this(getFilename(parameters), parameters.getXML());
+
+        int partitionCount = getPartitionCount(parameters.getXML());
+        if (partitionCount > 1) {
+            manifest.set("partition", Integer.toString(parameters.getInstanceId()));
+            manifest.set("partitionCount", Integer.toString(partitionCount));
+        }
         recordsWritten = parameters.getCounter("Records Written");
         blocksWritten = parameters.getCounter("Blocks Written");
     }
     
+    public static int getPartitionCount(Parameters parameters) {
+        return (int) parameters.get("partitionCount", 1);
+    }
+
+    /**
+     * Returns the file this stage instance should write: <tt>filename</tt>,
+     * or a file named by the instance number inside it if the index is
+     * partitioned.
+     */
+    public static String getFilename(TupleFlowParameters parameters) {
+        String filename = parameters.getXML().get("filename");
+
+        if (getPartitionCount(parameters.getXML()) > 1) {
+            filename += File.separator + parameters.getInstanceId();
+        }
+        return filename;
+    }
+
     /**
      * Returns the current copy of the manifest, which will be stored in
      * the completed index file.  This data is not written until close() is called.
@@ -458,6 +500,9 @@ public class IndexWriter {
         }
         lists.add(list);
         updateBufferedSize(list);
+        if (termFilter != null) {
+            termFilter.add(list.key());
+        }
         if (recordsWritten != null) {
             recordsWritten.increment();
         }
@@ -467,11 +512,16 @@ public class IndexWriter {
         flush();
         
         byte[] vocabularyData = vocabulary.data();
+        byte[] filterData = (termFilter == null) ? new byte[0] : termFilter.data();
+        manifest.set("vocabularyFormat", VocabularyWriter.PACKED);
+        manifest.set("termFilterLength", Integer.toString(filterData.length));
         byte[] xmlData = manifest.toString().getBytes("UTF-8");
         long vocabularyOffset = filePosition;
-        long manifestOffset = filePosition + vocabularyData.length;
+        long manifestOffset = filePosition + vocabularyData.length + filterData.length;
         
+        // the term filter sits between the vocabulary and the manifest
         output.write(vocabularyData);
+        output.write(filterData);
         output.write(xmlData);
         
         output.writeLong(vocabularyOffset);
@@ -0,0 +1,60 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.File;
+import java.io.IOException;
+import org.galagosearch.tupleflow.ExNihiloSource;
+import org.galagosearch.tupleflow.IncompatibleProcessorException;
+import org.galagosearch.tupleflow.Linkage;
+import org.galagosearch.tupleflow.OutputClass;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Parameters.Value;
+import org.galagosearch.tupleflow.Processor;
+import org.galagosearch.tupleflow.Step;
+import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+import org.galagosearch.tupleflow.types.XMLFragment;
+
+/**
+ * Adds up the collection length and document count in the manifests of
+ * each <tt>index</tt>, and sends them to a ManifestWriter for the index
+ * that merges them all.
+ *
+ * @author trevor
+ */
+@OutputClass(className = "org.galagosearch.tupleflow.types.XMLFragment", order = {"+nodePath"})
+public class ManifestMerger implements ExNihiloSource<XMLFragment> {
+    public Processor<XMLFragment> processor;
+    TupleFlowParameters parameters;
+
+    public ManifestMerger(TupleFlowParameters parameters) {
+        this.parameters = parameters;
+    }
+
+    public void run() throws IOException {
+        long collectionLength = 0;
+        long documentCount = 0;
+
+        for (Value index : parameters.getXML().list("index")) {
+            Parameters manifest = new Parameters();
+            manifest.parse(index.toString() + File.separator + "manifest");
+            collectionLength += manifest.get("collectionLength", 0L);
+            documentCount += manifest.get("documentCount", 0L);
+        }
+
+        processor.process(new XMLFragment("collectionLength", Long.toString(collectionLength)));
+        processor.process(new XMLFragment("documentCount", Long.toString(documentCount)));
+        processor.close();
+    }
+
+    public void setProcessor(Step processor) throws IncompatibleProcessorException {
+        Linkage.link(this, processor);
+    }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        if (!parameters.getXML().containsKey("index")) {
+            handler.addError("ManifestMerger requires at least one 'index' parameter.");
+        }
+    }
+}
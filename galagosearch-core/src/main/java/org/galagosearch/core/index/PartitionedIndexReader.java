@@ -0,0 +1,151 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import java.util.Map;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.NodeType;
+import org.galagosearch.core.retrieval.structured.IndexIterator;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+import org.galagosearch.tupleflow.Utility;
+
+/**
+ * <p>Reads an index part that was written in partitions, as a single part.
+ * When BuildIndex is given more than one writer partition, each writer
+ * receives the keys that hash to it, and writes them to its own index file
+ * in the part's directory.  Every list for a key is in exactly one
+ * partition, so a lookup only needs to hash the key to find the partition
+ * that holds it.</p>
+ *
+ * <p>The keys are hashed the same way the TupleFlow hash splitter assigns
+ * objects to stage instances, so getPartition(key, count) is the number of
+ * the writer that received the key.</p>
+ *
+ * @author trevor
+ */
+public class PartitionedIndexReader implements StructuredIndexPartReader {
+    IndexReader[] readers;
+    StructuredIndexPartReader[] partitions;
+
+    /**
+     * Creates a reader over the partitions of a part; partition i must be
+     * the file written by writer instance i.
+     */
+    public PartitionedIndexReader(IndexReader[] readers, StructuredIndexPartReader[] partitions) {
+        assert readers.length == partitions.length;
+        this.readers = readers;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Returns the partition that a key is written to, out of partitionCount.
+     */
+    public static int getPartition(byte[] key, int partitionCount) {
+        int hash = Utility.hash(key);
+        if (hash < 0) {
+            hash = ~hash;
+        }
+        return hash % partitionCount;
+    }
+
+    public StructuredIndexPartReader[] getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Returns the partition that holds the lists for key.
+     */
+    public StructuredIndexPartReader getPartition(String key) {
+        if (key == null) {
+            return partitions[0];
+        }
+        return partitions[getPartition(Utility.makeBytes(key), partitions.length)];
+    }
+
+    public void close() throws IOException {
+        for (StructuredIndexPartReader partition : partitions) {
+            partition.close();
+        }
+    }
+
+    public Map<String, NodeType> getNodeTypes() {
+        return partitions[0].getNodeTypes();
+    }
+
+    /**
+     * Returns an iterator over every key in the part.  The keys of each
+     * partition are in order, but the partitions follow one another, so
+     * the keys aren't in order overall.
+     */
+    public IndexIterator getIterator() throws IOException {
+        return new PartitionIterator();
+    }
+
+    public IndexIterator getIterator(Node node) throws IOException {
+        return getPartition(node.getDefaultParameter("term")).getIterator(node);
+    }
+
+    public TermStatistics getStatistics(Node node) throws IOException {
+        return getPartition(node.getDefaultParameter("term")).getStatistics(node);
+    }
+
+    /**
+     * Reads each non-empty partition in turn.
+     */
+    public class PartitionIterator implements IndexIterator {
+        int partition;
+        IndexIterator current;
+
+        PartitionIterator() throws IOException {
+            reset();
+        }
+
+        boolean nextPartition() throws IOException {
+            for (partition++; partition < partitions.length; partition++) {
+                if (!readers[partition].isEmpty()) {
+                    current = partitions[partition].getIterator();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void reset() throws IOException {
+            partition = -1;
+            current = null;
+            nextPartition();
+        }
+
+        public String getRecordString() {
+            if (current == null) {
+                return "";
+            }
+            return current.getRecordString();
+        }
+
+        public boolean nextRecord() throws IOException {
+            if (current == null) {
+                return false;
+            }
+            if (current.nextRecord()) {
+                return true;
+            }
+            return nextPartition();
+        }
+
+        public long collectionFrequency() {
+            if (current == null) {
+                return 0;
+            }
+            return current.collectionFrequency();
+        }
+
+        public long documentFrequency() {
+            if (current == null) {
+                return 0;
+            }
+            return current.documentFrequency();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import org.galagosearch.core.types.NumberWordPosition;
+import org.galagosearch.core.util.ExtentArray;
+import org.galagosearch.tupleflow.ExNihiloSource;
+import org.galagosearch.tupleflow.IncompatibleProcessorException;
+import org.galagosearch.tupleflow.Linkage;
+import org.galagosearch.tupleflow.OutputClass;
+import org.galagosearch.tupleflow.Step;
+import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+
+/**
+ * Merges the position lists of several postings parts, and passes them on
+ * in order, usually to a PositionIndexWriter.
+ *
+ * @author trevor
+ */
+@OutputClass(className = "org.galagosearch.core.types.NumberWordPosition", order = {"+word", "+document", "+position"})
+public class PositionIndexMerger extends IndexPartMerger implements ExNihiloSource<NumberWordPosition> {
+    public NumberWordPosition.WordDocumentPositionOrder.ShreddedProcessor processor;
+    PositionIndexReader[] parts;
+
+    public PositionIndexMerger(TupleFlowParameters parameters) throws IOException {
+        super(parameters);
+        parts = new PositionIndexReader[inputs.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new PositionIndexReader(inputs.get(i).reader);
+        }
+    }
+
+    protected void processKey(byte[] key) throws IOException {
+        processor.processWord(key);
+    }
+
+    protected void processList(int index, Input input) throws IOException {
+        PositionIndexReader.Iterator list = parts[index].new Iterator(input.iterator);
+
+        while (!list.isDone()) {
+            processor.processDocument(list.document() + input.documentOffset);
+            ExtentArray extents = list.extents();
+
+            for (int i = 0; i < extents.getPosition(); i++) {
+                processor.processPosition(extents.begin(i));
+                processor.processTuple();
+            }
+            list.nextDocument();
+        }
+    }
+
+    protected void close() throws IOException {
+        processor.close();
+    }
+
+    public void setProcessor(Step processor) throws IncompatibleProcessorException {
+        Linkage.link(this, processor);
+    }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        IndexPartMerger.verify(parameters, handler);
+    }
+}
@@ -4,19 +4,24 @@ package org.galagosearch.core.index;
 import java.io.DataInput;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.galagosearch.core.parse.Document;
 import org.galagosearch.core.index.IndexReader;
 import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.query.NodeType;
+import org.galagosearch.core.retrieval.structured.BoundedCountIterator;
 import org.galagosearch.core.retrieval.structured.CountIterator;
 import org.galagosearch.core.retrieval.structured.ExtentIterator;
 import org.galagosearch.core.retrieval.structured.IndexIterator;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.core.util.ExtentArray;
-import org.galagosearch.tupleflow.BufferedFileDataStream;
+import org.galagosearch.tupleflow.DataStream;
+import org.galagosearch.tupleflow.MemoryDataStream;
+import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.Processor;
 import org.galagosearch.tupleflow.VByteInput;
 
@@ -25,70 +30,332 @@ import org.galagosearch.tupleflow.VByteInput;
  * index contains both term count information and term position information.
  * The term counts data is stored separately from term position information for
  * faster query processing when no positions are needed.
- * 
- * For now, the iterator loads everything into memory before starting query 
- * processing, which is not a workable solution for larger collections.
- * 
+ *
+ * Long lists may also contain a skip list, which lets skipToDocument jump
+ * over blocks of postings in the documents, counts and positions streams
+ * without decoding them.
+ *
+ * There are two kinds of iterators.  The counts iterator (TermCountIterator)
+ * never reads the positions stream at all.  The extents iterator (Iterator)
+ * only decodes the positions of a document when extents() is called, so
+ * documents that are skipped over cost very little.
+ *
+ * The list data is decoded with the PostingsCodec named in the manifest.
+ *
+ * If a PostingListCache is set, getIterator(Node) decodes each list once
+ * into the cache and serves it from memory after that (CachedIterator).
+ * Lists too big for the cache are read from the file as usual.
+ * Otherwise, lists can be read ahead of time with prefetch, on other threads,
+ * into the PrefetchedLists of one query.
+ *
  * @author trevor
  */
 public class PositionIndexReader implements StructuredIndexPartReader {
-    public class Iterator extends ExtentIterator implements IndexIterator {
+    /**
+     * The header of a single inverted list, which says where each of its
+     * data streams starts, plus the skip list, which is loaded lazily
+     * by the first skip that needs it.
+     */
+    class ListHeader {
+        int options;
         int documentCount;
         int totalPositionCount;
-        VByteInput documents;
-        VByteInput counts;
-        VByteInput positions;
-        int documentIndex;
-        int currentDocument;
-        int currentCount;
-        ExtentArray extentArray;
-        IndexReader.Iterator iterator;
+        int maximumCount;
 
-        Iterator(IndexReader.Iterator iterator) throws IOException {
-            this.iterator = iterator;
-            load();
+        long documentsStart;
+        long documentsLength;
+        long countsStart;
+        long countsLength;
+        long positionsStart;
+        long positionsLength;
+
+        int skipDistance;
+        int skipCount;
+        long skipsStart;
+        long skipsLength;
+        int[] skipDocuments;
+        long[] skipDocumentsOffsets;
+        long[] skipCountsOffsets;
+        long[] skipPositionsOffsets;
+        int[] skipMaximumCounts;
+
+        // the first bytes of the list, if they were read ahead by prefetch
+        long dataStart;
+        byte[] data;
+
+        ListHeader(IndexReader.Iterator iterator) throws IOException {
+            this(iterator, null);
         }
 
-        private void load() throws IOException {
+        ListHeader(IndexReader.Iterator iterator, byte[] data) throws IOException {
             long startPosition = iterator.getValueStart();
             long endPosition = iterator.getValueEnd();
 
-            RandomAccessFile input = reader.getInput();
-            input.seek(startPosition);
-            DataInput stream = new VByteInput(reader.getInput());
+            this.dataStart = startPosition;
+            this.data = data;
+            DataStream header;
+            if (data != null) {
+                header = new MemoryDataStream(data, 0, data.length);
+            } else {
+                header = reader.blockStream(startPosition, endPosition - startPosition);
+                headerReads.incrementAndGet();
+            }
+            DataInput stream = new VByteInput(header);
 
-            int options = stream.readInt();
+            options = stream.readInt();
             documentCount = stream.readInt();
             totalPositionCount = stream.readInt();
 
-            long documentByteLength = stream.readLong();
-            long countsByteLength = stream.readLong();
-            long positionsByteLength = stream.readLong();
+            maximumCount = -1;
+            if ((options & PositionIndexWriter.HAS_MAXIMUM_COUNTS) != 0) {
+                maximumCount = stream.readInt();
+            }
+
+            skipDistance = 0;
+            skipCount = 0;
+            if ((options & PositionIndexWriter.HAS_SKIPS) != 0) {
+                skipDistance = stream.readInt();
+                skipCount = stream.readInt();
+            }
+
+            documentsLength = stream.readLong();
+            countsLength = stream.readLong();
+            positionsLength = stream.readLong();
+            skipsLength = 0;
+
+            if ((options & PositionIndexWriter.HAS_SKIPS) != 0) {
+                skipsLength = stream.readLong();
+            }
+
+            documentsStart = startPosition + header.getPosition();
+            countsStart = documentsStart + documentsLength;
+            positionsStart = countsStart + countsLength;
+            skipsStart = positionsStart + positionsLength;
+
+            assert skipsStart + skipsLength == endPosition;
+        }
+
+        /**
+         * Returns a stream over part of the list, from the prefetched bytes
+         * if they cover it, or from the file if they don't.
+         */
+        DataStream stream(long start, long length) throws IOException {
+            if (data != null && start + length <= dataStart + data.length) {
+                return new MemoryDataStream(data, (int) (start - dataStart), (int) length);
+            }
+            return reader.blockStream(start, length);
+        }
+
+        DataStream documentsStream() throws IOException {
+            return stream(documentsStart, documentsLength);
+        }
 
-            long documentStart = input.getFilePointer();
-            long documentEnd = documentStart + documentByteLength;
+        DataStream countsStream() throws IOException {
+            return stream(countsStart, countsLength);
+        }
+
+        DataStream positionsStream() throws IOException {
+            return stream(positionsStart, positionsLength);
+        }
 
-            long countsStart = documentEnd;
-            long countsEnd = countsStart + countsByteLength;
+        private void loadSkips() throws IOException {
+            DataInput stream = new VByteInput(stream(skipsStart, skipsLength));
 
-            long positionsStart = countsEnd;
-            long positionsEnd = positionsStart + positionsByteLength;
+            skipDocuments = new int[skipCount];
+            skipDocumentsOffsets = new long[skipCount];
+            skipCountsOffsets = new long[skipCount];
+            skipPositionsOffsets = new long[skipCount];
+            skipMaximumCounts = null;
+            if ((options & PositionIndexWriter.HAS_MAXIMUM_COUNTS) != 0) {
+                skipMaximumCounts = new int[skipCount];
+            }
+
+            int document = 0;
+            long documentsOffset = 0;
+            long countsOffset = 0;
+            long positionsOffset = 0;
 
-            assert positionsEnd == endPosition;
+            for (int i = 0; i < skipCount; i++) {
+                document += stream.readInt();
+                documentsOffset += stream.readLong();
+                countsOffset += stream.readLong();
+                positionsOffset += stream.readLong();
 
-            // create streams for each kind of data
-            documents = new VByteInput(new BufferedFileDataStream(input, documentStart, documentEnd));
-            counts = new VByteInput(new BufferedFileDataStream(input, countsStart, countsEnd));
-            positions = new VByteInput(new BufferedFileDataStream(input, positionsStart, positionsEnd));
+                skipDocuments[i] = document;
+                skipDocumentsOffsets[i] = documentsOffset;
+                skipCountsOffsets[i] = countsOffset;
+                skipPositionsOffsets[i] = positionsOffset;
+
+                if (skipMaximumCounts != null) {
+                    skipMaximumCounts[i] = stream.readInt();
+                }
+            }
+        }
+
+        /**
+         * Returns an upper bound on the count of a document in this list,
+         * using the maximum count of the skip block that would contain it
+         * if there is one.  Returns -1 if the list doesn't store maximum counts.
+         */
+        int maximumCount(int document) throws IOException {
+            if (skipCount == 0 || maximumCount < 0) {
+                return maximumCount;
+            }
+            if (skipDocuments == null) {
+                loadSkips();
+            }
+
+            // find the first block that ends at or after this document
+            int small = 0;
+            int big = skipCount;
+
+            while (small < big) {
+                int middle = small + (big - small) / 2;
+
+                if (skipDocuments[middle] < document) {
+                    small = middle + 1;
+                } else {
+                    big = middle;
+                }
+            }
+
+            // documents after the last skip don't have a block maximum
+            if (small == skipCount) {
+                return maximumCount;
+            }
+            return skipMaximumCounts[small];
+        }
+
+        /**
+         * Skip i points just past document number (i+1)*skipDistance - 1 in
+         * the list, and skipDocuments[i] holds that document.  This finds the
+         * last skip that doesn't pass the target document and is ahead of
+         * the current document, or -1 if there isn't one.
+         */
+        int findSkip(int documentIndex, int currentDocument, int document) throws IOException {
+            if (skipCount == 0 || document <= currentDocument) {
+                return -1;
+            }
+            if (skipDocuments == null) {
+                loadSkips();
+            }
+
+            int big = skipCount - 1;
+            int small = documentIndex / skipDistance;
+            int result = -1;
+
+            while (small <= big) {
+                int middle = small + (big - small) / 2;
+
+                if (skipDocuments[middle] < document) {
+                    result = middle;
+                    small = middle + 1;
+                } else {
+                    big = middle - 1;
+                }
+            }
+
+            if (result >= 0 && skipDocuments[result] <= currentDocument) {
+                return -1;
+            }
+            return result;
+        }
+
+        /// The index of the last document covered by skip number skip.
+        int skipDocumentIndex(int skip) {
+            return (skip + 1) * skipDistance - 1;
+        }
+    }
+
+    public class Iterator extends ExtentIterator implements IndexIterator, BoundedCountIterator {
+        ListHeader header;
+        DataStream documentsStream;
+        DataStream countsStream;
+        DataStream positionsStream;
+        PostingsCodec.Decoder documents;
+        PostingsCodec.Decoder counts;
+        PostingsCodec.Decoder positions;
+        int documentIndex;
+        int currentDocument;
+        int currentCount;
+        ExtentArray extentArray;
+        IndexReader.Iterator iterator;
+
+        // positions are decoded only when extents() is called
+        boolean extentsLoaded;
+        long positionsToSkip;
+
+        Iterator(IndexReader.Iterator iterator) throws IOException {
+            this(iterator, (byte[]) null);
+        }
+
+        Iterator(IndexReader.Iterator iterator, byte[] prefetched) throws IOException {
+            this(iterator, new ListHeader(iterator, prefetched));
+        }
+
+        Iterator(IndexReader.Iterator iterator, ListHeader header) throws IOException {
+            this.iterator = iterator;
+            this.header = header;
+            load();
+        }
+
+        // the header doesn't change, so a reset only reopens the data streams
+        private void load() throws IOException {
+            documentsStream = header.documentsStream();
+            countsStream = header.countsStream();
+            positionsStream = header.positionsStream();
+
+            documents = codec.getDecoder(documentsStream);
+            counts = codec.getDecoder(countsStream);
+            positions = codec.getDecoder(positionsStream);
 
             extentArray = new ExtentArray();
             documentIndex = 0;
-            loadExtents();
+            currentDocument = 0;
+            positionsToSkip = 0;
+            loadDocument();
         }
 
-        private void loadExtents() throws IOException {
+        private void skipTo(int skip) throws IOException {
+            documents.seek(header.skipDocumentsOffsets[skip]);
+            counts.seek(header.skipCountsOffsets[skip]);
+            positions.seek(header.skipPositionsOffsets[skip]);
+
+            documentIndex = header.skipDocumentIndex(skip);
+            currentDocument = header.skipDocuments[skip];
+            currentCount = 0;
+            positionsToSkip = 0;
+            nextDocument();
+        }
+
+        /**
+         * Uses the skip list (if this list has one) to jump to the last skip
+         * point before the target document, then moves forward one document
+         * at a time from there.
+         */
+        @Override
+        public boolean skipToDocument(int document) throws IOException {
+            if (!isDone()) {
+                int skip = header.findSkip(documentIndex, currentDocument, document);
+                if (skip >= 0) {
+                    skipTo(skip);
+                }
+            }
+
+            return super.skipToDocument(document);
+        }
+
+        private void loadDocument() throws IOException {
             currentDocument += documents.readInt();
             currentCount = counts.readInt();
+            extentsLoaded = false;
+        }
+
+        private void loadExtents() throws IOException {
+            // pass over the positions of every document we didn't look at
+            positions.skip(positionsToSkip);
+            positionsToSkip = 0;
+
             extentArray.reset();
 
             int position = 0;
@@ -96,19 +363,21 @@ public class PositionIndexReader implements StructuredIndexPartReader {
                 position += positions.readInt();
                 extentArray.add(currentDocument, position, position + 1);
             }
+            extentsLoaded = true;
         }
-        
+
         public String getRecordString() {
             StringBuilder builder = new StringBuilder();
-            
+            ExtentArray extents = extents();
+
             builder.append(iterator.getKey());
             builder.append(",");
             builder.append(currentDocument);
-            for (int i = 0; i < extentArray.getPosition(); ++i) {
+            for (int i = 0; i < extents.getPosition(); ++i) {
                 builder.append(",");
-                builder.append(extentArray.getBuffer()[i].begin);
+                builder.append(extents.begin(i));
             }
-            
+
             return builder.toString();
         }
 
@@ -129,10 +398,13 @@ public class PositionIndexReader implements StructuredIndexPartReader {
         }
 
         public void nextDocument() throws IOException {
+            if (!extentsLoaded) {
+                positionsToSkip += currentCount;
+            }
             documentIndex += 1;
 
             if (!isDone()) {
-                loadExtents();
+                loadDocument();
             }
         }
 
@@ -140,6 +412,7 @@ public class PositionIndexReader implements StructuredIndexPartReader {
             nextDocument();
             if (!isDone()) return true;
             if (iterator.nextKey()) {
+                header = new ListHeader(iterator);
                 load();
                 return true;
             }
@@ -147,10 +420,17 @@ public class PositionIndexReader implements StructuredIndexPartReader {
         }
 
         public boolean isDone() {
-            return documentIndex >= documentCount;
+            return documentIndex >= header.documentCount;
         }
 
         public ExtentArray extents() {
+            if (!extentsLoaded) {
+                try {
+                    loadExtents();
+                } catch (IOException e) {
+                    throw new RuntimeException("Couldn't read positions for " + iterator.getKey(), e);
+                }
+            }
             return extentArray;
         }
 
@@ -161,15 +441,507 @@ public class PositionIndexReader implements StructuredIndexPartReader {
         public int count() {
             return currentCount;
         }
+
+        public long collectionFrequency() {
+            return header.totalPositionCount;
+        }
+
+        public long documentFrequency() {
+            return header.documentCount;
+        }
+
+        public int maximumCount() {
+            return header.maximumCount;
+        }
+
+        public int maximumCount(int document) throws IOException {
+            return header.maximumCount(document);
+        }
     }
+
+    /**
+     * Reads only the documents and counts streams of a list, for
+     * features that don't need term positions.
+     */
+    public class TermCountIterator extends CountIterator implements IndexIterator, BoundedCountIterator {
+        ListHeader header;
+        DataStream documentsStream;
+        DataStream countsStream;
+        PostingsCodec.Decoder documents;
+        PostingsCodec.Decoder counts;
+        int documentIndex;
+        int currentDocument;
+        int currentCount;
+        IndexReader.Iterator iterator;
+
+        TermCountIterator(IndexReader.Iterator iterator) throws IOException {
+            this(iterator, (byte[]) null);
+        }
+
+        TermCountIterator(IndexReader.Iterator iterator, byte[] prefetched) throws IOException {
+            this(iterator, new ListHeader(iterator, prefetched));
+        }
+
+        TermCountIterator(IndexReader.Iterator iterator, ListHeader header) throws IOException {
+            this.iterator = iterator;
+            this.header = header;
+            load();
+        }
+
+        private void load() throws IOException {
+            documentsStream = header.documentsStream();
+            countsStream = header.countsStream();
+            documents = codec.getDecoder(documentsStream);
+            counts = codec.getDecoder(countsStream);
+
+            documentIndex = 0;
+            currentDocument = 0;
+            loadDocument();
+        }
+
+        private void loadDocument() throws IOException {
+            currentDocument += documents.readInt();
+            currentCount = counts.readInt();
+        }
+
+        @Override
+        public boolean skipToDocument(int document) throws IOException {
+            if (isDone()) {
+                return false;
+            }
+
+            int skip = header.findSkip(documentIndex, currentDocument, document);
+            if (skip >= 0) {
+                documents.seek(header.skipDocumentsOffsets[skip]);
+                counts.seek(header.skipCountsOffsets[skip]);
+                documentIndex = header.skipDocumentIndex(skip);
+                currentDocument = header.skipDocuments[skip];
+                nextDocument();
+            }
+
+            while (!isDone() && currentDocument < document) {
+                nextDocument();
+            }
+            return !isDone() && document == currentDocument;
+        }
+
+        public String getRecordString() {
+            StringBuilder builder = new StringBuilder();
+
+            builder.append(iterator.getKey());
+            builder.append(",");
+            builder.append(currentDocument);
+            builder.append(",");
+            builder.append(currentCount);
+
+            return builder.toString();
+        }
+
+        public boolean nextRecord() throws IOException {
+            nextDocument();
+            if (!isDone()) return true;
+            if (iterator.nextKey()) {
+                header = new ListHeader(iterator);
+                load();
+                return true;
+            }
+            return false;
+        }
+
+        public void reset() throws IOException {
+            load();
+        }
+
+        public void nextDocument() throws IOException {
+            documentIndex += 1;
+
+            if (!isDone()) {
+                loadDocument();
+            }
+        }
+
+        public boolean isDone() {
+            return documentIndex >= header.documentCount;
+        }
+
+        public int document() {
+            return currentDocument;
+        }
+
+        public int count() {
+            return currentCount;
+        }
+
+        public long collectionFrequency() {
+            return header.totalPositionCount;
+        }
+
+        public long documentFrequency() {
+            return header.documentCount;
+        }
+
+        public int maximumCount() {
+            return header.maximumCount;
+        }
+
+        public int maximumCount(int document) throws IOException {
+            return header.maximumCount(document);
+        }
+    }
+
+    /**
+     * Reads a list that was decoded into a PostingListCache.  It behaves
+     * just like the disk-backed iterators; extents() is only available
+     * if the list was cached with its positions.
+     */
+    public class CachedIterator extends ExtentIterator implements IndexIterator, BoundedCountIterator {
+        String term;
+        PostingListCache.DecodedList list;
+        int documentIndex;
+        ExtentArray extentArray;
+        boolean extentsLoaded;
+
+        CachedIterator(String term, PostingListCache.DecodedList list) {
+            this.term = term;
+            this.list = list;
+            this.extentArray = new ExtentArray();
+            reset();
+        }
+
+        /**
+         * Finds the first document at or after the target with a galloping
+         * search from the current document.
+         */
+        @Override
+        public boolean skipToDocument(int document) {
+            int[] documents = list.documents;
+
+            if (isDone() || documents[documentIndex] >= document) {
+                return !isDone() && documents[documentIndex] == document;
+            }
+
+            int step = 1;
+            int small = documentIndex;
+            int big = documentIndex + 1;
+
+            while (big < documents.length && documents[big] < document) {
+                small = big;
+                step *= 2;
+                big = small + step;
+            }
+            big = Math.min(big, documents.length);
+
+            // documents[small] < document, and documents[big] >= document (or big is the end)
+            while (big - small > 1) {
+                int middle = small + (big - small) / 2;
+
+                if (documents[middle] < document) {
+                    small = middle;
+                } else {
+                    big = middle;
+                }
+            }
+
+            documentIndex = big;
+            extentsLoaded = false;
+            return !isDone() && documents[documentIndex] == document;
+        }
+
+        public void nextDocument() {
+            if (!isDone()) {
+                documentIndex++;
+                extentsLoaded = false;
+            }
+        }
+
+        @Override
+        public int fillBlock(int end, int[] documents, int[] counts) {
+            int[] listDocuments = list.documents;
+            int[] listCounts = list.counts;
+            int filled = 0;
+
+            while (filled < documents.length && documentIndex < listDocuments.length &&
+                   listDocuments[documentIndex] < end) {
+                documents[filled] = listDocuments[documentIndex];
+                counts[filled] = listCounts[documentIndex];
+                filled++;
+                documentIndex++;
+            }
+            extentsLoaded = false;
+            return filled;
+        }
+
+        public boolean nextRecord() {
+            nextDocument();
+            return !isDone();
+        }
+
+        public void reset() {
+            documentIndex = 0;
+            extentsLoaded = false;
+            extentArray.reset();
+        }
+
+        public boolean isDone() {
+            return documentIndex >= list.documents.length;
+        }
+
+        public int document() {
+            if (list.documents.length == 0) {
+                return 0;
+            }
+            return list.documents[Math.min(documentIndex, list.documents.length - 1)];
+        }
+
+        public int count() {
+            if (isDone()) {
+                return 0;
+            }
+            return list.counts[documentIndex];
+        }
+
+        public ExtentArray extents() {
+            if (!list.hasPositions()) {
+                throw new IllegalStateException("The cached list for " + term + " has no positions.");
+            }
+
+            if (!extentsLoaded) {
+                extentArray.reset();
+
+                if (!isDone()) {
+                    int document = list.documents[documentIndex];
+                    int start = list.positionOffsets[documentIndex];
+                    int end = start + list.counts[documentIndex];
+
+                    for (int i = start; i < end; i++) {
+                        int position = list.positions[i];
+                        extentArray.add(document, position, position + 1);
+                    }
+                }
+                extentsLoaded = true;
+            }
+            return extentArray;
+        }
+
+        public String getRecordString() {
+            StringBuilder builder = new StringBuilder();
+
+            builder.append(term);
+            builder.append(",");
+            builder.append(document());
+            if (list.hasPositions()) {
+                ExtentArray extents = extents();
+                for (int i = 0; i < extents.getPosition(); ++i) {
+                    builder.append(",");
+                    builder.append(extents.begin(i));
+                }
+            } else {
+                builder.append(",");
+                builder.append(count());
+            }
+
+            return builder.toString();
+        }
+
+        public long collectionFrequency() {
+            return list.totalPositionCount;
+        }
+
+        public long documentFrequency() {
+            return list.documents.length;
+        }
+
+        public int maximumCount() {
+            return list.maximumCount;
+        }
+
+        /// The exact count of the document, since the whole list is in memory.
+        public int maximumCount(int document) {
+            int index = Arrays.binarySearch(list.documents, document);
+            return index >= 0 ? list.counts[index] : 0;
+        }
+    }
+
+    /// The most bytes of each list that prefetch reads into memory.
+    static final int PREFETCH_LENGTH = 16384;
+
     IndexReader reader;
+    PostingsCodec codec;
+    PostingListCache cache;
+    AtomicLong headerReads = new AtomicLong();
+
+    /**
+     * A list read ahead of time by prefetch: where the list is (or null if
+     * the term doesn't exist), either the whole list or just its header,
+     * and the statistics from that header.
+     */
+    static class PrefetchedList {
+        IndexReader.Iterator iterator;
+        byte[] data;
+        TermStatistics statistics;
+
+        PrefetchedList(IndexReader.Iterator iterator, byte[] data, TermStatistics statistics) {
+            this.iterator = iterator;
+            this.data = data;
+            this.statistics = statistics;
+        }
+    }
 
     public PositionIndexReader(IndexReader reader) throws IOException {
         this.reader = reader;
+        this.codec = PostingsCodec.instance(reader.getManifest().get("postingsCodec", "vbyte"));
     }
-    
+
     public PositionIndexReader(String pathname) throws FileNotFoundException, IOException {
-        reader = new IndexReader(pathname);
+        this(new IndexReader(pathname));
+    }
+
+    public PositionIndexReader(String pathname, Parameters parameters) throws FileNotFoundException, IOException {
+        this(new IndexReader(pathname, parameters));
+    }
+
+    /**
+     * Makes getIterator(Node) read lists through a shared cache of decoded
+     * lists.  Passing null turns the cache off.
+     */
+    public void setCache(PostingListCache cache) {
+        this.cache = cache;
+    }
+
+    public PostingListCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Reads the vocabulary entry and the first bytes of a term's list into
+     * lists, so that the next getIterator(Node, lists) call for this term
+     * doesn't have to wait for the disk.  This is safe to call from any
+     * thread, and is meant to be called for every term of a query at once,
+     * on an I/O thread pool.
+     *
+     * Short lists are read into memory whole, and the iterator decodes
+     * them from there.  For longer lists, only the header is kept in memory;
+     * the start of each data stream is read once so that the operating
+     * system has it cached when the iterator gets to it.
+     *
+     * The statistics in the header are kept with the list, so the query
+     * planner and the cost estimates don't read the header again.
+     *
+     * Does nothing if a list cache is set, since cached lists are decoded
+     * from memory anyway.
+     */
+    public void prefetch(String term, PrefetchedLists lists) throws IOException {
+        if (cache != null || lists.contains(this, term)) {
+            return;
+        }
+
+        IndexReader.Iterator iterator = reader.prefetchIterator(term);
+        byte[] data = null;
+        TermStatistics statistics = new TermStatistics(0, 0);
+
+        if (iterator != null) {
+            long start = iterator.getValueStart();
+            long length = iterator.getValueEnd() - start;
+            data = reader.readBytes(start, (int) Math.min(length, PREFETCH_LENGTH));
+            headerReads.incrementAndGet();
+
+            ListHeader header = new ListHeader(iterator, data);
+            statistics = new TermStatistics(header.totalPositionCount, header.documentCount);
+
+            if (length > PREFETCH_LENGTH) {
+                byte[] headerData = new byte[(int) (header.documentsStart - start)];
+                System.arraycopy(data, 0, headerData, 0, headerData.length);
+                data = headerData;
+
+                warm(header.countsStart, header.countsLength);
+                warm(header.positionsStart, header.positionsLength);
+            }
+        }
+
+        lists.put(this, term, new PrefetchedList(iterator, data, statistics));
+    }
+
+    /// Reads the start of a data stream, just to get it into the page cache.
+    private void warm(long start, long length) throws IOException {
+        if (length > 0) {
+            reader.readBytes(start, (int) Math.min(length, PREFETCH_LENGTH));
+        }
+    }
+
+    /**
+     * Decodes a whole list into arrays, with or without its positions.
+     */
+    PostingListCache.DecodedList decodeList(ListHeader header, boolean withPositions) throws IOException {
+        PostingsCodec.Decoder documents = codec.getDecoder(header.documentsStream());
+        PostingsCodec.Decoder counts = codec.getDecoder(header.countsStream());
+        PostingListCache.DecodedList list = new PostingListCache.DecodedList();
+
+        list.documents = new int[header.documentCount];
+        list.counts = new int[header.documentCount];
+        list.totalPositionCount = header.totalPositionCount;
+
+        int document = 0;
+        int maximumCount = 0;
+        for (int i = 0; i < header.documentCount; i++) {
+            document += documents.readInt();
+            list.documents[i] = document;
+            list.counts[i] = counts.readInt();
+            maximumCount = Math.max(maximumCount, list.counts[i]);
+        }
+        list.maximumCount = maximumCount;
+
+        if (withPositions) {
+            PostingsCodec.Decoder positions = codec.getDecoder(header.positionsStream());
+            list.positions = new int[header.totalPositionCount];
+            list.positionOffsets = new int[header.documentCount];
+
+            int index = 0;
+            for (int i = 0; i < header.documentCount; i++) {
+                list.positionOffsets[i] = index;
+
+                int position = 0;
+                for (int j = 0; j < list.counts[i]; j++) {
+                    position += positions.readInt();
+                    list.positions[index++] = position;
+                }
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Returns an iterator over the cached copy of a list, decoding the
+     * list into the cache first if necessary.  Returns null if the
+     * term doesn't exist.
+     *
+     * A list too big for the cache is never decoded: its size is known from
+     * the header, and it's read from the file by the usual iterator instead,
+     * which can use its skips and only decodes the positions it needs.
+     */
+    IndexIterator getCachedIterator(String term, boolean withPositions) throws IOException {
+        PostingListCache.DecodedList list = cache.get(this, term, withPositions);
+        if (list != null) {
+            return new CachedIterator(term, list);
+        }
+
+        IndexReader.Iterator iterator = reader.getIterator(term);
+        if (iterator == null) {
+            return null;
+        }
+
+        ListHeader header = new ListHeader(iterator);
+        long positionCount = withPositions ? header.totalPositionCount : -1;
+        if (!cache.admits(PostingListCache.estimateSize(header.documentCount, positionCount))) {
+            if (withPositions) {
+                return new Iterator(iterator, header);
+            }
+            return new TermCountIterator(iterator, header);
+        }
+
+        list = decodeList(header, withPositions);
+        cache.put(this, term, list);
+        return new CachedIterator(term, list);
     }
 
     /**
@@ -180,7 +952,7 @@ public class PositionIndexReader implements StructuredIndexPartReader {
     }
 
     /**
-     * Returns an iterator pointing at the specified term, or 
+     * Returns an iterator pointing at the specified term, or
      * null if the term doesn't exist in the inverted file.
      */
     public Iterator getTermExtents(String term) throws IOException {
@@ -192,6 +964,43 @@ public class PositionIndexReader implements StructuredIndexPartReader {
         return null;
     }
 
+    /**
+     * Returns a counts-only iterator pointing at the specified term, or
+     * null if the term doesn't exist in the inverted file.
+     */
+    public TermCountIterator getTermCounts(String term) throws IOException {
+        IndexReader.Iterator iterator = reader.getIterator(term);
+
+        if (iterator != null) {
+            return new TermCountIterator(iterator);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the statistics stored in the header of a term's list,
+     * or zeros if the term doesn't exist.
+     */
+    public TermStatistics getTermStatistics(String term) throws IOException {
+        IndexReader.Iterator iterator = reader.getIterator(term);
+
+        if (iterator == null) {
+            return new TermStatistics(0, 0);
+        }
+
+        ListHeader header = new ListHeader(iterator);
+        return new TermStatistics(header.totalPositionCount, header.documentCount);
+    }
+
+    /**
+     * The number of list headers read from the file so far, by iterators,
+     * statistics lookups and prefetch.  Headers parsed from bytes that
+     * prefetch already read aren't counted again.
+     */
+    public long getHeaderReadCount() {
+        return headerReads.get();
+    }
+
     List<Processor<Document>> transformations() {
         return DocumentTransformationFactory.instance(reader.getManifest());
     }
@@ -206,13 +1015,47 @@ public class PositionIndexReader implements StructuredIndexPartReader {
 
     public Map<String, NodeType> getNodeTypes() {
         HashMap<String, NodeType> types = new HashMap<String, NodeType>();
-        types.put("counts", new NodeType(Iterator.class));
+        types.put("counts", new NodeType(TermCountIterator.class));
         types.put("extents", new NodeType(Iterator.class));
         return types;
     }
 
     public IndexIterator getIterator(Node node) throws IOException {
+        return getIterator(node, null);
+    }
+
+    /**
+     * Returns an iterator for node, starting from the list in prefetched
+     * if prefetch read it ahead.  The prefetched list is taken out of the
+     * set, so only the first iterator for a term uses it.
+     */
+    public IndexIterator getIterator(Node node, PrefetchedLists prefetched) throws IOException {
         // TODO(strohman): handle stemming!!
-        return getTermExtents(node.getDefaultParameter("term"));
+        String term = node.getDefaultParameter("term");
+        boolean counts = node.getOperator().equals("counts");
+
+        if (cache != null) {
+            return getCachedIterator(term, !counts);
+        }
+
+        PrefetchedList list = (prefetched == null) ? null : prefetched.take(this, term);
+        if (list != null) {
+            if (list.iterator == null) {
+                return null;
+            }
+            if (counts) {
+                return new TermCountIterator(list.iterator, list.data);
+            }
+            return new Iterator(list.iterator, list.data);
+        }
+
+        if (counts) {
+            return getTermCounts(term);
+        }
+        return getTermExtents(term);
+    }
+
+    public TermStatistics getStatistics(Node node) throws IOException {
+        return getTermStatistics(node.getDefaultParameter("term"));
     }
 }
@@ -5,7 +5,6 @@ import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.TreeMap;
 import org.galagosearch.core.types.NumberWordPosition;
 import org.galagosearch.tupleflow.InputClass;
 import org.galagosearch.tupleflow.TupleFlowParameters;
@@ -14,41 +13,84 @@ import org.galagosearch.tupleflow.execution.ErrorHandler;
 import org.galagosearch.tupleflow.execution.Verification;
 
 /**
+ * Writes a positions index, where each inverted list stores document numbers,
+ * term counts and term positions in three separate VByte streams.
+ *
+ * Lists that contain at least skipMinimumBinLength documents also get a skip
+ * list.  Every skipDistance documents, the writer records the last document
+ * number written so far, along with the byte offsets of the documents, counts
+ * and positions streams at that point.  The reader uses this data to jump
+ * over postings it doesn't need to decode.  Both values can be set in the
+ * writer parameters, and are stored in the manifest of the index part.
+ *
+ * The header also stores the largest count in the list, and each skip
+ * stores the largest count in the block of documents before it, which
+ * gives query evaluation an upper bound on the score of each term.
+ *
+ * The three streams are encoded with a PostingsCodec, chosen by the
+ * postingsCodec parameter (vbyte by default, or block).  The codec name is
+ * stored in the manifest so the reader can decode the lists.
  *
  * @author trevor
  */
 @InputClass(className = "org.galagosearch.core.types.NumberWordPosition", order = {"+word", "+document", "+position"})
 public class PositionIndexWriter implements
         NumberWordPosition.WordDocumentPositionOrder.ShreddedProcessor {
+    public static final int HAS_SKIPS = 1;
+    public static final int HAS_MAXIMUM_COUNTS = 2;
+
     int blockSize = 32768;
     byte[] lastWord;
     long lastPosition = 0;
     long lastDocument = 0;
+    int skipDistance;
     int skipMinimumBinLength;
-    TreeMap<Integer, Integer> skipLengths;
+    PostingsCodec codec;
 
     public class PositionsList implements IndexElement {
         public PositionsList() {
-            documents = new BackedCompressedByteBuffer();
-            counts = new BackedCompressedByteBuffer();
-            positions = new BackedCompressedByteBuffer();
+            documents = codec.getEncoder();
+            counts = codec.getEncoder();
+            positions = codec.getEncoder();
+            skips = new BackedCompressedByteBuffer();
             header = new BackedCompressedByteBuffer();
         }
 
         public void close() throws IOException {
-            int options = 0;
+            int options = HAS_MAXIMUM_COUNTS;
 
-            if (documents.length() > 0) {
-                counts.add(positionCount);
+            if (documentCount > 0) {
+                addCount();
+            }
+            documents.flush();
+            counts.flush();
+            positions.flush();
+
+            // short lists aren't worth skipping
+            if (skipCount > 0 && documentCount >= skipMinimumBinLength) {
+                options |= HAS_SKIPS;
+            } else {
+                skips.clear();
+                skipCount = 0;
             }
             header.add(options);
 
             header.add(documentCount);
             header.add(totalPositionCount);
+            header.add(maximumCount);
+
+            if ((options & HAS_SKIPS) != 0) {
+                header.add(skipDistance);
+                header.add(skipCount);
+            }
 
             header.add(documents.length());
             header.add(counts.length());
             header.add(positions.length());
+
+            if ((options & HAS_SKIPS) != 0) {
+                header.add(skips.length());
+            }
         }
 
         public long dataLength() {
@@ -58,6 +100,7 @@ public class PositionIndexWriter implements
             listLength += counts.length();
             listLength += positions.length();
             listLength += documents.length();
+            listLength += skips.length();
 
             return listLength;
         }
@@ -74,6 +117,9 @@ public class PositionIndexWriter implements
 
             positions.write(output);
             positions.clear();
+
+            skips.write(output);
+            skips.clear();
         }
 
         public byte[] key() {
@@ -86,14 +132,55 @@ public class PositionIndexWriter implements
             this.lastPosition = 0;
             this.totalPositionCount = 0;
             this.positionCount = 0;
+            this.skipCount = 0;
+            this.lastSkipDocument = 0;
+            this.lastSkipDocumentsOffset = 0;
+            this.lastSkipCountsOffset = 0;
+            this.lastSkipPositionsOffset = 0;
+            this.maximumCount = 0;
+            this.blockMaximumCount = 0;
+        }
+
+        /**
+         * Records the current position of each stream, so that a reader can
+         * jump straight to the document that's about to be added.
+         */
+        private void addSkip() throws IOException {
+            // block codecs need to start a new block here so the reader can seek to it
+            documents.flush();
+            counts.flush();
+            positions.flush();
+
+            skips.add(lastDocument - lastSkipDocument);
+            skips.add(documents.length() - lastSkipDocumentsOffset);
+            skips.add(counts.length() - lastSkipCountsOffset);
+            skips.add(positions.length() - lastSkipPositionsOffset);
+            skips.add(blockMaximumCount);
+
+            lastSkipDocument = lastDocument;
+            lastSkipDocumentsOffset = documents.length();
+            lastSkipCountsOffset = counts.length();
+            lastSkipPositionsOffset = positions.length();
+            blockMaximumCount = 0;
+            skipCount++;
+        }
+
+        private void addCount() throws IOException {
+            counts.add(positionCount);
+            maximumCount = Math.max(maximumCount, positionCount);
+            blockMaximumCount = Math.max(blockMaximumCount, positionCount);
         }
 
         public void addDocument(long documentID) throws IOException {
             // add the last document's counts
-            if (documents.length() > 0) {
-                counts.add(positionCount);
+            if (documentCount > 0) {
+                addCount();
+
+                if (skipDistance > 0 && documentCount % skipDistance == 0) {
+                    addSkip();
+                }
             }
-            documents.add(documentID - lastDocument);
+            documents.add((int) (documentID - lastDocument));
             lastDocument = documentID;
 
             lastPosition = 0;
@@ -112,11 +199,19 @@ public class PositionIndexWriter implements
         private int positionCount;
         private int documentCount;
         private int totalPositionCount;
+        private int maximumCount;
+        private int blockMaximumCount;
+        private int skipCount;
+        private long lastSkipDocument;
+        private long lastSkipDocumentsOffset;
+        private long lastSkipCountsOffset;
+        private long lastSkipPositionsOffset;
         public byte[] word;
         public BackedCompressedByteBuffer header;
-        public BackedCompressedByteBuffer documents;
-        public BackedCompressedByteBuffer counts;
-        public BackedCompressedByteBuffer positions;
+        public PostingsCodec.Encoder documents;
+        public PostingsCodec.Encoder counts;
+        public PostingsCodec.Encoder positions;
+        public BackedCompressedByteBuffer skips;
     }
     long maximumDocumentCount = 0;
     long maximumDocumentNumber = 0;
@@ -134,6 +229,14 @@ public class PositionIndexWriter implements
         writer = new IndexWriter(parameters);
         writer.getManifest().add("writerClass", getClass().getName());
         writer.getManifest().add("readerClass", PositionIndexReader.class.getName());
+
+        skipDistance = (int) parameters.getXML().get("skipDistance", 128);
+        skipMinimumBinLength = (int) parameters.getXML().get("skipMinimumBinLength", 512);
+        writer.getManifest().set("skipDistance", Integer.toString(skipDistance));
+        writer.getManifest().set("skipMinimumBinLength", Integer.toString(skipMinimumBinLength));
+
+        codec = PostingsCodec.instance(parameters.getXML().get("postingsCodec", "vbyte"));
+        writer.getManifest().set("postingsCodec", codec.getName());
     }
 
     public void processWord(byte[] wordBytes) throws IOException {
@@ -196,7 +299,11 @@ public class PositionIndexWriter implements
         }
 
         String index = parameters.getXML().get("filename");
-        Verification.requireWriteableFile(index, handler);
+        if (IndexWriter.getPartitionCount(parameters.getXML()) > 1) {
+            Verification.requireWriteableDirectory(index, handler);
+        } else {
+            Verification.requireWriteableFile(index, handler);
+        }
     }
 }
 
@@ -0,0 +1,170 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A size-bounded cache of decoded inverted lists, shared by every
+ * thread that queries an index.  Lists are stored as primitive arrays, so
+ * a cached list can be read without decoding anything.  When the cache is
+ * full, the least recently used lists are evicted.</p>
+ *
+ * <p>StructuredIndex creates one of these when the <tt>listCacheSize</tt>
+ * parameter (in bytes) is set, and hands it to each PositionIndexReader.</p>
+ *
+ * @author trevor
+ */
+public class PostingListCache {
+    /**
+     * A decoded inverted list.  Positions are only decoded if some query
+     * asked for extents; positionOffsets[i] is the index in positions of
+     * the first position of document i.
+     */
+    public static class DecodedList {
+        public int[] documents;
+        public int[] counts;
+        public int[] positions;
+        public int[] positionOffsets;
+        public long totalPositionCount;
+        public int maximumCount;
+
+        public boolean hasPositions() {
+            return positions != null;
+        }
+
+        /// An estimate of the memory used by this list, in bytes.
+        public long size() {
+            return estimateSize(documents.length, positions == null ? -1 : positions.length);
+        }
+    }
+
+    /**
+     * Estimates the memory used by a decoded list with documentCount
+     * documents and positionCount positions, in bytes.  A positionCount
+     * of -1 means the list is decoded without its positions.
+     */
+    public static long estimateSize(long documentCount, long positionCount) {
+        long size = 64 + 8L * documentCount;
+        if (positionCount >= 0) {
+            size += 4L * (positionCount + documentCount);
+        }
+        return size;
+    }
+
+    static class Key {
+        Object part;
+        String term;
+
+        Key(Object part, String term) {
+            this.part = part;
+            this.term = term;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return part == other.part && term.equals(other.term);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(part) * 31 + term.hashCode();
+        }
+    }
+
+    LinkedHashMap<Key, DecodedList> lists;
+    long capacity;
+    long size;
+    long hits;
+    long misses;
+    long evictions;
+
+    public PostingListCache(long capacity) {
+        this.capacity = capacity;
+        this.lists = new LinkedHashMap<Key, DecodedList>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cached list for this term of this index part, or null.
+     * If positions is true, lists that were cached without positions don't count.
+     */
+    public synchronized DecodedList get(Object part, String term, boolean positions) {
+        DecodedList list = lists.get(new Key(part, term));
+
+        if (list == null || (positions && !list.hasPositions())) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return list;
+    }
+
+    /**
+     * Returns true if a list of this size (from estimateSize) would be
+     * stored by put.  Lists bigger than the whole cache are not, so readers
+     * check this before decoding a list for the cache.
+     */
+    public boolean admits(long listSize) {
+        return listSize <= capacity;
+    }
+
+    /**
+     * Adds a list to the cache, evicting older lists if necessary.
+     * Lists bigger than the whole cache are not stored.
+     */
+    public synchronized void put(Object part, String term, DecodedList list) {
+        long listSize = list.size();
+        if (!admits(listSize)) {
+            return;
+        }
+
+        DecodedList old = lists.put(new Key(part, term), list);
+        if (old != null) {
+            size -= old.size();
+        }
+        size += listSize;
+
+        Iterator<Map.Entry<Key, DecodedList>> iterator = lists.entrySet().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Map.Entry<Key, DecodedList> entry = iterator.next();
+            size -= entry.getValue().size();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        lists.clear();
+        size = 0;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getListCount() {
+        return lists.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
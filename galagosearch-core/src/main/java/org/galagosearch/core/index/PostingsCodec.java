@@ -0,0 +1,66 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.galagosearch.tupleflow.DataStream;
+
+/**
+ * <p>A PostingsCodec encodes the streams of integers (document gaps, counts
+ * and position gaps) stored in an inverted list.  PositionIndexWriter records
+ * the name of the codec it used in the manifest of the index part as
+ * <tt>postingsCodec</tt>, and PositionIndexReader uses that name to pick the
+ * decoder.  Parts without a <tt>postingsCodec</tt> entry use VByte.</p>
+ *
+ * <p>The built-in codecs are <tt>vbyte</tt> (VByteCodec) and <tt>block</tt>
+ * (BlockCodec).  Any other name is treated as the class name of a
+ * PostingsCodec subclass with a public no-argument constructor.</p>
+ *
+ * @author trevor
+ */
+public abstract class PostingsCodec {
+    public interface Encoder {
+        /// Adds a non-negative integer to the stream.
+        void add(int value) throws IOException;
+        /**
+         * Writes out any buffered values.  After a flush, length() is a
+         * byte offset that a Decoder can seek to.
+         */
+        void flush() throws IOException;
+        /// The number of bytes written so far (not counting buffered values).
+        long length();
+        void write(OutputStream output) throws IOException;
+        void clear();
+    }
+
+    public interface Decoder {
+        int readInt() throws IOException;
+        /// Skips over the next count integers.
+        void skip(long count) throws IOException;
+        /// Moves to a byte offset in the stream that was recorded after an Encoder flush.
+        void seek(long offset) throws IOException;
+    }
+
+    public abstract String getName();
+    public abstract Encoder getEncoder();
+    public abstract Decoder getDecoder(DataStream stream);
+
+    public static PostingsCodec instance(String name) throws IOException {
+        if (name.equals("vbyte")) {
+            return new VByteCodec();
+        } else if (name.equals("block")) {
+            return new BlockCodec();
+        }
+
+        try {
+            Class<? extends PostingsCodec> codecClass =
+                    Class.forName(name).asSubclass(PostingsCodec.class);
+            return codecClass.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            IOException ioe = new IOException("Couldn't create a postings codec called " + name);
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+}
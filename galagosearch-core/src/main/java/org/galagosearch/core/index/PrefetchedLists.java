@@ -0,0 +1,65 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.util.concurrent.ConcurrentHashMap;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+
+/**
+ * <p>The lists read ahead for one query by StructuredIndex.prefetch.  Each
+ * query gets its own set, and passes it along when it builds its iterators,
+ * so queries running at the same time never take (or drop) each other's
+ * lists.  Lists the query never opens are released with the set when the
+ * query finishes.</p>
+ *
+ * <p>The statistics in each list's header stay in the set after the list
+ * is taken, so the query planner and the cost estimates can use them
+ * without reading the header again.</p>
+ *
+ * <p>Lists are filled in by the prefetch threads and taken by the threads
+ * that build iterators, so every method is safe to call from any thread.</p>
+ *
+ * @author trevor
+ */
+public class PrefetchedLists {
+    ConcurrentHashMap<PostingListCache.Key, PositionIndexReader.PrefetchedList> lists =
+            new ConcurrentHashMap<PostingListCache.Key, PositionIndexReader.PrefetchedList>();
+    ConcurrentHashMap<PostingListCache.Key, TermStatistics> statistics =
+            new ConcurrentHashMap<PostingListCache.Key, TermStatistics>();
+
+    void put(PositionIndexReader reader, String term, PositionIndexReader.PrefetchedList list) {
+        PostingListCache.Key key = new PostingListCache.Key(reader, term);
+        statistics.put(key, list.statistics);
+        lists.put(key, list);
+    }
+
+    /**
+     * Returns the statistics of this term of reader, if its list was
+     * prefetched (whether or not it has been taken since), or null.
+     */
+    TermStatistics getStatistics(PositionIndexReader reader, String term) {
+        return statistics.get(new PostingListCache.Key(reader, term));
+    }
+
+    boolean contains(PositionIndexReader reader, String term) {
+        return lists.containsKey(new PostingListCache.Key(reader, term));
+    }
+
+    /**
+     * Removes and returns the prefetched list for this term of reader, or null.
+     * Each list is only used by the first iterator made for it.
+     */
+    PositionIndexReader.PrefetchedList take(PositionIndexReader reader, String term) {
+        return lists.remove(new PostingListCache.Key(reader, term));
+    }
+
+    /// The number of lists that were read ahead and haven't been used yet.
+    public int size() {
+        return lists.size();
+    }
+
+    public void clear() {
+        lists.clear();
+        statistics.clear();
+    }
+}
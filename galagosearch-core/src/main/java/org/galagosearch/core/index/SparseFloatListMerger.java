@@ -0,0 +1,60 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import org.galagosearch.core.types.NumberWordProbability;
+import org.galagosearch.tupleflow.ExNihiloSource;
+import org.galagosearch.tupleflow.IncompatibleProcessorException;
+import org.galagosearch.tupleflow.Linkage;
+import org.galagosearch.tupleflow.OutputClass;
+import org.galagosearch.tupleflow.Step;
+import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+
+/**
+ * Merges the score lists of several sparse float parts, and passes them
+ * on in order to a SparseFloatListWriter.
+ *
+ * @author trevor
+ */
+@OutputClass(className = "org.galagosearch.core.types.NumberWordProbability", order = {"+word", "+number"})
+public class SparseFloatListMerger extends IndexPartMerger implements ExNihiloSource<NumberWordProbability> {
+    public NumberWordProbability.NumberWordOrder.ShreddedProcessor processor;
+    SparseFloatListReader[] parts;
+
+    public SparseFloatListMerger(TupleFlowParameters parameters) throws IOException {
+        super(parameters);
+        parts = new SparseFloatListReader[inputs.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new SparseFloatListReader(inputs.get(i).reader);
+        }
+    }
+
+    protected void processKey(byte[] key) throws IOException {
+        processor.processWord(key);
+    }
+
+    protected void processList(int index, Input input) throws IOException {
+        SparseFloatListReader.Iterator list = parts[index].new Iterator(input.iterator);
+
+        while (!list.isDone()) {
+            int document = list.nextCandidate();
+            processor.processNumber(document + input.documentOffset);
+            processor.processTuple(list.score(document, 0));
+            list.movePast(document);
+        }
+    }
+
+    protected void close() throws IOException {
+        processor.close();
+    }
+
+    public void setProcessor(Step processor) throws IncompatibleProcessorException {
+        Linkage.link(this, processor);
+    }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        IndexPartMerger.verify(parameters, handler);
+    }
+}
@@ -11,6 +11,7 @@ import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.query.NodeType;
 import org.galagosearch.core.retrieval.structured.IndexIterator;
 import org.galagosearch.core.retrieval.structured.ScoreIterator;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.tupleflow.DataStream;
 import org.galagosearch.tupleflow.VByteInput;
 
@@ -130,6 +131,14 @@ public class SparseFloatListReader implements StructuredIndexPartReader {
         public boolean isDone() {
             return index >= documentCount;
         }
+
+        public long collectionFrequency() {
+            return documentCount;
+        }
+
+        public long documentFrequency() {
+            return documentCount;
+        }
     }
     IndexReader reader;
 
@@ -137,6 +146,10 @@ public class SparseFloatListReader implements StructuredIndexPartReader {
         reader = new IndexReader(pathname);
     }
 
+    public SparseFloatListReader(IndexReader reader) {
+        this.reader = reader;
+    }
+
     public Iterator getIterator() throws IOException {
         return new Iterator(reader.getIterator());
     }
@@ -146,6 +159,22 @@ public class SparseFloatListReader implements StructuredIndexPartReader {
         return new Iterator(iterator);
     }
 
+    public TermStatistics getStatistics(Node node) throws IOException {
+        if (!node.getOperator().equals("scores")) {
+            throw new UnsupportedOperationException(
+                "Index doesn't support operator: " + node.getOperator());
+        }
+
+        IndexReader.Iterator iterator = reader.getIterator(node.getDefaultParameter());
+        if (iterator == null) {
+            return new TermStatistics(0, 0);
+        }
+
+        // each document in a score list has exactly one value
+        long documentCount = new VByteInput(reader.blockStream(iterator)).readInt();
+        return new TermStatistics(documentCount, documentCount);
+    }
+
     public void close() throws IOException {
         reader.close();
     }
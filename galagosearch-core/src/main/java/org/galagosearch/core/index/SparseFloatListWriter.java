@@ -5,12 +5,18 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import org.galagosearch.core.types.NumberWordProbability;
+import org.galagosearch.tupleflow.InputClass;
 import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.galagosearch.tupleflow.execution.ErrorHandler;
+import org.galagosearch.tupleflow.execution.Verification;
 
 /**
+ * Writes lists of scores, one list per word.  The words must be given
+ * in order, and the documents of each word in order.
  *
  * @author trevor
  */
+@InputClass(className = "org.galagosearch.core.types.NumberWordProbability", order = {"+word", "+number"})
 public class SparseFloatListWriter implements 
         NumberWordProbability.NumberWordOrder.ShreddedProcessor {
     IndexWriter writer;
@@ -89,4 +95,13 @@ public class SparseFloatListWriter implements
 
         writer.close();
     }
+
+    public static void verify(TupleFlowParameters parameters, ErrorHandler handler) {
+        if (!parameters.getXML().containsKey("filename")) {
+            handler.addError("SparseFloatListWriter requires a 'filename' parameter.");
+            return;
+        }
+
+        Verification.requireWriteableFile(parameters.getXML().get("filename"), handler);
+    }
 }
@@ -9,10 +9,15 @@ import org.galagosearch.tupleflow.Parameters;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -23,34 +28,130 @@ public class StructuredIndex {
     DocumentNameReader documentNames;
     Map<String, StructuredIndexPartReader> parts;
     Parameters manifest;
+    boolean memoryMapped;
+    PostingListCache listCache;
+    StatisticsCache statisticsCache;
+    File statisticsFile;
 
     HashMap<String, String> defaultIndexOperators = new HashMap<String, String>();
     HashSet<String> knownIndexOperators = new HashSet<String>();
+    HashMap<StructuredIndexPartReader, Map<String, NodeType>> partNodeTypes =
+            new HashMap<StructuredIndexPartReader, Map<String, NodeType>>();
 
     public StructuredIndex(String filename) throws IOException {
+        this(filename, new Parameters());
+    }
+
+    /**
+     * Opens the index at filename.  The parameters are passed to the
+     * IndexReader of each part; setting <tt>memoryMapped=true</tt> maps every
+     * part into memory, which makes the index safe to query from several
+     * threads at once.  Setting <tt>listCacheSize</tt> to a number of bytes
+     * keeps decoded copies of recently used position lists in a
+     * PostingListCache of that size.
+     *
+     * Statistics of compound nodes (like #od:1(a b)) are kept in a
+     * StatisticsCache of up to <tt>statisticsCacheEntries</tt> entries
+     * (10000 by default; 0 turns it off).  With <tt>persistStatistics=true</tt>,
+     * the cache is read from the index directory when the index opens,
+     * and written back when it closes.
+     *
+     * Opening a part only reads its footer and manifest; the vocabulary of
+     * each part is opened the first time a term is looked up in it.
+     */
+    public StructuredIndex(String filename, Parameters parameters) throws IOException {
         manifest = new Parameters();
         manifest.parse(filename + File.separator + "manifest");
+        memoryMapped = parameters.get("memoryMapped", false);
         documentLengths = new DocumentLengthsReader(filename + File.separator + "documentLengths");
         documentNames = new DocumentNameReader(filename + File.separator + "documentNames");
 
         File partsDirectory = new File(filename + File.separator + "parts");
         parts = new HashMap<String, StructuredIndexPartReader>();
         for (File part : partsDirectory.listFiles()) {
-            StructuredIndexPartReader reader = openIndexPart(part.getAbsolutePath());
+            StructuredIndexPartReader reader = openIndexPart(part.getAbsolutePath(), parameters);
             if (reader == null) {
                 continue;
             }
             parts.put(part.getName(), reader);
         }
+
+        long listCacheSize = parameters.get("listCacheSize", 0L);
+        if (listCacheSize > 0) {
+            listCache = new PostingListCache(listCacheSize);
+
+            for (StructuredIndexPartReader reader : parts.values()) {
+                StructuredIndexPartReader[] partitions = { reader };
+                if (reader instanceof PartitionedIndexReader) {
+                    partitions = ((PartitionedIndexReader) reader).getPartitions();
+                }
+                for (StructuredIndexPartReader partition : partitions) {
+                    if (partition instanceof PositionIndexReader) {
+                        ((PositionIndexReader) partition).setCache(listCache);
+                    }
+                }
+            }
+        }
+        
+        int statisticsCacheEntries = (int) parameters.get("statisticsCacheEntries", 10000);
+        if (statisticsCacheEntries > 0) {
+            statisticsCache = new StatisticsCache(statisticsCacheEntries);
+
+            if (parameters.get("persistStatistics", false)) {
+                statisticsFile = new File(filename + File.separator + "statisticsCache");
+                statisticsCache.read(statisticsFile, getCollectionLength(), getDocumentCount());
+            }
+        }
         
         initializeIndexOperators();
     }
 
     public static StructuredIndexPartReader openIndexPart(String path) throws IOException {
+        return openIndexPart(path, new Parameters());
+    }
+
+    /**
+     * Opens the index part at path, or returns null if path isn't an index
+     * part.  A part written in partitions is a directory of index files,
+     * one per partition, and is opened as a PartitionedIndexReader.
+     */
+    public static StructuredIndexPartReader openIndexPart(String path, Parameters parameters) throws IOException {
+        if (new File(path).isDirectory()) {
+            return openPartitionedIndexPart(path, parameters);
+        }
         if (!IndexReader.isIndexFile(path)) {
             return null;
         }
-        IndexReader reader = new IndexReader(path);
+        return openIndexPart(new IndexReader(path, parameters), path);
+    }
+
+    private static StructuredIndexPartReader openPartitionedIndexPart(String path, Parameters parameters) throws IOException {
+        File first = new File(path, "0");
+        if (!first.isFile() || !IndexReader.isIndexFile(first.getPath())) {
+            return null;
+        }
+
+        IndexReader firstReader = new IndexReader(first.getPath(), parameters);
+        int partitionCount = (int) firstReader.getManifest().get("partitionCount", 1);
+        IndexReader[] readers = new IndexReader[partitionCount];
+        StructuredIndexPartReader[] partitions = new StructuredIndexPartReader[partitionCount];
+
+        for (int i = 0; i < partitionCount; i++) {
+            String partitionPath = path + File.separator + i;
+            if (i == 0) {
+                readers[i] = firstReader;
+            } else if (IndexReader.isIndexFile(partitionPath)) {
+                readers[i] = new IndexReader(partitionPath, parameters);
+            } else {
+                throw new IOException("The index part at " + path + " has " + partitionCount +
+                                      " partitions, but partition " + i + " is missing.");
+            }
+            partitions[i] = openIndexPart(readers[i], partitionPath);
+        }
+        return new PartitionedIndexReader(readers, partitions);
+    }
+
+    private static StructuredIndexPartReader openIndexPart(IndexReader reader, String path) throws IOException {
         if (!reader.getManifest().containsKey("readerClass")) {
             throw new IOException("Tried to open an index part at " + path + ", but the " +
                                   "file has no readerClass specified in its manifest. " +
@@ -104,12 +205,19 @@ public class StructuredIndex {
         return parts.containsKey(partName);
     }
 
+    /// Returns the index part called partName, or null if there isn't one.
+    public StructuredIndexPartReader getIndexPart(String partName) {
+        return parts.get(partName);
+    }
+
     void initializeIndexOperators() {
         for (Entry<String, StructuredIndexPartReader> entry : parts.entrySet()) {
             String partName = entry.getKey();
             StructuredIndexPartReader part = entry.getValue();
+            Map<String, NodeType> nodeTypes = part.getNodeTypes();
+            partNodeTypes.put(part, nodeTypes);
 
-            for (String name : part.getNodeTypes().keySet()) {
+            for (String name : nodeTypes.keySet()) {
                 knownIndexOperators.add(name);
 
                 if (!defaultIndexOperators.containsKey(name)) {
@@ -150,10 +258,25 @@ public class StructuredIndex {
     }
     
     public StructuredIterator getIterator(Node node) throws IOException {
+        return getIterator(node, null);
+    }
+
+    /**
+     * Returns the iterator for an index node, starting from a list in
+     * prefetched if one was read ahead for it (prefetched may be null).
+     */
+    public StructuredIterator getIterator(Node node, PrefetchedLists prefetched) throws IOException {
         StructuredIterator result = null;
         StructuredIndexPartReader part = getIndexPart(node);
         if (part != null) {
-            result = part.getIterator(node);
+            if (prefetched != null && part instanceof PartitionedIndexReader) {
+                part = ((PartitionedIndexReader) part).getPartition(node.getDefaultParameter("term"));
+            }
+            if (prefetched != null && part instanceof PositionIndexReader) {
+                result = ((PositionIndexReader) part).getIterator(node, prefetched);
+            } else {
+                result = part.getIterator(node);
+            }
             if (result == null) {
                 result = new NullExtentIterator();
             }
@@ -161,13 +284,108 @@ public class StructuredIndex {
         return result;
     }
     
+    /**
+     * Reads ahead the lists of every leaf in this query tree, all at once,
+     * on the executor's threads, and waits until they've been read.  The
+     * lists are returned in a set that belongs to this query alone; the
+     * iterators made for these leaves with getIterator(node, prefetched)
+     * start from memory instead of waiting for the disk one list at a time.
+     *
+     * Prefetching is only an optimization, so lists that can't be read
+     * here are left alone; getIterator will report the problem.
+     */
+    public PrefetchedLists prefetch(Node tree, ExecutorService executor) throws InterruptedException {
+        PrefetchedLists lists = new PrefetchedLists();
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+        HashSet<String> seen = new HashSet<String>();
+        prefetch(tree, executor, lists, futures, seen);
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // getIterator reads the list again, and reports the error
+            }
+        }
+        return lists;
+    }
+
+    private void prefetch(Node node, ExecutorService executor, final PrefetchedLists lists,
+                          ArrayList<Future<?>> futures, HashSet<String> seen) {
+        for (Node child : node.getInternalNodes()) {
+            prefetch(child, executor, lists, futures, seen);
+        }
+        if (node.getInternalNodes().size() > 0) {
+            return;
+        }
+
+        final String term = node.getDefaultParameter("term");
+        StructuredIndexPartReader part;
+        try {
+            part = getIndexPart(node);
+        } catch (IOException e) {
+            return;
+        }
+        if (part instanceof PartitionedIndexReader) {
+            part = ((PartitionedIndexReader) part).getPartition(term);
+        }
+        if (term == null || !(part instanceof PositionIndexReader)) {
+            return;
+        }
+
+        final PositionIndexReader reader = (PositionIndexReader) part;
+        if (!seen.add(node.toString())) {
+            return;
+        }
+        futures.add(executor.submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                reader.prefetch(term, lists);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Returns the collection statistics of the list that node refers to,
+     * or null if no index part supplies that node.  The list itself is not decoded.
+     */
+    public TermStatistics getStatistics(Node node) throws IOException {
+        return getStatistics(node, null);
+    }
+
+    /**
+     * Like getStatistics(node), but takes the statistics from prefetched
+     * (which may be null) if the node's list was read ahead there, so its
+     * header isn't read again.
+     */
+    public TermStatistics getStatistics(Node node, PrefetchedLists prefetched) throws IOException {
+        StructuredIndexPartReader part = getIndexPart(node);
+        if (part == null) {
+            return null;
+        }
+
+        if (prefetched != null) {
+            String term = node.getDefaultParameter("term");
+            StructuredIndexPartReader partition = part;
+            if (partition instanceof PartitionedIndexReader) {
+                partition = ((PartitionedIndexReader) partition).getPartition(term);
+            }
+            if (term != null && partition instanceof PositionIndexReader) {
+                TermStatistics statistics =
+                        prefetched.getStatistics((PositionIndexReader) partition, term);
+                if (statistics != null) {
+                    return statistics;
+                }
+            }
+        }
+        return part.getStatistics(node);
+    }
+    
     public NodeType getNodeType(Node node) throws IOException {
         NodeType result = null;
         StructuredIndexPartReader part = getIndexPart(node);
         if (part != null) {
-            final String operator = node.getOperator();
-            final Map<String, NodeType> nodeTypes = part.getNodeTypes();
-            result = nodeTypes.get(operator);
+            result = partNodeTypes.get(part).get(node.getOperator());
         }
         return result;
     }
@@ -180,11 +398,54 @@ public class StructuredIndex {
         return manifest.get("documentCount", (long) 0);
     }
 
+    /**
+     * Returns true if the index was opened with <tt>memoryMapped=true</tt>,
+     * so iterators can be used from several threads at once.
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Returns the cache of compound node statistics, or null if there isn't one.
+     */
+    public StatisticsCache getStatisticsCache() {
+        return statisticsCache;
+    }
+
+    /**
+     * Writes the statistics cache to the index directory, if
+     * <tt>persistStatistics</tt> was set.
+     */
+    public void saveStatistics() throws IOException {
+        if (statisticsFile != null) {
+            statisticsCache.write(statisticsFile, getCollectionLength(), getDocumentCount());
+        }
+    }
+
+    /**
+     * Returns the cache of decoded lists, or null if there isn't one.
+     */
+    public PostingListCache getListCache() {
+        return listCache;
+    }
+
+    /**
+     * One more than the largest document number in the index.
+     */
+    public int getDocumentLimit() {
+        return documentLengths.getDocumentCount();
+    }
+
     public void close() throws IOException {
+        saveStatistics();
         for (StructuredIndexPartReader part : parts.values()) {
             part.close();
         }
         parts.clear();
+        if (listCache != null) {
+            listCache.clear();
+        }
         documentLengths.close();
     }
 
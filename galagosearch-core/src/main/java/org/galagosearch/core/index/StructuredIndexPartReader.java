@@ -7,6 +7,7 @@ import java.util.Map;
 import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.query.NodeType;
 import org.galagosearch.core.retrieval.structured.IndexIterator;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 
 /**
  * A StructuredIndexPart is an object that can create StructuredIterators that
@@ -27,4 +28,6 @@ public interface StructuredIndexPartReader {
     public IndexIterator getIterator() throws IOException;
     /// Returns an iterator corresponding to a query node from a StructuredQuery.
     public IndexIterator getIterator(Node node) throws IOException;
+    /// Returns statistics for the list a query node refers to, without decoding the list.
+    public TermStatistics getStatistics(Node node) throws IOException;
 }
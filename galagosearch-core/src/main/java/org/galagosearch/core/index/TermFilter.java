@@ -0,0 +1,131 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>A Bloom filter over the keys of an index file.  IndexWriter stores one
+ * after the vocabulary, and IndexReader checks it before looking a key up:
+ * if the filter says a key isn't there, it certainly isn't, and the lookup
+ * returns without reading the vocabulary or any block.  Keys that are in
+ * the file always pass; about 1% of the missing ones do too, with the
+ * default of 10 bits per key.</p>
+ *
+ * <p>The stored filter is the number of hash functions, the number of bits,
+ * and then the bits.  Each key is hashed once to 64 bits, and the two halves
+ * of that hash are combined to pick each bit.  The filter is only read with
+ * absolute gets, so it can be memory mapped and shared by every thread.</p>
+ *
+ * @author trevor
+ */
+public class TermFilter {
+    public static final int DEFAULT_BITS_PER_KEY = 10;
+
+    ByteBuffer data;
+    int hashCount;
+    long bitCount;
+
+    public TermFilter(ByteBuffer data) {
+        this.data = data;
+        this.hashCount = data.getInt(0);
+        this.bitCount = data.getLong(4);
+    }
+
+    /**
+     * Returns false if the key is definitely not in the filter.
+     */
+    public boolean mightContain(byte[] key) {
+        if (bitCount == 0) {
+            return false;
+        }
+
+        long hash = hash(key);
+        long first = hash;
+        long second = hash >>> 32;
+
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((first + i * second) & Long.MAX_VALUE) % bitCount;
+            int b = data.get(12 + (int) (bit >>> 3));
+
+            if ((b & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A 64-bit hash of a key: FNV-1a, followed by the MurmurHash3
+     * finalizer to spread the bits.
+     */
+    public static long hash(byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < key.length; i++) {
+            hash ^= key[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Collects key hashes while an index is written, and builds the
+     * filter once the number of keys is known.
+     */
+    public static class Builder {
+        long[] hashes = new long[1024];
+        int count;
+        int bitsPerKey;
+
+        public Builder(int bitsPerKey) {
+            this.bitsPerKey = bitsPerKey;
+        }
+
+        public void add(byte[] key) {
+            if (count == hashes.length) {
+                long[] larger = new long[count * 2];
+                System.arraycopy(hashes, 0, larger, 0, count);
+                hashes = larger;
+            }
+            hashes[count++] = hash(key);
+        }
+
+        public byte[] data() throws IOException {
+            long bitCount = (long) count * bitsPerKey;
+            int hashCount = Math.max(1, (int) Math.round(bitsPerKey * Math.log(2)));
+
+            if (bitCount > 8L * Integer.MAX_VALUE - 12) {
+                throw new IOException("Too many keys for a term filter: " + count);
+            }
+            byte[] bits = new byte[(int) ((bitCount + 7) / 8)];
+
+            for (int i = 0; i < count; i++) {
+                long first = hashes[i];
+                long second = hashes[i] >>> 32;
+
+                for (int j = 0; j < hashCount; j++) {
+                    long bit = ((first + j * second) & Long.MAX_VALUE) % bitCount;
+                    bits[(int) (bit >>> 3)] |= 1 << (bit & 7);
+                }
+            }
+
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(buffer);
+            output.writeInt(hashCount);
+            output.writeLong(bitCount);
+            output.write(bits);
+            output.close();
+            return buffer.toByteArray();
+        }
+    }
+}
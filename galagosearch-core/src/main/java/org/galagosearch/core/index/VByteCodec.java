@@ -0,0 +1,78 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.galagosearch.tupleflow.DataStream;
+import org.galagosearch.tupleflow.VByteInput;
+
+/**
+ * The original Galago list encoding: one VByte number per integer,
+ * where the high bit marks the last byte of each number.
+ *
+ * @author trevor
+ */
+public class VByteCodec extends PostingsCodec {
+    public static class Encoder implements PostingsCodec.Encoder {
+        BackedCompressedByteBuffer buffer = new BackedCompressedByteBuffer();
+
+        public void add(int value) throws IOException {
+            buffer.add(value);
+        }
+
+        public void flush() {
+            // nothing is buffered
+        }
+
+        public long length() {
+            return buffer.length();
+        }
+
+        public void write(OutputStream output) throws IOException {
+            buffer.write(output);
+        }
+
+        public void clear() {
+            buffer.clear();
+        }
+    }
+
+    public static class Decoder implements PostingsCodec.Decoder {
+        DataStream stream;
+        VByteInput input;
+
+        public Decoder(DataStream stream) {
+            this.stream = stream;
+            this.input = new VByteInput(stream);
+        }
+
+        public int readInt() throws IOException {
+            return input.readInt();
+        }
+
+        public void skip(long count) throws IOException {
+            for (long i = 0; i < count; i++) {
+                while ((stream.readUnsignedByte() & 0x80) == 0) {
+                    // continue to the last byte of this number
+                }
+            }
+        }
+
+        public void seek(long offset) throws IOException {
+            stream.seek(offset);
+        }
+    }
+
+    public String getName() {
+        return "vbyte";
+    }
+
+    public Encoder getEncoder() {
+        return new Encoder();
+    }
+
+    public Decoder getDecoder(DataStream stream) {
+        return new Decoder(stream);
+    }
+}
@@ -2,90 +2,173 @@
 
 package org.galagosearch.core.index;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import org.galagosearch.tupleflow.Utility;
+import java.nio.ByteBuffer;
 
 /**
+ * <p>Finds the block of an index file that may hold a key.  The vocabulary
+ * has one slot per block: the first key in the block, and where the block
+ * starts.</p>
+ *
+ * <p>Files written by VocabularyWriter use the packed layout (the
+ * <tt>vocabularyFormat=packed</tt> manifest entry): the slot count, every
+ * block offset, the end of every key, and then all the key bytes.  Every
+ * field has a fixed position, so the vocabulary is searched in place in a
+ * memory mapped buffer, without reading it onto the heap.  Older files
+ * store each slot as a length, the key and an offset; they're converted
+ * to the packed layout on the heap when they're read, so both kinds of
+ * file are searched the same way, and no lookup allocates anything.</p>
  *
  * @author trevor
  */
 public class VocabularyReader {
-    public static class TermSlot {
-        public byte[] termData;
-        public long begin;
-        public long length;
-    }
-    ArrayList<TermSlot> slots;
+    ByteBuffer packed;
+    int slotCount;
+    int keysStart;
+    long invertedFileLength;
 
-    /** Creates a new instance of DocumentNameReader */
+    /** Reads a vocabulary in the older, unpacked layout. */
     public VocabularyReader(RandomAccessFile input, long invertedFileLength,
                             long vocabularyLength) throws IOException {
-        slots = new ArrayList<TermSlot>();
-        read(invertedFileLength, vocabularyLength, input);
+        this(ByteBuffer.wrap(pack(vocabularyLength, input)), invertedFileLength);
+    }
+
+    /** Reads a vocabulary in the older, unpacked layout from memory. */
+    public VocabularyReader(byte[] data, long invertedFileLength) throws IOException {
+        this(ByteBuffer.wrap(pack(data.length, new DataInputStream(new ByteArrayInputStream(data)))),
+             invertedFileLength);
     }
 
-    public ArrayList<TermSlot> getSlots() {
-        return slots;
+    /**
+     * Searches a vocabulary in the packed layout.  The buffer is usually
+     * a memory mapped region of the index file; it's only read with
+     * absolute gets, so any number of threads can search it at once.
+     */
+    public VocabularyReader(ByteBuffer packed, long invertedFileLength) {
+        this.packed = packed;
+        this.invertedFileLength = invertedFileLength;
+        this.slotCount = packed.getInt(0);
+        this.keysStart = 4 + slotCount * (8 + 4);
     }
 
-    public void read(long invertedFileLength, long vocabularyLength, RandomAccessFile input) throws IOException {
-        long last = 0;
-        long start = input.getFilePointer();
+    /**
+     * Reads slots in the unpacked layout, and returns them in the packed one.
+     */
+    static byte[] pack(long vocabularyLength, DataInput input) throws IOException {
+        VocabularyWriter writer = new VocabularyWriter(true);
+        long position = 0;
 
-        while (input.getFilePointer() < start + vocabularyLength) {
+        while (position < vocabularyLength) {
             short length = input.readShort();
             byte[] data = new byte[length];
-            input.read(data);
+            input.readFully(data);
             long offset = input.readLong();
-            TermSlot slot = new TermSlot();
+            position += 2 + length + 8;
 
-            if (slots.size() > 0) {
-                slots.get(slots.size() - 1).length = offset - last;
-            }
-            slot.begin = offset;
-            slot.termData = data;
-            slots.add(slot);
+            writer.add(data, offset);
+        }
+        return writer.data();
+    }
+
+    /** Returns the number of slots, which is the number of blocks. */
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    /** Returns a copy of the first key of block index. */
+    public byte[] getKey(int index) {
+        int start = packedKeyStart(index);
+        byte[] key = new byte[packedKeyEnd(index) - start];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = packed.get(keysStart + start + i);
+        }
+        return key;
+    }
+
+    /** Returns where block index starts. */
+    public long getBegin(int index) {
+        return packedBegin(index);
+    }
+
+    /** Returns the length of block index, in bytes. */
+    public long getLength(int index) {
+        long end = (index + 1 < slotCount) ? packedBegin(index + 1) : invertedFileLength;
+        return end - packedBegin(index);
+    }
 
-            last = offset;
+    long packedBegin(int index) {
+        return packed.getLong(4 + 8 * index);
+    }
+
+    int packedKeyEnd(int index) {
+        return packed.getInt(4 + 8 * slotCount + 4 * index);
+    }
+
+    int packedKeyStart(int index) {
+        return index == 0 ? 0 : packedKeyEnd(index - 1);
+    }
+
+    /**
+     * Compares the key of packed slot index with key, in unsigned byte order.
+     */
+    int comparePacked(int index, byte[] key) {
+        int start = keysStart + packedKeyStart(index);
+        int length = keysStart + packedKeyEnd(index) - start;
+        int sharedLength = Math.min(length, key.length);
+
+        for (int i = 0; i < sharedLength; i++) {
+            int a = packed.get(start + i) & 0xFF;
+            int b = key[i] & 0xFF;
+
+            if (a != b) {
+                return a - b;
+            }
         }
+        return length - key.length;
+    }
 
-        if (slots.size() > 0) {
-            slots.get(slots.size() - 1).length = invertedFileLength - last;
+    /**
+     * Returns where the block that may hold key starts: the last block
+     * whose first key is at or before key, or the first block if there
+     * isn't one.  Returns -1 if the vocabulary is empty.  Nothing is
+     * allocated, so this is the lookup to use for every query term.
+     */
+    public long findBlock(byte[] key) {
+        int index = findSlot(key);
+
+        if (index < 0) {
+            return -1;
         }
-        assert invertedFileLength >= last;
+        return packedBegin(index);
     }
 
-    public TermSlot get(byte[] key) {
-        if (slots.size() == 0) {
-            return null;
+    /**
+     * Returns the index of the slot whose block may hold key (the one
+     * findBlock returns the start of), or -1 if there are no slots.  Keys
+     * are compared where they are in the buffer.
+     */
+    public int findSlot(byte[] key) {
+        if (slotCount == 0) {
+            return -1;
         }
-        int big = slots.size() - 1;
+
+        // find the first slot whose key is after this one
         int small = 0;
+        int big = slotCount;
 
-        while (big - small > 1) {
-            int middle = small + (big - small) / 2;
-            byte[] middleKey = slots.get(middle).termData;
+        while (small < big) {
+            int middle = (small + big) >>> 1;
 
-            if (Utility.compare(middleKey, key) <= 0) {
-                small = middle;
+            if (comparePacked(middle, key) <= 0) {
+                small = middle + 1;
             } else {
                 big = middle;
             }
         }
-
-        TermSlot one = slots.get(small);
-        TermSlot two = slots.get(big);
-
-        if (Utility.compare(two.termData, key) <= 0) {
-            return two;
-        } else {
-            return one;
-        }
-    }
-    
-    public TermSlot get(String key) {
-        return get(Utility.makeBytes(key));
+        return Math.max(0, small - 1);
     }
 }
@@ -8,27 +8,79 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 /**
+ * Writes the vocabulary of an index file.  IndexWriter uses the packed
+ * layout, which VocabularyReader can search in place: the slot count, the
+ * offset of every block, the end of every key within the key bytes, and
+ * then the key bytes themselves.  The older layout, where each slot is a
+ * key length, the key and an offset, is still written by default.
  *
  * @author trevor
  */
 public class VocabularyWriter {
-    DataOutputStream output;
-    ByteArrayOutputStream buffer;
+    /// The value of the <tt>vocabularyFormat</tt> manifest entry for this layout.
+    public static final String PACKED = "packed";
+
+    boolean packed;
+    ByteArrayOutputStream keys;
+    long[] offsets;
+    int[] keyEnds;
+    int count;
 
     public VocabularyWriter() throws IOException {
-        buffer = new ByteArrayOutputStream();
-        output = new DataOutputStream(new BufferedOutputStream(buffer));
+        this(false);
+    }
+
+    public VocabularyWriter(boolean packed) throws IOException {
+        this.packed = packed;
+        keys = new ByteArrayOutputStream();
+        offsets = new long[16];
+        keyEnds = new int[16];
+    }
+
+    public boolean isPacked() {
+        return packed;
     }
 
     public void add(byte[] word, long offset) throws IOException {
-        output.writeShort(word.length);
-        output.write(word);
-        output.writeLong(offset);
+        if (count == offsets.length) {
+            long[] newOffsets = new long[count * 2];
+            int[] newKeyEnds = new int[count * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            System.arraycopy(keyEnds, 0, newKeyEnds, 0, count);
+            offsets = newOffsets;
+            keyEnds = newKeyEnds;
+        }
+
+        keys.write(word);
+        offsets[count] = offset;
+        keyEnds[count] = keys.size();
+        count++;
     }
 
     public byte[] data() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(buffer));
+
+        if (packed) {
+            output.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                output.writeLong(offsets[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                output.writeInt(keyEnds[i]);
+            }
+            keys.writeTo(output);
+        } else {
+            byte[] keyData = keys.toByteArray();
+            for (int i = 0; i < count; i++) {
+                int start = (i == 0) ? 0 : keyEnds[i - 1];
+                output.writeShort(keyEnds[i] - start);
+                output.write(keyData, start, keyEnds[i] - start);
+                output.writeLong(offsets[i]);
+            }
+        }
+
         output.close();
         return buffer.toByteArray();
     }
 }
-
@@ -7,7 +7,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import org.galagosearch.core.index.VocabularyReader;
-import org.galagosearch.core.index.VocabularyReader.TermSlot;
 import org.galagosearch.core.index.IndexReader;
 import org.galagosearch.tupleflow.ExNihiloSource;
 import org.galagosearch.tupleflow.FileSource;
@@ -71,14 +70,13 @@ public class DocumentSource implements ExNihiloSource<DocumentSplit> {
         
         IndexReader reader = new IndexReader(fileName);
         VocabularyReader vocabulary = reader.getVocabulary();
-        List<TermSlot> slots = vocabulary.getSlots();
         int pieces = Math.max(2, (int) (fileLength / chunkSize));
         ArrayList<byte[]> keys = new ArrayList<byte[]>();
 
         for (int i = 1; i < pieces; ++i) {
             float fraction = (float) i / pieces;
-            int slot = (int) (fraction * slots.size());
-            keys.add(slots.get(slot).termData);
+            int slot = (int) (fraction * vocabulary.getSlotCount());
+            keys.add(vocabulary.getKey(slot));
         }
 
         for (int i = 0; i < pieces; ++i) {
@@ -0,0 +1,159 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * <p>Wraps another Retrieval with a ResultCache, so repeated queries (and
+ * later pages of the same query) don't have to be evaluated again.</p>
+ *
+ * <p>The index can be replaced while queries are running with setRetrieval.
+ * Each swap starts a new index version, so results computed against the
+ * old index are never returned afterwards.</p>
+ *
+ * <p>Results that were cut short by a QueryBudget are partial, so they
+ * aren't cached.</p>
+ *
+ * @author trevor
+ */
+public class CachedRetrieval extends Retrieval {
+    Retrieval retrieval;
+    ResultCache cache;
+    long version;
+
+    public CachedRetrieval(Retrieval retrieval, ResultCache cache) {
+        this.retrieval = retrieval;
+        this.cache = cache;
+        this.version = 0;
+    }
+
+    public synchronized Retrieval getRetrieval() {
+        return retrieval;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    public ResultCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Replaces the wrapped retrieval (for instance, with a newly built index)
+     * and empties the cache.  The old retrieval is returned so the caller can
+     * close it once the queries using it have finished.
+     */
+    public synchronized Retrieval setRetrieval(Retrieval retrieval) {
+        Retrieval old = this.retrieval;
+        this.retrieval = retrieval;
+        version++;
+        cache.clear();
+        return old;
+    }
+
+    public String getDocumentName(int document) throws IOException {
+        return getRetrieval().getDocumentName(document);
+    }
+
+    public Node transformQuery(Node query) throws Exception {
+        return getRetrieval().transformQuery(query);
+    }
+
+    public Node transformQuery(Node query, boolean plan) throws Exception {
+        return getRetrieval().transformQuery(query, plan);
+    }
+
+    public Node planQuery(Node query) throws Exception {
+        return getRetrieval().planQuery(query);
+    }
+
+    public String explainQuery(Node query) throws Exception {
+        return getRetrieval().explainQuery(query);
+    }
+
+    public TermStatistics getStatistics(Node node) throws Exception {
+        return getRetrieval().getStatistics(node);
+    }
+
+    public Parameters getCollectionStatistics() throws IOException {
+        return getRetrieval().getCollectionStatistics();
+    }
+
+    public QueryBudget newBudget() {
+        return getRetrieval().newBudget();
+    }
+
+    public long getBudgetExceededCount() {
+        return getRetrieval().getBudgetExceededCount();
+    }
+
+    public ScoredDocument[] runQuery(Node query, int requested) throws Exception {
+        return runQuery(query, requested, newBudget());
+    }
+
+    public ScoredDocument[] runQuery(Node query, int requested, QueryBudget budget) throws Exception {
+        Retrieval current;
+        long currentVersion;
+
+        synchronized (this) {
+            current = retrieval;
+            currentVersion = version;
+        }
+
+        ScoredDocument[] results = cache.get(query, currentVersion, requested);
+        if (results == null) {
+            results = current.runQuery(query, requested, budget);
+            if (budget == null || !budget.isExceeded()) {
+                cache.put(query, currentVersion, requested, results);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Reranked queries are cached under a #rerank node that holds both
+     * queries and the candidate count.
+     */
+    public ScoredDocument[] runRerankedQuery(Node candidateQuery, int candidates,
+            Node rerankQuery, int requested) throws Exception {
+        return runRerankedQuery(candidateQuery, candidates, rerankQuery, requested, newBudget());
+    }
+
+    public ScoredDocument[] runRerankedQuery(Node candidateQuery, int candidates,
+            Node rerankQuery, int requested, QueryBudget budget) throws Exception {
+        Retrieval current;
+        long currentVersion;
+
+        synchronized (this) {
+            current = retrieval;
+            currentVersion = version;
+        }
+
+        Parameters parameters = new Parameters();
+        parameters.set("candidates", Integer.toString(candidates));
+        ArrayList<Node> children = new ArrayList<Node>();
+        children.add(candidateQuery);
+        children.add(rerankQuery);
+        Node key = new Node("rerank", parameters, children, 0);
+
+        ScoredDocument[] results = cache.get(key, currentVersion, requested);
+        if (results == null) {
+            results = current.runRerankedQuery(candidateQuery, candidates, rerankQuery, requested, budget);
+            if (budget == null || !budget.isExceeded()) {
+                cache.put(key, currentVersion, requested, results);
+            }
+        }
+        return results;
+    }
+
+    public void close() throws IOException {
+        cache.clear();
+        getRetrieval().close();
+    }
+}
@@ -0,0 +1,363 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.structured.StatisticsCache;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * <p>Searches several index shards as if they were a single index.  Each
+ * shard is another Retrieval: usually a StructuredRetrieval for an index on
+ * this machine, or a RemoteRetrieval for a search server on another one.</p>
+ *
+ * <p>Scores from separately built shards aren't comparable, since each
+ * shard has its own collection length and term frequencies.  So before a
+ * query is sent to the shards, every #feature node is annotated with
+ * collection-wide statistics: the total collectionLength and documentCount
+ * of the shards, and the collectionFrequency and documentFrequency of the
+ * feature's child, added up over the shards.  FeatureFactory uses statistics
+ * it finds on a node instead of the shard's own.  The statistics of each
+ * node are cached, so the shards are only asked once, and the shards are
+ * asked in parallel.</p>
+ *
+ * <p>Documents are numbered as if the shards were concatenated in order:
+ * document d of shard i is document d + offsets[i].  If the shards were
+ * split from one index in order, a query gets exactly the same results,
+ * document numbers and scores as it would from that index.</p>
+ *
+ * <p>Queries are transformed by the first shard, so the shards should be
+ * opened with the same parameters.  Query planning is left out of that
+ * transformation, since it depends on the statistics of the index: a term
+ * missing from the first shard would make it drop windows that match in
+ * other shards.  Instead, each shard plans the annotated query against its
+ * own index before running it.  Reranked queries aren't supported.</p>
+ *
+ * @author trevor
+ */
+public class FederatedRetrieval extends Retrieval {
+    List<Retrieval> shards;
+    int[] offsets;
+    long collectionLength;
+    long documentCount;
+    StatisticsCache statistics;
+    Parameters parameters;
+    AtomicLong budgetExceeded;
+    ExecutorService executor;
+
+    public FederatedRetrieval(List<Retrieval> shards, Parameters parameters) throws IOException {
+        this.shards = new ArrayList<Retrieval>(shards);
+        this.offsets = new int[shards.size() + 1];
+        this.parameters = parameters;
+        this.statistics = new StatisticsCache((int) parameters.get("statisticsCacheEntries", 10000));
+        this.budgetExceeded = new AtomicLong();
+
+        long documentLimit = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            Parameters shardStatistics = shards.get(i).getCollectionStatistics();
+            offsets[i] = (int) documentLimit;
+            collectionLength += shardStatistics.get("collectionLength", 0L);
+            documentCount += shardStatistics.get("documentCount", 0L);
+            documentLimit += shardStatistics.get("documentLimit", 0L);
+        }
+
+        if (documentLimit > Integer.MAX_VALUE) {
+            throw new IOException("The shards have more than " + Integer.MAX_VALUE + " documents.");
+        }
+        offsets[shards.size()] = (int) documentLimit;
+    }
+
+    public List<Retrieval> getShards() {
+        return shards;
+    }
+
+    /**
+     * Returns the shard that holds this global document number.
+     */
+    int getShard(int document) {
+        int low = 0;
+        int high = shards.size() - 1;
+
+        // find the last shard that starts at or before this document
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (offsets[middle] <= document) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    public String getDocumentName(int document) throws IOException {
+        int shard = getShard(document);
+        return shards.get(shard).getDocumentName(document - offsets[shard]);
+    }
+
+    public Node transformQuery(Node query) throws Exception {
+        return shards.get(0).transformQuery(query, false);
+    }
+
+    /**
+     * Queries are always transformed without planning; the shards plan
+     * them when they run.
+     */
+    @Override
+    public Node transformQuery(Node query, boolean plan) throws Exception {
+        return transformQuery(query);
+    }
+
+    public String explainQuery(Node query) throws Exception {
+        Retrieval first = shards.get(0);
+        return first.explainQuery(first.planQuery(annotate(query)));
+    }
+
+    /**
+     * Adds up the statistics of this node over every shard.
+     */
+    public TermStatistics getStatistics(Node node) throws Exception {
+        TermStatistics result = statistics.get(node);
+
+        if (result == null) {
+            ArrayList<Node> nodes = new ArrayList<Node>();
+            nodes.add(node);
+            result = gatherStatistics(nodes)[0];
+        }
+        return result;
+    }
+
+    /**
+     * Adds up the statistics of several nodes over every shard, and caches
+     * them.  The shards are asked at the same time, on the shard executor;
+     * each one is asked for all of the nodes in turn.
+     */
+    TermStatistics[] gatherStatistics(final List<Node> nodes) throws Exception {
+        ArrayList<Future<TermStatistics[]>> futures = new ArrayList<Future<TermStatistics[]>>();
+
+        for (final Retrieval shard : shards) {
+            futures.add(getExecutor().submit(new Callable<TermStatistics[]>() {
+                public TermStatistics[] call() throws Exception {
+                    TermStatistics[] shardStatistics = new TermStatistics[nodes.size()];
+                    for (int i = 0; i < shardStatistics.length; i++) {
+                        shardStatistics[i] = shard.getStatistics(nodes.get(i));
+                    }
+                    return shardStatistics;
+                }
+            }));
+        }
+
+        TermStatistics[] results = new TermStatistics[nodes.size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = new TermStatistics(0, 0);
+        }
+
+        try {
+            for (Future<TermStatistics[]> future : futures) {
+                TermStatistics[] shardStatistics = future.get();
+                for (int i = 0; i < results.length; i++) {
+                    results[i].collectionFrequency += shardStatistics[i].collectionFrequency;
+                    results[i].documentFrequency += shardStatistics[i].documentFrequency;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            statistics.put(nodes.get(i), results[i]);
+        }
+        return results;
+    }
+
+    public Parameters getCollectionStatistics() {
+        Parameters result = new Parameters();
+        result.add("collectionLength", Long.toString(collectionLength));
+        result.add("documentCount", Long.toString(documentCount));
+        result.add("documentLimit", Integer.toString(offsets[shards.size()]));
+        return result;
+    }
+
+    /**
+     * Returns a copy of a transformed query where every #feature node with
+     * one child carries the collection-wide statistics of that child.  The
+     * statistics that aren't cached are gathered together, in one pass over
+     * the shards.
+     */
+    public Node annotate(Node node) throws Exception {
+        HashMap<Node, TermStatistics> found = new HashMap<Node, TermStatistics>();
+        ArrayList<Node> missing = new ArrayList<Node>();
+        findStatistics(node, found, missing);
+
+        if (missing.size() > 0) {
+            TermStatistics[] gathered = gatherStatistics(missing);
+            for (int i = 0; i < gathered.length; i++) {
+                found.put(missing.get(i), gathered[i]);
+            }
+        }
+        return annotate(node, found);
+    }
+
+    /**
+     * Looks up the statistics of every #feature child in the cache, adding
+     * the ones it doesn't have to missing.
+     */
+    void findStatistics(Node node, HashMap<Node, TermStatistics> found, List<Node> missing) {
+        for (Node child : node.getInternalNodes()) {
+            findStatistics(child, found, missing);
+        }
+
+        if (node.getOperator().equals("feature") && node.getInternalNodes().size() == 1) {
+            Node child = node.getInternalNodes().get(0);
+            if (found.containsKey(child) || missing.contains(child)) {
+                return;
+            }
+
+            TermStatistics cached = statistics.get(child);
+            if (cached != null) {
+                found.put(child, cached);
+            } else {
+                missing.add(child);
+            }
+        }
+    }
+
+    Node annotate(Node node, HashMap<Node, TermStatistics> found) {
+        ArrayList<Node> children = new ArrayList<Node>();
+        for (Node child : node.getInternalNodes()) {
+            children.add(annotate(child, found));
+        }
+
+        Parameters nodeParameters = node.getParameters();
+        if (node.getOperator().equals("feature") && node.getInternalNodes().size() == 1) {
+            TermStatistics childStatistics = found.get(node.getInternalNodes().get(0));
+
+            nodeParameters = nodeParameters.clone();
+            nodeParameters.set("collectionLength", Long.toString(collectionLength));
+            nodeParameters.set("documentCount", Long.toString(documentCount));
+            nodeParameters.set("collectionFrequency", Long.toString(childStatistics.collectionFrequency));
+            nodeParameters.set("documentFrequency", Long.toString(childStatistics.documentFrequency));
+        }
+
+        return new Node(node.getOperator(), nodeParameters, children, node.getPosition());
+    }
+
+    synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "federated-shard");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * A budget from the parameters.  Without limits there, queries still
+     * get a budget if any shard hands one out (a remote shard does, since
+     * its server may stop early), so callers find out about partial results.
+     */
+    @Override
+    public QueryBudget newBudget() {
+        QueryBudget budget = QueryBudget.fromParameters(parameters);
+
+        if (budget == null) {
+            for (Retrieval shard : shards) {
+                if (shard.newBudget() != null) {
+                    return new QueryBudget(0, 0, 0);
+                }
+            }
+        }
+        return budget;
+    }
+
+    @Override
+    public long getBudgetExceededCount() {
+        return budgetExceeded.get();
+    }
+
+    public ScoredDocument[] runQuery(Node query, int requested) throws Exception {
+        return runQuery(query, requested, newBudget());
+    }
+
+    /**
+     * Sends the annotated query to every shard at once, and merges the top
+     * documents of each.  Each shard plans the query for its own index.
+     * The budget is shared by the local shards; remote shards get what's
+     * left of its limits, and mark it as exceeded if they stop early.
+     */
+    @Override
+    public ScoredDocument[] runQuery(Node query, int requested, QueryBudget budget) throws Exception {
+        final Node annotated = annotate(query);
+        final int count = requested;
+        final QueryBudget queryBudget = budget;
+        ArrayList<Future<ScoredDocument[]>> futures = new ArrayList<Future<ScoredDocument[]>>();
+
+        for (final Retrieval shard : shards) {
+            futures.add(getExecutor().submit(new Callable<ScoredDocument[]>() {
+                public ScoredDocument[] call() throws Exception {
+                    return shard.runQuery(shard.planQuery(annotated), count, queryBudget);
+                }
+            }));
+        }
+
+        PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                for (ScoredDocument document : futures.get(i).get()) {
+                    queue.add(new ScoredDocument(document.document + offsets[i], document.score));
+
+                    if (queue.size() > requested) {
+                        queue.poll();
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            if (budget != null && budget.isExceeded()) {
+                budgetExceeded.incrementAndGet();
+            }
+        }
+
+        ScoredDocument[] results = new ScoredDocument[queue.size()];
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = queue.poll();
+        }
+        return results;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+        for (Retrieval shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * <p>Limits the work a single query can do: the time it takes, the number
+ * of documents it scores, and the number of postings it reads.  When any
+ * limit is exceeded, evaluation stops and the best documents found so far
+ * are returned; isExceeded tells the caller that the results are partial.</p>
+ *
+ * <p>The evaluation loops don't check the budget for every document.  Each
+ * thread evaluating the query uses a Meter, which only charges the budget
+ * (and reads the clock) once every CHECK_INTERVAL documents.  Postings
+ * aren't counted one by one either: the number read is estimated from the
+ * query's estimated cost and the fraction of the collection evaluated so far.</p>
+ *
+ * <p>Conjunctions (like windows) can read a long way through their lists
+ * between two documents that the evaluation loop sees, so they charge the
+ * budget themselves, through Meter.examine, for every document they look
+ * at.  The postings read is the larger of the estimate and the postings
+ * counted this way.</p>
+ *
+ * <p>One budget can be shared by several threads evaluating parts of the
+ * same query; once one of them exceeds it, they all stop.</p>
+ *
+ * @author trevor
+ */
+public class QueryBudget {
+    public static final int CHECK_INTERVAL = 256;
+
+    long deadline;
+    long documentLimit;
+    long postingsLimit;
+
+    long estimatedPostings;
+    long collectionSize;
+
+    AtomicLong documents;
+    AtomicLong advanced;
+    AtomicLong examined;
+    volatile boolean exceeded;
+
+    /**
+     * Any limit that isn't positive is ignored.
+     *
+     * @param timeLimit The most time the query can take, in milliseconds.
+     * @param documentLimit The most documents the query can score.
+     * @param postingsLimit The most postings the query can read.
+     */
+    public QueryBudget(long timeLimit, long documentLimit, long postingsLimit) {
+        this.deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1000000L : Long.MAX_VALUE;
+        this.documentLimit = documentLimit > 0 ? documentLimit : Long.MAX_VALUE;
+        this.postingsLimit = postingsLimit > 0 ? postingsLimit : Long.MAX_VALUE;
+        this.documents = new AtomicLong();
+        this.advanced = new AtomicLong();
+        this.examined = new AtomicLong();
+    }
+
+    /**
+     * Makes a budget from the <tt>queryTimeLimit</tt> (milliseconds),
+     * <tt>queryDocumentLimit</tt> and <tt>queryPostingsLimit</tt>
+     * parameters.  Returns null if none of them are set.
+     */
+    public static QueryBudget fromParameters(Parameters parameters) {
+        long timeLimit = parameters.get("queryTimeLimit", 0L);
+        long documentLimit = parameters.get("queryDocumentLimit", 0L);
+        long postingsLimit = parameters.get("queryPostingsLimit", 0L);
+
+        if (timeLimit <= 0 && documentLimit <= 0 && postingsLimit <= 0) {
+            return null;
+        }
+        return new QueryBudget(timeLimit, documentLimit, postingsLimit);
+    }
+
+    public boolean hasPostingsLimit() {
+        return postingsLimit != Long.MAX_VALUE;
+    }
+
+    /**
+     * Sets the numbers used to estimate how many postings have been read:
+     * the estimated postings read by the whole query, and the number of
+     * document numbers in the collection.
+     */
+    public void setPostingsEstimate(long estimatedPostings, long collectionSize) {
+        this.estimatedPostings = estimatedPostings;
+        this.collectionSize = collectionSize;
+    }
+
+    /**
+     * Adds work done by an evaluation thread, and checks the limits.
+     *
+     * @param scored The number of documents scored since the last charge.
+     * @param distance How far the thread has moved through the document numbers since the last charge.
+     * @return true if the budget has been exceeded.
+     */
+    public boolean charge(long scored, long distance) {
+        if (exceeded) {
+            return true;
+        }
+
+        long scoredTotal = documents.addAndGet(scored);
+        long advancedTotal = advanced.addAndGet(distance);
+
+        if (scoredTotal > documentLimit ||
+            getPostingsRead(advancedTotal) > postingsLimit ||
+            System.nanoTime() > deadline) {
+            exceeded = true;
+        }
+        return exceeded;
+    }
+
+    /**
+     * Adds postings examined by a conjunction, and checks the limits.
+     * Returns true if the budget has been exceeded.
+     */
+    public boolean chargePostings(long postings) {
+        if (exceeded) {
+            return true;
+        }
+
+        examined.addAndGet(postings);
+        if (getPostingsRead() > postingsLimit || System.nanoTime() > deadline) {
+            exceeded = true;
+        }
+        return exceeded;
+    }
+
+    long getPostingsRead(long advancedTotal) {
+        long estimate = 0;
+        if (collectionSize > 0 && estimatedPostings > 0) {
+            estimate = (long) ((double) estimatedPostings * advancedTotal / collectionSize);
+        }
+        return Math.max(estimate, examined.get());
+    }
+
+    /// True if evaluation stopped early, so the results are partial.
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Marks the budget as exceeded because work done somewhere else, like
+     * on a remote shard, stopped early.
+     */
+    public void setExceeded() {
+        exceeded = true;
+    }
+
+    /**
+     * The milliseconds left before the time limit, at least 1, or 0 if
+     * there's no time limit.
+     */
+    public long getTimeRemaining() {
+        if (deadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, (deadline - System.nanoTime()) / 1000000L);
+    }
+
+    /// The documents that can still be scored, at least 1, or 0 if there's no limit.
+    public long getDocumentsRemaining() {
+        if (documentLimit == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, documentLimit - documents.get());
+    }
+
+    /// The postings that can still be read, at least 1, or 0 if there's no limit.
+    public long getPostingsRemaining() {
+        if (postingsLimit == Long.MAX_VALUE) {
+            return 0;
+        }
+        return Math.max(1, postingsLimit - getPostingsRead());
+    }
+
+    public long getDocumentsScored() {
+        return documents.get();
+    }
+
+    /**
+     * An estimate of the postings read so far: the larger of the estimate
+     * from the query cost and the postings counted by conjunctions.
+     */
+    public long getPostingsRead() {
+        return getPostingsRead(advanced.get());
+    }
+
+    /**
+     * Returns a meter for one thread evaluating documents numbered from start.
+     */
+    public Meter meter(int start) {
+        return new Meter(start);
+    }
+
+    /**
+     * Counts one thread's work between charges to the budget.
+     */
+    public class Meter {
+        int unchecked;
+        int uncheckedPostings;
+        int lastDocument;
+        int paused;
+
+        Meter(int start) {
+            this.lastDocument = start;
+        }
+
+        /**
+         * Records documents scored up to this document.  Returns true if
+         * the thread should stop, because the budget has been exceeded.
+         */
+        public boolean tick(int document, int scored) {
+            unchecked += scored;
+            if (unchecked < CHECK_INTERVAL) {
+                return false;
+            }
+
+            long distance = Math.max(0, (long) document - lastDocument);
+            lastDocument = document;
+            int charged = unchecked;
+            unchecked = 0;
+            return charge(charged, distance);
+        }
+
+        /**
+         * Records postings examined by a conjunction, whether or not they
+         * lead to a document being scored.  Returns true if the thread
+         * should stop, because the budget has been exceeded.
+         */
+        public boolean examine(int postings) {
+            if (paused > 0) {
+                return false;
+            }
+            uncheckedPostings += postings;
+            if (uncheckedPostings < CHECK_INTERVAL) {
+                return false;
+            }
+
+            int charged = uncheckedPostings;
+            uncheckedPostings = 0;
+            return chargePostings(charged);
+        }
+
+        /**
+         * Stops counting examined postings until resume is called.  This is
+         * used while statistics are gathered: they're cached and shared with
+         * other queries, so gathering them can't be cut short by one budget.
+         */
+        public void pause() {
+            paused++;
+        }
+
+        public void resume() {
+            paused--;
+        }
+
+        /**
+         * Adds the documents scored since the last check to the budget,
+         * without checking it; evaluation is over, so the results are complete.
+         */
+        public void finish() {
+            documents.addAndGet(unchecked);
+            examined.addAndGet(uncheckedPostings);
+            unchecked = 0;
+            uncheckedPostings = 0;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Parameters.Value;
+
+/**
+ * <p>Sends queries to a search server on another machine (a SearchWebHandler,
+ * started with <tt>galago search</tt>), through its <tt>/shard</tt> URLs.
+ * This is how FederatedRetrieval reaches shards that aren't on this machine.</p>
+ *
+ * <p>Queries are sent as text, and the responses are parameters XML.  Scores
+ * are written with Double.toString, so they arrive exactly as computed.  The
+ * server sends the names of the documents it returns along with the results;
+ * they're remembered, so getDocumentName usually doesn't need a request.</p>
+ *
+ * @author trevor
+ */
+public class RemoteRetrieval extends Retrieval {
+    static final int MAXIMUM_NAMES = 100000;
+
+    String url;
+    ConcurrentHashMap<Integer, String> names;
+
+    /**
+     * @param url The server's address, like <tt>http://host:port</tt>.
+     */
+    public RemoteRetrieval(String url) {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.names = new ConcurrentHashMap<Integer, String>();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Posts a request to the server, and parses the response.
+     *
+     * @param path The request path, like <tt>/shard/query</tt>.
+     * @param arguments Request parameter names and values, alternating.
+     */
+    Parameters request(String path, String... arguments) throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i + 1 < arguments.length; i += 2) {
+            if (body.length() > 0) {
+                body.append('&');
+            }
+            body.append(URLEncoder.encode(arguments[i], "UTF-8"));
+            body.append('=');
+            body.append(URLEncoder.encode(arguments[i + 1], "UTF-8"));
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+
+        OutputStream output = connection.getOutputStream();
+        output.write(body.toString().getBytes("UTF-8"));
+        output.close();
+
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException(url + path + " returned " + connection.getResponseCode() +
+                                  " " + connection.getResponseMessage());
+        }
+
+        InputStream input = connection.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        try {
+            while ((read = input.read(buffer)) > 0) {
+                response.write(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+
+        return new Parameters(response.toByteArray());
+    }
+
+    public String getDocumentName(int document) throws IOException {
+        String name = names.get(document);
+
+        if (name == null) {
+            name = request("/shard/name", "d", Integer.toString(document)).get("name");
+        }
+        return name;
+    }
+
+    public Node transformQuery(Node query) throws Exception {
+        return transformQuery(query, true);
+    }
+
+    public Node transformQuery(Node query, boolean plan) throws Exception {
+        return StructuredQuery.parse(request("/shard/transform", "q", query.toString(),
+                                             "plan", Boolean.toString(plan)).get("query"));
+    }
+
+    /**
+     * The server plans every query it runs, so the query is returned unchanged.
+     */
+    public Node planQuery(Node query) throws Exception {
+        return query;
+    }
+
+    public String explainQuery(Node query) throws Exception {
+        return request("/shard/explain", "q", query.toString()).get("plan");
+    }
+
+    public TermStatistics getStatistics(Node node) throws Exception {
+        Parameters response = request("/shard/statistics", "q", node.toString());
+        return new TermStatistics(response.get("collectionFrequency", -1L),
+                                  response.get("documentFrequency", -1L));
+    }
+
+    public Parameters getCollectionStatistics() throws IOException {
+        return request("/shard/collection");
+    }
+
+    /**
+     * The server may stop a query early under its own limits, so queries
+     * get a budget even without limits here, to find out when that happens.
+     */
+    @Override
+    public QueryBudget newBudget() {
+        return new QueryBudget(0, 0, 0);
+    }
+
+    public ScoredDocument[] runQuery(Node query, int requested) throws Exception {
+        return runQuery(query, requested, newBudget());
+    }
+
+    /**
+     * Runs a transformed query on the server.  What's left of the budget's
+     * limits is sent along, and replaces the server's own budget; without
+     * any limits, the server applies its own.  If the server stopped early,
+     * the budget is marked as exceeded.
+     */
+    @Override
+    public ScoredDocument[] runQuery(Node query, int requested, QueryBudget budget) throws Exception {
+        ArrayList<String> arguments = new ArrayList<String>();
+        arguments.add("q");
+        arguments.add(query.toString());
+        arguments.add("n");
+        arguments.add(Integer.toString(requested));
+
+        if (budget != null) {
+            arguments.add("timeLimit");
+            arguments.add(Long.toString(budget.getTimeRemaining()));
+            arguments.add("documentLimit");
+            arguments.add(Long.toString(budget.getDocumentsRemaining()));
+            arguments.add("postingsLimit");
+            arguments.add(Long.toString(budget.getPostingsRemaining()));
+        }
+
+        Parameters response = request("/shard/query", arguments.toArray(new String[0]));
+        if (budget != null && response.get("partial", false)) {
+            budget.setExceeded();
+        }
+
+        List<Value> values = response.list("result");
+        ScoredDocument[] results = new ScoredDocument[values.size()];
+
+        if (names.size() + results.length > MAXIMUM_NAMES) {
+            names.clear();
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            Value value = values.get(i);
+            int document = Integer.parseInt(value.get("document"));
+            double score = Double.parseDouble(value.get("score"));
+
+            results[i] = new ScoredDocument(document, score);
+            names.put(document, value.get("name"));
+        }
+        return results;
+    }
+
+    public void close() throws IOException {
+        names.clear();
+    }
+}
@@ -0,0 +1,148 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.galagosearch.core.retrieval.query.Node;
+
+/**
+ * <p>Caches the ranked results of transformed queries.  Each entry is the
+ * prefix of the ranking that some call to runQuery computed, so it can also
+ * serve any request for fewer documents (like an earlier page of results).
+ * If an entry holds fewer documents than were requested, it is the whole
+ * ranking, and it can serve requests of any size.</p>
+ *
+ * <p>Entries are keyed by the query tree and an index version.  The cache
+ * is bounded both by entry count and by an estimate of the memory used;
+ * when either limit is passed, the least recently used entries are evicted.</p>
+ *
+ * @author trevor
+ */
+public class ResultCache {
+    static class Key {
+        Node query;
+        long version;
+
+        Key(Node query, long version) {
+            this.query = query;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return version == other.version && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return query.hashCode() * 31 + (int) (version ^ (version >>> 32));
+        }
+    }
+
+    static class Entry {
+        ScoredDocument[] results;
+        int requested;
+        long size;
+
+        boolean isComplete() {
+            return results.length < requested;
+        }
+    }
+
+    // rough sizes, in bytes, of a ScoredDocument and of an entry with its key
+    static final long DOCUMENT_SIZE = 32;
+    static final long ENTRY_SIZE = 256;
+
+    LinkedHashMap<Key, Entry> entries;
+    int maximumEntries;
+    long maximumBytes;
+    long size;
+    long hits;
+    long misses;
+
+    public ResultCache(int maximumEntries, long maximumBytes) {
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the top requested results for this query, or null if the
+     * cache doesn't have enough of them.
+     */
+    public synchronized ScoredDocument[] get(Node query, long version, int requested) {
+        Entry entry = entries.get(new Key(query, version));
+
+        if (entry == null || (entry.results.length < requested && !entry.isComplete())) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        int length = Math.min(requested, entry.results.length);
+        ScoredDocument[] results = new ScoredDocument[length];
+        System.arraycopy(entry.results, 0, results, 0, length);
+        return results;
+    }
+
+    /**
+     * Stores the results of a query that asked for requested documents.
+     * An existing entry is only replaced by a longer ranking.
+     */
+    public synchronized void put(Node query, long version, int requested, ScoredDocument[] results) {
+        Key key = new Key(query, version);
+        Entry old = entries.get(key);
+
+        if (old != null && (old.isComplete() || old.results.length >= results.length)) {
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.results = results;
+        entry.requested = requested;
+        entry.size = ENTRY_SIZE + DOCUMENT_SIZE * results.length;
+
+        if (entry.size > maximumBytes || maximumEntries <= 0) {
+            return;
+        }
+
+        if (old != null) {
+            size -= old.size;
+        }
+        entries.put(key, entry);
+        size += entry.size;
+
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while ((size > maximumBytes || entries.size() > maximumEntries) && iterator.hasNext()) {
+            size -= iterator.next().getValue().size;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
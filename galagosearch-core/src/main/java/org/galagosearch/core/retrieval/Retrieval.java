@@ -3,8 +3,11 @@
 package org.galagosearch.core.retrieval;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.tupleflow.Parameters;
 
 /**
@@ -20,10 +23,138 @@ public abstract class Retrieval {
      * be directly executed.
      */
     public abstract Node transformQuery(Node query) throws Exception;
+    /**
+     * Transforms the query, leaving out query planning if plan is false.
+     * Planning uses this retrieval's own statistics, so FederatedRetrieval
+     * transforms without it, and has each shard plan the annotated query
+     * with planQuery.  By default this is the same as transformQuery.
+     */
+    public Node transformQuery(Node query, boolean plan) throws Exception {
+        return transformQuery(query);
+    }
+    /**
+     * Plans a query that was transformed without planning, using this
+     * retrieval's own statistics.  By default the query is returned unchanged.
+     */
+    public Node planQuery(Node query) throws Exception {
+        return query;
+    }
     public abstract ScoredDocument[] runQuery(Node query, int requested) throws Exception;
+    /**
+     * Runs a query within a budget.  If the budget runs out, the best
+     * documents found so far are returned and budget.isExceeded() is true.
+     * The budget may be null, for no limits.  By default the budget is ignored.
+     */
+    public ScoredDocument[] runQuery(Node query, int requested, QueryBudget budget) throws Exception {
+        return runQuery(query, requested);
+    }
+    /**
+     * Returns a new budget for one query, from the retrieval's parameters,
+     * or null if queries have no limits.
+     */
+    public QueryBudget newBudget() {
+        return null;
+    }
+    /**
+     * Returns the number of queries that have exceeded their budgets.
+     */
+    public long getBudgetExceededCount() {
+        return 0;
+    }
+    /**
+     * Runs a query in two phases: candidateQuery finds the top candidates
+     * documents, and rerankQuery scores only those.  Both queries should
+     * already be transformed.
+     */
+    public ScoredDocument[] runRerankedQuery(Node candidateQuery, int candidates,
+            Node rerankQuery, int requested) throws Exception {
+        return runRerankedQuery(candidateQuery, candidates, rerankQuery, requested, newBudget());
+    }
+    /**
+     * Runs a reranked query within a budget, which covers both phases.
+     * Retrievals that can't score individual documents don't support this.
+     */
+    public ScoredDocument[] runRerankedQuery(Node candidateQuery, int candidates,
+            Node rerankQuery, int requested, QueryBudget budget) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support reranking.");
+    }
+    /**
+     * Describes how a transformed query will be evaluated.  By default this is
+     * just the query itself; subclasses can add plans and cost estimates.
+     */
+    public String explainQuery(Node query) throws Exception {
+        return query.toString() + "\n";
+    }
+    /**
+     * Returns the collection frequency and document frequency of a node
+     * from a transformed query, like a term or a window.  FederatedRetrieval
+     * adds these up over its shards to score with global statistics.
+     */
+    public TermStatistics getStatistics(Node node) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support statistics.");
+    }
+    /**
+     * Returns the size of the collection: <tt>collectionLength</tt>,
+     * <tt>documentCount</tt>, and <tt>documentLimit</tt>, which is one
+     * more than the largest document number.
+     */
+    public Parameters getCollectionStatistics() throws IOException {
+        throw new UnsupportedOperationException(getClass().getName() + " doesn't support statistics.");
+    }
     public abstract void close() throws IOException;
     
+    /**
+     * Opens the index at indexPath.  If indexPath is an http:// URL, it
+     * names a search server (see SearchWebHandler) to send queries to
+     * instead.  If <tt>resultCacheEntries</tt> is set,
+     * the retrieval keeps the results of that many recent queries in a
+     * ResultCache, using at most <tt>resultCacheBytes</tt> bytes (64MB by default).
+     */
     static public Retrieval instance(String indexPath, Parameters parameters) throws IOException {
+        return cached(openShard(indexPath, parameters), parameters);
+    }
+
+    /**
+     * Opens several index shards, and searches them together as one
+     * index with a FederatedRetrieval.  Each path can be a directory or
+     * an http:// URL.  With a single path this is the same as instance(String, Parameters).
+     */
+    static public Retrieval instance(List<String> indexPaths, Parameters parameters) throws IOException {
+        if (indexPaths.size() == 0) {
+            throw new IllegalArgumentException("No index paths were given.");
+        }
+        if (indexPaths.size() == 1) {
+            return instance(indexPaths.get(0), parameters);
+        }
+
+        ArrayList<Retrieval> shards = new ArrayList<Retrieval>();
+        try {
+            for (String indexPath : indexPaths) {
+                shards.add(openShard(indexPath, parameters));
+            }
+            return cached(new FederatedRetrieval(shards, parameters), parameters);
+        } catch (IOException e) {
+            for (Retrieval shard : shards) {
+                shard.close();
+            }
+            throw e;
+        }
+    }
+
+    static Retrieval openShard(String indexPath, Parameters parameters) throws IOException {
+        if (indexPath.startsWith("http://")) {
+            return new RemoteRetrieval(indexPath);
+        }
         return new StructuredRetrieval(indexPath, parameters);
     }
+
+    static Retrieval cached(Retrieval retrieval, Parameters parameters) {
+        int cacheEntries = (int) parameters.get("resultCacheEntries", 0);
+
+        if (cacheEntries > 0) {
+            long cacheBytes = parameters.get("resultCacheBytes", 64L * 1024 * 1024);
+            retrieval = new CachedRetrieval(retrieval, new ResultCache(cacheEntries, cacheBytes));
+        }
+        return retrieval;
+    }
 }
@@ -4,6 +4,7 @@ package org.galagosearch.core.retrieval.query;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import org.galagosearch.tupleflow.Parameters.Value;
 import org.galagosearch.tupleflow.Parameters;
 
@@ -165,6 +166,25 @@ public class Node {
         return builder.toString();
     }
 
+    /**
+     * Returns the parameters of this node sorted by key, so that nodes
+     * with the same parameters compare equal no matter what order the
+     * parameters were added in.
+     */
+    String canonicalParameters() {
+        Map<String, List<Value>> parameterMap = parameters.value().map();
+
+        if (parameterMap == null) {
+            return "";
+        }
+
+        TreeMap<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, List<Value>> entry : parameterMap.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().toString());
+        }
+        return sorted.toString();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof Node)) {
@@ -181,6 +201,9 @@ public class Node {
         if (operator != null && !other.getOperator().equals(operator)) {
             return false;
         }
+        if (!canonicalParameters().equals(other.canonicalParameters())) {
+            return false;
+        }
         if (internalNodes.size() != other.getInternalNodes().size()) {
             return false;
         }
@@ -197,6 +220,7 @@ public class Node {
     public int hashCode() {
         int hash = 7;
         hash = 67 * hash + (this.operator != null ? this.operator.hashCode() : 0);
+        hash = 67 * hash + canonicalParameters().hashCode();
         hash = 67 * hash + (this.internalNodes != null ? this.internalNodes.hashCode() : 0);
         return hash;
     }
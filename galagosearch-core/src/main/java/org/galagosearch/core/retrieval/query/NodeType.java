@@ -21,6 +21,8 @@ import org.galagosearch.tupleflow.Parameters;
  */
 public class NodeType {
     private Class<? extends StructuredIterator> nodeClass;
+    // found on first use; the constructor search is expensive, so it only happens once
+    private volatile Constructor constructor;
 
     public NodeType(Class<? extends StructuredIterator> nodeClass) {
         this.nodeClass = nodeClass;
@@ -78,6 +80,13 @@ public class NodeType {
     }
     
     public Constructor getConstructor() throws Exception {
+        if (constructor == null) {
+            constructor = findConstructor();
+        }
+        return constructor;
+    }
+
+    private Constructor findConstructor() throws Exception {
         for (Constructor constructor : nodeClass.getConstructors()) {
             Class[] types = constructor.getParameterTypes();
          
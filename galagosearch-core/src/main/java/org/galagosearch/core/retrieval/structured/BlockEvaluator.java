@@ -0,0 +1,228 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import org.galagosearch.core.index.StructuredIndex;
+import org.galagosearch.core.retrieval.QueryBudget;
+
+/**
+ * <p>Scores a #combine of features a block of documents at a time, instead
+ * of pulling each document through nextCandidate, score and movePast at every
+ * level of the tree.</p>
+ *
+ * <p>The document numbers are split into windows of <tt>blockSize</tt>
+ * numbers, starting at the first document any list contains.  For each
+ * window, every feature's list copies its postings into primitive arrays
+ * (CountIterator.fillBlock), the matching documents and their lengths are
+ * gathered, and each scoring function scores the whole block in one call
+ * (ScoringFunctionIterator.scoreBlock).  The top documents are kept in a
+ * TopDocuments heap.</p>
+ *
+ * <p>Each document gets the same feature scores as in StructuredRetrieval's
+ * usual evaluation, but the scores are summed in double precision; the usual
+ * evaluation sums them as floats, so the final scores differ by that rounding.</p>
+ *
+ * <p>If a QueryBudget is set, it's charged once per window for the documents
+ * scored in that window, and evaluation stops when the budget runs out.</p>
+ *
+ * <p>The evaluator counts the windows it fills and the documents it scores,
+ * over every query it evaluates.</p>
+ *
+ * @author trevor
+ */
+public class BlockEvaluator {
+    StructuredIndex index;
+    int blockSize;
+    QueryBudget budget;
+    long windowCount;
+    long documentsScored;
+
+    public BlockEvaluator(StructuredIndex index, int blockSize) {
+        this.index = index;
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    public void setBudget(QueryBudget budget) {
+        this.budget = budget;
+    }
+
+    /** Returns the number of windows of blockSize documents that were filled. */
+    public long getWindowCount() {
+        return windowCount;
+    }
+
+    /** Returns the number of documents that were scored. */
+    public long getDocumentsScored() {
+        return documentsScored;
+    }
+
+    /**
+     * Returns the scoring function under a chain of #scale nodes, or null.
+     */
+    static ScoringFunctionIterator getScoringFunction(ScoreIterator iterator) {
+        while (iterator instanceof ScaleIterator) {
+            iterator = ((ScaleIterator) iterator).getIterator();
+        }
+        if (iterator instanceof ScoringFunctionIterator) {
+            return (ScoringFunctionIterator) iterator;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the weights of the #scale nodes above a scoring function,
+     * innermost first, which is the order they're applied in.
+     */
+    static double[] getWeights(ScoreIterator iterator) {
+        ArrayList<Double> weights = new ArrayList<Double>();
+        while (iterator instanceof ScaleIterator) {
+            weights.add(0, ((ScaleIterator) iterator).getWeight());
+            iterator = ((ScaleIterator) iterator).getIterator();
+        }
+
+        double[] result = new double[weights.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = weights.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if this iterator is a #combine whose children are all
+     * scoring functions (like #feature:dirichlet), possibly scaled.
+     */
+    public static boolean canEvaluate(ScoreIterator iterator) {
+        if (!(iterator instanceof UnfilteredCombinationIterator)) {
+            return false;
+        }
+
+        for (ScoreIterator child : ((UnfilteredCombinationIterator) iterator).iterators) {
+            if (getScoringFunction(child) == null) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the top documents numbered from start up to (but not including)
+     * end.  The iterator must pass canEvaluate.
+     */
+    public TopDocuments evaluate(ScoreIterator iterator, int requested, int start, int end)
+            throws IOException {
+        TopDocuments top = new TopDocuments(requested);
+        ScoreIterator[] children = ((UnfilteredCombinationIterator) iterator).iterators;
+        int featureCount = children.length;
+
+        if (requested <= 0 || featureCount == 0) {
+            return top;
+        }
+
+        ScoringFunctionIterator[] features = new ScoringFunctionIterator[featureCount];
+        CountIterator[] lists = new CountIterator[featureCount];
+        double[][] weights = new double[featureCount][];
+
+        for (int i = 0; i < featureCount; i++) {
+            features[i] = getScoringFunction(children[i]);
+            weights[i] = getWeights(children[i]);
+            lists[i] = features[i].getCountIterator();
+
+            if (start > 0 && !lists[i].isDone()) {
+                lists[i].skipToDocument(start);
+            }
+        }
+
+        // counts[i][offset] is valid only if marks[i][offset] is the current window number
+        int[][] counts = new int[featureCount][blockSize];
+        int[][] marks = new int[featureCount][blockSize];
+        int[] matched = new int[blockSize];
+        int window = 0;
+
+        int[] listDocuments = new int[blockSize];
+        int[] listCounts = new int[blockSize];
+        int[] candidates = new int[blockSize];
+        int[] lengths = new int[blockSize];
+        int[] blockCounts = new int[blockSize];
+        double[] featureScores = new double[blockSize];
+        double[] totals = new double[blockSize];
+        QueryBudget.Meter meter = (budget == null) ? null : budget.meter(start);
+
+        while (true) {
+            int first = Integer.MAX_VALUE;
+            for (CountIterator list : lists) {
+                if (!list.isDone()) {
+                    first = Math.min(first, list.document());
+                }
+            }
+            if (first == Integer.MAX_VALUE || first >= end) {
+                break;
+            }
+
+            int last = (int) Math.min((long) first + blockSize, (long) end);
+            window++;
+
+            // copy every list's postings in this window
+            for (int i = 0; i < featureCount; i++) {
+                int filled = lists[i].fillBlock(last, listDocuments, listCounts);
+                int[] featureCounts = counts[i];
+                int[] featureMarks = marks[i];
+
+                for (int j = 0; j < filled; j++) {
+                    int offset = listDocuments[j] - first;
+                    featureCounts[offset] = listCounts[j];
+                    featureMarks[offset] = window;
+                    matched[offset] = window;
+                }
+            }
+
+            int candidateCount = 0;
+            for (int offset = 0; offset < last - first; offset++) {
+                if (matched[offset] == window) {
+                    candidates[candidateCount] = offset;
+                    lengths[candidateCount] = index.getLength(first + offset);
+                    totals[candidateCount] = 0;
+                    candidateCount++;
+                }
+            }
+
+            // score the block one feature at a time
+            for (int i = 0; i < featureCount; i++) {
+                int[] featureCounts = counts[i];
+                int[] featureMarks = marks[i];
+
+                for (int k = 0; k < candidateCount; k++) {
+                    int offset = candidates[k];
+                    blockCounts[k] = (featureMarks[offset] == window) ? featureCounts[offset] : 0;
+                }
+
+                features[i].scoreBlock(blockCounts, lengths, featureScores, candidateCount);
+
+                for (double weight : weights[i]) {
+                    for (int k = 0; k < candidateCount; k++) {
+                        featureScores[k] = weight * featureScores[k];
+                    }
+                }
+                for (int k = 0; k < candidateCount; k++) {
+                    totals[k] += featureScores[k];
+                }
+            }
+
+            for (int k = 0; k < candidateCount; k++) {
+                top.offer(first + candidates[k], totals[k]);
+            }
+            windowCount++;
+            documentsScored += candidateCount;
+
+            if (meter != null && meter.tick(last, candidateCount)) {
+                break;
+            }
+        }
+
+        if (meter != null) {
+            meter.finish();
+        }
+        return top;
+    }
+}
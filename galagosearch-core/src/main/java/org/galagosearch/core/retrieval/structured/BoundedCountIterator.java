@@ -0,0 +1,25 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+
+/**
+ * A count iterator that knows an upper bound on its counts, which lets
+ * scoring functions bound their scores for dynamic pruning.
+ *
+ * @see BoundedScoreIterator
+ * @author trevor
+ */
+public interface BoundedCountIterator {
+    /**
+     * Returns the largest count in the list, or -1 if it isn't known.
+     */
+    public int maximumCount();
+
+    /**
+     * Returns an upper bound on the count of this document, which may be
+     * much tighter than maximumCount().  The bound is valid wherever the
+     * iterator is currently positioned.  Returns -1 if it isn't known.
+     */
+    public int maximumCount(int document) throws IOException;
+}
@@ -0,0 +1,30 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+
+/**
+ * A score iterator that can bound its own scores.  MaxScoreEvaluator uses
+ * these bounds to skip documents that can't make it into the top results.
+ * Any bound that isn't known should be returned as Double.POSITIVE_INFINITY.
+ *
+ * @author trevor
+ */
+public interface BoundedScoreIterator extends ScoreIterator {
+    /**
+     * An upper bound on score(document, length) for any document.
+     */
+    public double maximumScore();
+
+    /**
+     * An upper bound on score(document, length) for any document that
+     * this iterator doesn't match.
+     */
+    public double maximumUnmatchedScore();
+
+    /**
+     * An upper bound on score(document, length) for this particular document,
+     * which is valid wherever the iterator is currently positioned.
+     */
+    public double maximumScore(int document, int length) throws IOException;
+}
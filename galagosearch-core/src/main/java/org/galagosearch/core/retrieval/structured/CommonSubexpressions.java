@@ -0,0 +1,142 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * <p>Finds the subtrees that appear more than once in a query tree, so
+ * StructuredRetrieval can build one iterator for each of them and share it
+ * through a SharedCursor.  Sequential dependence queries are the usual
+ * example: each term appears as a unigram feature and again inside every
+ * window that contains it.</p>
+ *
+ * <p>Subtrees are compared with Node.equals.  A #counts leaf and an #extents
+ * leaf for the same term and part read the same list, so they're treated as
+ * the same subtree; the shared iterator reads extents, and the #counts
+ * consumers just don't ask for them.</p>
+ *
+ * <p>Every copy of a subtree is counted, including the ones inside other
+ * repeated subtrees.  When the outer subtree is shared, its children are only
+ * built once, so their cursors end up with a single view; that costs little,
+ * and it means nothing is lost when the outer subtree can't be shared (like a
+ * repeated #feature, which isn't an extent list).</p>
+ *
+ * @author trevor
+ */
+public class CommonSubexpressions {
+    public static class Subexpression {
+        Node node;
+        int occurrences;
+        boolean needsExtents;
+        SharedCursor cursor;
+        boolean unshareable;
+
+        /// The node to build the shared iterator from.
+        public Node getNode() {
+            return node;
+        }
+
+        public int getOccurrences() {
+            return occurrences;
+        }
+
+        public boolean needsExtents() {
+            return needsExtents;
+        }
+    }
+
+    HashMap<Node, Subexpression> subexpressions;
+    ArrayList<SharedCursor> cursors;
+
+    public CommonSubexpressions(Node tree) {
+        subexpressions = new HashMap<Node, Subexpression>();
+        cursors = new ArrayList<SharedCursor>();
+        count(tree);
+
+        // only the repeated ones are interesting
+        ArrayList<Node> single = new ArrayList<Node>();
+        for (Subexpression subexpression : subexpressions.values()) {
+            if (subexpression.occurrences < 2) {
+                single.add(subexpression.node);
+            }
+        }
+        for (Node node : single) {
+            subexpressions.remove(key(node));
+        }
+    }
+
+    void count(Node node) {
+        Node key = key(node);
+        Subexpression subexpression = subexpressions.get(key);
+
+        if (subexpression == null) {
+            subexpression = new Subexpression();
+            subexpression.node = node;
+            subexpressions.put(key, subexpression);
+        }
+        subexpression.occurrences++;
+
+        if (node.getOperator().equals("extents")) {
+            subexpression.needsExtents = true;
+            subexpression.node = node;
+        }
+
+        for (Node child : node.getInternalNodes()) {
+            count(child);
+        }
+    }
+
+    /**
+     * Returns the node used to compare subtrees: #counts leaves are compared
+     * as if they were #extents leaves.
+     */
+    static Node key(Node node) {
+        if (node.getOperator().equals("counts") && node.getInternalNodes().size() == 0) {
+            Parameters parameters = node.getParameters();
+            return new Node("extents", parameters, new ArrayList<Node>(), 0);
+        }
+        return node;
+    }
+
+    /**
+     * Returns the subexpression for this node, or null if the node only
+     * appears once (or its iterator can't be shared).
+     */
+    public Subexpression get(Node node) {
+        Subexpression subexpression = subexpressions.get(key(node));
+        if (subexpression == null || subexpression.unshareable) {
+            return null;
+        }
+        return subexpression;
+    }
+
+    public int size() {
+        return subexpressions.size();
+    }
+
+    void setCursor(Subexpression subexpression, SharedCursor cursor) {
+        subexpression.cursor = cursor;
+        cursors.add(cursor);
+    }
+
+    void setUnshareable(Subexpression subexpression) {
+        subexpression.unshareable = true;
+    }
+
+    public ArrayList<SharedCursor> getCursors() {
+        return cursors;
+    }
+
+    /**
+     * Moves every shared iterator to the first document at or after target.
+     */
+    public void skipAll(int target) throws IOException {
+        for (SharedCursor cursor : cursors) {
+            cursor.skipAll(target);
+        }
+    }
+}
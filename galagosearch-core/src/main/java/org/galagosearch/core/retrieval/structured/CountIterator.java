@@ -25,6 +25,27 @@ public abstract class CountIterator implements StructuredIterator, Comparable<Co
         return document == document();
     }
 
+    /**
+     * Copies the documents before end, and their counts, into the arrays,
+     * moving the iterator past them.  At most documents.length documents
+     * are copied.  BlockEvaluator reads lists this way; iterators that can
+     * copy a run of postings faster than one document at a time should
+     * override this.
+     *
+     * @return The number of documents copied.
+     */
+    public int fillBlock(int end, int[] documents, int[] counts) throws IOException {
+        int filled = 0;
+
+        while (filled < documents.length && !isDone() && document() < end) {
+            documents[filled] = document();
+            counts[filled] = count();
+            filled++;
+            nextDocument();
+        }
+        return filled;
+    }
+
     /**
      * Moves the iterator to the next document in the list.  If
      * no such document is available, isDone() will return true
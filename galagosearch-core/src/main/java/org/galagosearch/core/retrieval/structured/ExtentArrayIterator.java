@@ -4,6 +4,9 @@ package org.galagosearch.core.retrieval.structured;
 import org.galagosearch.core.util.ExtentArray;
 
 /**
+ * Walks through the extents of an ExtentArray.  An iterator can be pointed
+ * at a new array with reset, so operators can keep one for each child
+ * instead of making new ones for every document.
  *
  * @author trevor
  */
@@ -12,11 +15,38 @@ public class ExtentArrayIterator implements Comparable<ExtentArrayIterator> {
     int index;
 
     public ExtentArrayIterator(ExtentArray array) {
+        reset(array);
+    }
+
+    public void reset(ExtentArray array) {
         this.array = array;
+        this.index = 0;
+    }
+
+    public int document() {
+        return array.document(index);
+    }
+
+    public int begin() {
+        return array.begin(index);
+    }
+
+    public int end() {
+        return array.end(index);
+    }
+
+    public double weight() {
+        return array.weight(index);
+    }
+
+    /// Returns true if the current extent of this iterator contains the current extent of the other.
+    public boolean contains(ExtentArrayIterator other) {
+        return begin() <= other.begin() && end() >= other.end();
     }
 
-    public Extent current() {
-        return array.getBuffer()[index];
+    /// Copies the current extent onto the end of another array.
+    public void copyTo(ExtentArray destination) {
+        destination.add(array, index);
     }
 
     public boolean next() {
@@ -29,11 +59,11 @@ public class ExtentArrayIterator implements Comparable<ExtentArrayIterator> {
     }
 
     public int compareTo(ExtentArrayIterator iterator) {
-        int result = current().document - iterator.current().document;
+        int result = document() - iterator.document();
 
         if (result != 0) {
             return result;
         }
-        return current().begin - iterator.current().begin;
+        return begin() - iterator.begin();
     }
 }
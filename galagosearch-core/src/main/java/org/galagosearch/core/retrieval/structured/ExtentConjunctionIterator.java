@@ -3,29 +3,83 @@ package org.galagosearch.core.retrieval.structured;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.core.util.ExtentArray;
+import org.galagosearch.tupleflow.Parameters;
 
 /**
+ * <p>Finds the documents where every child has extents, and lets the
+ * subclass decide which of them match.</p>
+ *
+ * <p>A conjunction of common terms that rarely match can read most of their
+ * lists without returning a single document, so the query budget is charged
+ * from here too: with a meter set, every document examined is counted, and
+ * the conjunction stops (as if its lists had run out) when the budget does.
+ * The meter is paused while statistics are gathered from a conjunction.</p>
  *
  * @author trevor
  */
 public abstract class ExtentConjunctionIterator extends ExtentIterator {
     protected ExtentIterator[] extentIterators;
+    // the same iterators, most selective first; used to find matching documents
+    protected ExtentIterator[] movers;
     protected ExtentArray extents;
     protected int document;
     protected boolean done;
+    protected ExtentArrayIterator[] arrayIterators;
+    protected QueryBudget.Meter meter;
 
     public ExtentConjunctionIterator(ExtentIterator[] extIterators) {
+        this(new Parameters(), extIterators);
+    }
+
+    public ExtentConjunctionIterator(Parameters parameters, ExtentIterator[] extIterators) {
+        this(parameters, extIterators, null);
+    }
+
+    /**
+     * The meter is set before the subclass looks for its first match, so
+     * that search is charged too.
+     */
+    public ExtentConjunctionIterator(Parameters parameters, ExtentIterator[] extIterators,
+            QueryBudget.Meter meter) {
+        this.meter = meter;
         this.done = false;
         this.extentIterators = extIterators;
+        this.movers = MoveIterators.inEvaluationOrder(extIterators, parameters);
         this.extents = new ExtentArray();
+        this.arrayIterators = new ExtentArrayIterator[extIterators.length];
     }
 
     public abstract void loadExtents();
 
+    /**
+     * Charges the documents this iterator examines to meter, from now on.
+     * The meter may be null, which turns the checks off.
+     */
+    public void setMeter(QueryBudget.Meter meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Points arrayIterators at the extents of each child in the current
+     * document.  The iterators are made once and reused, so loadExtents
+     * implementations don't need to allocate anything.
+     */
+    protected ExtentArrayIterator[] resetArrayIterators() {
+        for (int i = 0; i < extentIterators.length; i++) {
+            if (arrayIterators[i] == null) {
+                arrayIterators[i] = new ExtentArrayIterator(extentIterators[i].extents());
+            } else {
+                arrayIterators[i].reset(extentIterators[i].extents());
+            }
+        }
+        return arrayIterators;
+    }
+
     public void nextDocument() throws IOException {
         if (!done) {
-            extentIterators[0].nextDocument();
+            movers[0].nextDocument();
             findDocument();
         }
     }
@@ -33,9 +87,9 @@ public abstract class ExtentConjunctionIterator extends ExtentIterator {
     public void findDocument() throws IOException {
         while (!done) {
             // find a document that might have some matches
-            document = MoveIterators.moveAllToSameDocument(extentIterators);
+            document = MoveIterators.moveAllToSameDocument(movers, meter);
 
-            // if we're done, quit now
+            // if we're done (or out of budget), quit now
             if (document == Integer.MAX_VALUE) {
                 done = true;
                 break;
@@ -44,13 +98,32 @@ public abstract class ExtentConjunctionIterator extends ExtentIterator {
             // try to load some extents (subclass does this)
             extents.reset();
             loadExtents();
+            boolean stop = meter != null && meter.examine(extentIterators.length);
 
             // were we successful? if so, quit, otherwise keep looking for documents
             if (extents.getPosition() > 0) {
                 break;
             }
-            extentIterators[0].nextDocument();
+            if (stop) {
+                done = true;
+                document = Integer.MAX_VALUE;
+                break;
+            }
+            movers[0].nextDocument();
+        }
+    }
+
+    /**
+     * A match has to be in every child list, so only the leading child
+     * needs to skip; findDocument brings the others along.
+     */
+    @Override
+    public boolean skipToDocument(int target) throws IOException {
+        if (!done && document < target) {
+            movers[0].skipToDocument(target);
+            findDocument();
         }
+        return !done && document == target;
     }
 
     public ExtentArray extents() {
@@ -54,6 +54,29 @@ public abstract class ExtentDisjunctionIterator extends ExtentIterator {
         }
     }
 
+    @Override
+    public boolean skipToDocument(int target) throws IOException {
+        if (isDone() || document >= target) {
+            return !isDone() && document == target;
+        }
+
+        // skip every child that is behind the target
+        while (iterators.size() > 0 && iterators.peek().document() < target) {
+            ExtentIterator iter = iterators.poll();
+            iter.skipToDocument(target);
+
+            if (!iter.isDone()) {
+                iterators.offer(iter);
+            }
+        }
+
+        if (!isDone()) {
+            extents.reset();
+            loadExtents();
+        }
+        return !isDone() && document == target;
+    }
+
     public boolean isDone() {
         return iterators.size() == 0;
     }
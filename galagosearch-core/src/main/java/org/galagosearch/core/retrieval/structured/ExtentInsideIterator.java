@@ -2,6 +2,7 @@
 package org.galagosearch.core.retrieval.structured;
 
 import java.io.IOException;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.tupleflow.Parameters;
 
 /**
@@ -35,7 +36,18 @@ public class ExtentInsideIterator extends ExtentConjunctionIterator {
     public ExtentInsideIterator(Parameters parameters,
             ExtentIterator innerIterator,
             ExtentIterator outerIterator) throws IOException {
-        super(new ExtentIterator[] { innerIterator, outerIterator });
+        this(parameters, innerIterator, outerIterator, null);
+    }
+
+    /**
+     * Constructs an #inside instance that charges the documents it
+     * examines to meter.
+     */
+    public ExtentInsideIterator(Parameters parameters,
+            ExtentIterator innerIterator,
+            ExtentIterator outerIterator,
+            QueryBudget.Meter meter) throws IOException {
+        super(parameters, new ExtentIterator[] { innerIterator, outerIterator }, meter);
         this.innerIterator = innerIterator;
         this.outerIterator = outerIterator;
         findDocument();
@@ -48,14 +60,15 @@ public class ExtentInsideIterator extends ExtentConjunctionIterator {
      */
 
     public void loadExtents() {
-        ExtentArrayIterator inner = new ExtentArrayIterator(innerIterator.extents());
-        ExtentArrayIterator outer = new ExtentArrayIterator(outerIterator.extents());
+        ExtentArrayIterator[] iterators = resetArrayIterators();
+        ExtentArrayIterator inner = iterators[0];
+        ExtentArrayIterator outer = iterators[1];
 
         while (!inner.isDone() && !outer.isDone()) {
-            if (outer.current().contains(inner.current())) {
-                extents.add(inner.current());
+            if (outer.contains(inner)) {
+                inner.copyTo(extents);
                 inner.next();
-            } else if (outer.current().end <= inner.current().begin) {
+            } else if (outer.end() <= inner.begin()) {
                 outer.next();
             } else {
                 inner.next();
@@ -1,18 +1,22 @@
 // BSD License (http://www.galagosearch.org/license)
 package org.galagosearch.core.retrieval.structured;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.query.NodeType;
 import org.galagosearch.core.retrieval.query.Traversal;
 import org.galagosearch.core.retrieval.traversal.AddCombineTraversal;
 import org.galagosearch.core.retrieval.traversal.ImplicitFeatureCastTraversal;
 import org.galagosearch.core.retrieval.traversal.IndriWindowCompatibilityTraversal;
+import org.galagosearch.core.retrieval.traversal.QueryPlanningTraversal;
 import org.galagosearch.core.retrieval.traversal.TextFieldRewriteTraversal;
 import org.galagosearch.core.retrieval.traversal.WeightConversionTraversal;
 import org.galagosearch.core.scoring.DirichletScorer;
@@ -65,6 +69,10 @@ import org.galagosearch.tupleflow.Parameters.Value;
  * traversal will be executed first, and the bottom traversal will be executed
  * last.</p>
  *
+ * <p>QueryPlanningTraversal reads the statistics of query terms from the
+ * index, so it's only one of the default traversals if the
+ * <tt>queryPlanning</tt> parameter is set.</p>
+ *
  * @author trevor
  */
 public class FeatureFactory {
@@ -78,7 +86,8 @@ public class FeatureFactory {
         {OrderedWindowIterator.class.getName(), "od"},
         {UnorderedWindowIterator.class.getName(), "unordered"},
         {UnorderedWindowIterator.class.getName(), "uw"},
-        {ScaleIterator.class.getName(), "scale"}
+        {ScaleIterator.class.getName(), "scale"},
+        {NullExtentIterator.class.getName(), "null"}
     };
     static String[][] sFeatureLookup = {
         {DirichletScorer.class.getName(), "dirichlet"}
@@ -88,21 +97,28 @@ public class FeatureFactory {
         WeightConversionTraversal.class.getName(),
         IndriWindowCompatibilityTraversal.class.getName(),
         TextFieldRewriteTraversal.class.getName(),
-        ImplicitFeatureCastTraversal.class.getName()
+        ImplicitFeatureCastTraversal.class.getName(),
+        QueryPlanningTraversal.class.getName()
     };
 
+    static HashMap<String, IteratorFactory> sBuiltInFactories = builtInFactories();
+
     static class OperatorSpec {
         public String className;
         public Parameters parameters = new Parameters();
+        public IteratorFactory factory;
     }
 
     static class TraversalSpec {
         public String className;
         public Parameters parameters = new Parameters();
+        public volatile Constructor<? extends Traversal> constructor;
     }
 
     HashMap<String, OperatorSpec> featureLookup;
     HashMap<String, OperatorSpec> operatorLookup;
+    ConcurrentHashMap<String, IteratorFactory> classFactories;
+    StatisticsCache statisticsCache;
     List<TraversalSpec> traversals;
 
     Parameters parameters;
@@ -110,11 +126,13 @@ public class FeatureFactory {
     public FeatureFactory(Parameters parameters) {
         operatorLookup = new HashMap<String, OperatorSpec>();
         featureLookup = new HashMap<String, OperatorSpec>();
+        classFactories = new ConcurrentHashMap<String, IteratorFactory>(sBuiltInFactories);
         this.parameters = parameters;
         
         for (String[] item : sFeatureLookup) {
             OperatorSpec operator = new OperatorSpec();
             operator.className = item[0];
+            operator.factory = sBuiltInFactories.get(item[0]);
             String operatorName = item[1];
             featureLookup.put(operatorName, operator);
         }
@@ -122,6 +140,7 @@ public class FeatureFactory {
         for (String[] item : sOperatorLookup) {
             OperatorSpec operator = new OperatorSpec();
             operator.className = item[0];
+            operator.factory = sBuiltInFactories.get(item[0]);
             String operatorName = item[1];
             operatorLookup.put(operatorName, operator);
         }
@@ -157,7 +176,12 @@ public class FeatureFactory {
 
         // If the user doesn't want to replace the current pipeline, add in that pipeline
         if (insteadTraversals.size() == 0) {
+            boolean queryPlanning = parameters.get("queryPlanning", false);
+
             for (String className : sTraversalList) {
+                if (!queryPlanning && className.equals(QueryPlanningTraversal.class.getName())) {
+                    continue;
+                }
                 TraversalSpec spec = new TraversalSpec();
                 spec.className = className;
                 spec.parameters = new Parameters();
@@ -181,10 +205,121 @@ public class FeatureFactory {
             }
 
             spec.className = className;
+            try {
+                spec.factory = getClassFactory(className);
+            } catch (Exception e) {
+                // leave it unresolved; the error is reported if a query uses this operator
+            }
             operatorLookup.put(operatorName, spec);
         }
     }
 
+    /**
+     * Makes factories for the built-in operators.  These call the iterator
+     * constructors directly, so building them doesn't need any reflection.
+     */
+    static HashMap<String, IteratorFactory> builtInFactories() {
+        HashMap<String, IteratorFactory> factories = new HashMap<String, IteratorFactory>();
+
+        try {
+            factories.put(FilteredCombinationIterator.class.getName(),
+                    new IteratorFactory(FilteredCombinationIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) {
+                    return new FilteredCombinationIterator(parameters, scoreIterators(children));
+                }
+            });
+            factories.put(UnfilteredCombinationIterator.class.getName(),
+                    new IteratorFactory(UnfilteredCombinationIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) {
+                    return new UnfilteredCombinationIterator(parameters, scoreIterators(children));
+                }
+            });
+            factories.put(SynonymIterator.class.getName(),
+                    new IteratorFactory(SynonymIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) {
+                    return new SynonymIterator(parameters, extentIterators(children));
+                }
+            });
+            factories.put(ExtentInsideIterator.class.getName(),
+                    new IteratorFactory(ExtentInsideIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) throws IOException {
+                    return create(parameters, children, null);
+                }
+
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children, QueryBudget.Meter meter)
+                        throws IOException {
+                    return new ExtentInsideIterator(parameters,
+                            (ExtentIterator) children.get(0),
+                            (ExtentIterator) children.get(1), meter);
+                }
+            });
+            factories.put(OrderedWindowIterator.class.getName(),
+                    new IteratorFactory(OrderedWindowIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) throws IOException {
+                    return create(parameters, children, null);
+                }
+
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children, QueryBudget.Meter meter)
+                        throws IOException {
+                    return new OrderedWindowIterator(parameters, extentIterators(children), meter);
+                }
+            });
+            factories.put(UnorderedWindowIterator.class.getName(),
+                    new IteratorFactory(UnorderedWindowIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) throws IOException {
+                    return create(parameters, children, null);
+                }
+
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children, QueryBudget.Meter meter)
+                        throws IOException {
+                    return new UnorderedWindowIterator(parameters, extentIterators(children), meter);
+                }
+            });
+            factories.put(ScaleIterator.class.getName(),
+                    new IteratorFactory(ScaleIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) {
+                    return new ScaleIterator(parameters, (ScoreIterator) children.get(0));
+                }
+            });
+            factories.put(NullExtentIterator.class.getName(),
+                    new IteratorFactory(NullExtentIterator.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) {
+                    return new NullExtentIterator(parameters);
+                }
+            });
+            factories.put(DirichletScorer.class.getName(),
+                    new IteratorFactory(DirichletScorer.class) {
+                public StructuredIterator create(Parameters parameters,
+                        ArrayList<StructuredIterator> children) throws IOException {
+                    return new DirichletScorer(parameters, (CountIterator) children.get(0));
+                }
+            });
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't build the built-in operator factories", e);
+        }
+
+        return factories;
+    }
+
+    static ScoreIterator[] scoreIterators(ArrayList<StructuredIterator> children) {
+        return children.toArray(new ScoreIterator[children.size()]);
+    }
+
+    static ExtentIterator[] extentIterators(ArrayList<StructuredIterator> children) {
+        return children.toArray(new ExtentIterator[children.size()]);
+    }
+
     public String getClassName(Node node) throws Exception {
         String operator = node.getOperator();
 
@@ -221,82 +356,82 @@ public class FeatureFactory {
         return operatorType.className;
     }
 
+    /**
+     * Returns the factory for a class name, looking up the class (and
+     * its constructor) only the first time this class is asked for.
+     */
     @SuppressWarnings("unchecked")
-    public Class<StructuredIterator> getClass(Node node) throws Exception {
-        String className = getClassName(node);
-        Class c = Class.forName(className);
+    IteratorFactory getClassFactory(String className) throws Exception {
+        IteratorFactory factory = classFactories.get(className);
+
+        if (factory == null) {
+            Class c = Class.forName(className);
+
+            if (!StructuredIterator.class.isAssignableFrom(c)) {
+                throw new Exception("Found a class, but it's not a DocumentDataIterator: " + className);
+            }
+            factory = new IteratorFactory.ConstructorFactory((Class<StructuredIterator>) c);
+            classFactories.put(className, factory);
+        }
+        return factory;
+    }
+
+    /**
+     * Returns the factory that builds iterators for this node.  This does
+     * the same lookups as getClassName, but doesn't need any reflection
+     * for operators that have been seen before.
+     */
+    public IteratorFactory getFactory(Node node) throws Exception {
+        String operator = node.getOperator();
+        OperatorSpec spec;
+
+        if (operator.equals("feature")) {
+            Parameters featureParameters = node.getParameters();
+
+            if (featureParameters.containsKey("class")) {
+                return getClassFactory(featureParameters.get("class"));
+            }
+            String name = featureParameters.get("name", featureParameters.get("default", (String) null));
 
-        if (StructuredIterator.class.isAssignableFrom(c)) {
-            return (Class<StructuredIterator>) c;
+            if (name == null) {
+                throw new Exception(
+                        "Didn't find 'class', 'name', or 'default' parameter in this feature description.");
+            }
+
+            spec = featureLookup.get(name);
+            if (spec == null) {
+                throw new Exception("Couldn't find a class for the feature named " + name + ".");
+            }
         } else {
-            throw new Exception("Found a class, but it's not a DocumentDataIterator: " + className);
+            spec = operatorLookup.get(operator);
+            if (spec == null) {
+                throw new IllegalArgumentException(
+                        "Unknown operator name: #" + operator);
+            }
+        }
+
+        if (spec.factory != null) {
+            return spec.factory;
         }
+        return getClassFactory(spec.className);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Class<StructuredIterator> getClass(Node node) throws Exception {
+        return (Class<StructuredIterator>) getFactory(node).getNodeType().getIteratorClass();
     }
     
     public NodeType getNodeType(Node node) throws Exception {
-        return new NodeType(getClass(node));
+        return getFactory(node).getNodeType();
     }
 
     boolean isUsableConstructor(
             Class[] types,
             ArrayList<StructuredIterator> childIterators) {
-        // We require at least one parameter in a usable constructor.
-        if (types.length == 0)
-            return false;
-            
-        // The first parameter needs to be a parameters object.
-        if (!Parameters.class.isAssignableFrom(types[0]))
-            return false;
-            
-        // Only the last parameter can be an array
-        for (int i = 0; i < types.length-1; ++i) {
-            if (types[i].isArray())
-                return false;
-        }
-        
-        boolean lastIsArray = types[types.length-1].isArray();
-        
-        // Does it have an appropriate number of arguments?
-        int iteratorArgs = 1 + childIterators.size();
-        // If the last argument isn't an array, the argument list length
-        // needs to match exactly.
-        if (iteratorArgs != types.length && !lastIsArray)
-            return false;
-        // If the last argument is an array, we need to have enough arguments to
-        // satisfy everything but the array parameter (since it's okay to put
-        // zero things in an array).
-        if (lastIsArray && iteratorArgs < types.length-1)
-            return false;
-        
-        // We now know it has the right number of args, so we check
-        // the iterator parameters to make sure they match.
-        int iteratorIndex = 0;
-        int typeIndex;
-        
-        for (typeIndex = 1; typeIndex < types.length; typeIndex++) {
-            Class currentType = types[typeIndex];
-            if (currentType.isArray()) {
-                // we'll check all the rest of the child iterators here
-                for (; iteratorIndex < childIterators.size(); ++iteratorIndex) {
-                   StructuredIterator iterator = childIterators.get(iteratorIndex);
-                   if (!currentType.isAssignableFrom(iterator.getClass())) {
-                       return false;
-                   }
-                }
-            } else {
-                if (iteratorIndex >= childIterators.size())
-                    return false;
-
-                StructuredIterator iterator = childIterators.get(iteratorIndex);
-                if (!currentType.isAssignableFrom(iterator.getClass()))
-                    return false;
-            }
-        }
-
-        return true;
+        return IteratorFactory.isUsableConstructor(types, childIterators);
     }
     
-    Object[] argsForConstructor(Class[] types,
+    static Object[] argsForConstructor(Class[] types,
             Parameters parameters,
             ArrayList<StructuredIterator> childIterators) {
         assert types.length > 0;
@@ -306,13 +441,14 @@ public class FeatureFactory {
         args[0] = parameters;
         
         // The remaining arguments come from childIterators.
-        for (int i = 1; i < args.length; ++i) {
+        Class lastType = types[types.length-1];
+        int single = lastType.isArray() ? args.length-1 : args.length;
+        for (int i = 1; i < single; ++i) {
             args[i] = childIterators.get(i-1);
         }
 
         // If the last argument is an array, we need to convert any remaining
         // childIterators to an array form.
-        Class lastType = types[types.length-1];
         if (lastType.isArray()) {
             List<StructuredIterator> remaining =
                 childIterators.subList(types.length-2, childIterators.size());
@@ -326,38 +462,112 @@ public class FeatureFactory {
     
     /**
      * Given a query node, generates the corresponding iterator object that can be used
-     * for structured retrieval.  This method just calls getClass() on the node,
-     * then instantiates the resulting class.
+     * for structured retrieval.  This method finds the IteratorFactory for the node's
+     * operator (see getFactory) and asks it for a new iterator.
      * 
-     * If the class returned by getClass() is a ScoringFunction, it must contain
-     * a constructor that takes a single Parameters object.  If the class returned by 
-     * getFeatureClass() is some kind of StructuredIterator (either a ScoreIterator,
-     * ExtentIterator or CountIterator), it must take a Parameters object and an
-     * ArrayList of DocumentDataIterators as parameters.
+     * The iterator class must have a constructor that takes a Parameters object
+     * followed by its child iterators, either one by one or as an array of some
+     * kind of StructuredIterator (ScoreIterator, ExtentIterator or CountIterator).
+     *
+     * The node's parameters are only copied if the class needs statistics added
+     * to them, or if it's a user-supplied class that might change them.
+     * Statistics that are already in the node's parameters (FederatedRetrieval
+     * puts collection-wide ones there) are used as they are.
      */
     public StructuredIterator getIterator(Node node, ArrayList<StructuredIterator> childIterators) throws Exception {
-        NodeType type = getNodeType(node);
-        
-        Constructor constructor = type.getConstructor();
-        Class[] types = type.getParameterTypes(1 + childIterators.size());
+        return getIterator(node, childIterators, null);
+    }
+
+    /**
+     * Like getIterator(node, childIterators), but the new iterator charges
+     * the work it does on its own to meter (see IteratorFactory.create).
+     * The meter is paused while statistics are gathered from the children.
+     */
+    public StructuredIterator getIterator(Node node, ArrayList<StructuredIterator> childIterators,
+            QueryBudget.Meter meter) throws Exception {
+        IteratorFactory factory = getFactory(node);
             
-        if (!isUsableConstructor(types, childIterators)) {
+        if (!factory.isUsable(childIterators)) {
             throw new Exception("Couldn't find a reasonable constructor.");
         }
         
-        Parameters parametersCopy = new Parameters();
-        parametersCopy.copy(node.getParameters());
-        Object[] args = argsForConstructor(constructor.getParameterTypes(),
-                                           parametersCopy,
-                                           childIterators);
-        RequiredStatistics required =
-            type.getIteratorClass().getAnnotation(RequiredStatistics.class);
+        Parameters iteratorParameters = node.getParameters();
+        String[] required = factory.getRequiredStatistics();
+
+        if (required != null || factory instanceof IteratorFactory.ConstructorFactory) {
+            iteratorParameters = new Parameters();
+            iteratorParameters.copy(node.getParameters());
+        }
+
         if (required != null) {
-            for (String statistic : required.statistics()) {
-                parametersCopy.add(statistic, parameters.get(statistic, null));
+            for (String statistic : required) {
+                if (iteratorParameters.containsKey(statistic)) {
+                    continue;
+                }
+                if (isListStatistic(statistic)) {
+                    long value = getListStatistic(statistic, node, childIterators, meter);
+                    if (value >= 0) {
+                        iteratorParameters.add(statistic, Long.toString(value));
+                    }
+                } else {
+                    iteratorParameters.add(statistic, parameters.get(statistic, null));
+                }
+            }
+        }
+        return factory.create(iteratorParameters, childIterators, meter);
+    }
+
+    static boolean isListStatistic(String statistic) {
+        return statistic.equals("collectionFrequency") || statistic.equals("documentFrequency");
+    }
+
+    /**
+     * Sets the cache used for the statistics of compound nodes, like
+     * #od:1(a b), that the index has no stored statistics for.
+     */
+    public void setStatisticsCache(StatisticsCache statisticsCache) {
+        this.statisticsCache = statisticsCache;
+    }
+
+    public StatisticsCache getStatisticsCache() {
+        return statisticsCache;
+    }
+
+    /**
+     * Per-list statistics come from the child iterator itself, when that child
+     * reads directly from the index.  For other children (like windows), they come
+     * from the statistics cache, which runs the child over the collection the first
+     * time it sees it.  Returns -1 if the statistic isn't available, in which case
+     * the feature has to compute it some other way.
+     */
+    long getListStatistic(String statistic, Node node, ArrayList<StructuredIterator> childIterators,
+            QueryBudget.Meter meter) throws IOException {
+        if (childIterators.size() != 1) {
+            return -1;
+        }
+
+        StructuredIterator child = childIterators.get(0);
+        if (child instanceof IndexIterator) {
+            IndexIterator iterator = (IndexIterator) child;
+            if (statistic.equals("collectionFrequency")) {
+                return iterator.collectionFrequency();
+            } else {
+                return iterator.documentFrequency();
             }
         }
-        return (StructuredIterator) constructor.newInstance(args);
+
+        if (statisticsCache == null || !(child instanceof CountIterator) ||
+            node.getInternalNodes().size() != 1) {
+            return -1;
+        }
+
+        TermStatistics statistics =
+                statisticsCache.get(node.getInternalNodes().get(0), (CountIterator) child, meter);
+        if (statistic.equals("collectionFrequency")) {
+            return statistics.collectionFrequency;
+        } else {
+            return statistics.documentFrequency;
+        }
     }
 
     public List<String> getTraversalNames() {
@@ -373,10 +583,15 @@ public class FeatureFactory {
                    IllegalAccessException, IllegalArgumentException, InvocationTargetException {
         ArrayList<Traversal> result = new ArrayList<Traversal>();
         for (TraversalSpec spec : traversals) {
-            Class<? extends Traversal> traversalClass =
-                    (Class<? extends Traversal>) Class.forName(spec.className);
-            Constructor<? extends Traversal> constructor =
-                    traversalClass.getConstructor(Parameters.class, StructuredRetrieval.class);
+            Constructor<? extends Traversal> constructor = spec.constructor;
+
+            // look up each traversal class once, the first time it's needed
+            if (constructor == null) {
+                Class<? extends Traversal> traversalClass =
+                        (Class<? extends Traversal>) Class.forName(spec.className);
+                constructor = traversalClass.getConstructor(Parameters.class, StructuredRetrieval.class);
+                spec.constructor = constructor;
+            }
             Traversal traversal = constructor.newInstance(spec.parameters, retrieval);
             result.add(traversal);
         }
@@ -11,14 +11,18 @@ import org.galagosearch.tupleflow.Parameters;
  * @author trevor
  */
 public class FilteredCombinationIterator extends ScoreCombinationIterator {
+    // the children, most selective first, so the match checks can stop early
+    ScoreIterator[] ordered;
+
     public FilteredCombinationIterator(Parameters parameters, ScoreIterator[] childIterators) {
         super(parameters, childIterators);
+        this.ordered = MoveIterators.inEvaluationOrder(childIterators, parameters);
     }
 
     public int nextCandidate() {
         int candidate = 0;
 
-        for (ScoreIterator iterator : iterators) {
+        for (ScoreIterator iterator : ordered) {
             if (iterator.isDone()) {
                 return Integer.MAX_VALUE;
             }
@@ -29,7 +33,7 @@ public class FilteredCombinationIterator extends ScoreCombinationIterator {
     }
 
     public boolean hasMatch(int document) {
-        for (ScoreIterator iterator : iterators) {
+        for (ScoreIterator iterator : ordered) {
             if (iterator.isDone() || !iterator.hasMatch(document)) {
                 return false;
             }
@@ -39,7 +43,7 @@ public class FilteredCombinationIterator extends ScoreCombinationIterator {
     }
 
     public boolean isDone() {
-        for (ScoreIterator iterator : iterators) {
+        for (ScoreIterator iterator : ordered) {
             if (iterator.isDone()) {
                 return true;
             }
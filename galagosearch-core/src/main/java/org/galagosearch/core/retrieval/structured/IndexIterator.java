@@ -10,9 +10,17 @@ import java.io.IOException;
  * the index to be easily printed.  DumpIndex uses this functionality
  * to dump the contents of any Galago index.
  * 
+ * Index iterators also know the collection statistics of the list
+ * they're reading, so scoring functions don't need to scan the list
+ * to compute them.
+ * 
  * @author trevor
  */
 public interface IndexIterator extends StructuredIterator {
     String getRecordString();
     boolean nextRecord() throws IOException;
+    /// Total occurrences of the current key in the collection, or -1 if unknown.
+    long collectionFrequency();
+    /// Number of documents that contain the current key, or -1 if unknown.
+    long documentFrequency();
 }
@@ -0,0 +1,147 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import org.galagosearch.core.retrieval.QueryBudget;
+import org.galagosearch.core.retrieval.query.NodeType;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * <p>Builds iterators for one kind of query operator.  FeatureFactory keeps
+ * one of these for each operator it knows about, so the class lookup and
+ * constructor search happen once, not once for every query node.</p>
+ *
+ * <p>The built-in operators have factories that call their constructors
+ * directly.  Other operators use a ConstructorFactory, which calls the
+ * constructor it found through reflection.</p>
+ *
+ * @author trevor
+ */
+public abstract class IteratorFactory {
+    NodeType type;
+    Class[] inputs;
+    String[] requiredStatistics;
+
+    public IteratorFactory(Class<? extends StructuredIterator> iteratorClass) throws Exception {
+        this.type = new NodeType(iteratorClass);
+        this.inputs = type.getConstructor().getParameterTypes();
+
+        RequiredStatistics required = iteratorClass.getAnnotation(RequiredStatistics.class);
+        if (required != null) {
+            this.requiredStatistics = required.statistics();
+        }
+    }
+
+    public NodeType getNodeType() {
+        return type;
+    }
+
+    /// The parameter types of the constructor this factory calls.
+    public Class[] getInputs() {
+        return inputs;
+    }
+
+    /// Statistics that must be added to the parameters before creating an iterator, or null.
+    public String[] getRequiredStatistics() {
+        return requiredStatistics;
+    }
+
+    /**
+     * Returns true if an iterator can be made from these children.  Each
+     * child has to match the type the constructor expects in its position.
+     */
+    public boolean isUsable(ArrayList<StructuredIterator> childIterators) {
+        return isUsableConstructor(inputs, childIterators);
+    }
+
+    /**
+     * Makes a new iterator.  The caller checks isUsable first, so the
+     * children can be cast to the types the constructor expects.
+     */
+    public abstract StructuredIterator create(Parameters parameters,
+            ArrayList<StructuredIterator> childIterators) throws Exception;
+
+    /**
+     * Makes a new iterator that charges the work it does on its own (like
+     * the search for a window's matches) to meter.  Most iterators only
+     * move when their parents move them, so by default the meter is ignored.
+     */
+    public StructuredIterator create(Parameters parameters,
+            ArrayList<StructuredIterator> childIterators, QueryBudget.Meter meter) throws Exception {
+        return create(parameters, childIterators);
+    }
+
+    static boolean isUsableConstructor(Class[] types,
+            ArrayList<StructuredIterator> childIterators) {
+        // We require at least one parameter in a usable constructor.
+        if (types == null || types.length == 0)
+            return false;
+
+        // The first parameter needs to be a parameters object.
+        if (!Parameters.class.isAssignableFrom(types[0]))
+            return false;
+
+        // Only the last parameter can be an array
+        for (int i = 0; i < types.length-1; ++i) {
+            if (types[i].isArray())
+                return false;
+        }
+
+        boolean lastIsArray = types[types.length-1].isArray();
+
+        // If the last argument isn't an array, the argument list length
+        // needs to match exactly.  If it is, we need to have enough arguments
+        // to satisfy everything but the array parameter (since it's okay to put
+        // zero things in an array).
+        int iteratorArgs = 1 + childIterators.size();
+        if (iteratorArgs != types.length && !lastIsArray)
+            return false;
+        if (lastIsArray && iteratorArgs < types.length-1)
+            return false;
+
+        // We now know it has the right number of args, so we check
+        // the iterator parameters to make sure they match.
+        int iteratorIndex = 0;
+
+        for (int typeIndex = 1; typeIndex < types.length; typeIndex++) {
+            Class currentType = types[typeIndex];
+            if (currentType.isArray()) {
+                // we'll check all the rest of the child iterators here
+                Class componentType = currentType.getComponentType();
+                for (; iteratorIndex < childIterators.size(); ++iteratorIndex) {
+                    if (!componentType.isInstance(childIterators.get(iteratorIndex))) {
+                        return false;
+                    }
+                }
+            } else {
+                if (iteratorIndex >= childIterators.size())
+                    return false;
+                if (!currentType.isInstance(childIterators.get(iteratorIndex)))
+                    return false;
+                iteratorIndex++;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Calls a constructor found through reflection.  This is used for
+     * operators and features that were added through the parameters.
+     */
+    public static class ConstructorFactory extends IteratorFactory {
+        Constructor constructor;
+
+        public ConstructorFactory(Class<? extends StructuredIterator> iteratorClass) throws Exception {
+            super(iteratorClass);
+            this.constructor = type.getConstructor();
+        }
+
+        public StructuredIterator create(Parameters parameters,
+                ArrayList<StructuredIterator> childIterators) throws Exception {
+            Object[] args = FeatureFactory.argsForConstructor(inputs, parameters, childIterators);
+            return (StructuredIterator) constructor.newInstance(args);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import org.galagosearch.core.index.StructuredIndex;
+import org.galagosearch.core.retrieval.QueryBudget;
+import org.galagosearch.core.retrieval.ScoredDocument;
+
+/**
+ * <p>Evaluates a #combine query with MaxScore dynamic pruning.  The
+ * results are exactly the same as the ones from exhaustive evaluation in
+ * StructuredRetrieval.runQuery, but documents that can't make it into the
+ * top results are skipped without being scored.</p>
+ *
+ * <p>Each child of the #combine has an upper bound on its score (from the
+ * largest count in its list) and an upper bound for documents it doesn't
+ * match.  The children are sorted by the difference between the two.  Once
+ * the result heap is full, the longest prefix of children that together
+ * can't lift a document over the heap minimum is <i>non-essential</i>:
+ * candidate documents only come from the other (essential) children, and
+ * the non-essential lists are only moved when a document is scored.</p>
+ *
+ * <p>Before scoring a candidate, the evaluator also computes a per-document
+ * bound, using the real scores of the essential children and the block
+ * maximum counts stored in the skip lists of the non-essential ones.  If
+ * that bound is below the heap minimum the document is skipped.</p>
+ *
+ * <p>If a QueryBudget is set, every candidate counts against it, whether it's
+ * scored or skipped, and evaluation stops when the budget runs out.</p>
+ *
+ * <p>The evaluator counts the candidates it scores and the ones it skips
+ * by their bound, over every query it evaluates.  Documents that only
+ * match non-essential lists aren't candidates, so they aren't counted.</p>
+ *
+ * @author trevor
+ */
+public class MaxScoreEvaluator {
+    StructuredIndex index;
+    QueryBudget budget;
+    long documentsScored;
+    long documentsSkipped;
+
+    public MaxScoreEvaluator(StructuredIndex index) {
+        this.index = index;
+    }
+
+    public void setBudget(QueryBudget budget) {
+        this.budget = budget;
+    }
+
+    /** Returns the number of candidate documents that were scored. */
+    public long getDocumentsScored() {
+        return documentsScored;
+    }
+
+    /** Returns the number of candidate documents skipped because of their bound. */
+    public long getDocumentsSkipped() {
+        return documentsSkipped;
+    }
+
+    /**
+     * Returns true if this iterator is a #combine of children with
+     * finite score bounds.
+     */
+    public static boolean canEvaluate(ScoreIterator iterator) {
+        if (!(iterator instanceof UnfilteredCombinationIterator)) {
+            return false;
+        }
+
+        for (ScoreIterator child : ((UnfilteredCombinationIterator) iterator).iterators) {
+            if (!(child instanceof BoundedScoreIterator)) {
+                return false;
+            }
+
+            BoundedScoreIterator bounded = (BoundedScoreIterator) child;
+            if (Double.isInfinite(bounded.maximumScore()) ||
+                Double.isInfinite(bounded.maximumUnmatchedScore())) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Scores are summed as floats by ScoreCombinationIterator, so a bound
+     * has to clear the threshold by a little more than rounding error before
+     * a document is skipped.
+     */
+    static double slack(double threshold) {
+        return 1e-4 * (1.0 + Math.abs(threshold));
+    }
+
+    /**
+     * Finds the top documents for this iterator, which must pass canEvaluate.
+     * The queue holds at most requested documents, with the lowest score at
+     * the head, just like the one built by StructuredRetrieval.runQuery.
+     */
+    public PriorityQueue<ScoredDocument> evaluate(ScoreIterator iterator, int requested) throws IOException {
+        return evaluate(iterator, requested, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Finds the top documents numbered from start up to (but not including) end.
+     */
+    public PriorityQueue<ScoredDocument> evaluate(ScoreIterator iterator, int requested,
+            int start, int end) throws IOException {
+        PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+
+        if (requested <= 0) {
+            return queue;
+        }
+
+        UnfilteredCombinationIterator combination = (UnfilteredCombinationIterator) iterator;
+        final BoundedScoreIterator[] children = new BoundedScoreIterator[combination.iterators.length];
+        final double[] gains = new double[children.length];
+        Integer[] order = new Integer[children.length];
+        double unmatchedTotal = 0;
+
+        for (int i = 0; i < children.length; i++) {
+            BoundedScoreIterator child = (BoundedScoreIterator) combination.iterators[i];
+            double unmatched = child.maximumUnmatchedScore();
+
+            children[i] = child;
+            gains[i] = Math.max(0, child.maximumScore() - unmatched);
+            order[i] = i;
+            unmatchedTotal += unmatched;
+        }
+
+        // children that add the least to a document come first
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer one, Integer two) {
+                return Double.compare(gains[one], gains[two]);
+            }
+        });
+
+        BoundedScoreIterator[] sorted = new BoundedScoreIterator[children.length];
+        double[] sortedGains = new double[children.length];
+        for (int i = 0; i < children.length; i++) {
+            sorted[i] = children[order[i]];
+            sortedGains[i] = gains[order[i]];
+        }
+
+        if (start > 0) {
+            iterator.moveTo(start);
+        }
+
+        // sorted[0] through sorted[nonEssential - 1] are non-essential
+        int nonEssential = 0;
+        double nonEssentialGain = 0;
+        QueryBudget.Meter meter = (budget == null) ? null : budget.meter(start);
+
+        while (true) {
+            int document = Integer.MAX_VALUE;
+
+            for (int i = nonEssential; i < sorted.length; i++) {
+                if (!sorted[i].isDone()) {
+                    document = Math.min(document, sorted[i].nextCandidate());
+                }
+            }
+
+            if (document >= end) {
+                break;
+            }
+            if (meter != null && meter.tick(document, 1)) {
+                break;
+            }
+
+            int length = index.getLength(document);
+
+            if (queue.size() >= requested) {
+                double threshold = queue.peek().score;
+                double bound = 0;
+
+                for (int i = 0; i < nonEssential; i++) {
+                    bound += sorted[i].maximumScore(document, length);
+                }
+                for (int i = nonEssential; i < sorted.length; i++) {
+                    bound += sorted[i].score(document, length);
+                }
+
+                if (bound + slack(threshold) < threshold) {
+                    for (int i = nonEssential; i < sorted.length; i++) {
+                        sorted[i].movePast(document);
+                    }
+                    documentsSkipped++;
+                    continue;
+                }
+            }
+
+            iterator.moveTo(document);
+            double score = iterator.score(document, length);
+            documentsScored++;
+
+            if (queue.size() <= requested || queue.peek().score < score) {
+                ScoredDocument scoredDocument = new ScoredDocument(document, score);
+                queue.add(scoredDocument);
+
+                if (queue.size() > requested) {
+                    queue.poll();
+                }
+            }
+
+            iterator.movePast(document);
+
+            if (queue.size() >= requested) {
+                double threshold = queue.peek().score;
+
+                while (nonEssential < sorted.length &&
+                       unmatchedTotal + nonEssentialGain + sortedGains[nonEssential] +
+                       slack(threshold) < threshold) {
+                    nonEssentialGain += sortedGains[nonEssential];
+                    nonEssential++;
+                }
+            }
+        }
+
+        if (meter != null) {
+            meter.finish();
+        }
+        return queue;
+    }
+}
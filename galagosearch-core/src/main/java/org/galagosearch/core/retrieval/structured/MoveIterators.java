@@ -2,6 +2,8 @@
 package org.galagosearch.core.retrieval.structured;
 
 import java.io.IOException;
+import org.galagosearch.core.retrieval.QueryBudget;
+import org.galagosearch.tupleflow.Parameters;
 
 /**
  *
@@ -19,6 +21,17 @@ public class MoveIterators {
      *         if one of the iterators is now done.
      */
     public static int moveAllToSameDocument(ExtentIterator[] iterators) throws IOException {
+        return moveAllToSameDocument(iterators, null);
+    }
+
+    /**
+     * Like moveAllToSameDocument(iterators), but every document one of the
+     * iterators moves to is charged to the meter (which may be null).  If
+     * the meter runs out, this returns Integer.MAX_VALUE, as if the
+     * iterators had run out of documents.
+     */
+    public static int moveAllToSameDocument(ExtentIterator[] iterators, QueryBudget.Meter meter)
+            throws IOException {
         if (iterators.length == 0) {
             return Integer.MAX_VALUE;
         }
@@ -46,6 +59,9 @@ public class MoveIterators {
                     if (iterator.isDone()) {
                         return Integer.MAX_VALUE;
                     }
+                    if (meter != null && meter.examine(1)) {
+                        return Integer.MAX_VALUE;
+                    }
                     thisDocument = iterator.document();
                 }
 
@@ -64,6 +80,43 @@ public class MoveIterators {
         return currentTarget;
     }
 
+    /**
+     * Returns the iterators in the order given by the <tt>evaluationOrder</tt>
+     * parameter (a list of indexes, like <tt>2,0,1</tt>, that QueryPlanningTraversal
+     * adds so the most selective iterator comes first).  If there's no such
+     * parameter, or it doesn't fit this array, the original array is returned.
+     */
+    public static <T> T[] inEvaluationOrder(T[] iterators, Parameters parameters) {
+        String order = parameters.get("evaluationOrder", (String) null);
+        if (order == null) {
+            return iterators;
+        }
+
+        String[] fields = order.split(",");
+        if (fields.length != iterators.length) {
+            return iterators;
+        }
+
+        T[] result = iterators.clone();
+        boolean[] used = new boolean[iterators.length];
+
+        for (int i = 0; i < fields.length; i++) {
+            int index;
+            try {
+                index = Integer.parseInt(fields[i].trim());
+            } catch (NumberFormatException e) {
+                return iterators;
+            }
+            if (index < 0 || index >= iterators.length || used[index]) {
+                return iterators;
+            }
+            used[index] = true;
+            result[i] = iterators[index];
+        }
+
+        return result;
+    }
+
     public static boolean allSameDocument(ExtentIterator[] iterators) {
         if (iterators.length == 0) {
             return true;
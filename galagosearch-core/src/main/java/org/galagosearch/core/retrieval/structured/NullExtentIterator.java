@@ -2,6 +2,7 @@
 package org.galagosearch.core.retrieval.structured;
 
 import org.galagosearch.core.util.ExtentArray;
+import org.galagosearch.tupleflow.Parameters;
 
 /**
  *
@@ -10,6 +11,13 @@ import org.galagosearch.core.util.ExtentArray;
 public class NullExtentIterator extends ExtentIterator {
     ExtentArray array = new ExtentArray();
 
+    public NullExtentIterator() {
+    }
+
+    /// Used for #null nodes, which replace query subtrees that can't match anything.
+    public NullExtentIterator(Parameters parameters) {
+    }
+
     public void nextDocument() {
     }
 
@@ -3,6 +3,7 @@ package org.galagosearch.core.retrieval.structured;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.Utility;
 
@@ -15,31 +16,30 @@ public class OrderedWindowIterator extends ExtentConjunctionIterator {
 
     /** Creates a new instance of UnorderedWindowIterator */
     public OrderedWindowIterator(Parameters parameters, ExtentIterator[] iterators) throws IOException {
-        super(iterators);
+        this(parameters, iterators, null);
+    }
+
+    public OrderedWindowIterator(Parameters parameters, ExtentIterator[] iterators,
+            QueryBudget.Meter meter) throws IOException {
+        super(parameters, iterators, meter);
         this.width = (int) parameters.getAsDefault("width", -1);
         findDocument();
     }
 
     public void loadExtents() {
-        ExtentArrayIterator[] iterators;
-
-        iterators = new ExtentArrayIterator[extentIterators.length];
-        for (int i = 0; i < extentIterators.length; i++) {
-            iterators[i] = new ExtentArrayIterator(
-                    extentIterators[i].extents());
-        }
+        ExtentArrayIterator[] iterators = resetArrayIterators();
         boolean notDone = true;
         while (notDone) {
             // find the start of the first word
             boolean invalid = false;
-            int begin = iterators[0].current().begin;
+            int begin = iterators[0].begin();
 
             // loop over all the rest of the words
             for (int i = 1; i < iterators.length; i++) {
-                int end = iterators[i - 1].current().end;
+                int end = iterators[i - 1].end();
 
                 // try to move this iterator so that it's past the end of the previous word
-                while (end > iterators[i].current().begin) {
+                while (end > iterators[i].begin()) {
                     notDone = iterators[i].next();
 
                     // if there are no more occurrences of this word,
@@ -49,13 +49,13 @@ public class OrderedWindowIterator extends ExtentConjunctionIterator {
                     }
                 }
 
-                if (iterators[i].current().begin - end >= width) {
+                if (iterators[i].begin() - end >= width) {
                     invalid = true;
                     break;
                 }
             }
 
-            int end = iterators[iterators.length - 1].current().end;
+            int end = iterators[iterators.length - 1].end();
 
             // if it's a match, record it
             if (!invalid) {
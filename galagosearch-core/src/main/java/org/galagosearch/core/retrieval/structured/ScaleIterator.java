@@ -9,7 +9,7 @@ import org.galagosearch.tupleflow.Parameters;
  *
  * @author trevor
  */
-public class ScaleIterator implements ScoreIterator {
+public class ScaleIterator implements BoundedScoreIterator {
     ScoreIterator iterator;
     double weight;
 
@@ -18,6 +18,14 @@ public class ScaleIterator implements ScoreIterator {
         weight = parameters.get("weight", 1.0);
     }
 
+    public ScoreIterator getIterator() {
+        return iterator;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
     public int nextCandidate() {
         return iterator.nextCandidate();
     }
@@ -38,6 +46,36 @@ public class ScaleIterator implements ScoreIterator {
         return weight * iterator.score(document, length);
     }
 
+    // Bounds only carry over from the child if the weight doesn't flip them.
+
+    double scaleBound(double bound) {
+        if (weight < 0 || bound == Double.POSITIVE_INFINITY) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return weight * bound;
+    }
+
+    public double maximumScore() {
+        if (!(iterator instanceof BoundedScoreIterator)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return scaleBound(((BoundedScoreIterator) iterator).maximumScore());
+    }
+
+    public double maximumUnmatchedScore() {
+        if (!(iterator instanceof BoundedScoreIterator)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return scaleBound(((BoundedScoreIterator) iterator).maximumUnmatchedScore());
+    }
+
+    public double maximumScore(int document, int length) throws IOException {
+        if (!(iterator instanceof BoundedScoreIterator)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return scaleBound(((BoundedScoreIterator) iterator).maximumScore(document, length));
+    }
+
     public boolean isDone() {
         return iterator.isDone();
     }
@@ -17,10 +17,26 @@ public abstract class ScoringFunctionIterator implements ScoreIterator {
 
     public abstract double scoreCount(int count, int length);
 
+    /**
+     * Scores a block of documents at once: scores[i] is set to
+     * scoreCount(counts[i], lengths[i]) for each i below blockSize.
+     * Subclasses can override this with a loop the JIT can optimize better
+     * than a virtual call per document.
+     */
+    public void scoreBlock(int[] counts, int[] lengths, double[] scores, int blockSize) {
+        for (int i = 0; i < blockSize; i++) {
+            scores[i] = scoreCount(counts[i], lengths[i]);
+        }
+    }
+
+    public CountIterator getCountIterator() {
+        return iterator;
+    }
+
     public double score(int document, int length) {
         int count = 0;
 
-        if (iterator.document() == document) {
+        if (!iterator.isDone() && iterator.document() == document) {
             count = iterator.count();
         }
         return scoreCount(count, length);
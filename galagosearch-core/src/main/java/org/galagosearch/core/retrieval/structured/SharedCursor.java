@@ -0,0 +1,535 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.galagosearch.core.util.ExtentArray;
+
+/**
+ * <p>Lets several parts of a query tree read the same list through one
+ * iterator.  Each consumer gets its own View, which moves independently and
+ * behaves like an ordinary ExtentIterator.  The underlying iterator only moves
+ * forward, as far as the view furthest along has asked for; the documents it
+ * passes that some other view hasn't reached yet are copied into a buffer, so
+ * the views that lag behind can still read them.</p>
+ *
+ * <p>Since a lagging view might need any document after its current one, the
+ * underlying iterator can't skip while views lag behind it; it only skips when
+ * a single view is reading it, or when skipAll moves every view at once.  A
+ * view that falls more than <tt>bufferLimit</tt> documents behind (usually
+ * because its consumer has stopped moving) is detached: it gets an iterator of
+ * its own from open(), so the buffer doesn't grow without bound.</p>
+ *
+ * @author trevor
+ */
+public abstract class SharedCursor {
+    CountIterator source;
+    ExtentIterator extentSource;
+    int bufferLimit;
+    ArrayList<View> views;
+
+    // the logical index of the source's current document; the buffer holds
+    // the documents from base up to (but not including) sourceIndex
+    int sourceIndex;
+    int base;
+    int length;
+
+    int[] documents;
+    int[] counts;
+    int[] extentOffsets;
+    int extentLength;
+    int[] begins;
+    int[] ends;
+    double[] weights;
+
+    /**
+     * @param source The iterator to share.
+     * @param recordExtents True if some view needs extents; source must then be an ExtentIterator.
+     * @param bufferLimit The most documents a view can fall behind before it's detached.
+     */
+    public SharedCursor(CountIterator source, boolean recordExtents, int bufferLimit) {
+        this.source = source;
+        this.extentSource = recordExtents ? (ExtentIterator) source : null;
+        this.bufferLimit = Math.max(1, bufferLimit);
+        this.views = new ArrayList<View>();
+
+        this.documents = new int[16];
+        this.counts = new int[16];
+        if (recordExtents) {
+            this.extentOffsets = new int[17];
+            this.begins = new int[64];
+            this.ends = new int[64];
+        }
+    }
+
+    /**
+     * Opens a new, unshared copy of the source iterator, positioned at the
+     * start of its list.  Detached views read from one of these.
+     */
+    protected abstract CountIterator open() throws Exception;
+
+    public CountIterator getSource() {
+        return source;
+    }
+
+    /**
+     * Returns a new view, positioned at the start of the list.  The view
+     * implements IndexIterator and BoundedCountIterator when the source does.
+     */
+    public View newView() throws IOException {
+        View view;
+        if (source instanceof IndexIterator) {
+            view = new IndexView();
+        } else {
+            view = new View();
+        }
+        views.add(view);
+        rewind(view);
+        return view;
+    }
+
+    /// The number of views made of this cursor.
+    public int getViewCount() {
+        return views.size();
+    }
+
+    /// The number of documents copied for views that lag behind.
+    public int getBufferedCount() {
+        return length;
+    }
+
+    /**
+     * Moves every view to the first document at or after target.  The views
+     * move together, so the source can skip instead of buffering every
+     * document on the way.  Callers use this before evaluating a range of
+     * documents that starts at target.
+     */
+    public void skipAll(int target) throws IOException {
+        int first = 0;
+        while (first < length && documents[first] < target) {
+            first++;
+        }
+
+        if (first == length) {
+            length = 0;
+            if (!source.isDone() && source.document() < target) {
+                source.skipToDocument(target);
+                sourceIndex++;
+            }
+            base = sourceIndex;
+        } else {
+            dropBuffered(first);
+        }
+
+        for (View view : views) {
+            if (view.detached != null) {
+                view.detached.skipToDocument(target);
+            } else if (view.index < base) {
+                view.index = base;
+            } else {
+                view.skipToDocument(target);
+            }
+        }
+    }
+
+    void rewind(View view) throws IOException {
+        view.detached = null;
+
+        if (base == 0) {
+            view.index = 0;
+            return;
+        }
+
+        boolean alone = true;
+        for (View other : views) {
+            if (other != view && other.detached == null) {
+                alone = false;
+                break;
+            }
+        }
+
+        if (alone) {
+            // no other view depends on the source's position, so start it over
+            source.reset();
+            sourceIndex = 0;
+            base = 0;
+            length = 0;
+            view.index = 0;
+        } else {
+            // the start of the list isn't buffered anymore
+            view.detached = openCopy();
+        }
+    }
+
+    void detach(View view) throws IOException {
+        int document = view.isDone() ? Integer.MAX_VALUE : view.document();
+
+        view.detached = openCopy();
+        if (document > 0) {
+            view.detached.skipToDocument(document);
+        }
+    }
+
+    CountIterator openCopy() throws IOException {
+        try {
+            return open();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            IOException wrapped = new IOException("Couldn't open a copy of a shared iterator");
+            wrapped.initCause(e);
+            throw wrapped;
+        }
+    }
+
+    /**
+     * Returns the smallest index of any attached view other than the caller.
+     */
+    int minimumIndex(View caller) {
+        int minimum = Integer.MAX_VALUE;
+        for (View view : views) {
+            if (view != caller && view.detached == null) {
+                minimum = Math.min(minimum, view.index);
+            }
+        }
+        return minimum;
+    }
+
+    /**
+     * Moves the source to its next document.  The caller has already moved
+     * past the current one; it's buffered only if another view hasn't.
+     */
+    void advanceSource(View caller) throws IOException {
+        if (source.isDone()) {
+            return;
+        }
+
+        if (minimumIndex(caller) <= sourceIndex) {
+            append();
+        } else {
+            base = sourceIndex + 1;
+            length = 0;
+        }
+
+        source.nextDocument();
+        sourceIndex++;
+    }
+
+    /**
+     * Copies the source's current document into the buffer.
+     */
+    void append() throws IOException {
+        if (length == bufferLimit) {
+            int minimum = minimumIndex(null);
+            if (minimum > base) {
+                dropBuffered(Math.min(minimum, sourceIndex) - base);
+            }
+            // anything still too far behind reads its own copy of the list
+            while (length == bufferLimit) {
+                for (View view : views) {
+                    if (view.detached == null && view.index == base) {
+                        detach(view);
+                    }
+                }
+                dropBuffered(Math.min(minimumIndex(null), sourceIndex) - base);
+            }
+        }
+
+        if (length == documents.length) {
+            int capacity = Math.min(Math.max(16, length * 2), bufferLimit);
+            documents = grow(documents, capacity);
+            counts = grow(counts, capacity);
+            if (extentSource != null) {
+                extentOffsets = grow(extentOffsets, capacity + 1);
+            }
+        }
+
+        documents[length] = source.document();
+        counts[length] = source.count();
+
+        if (extentSource != null) {
+            ExtentArray extents = extentSource.extents();
+            int count = extents.getPosition();
+
+            if (extentLength + count > begins.length) {
+                int capacity = Math.max(begins.length * 2, extentLength + count);
+                begins = grow(begins, capacity);
+                ends = grow(ends, capacity);
+                if (weights != null) {
+                    weights = grow(weights, capacity);
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                begins[extentLength + i] = extents.begin(i);
+                ends[extentLength + i] = extents.end(i);
+
+                double weight = extents.weight(i);
+                if (weight != 1 && weights == null) {
+                    weights = new double[begins.length];
+                    Arrays.fill(weights, 1);
+                }
+                if (weights != null) {
+                    weights[extentLength + i] = weight;
+                }
+            }
+
+            extentOffsets[length] = extentLength;
+            extentLength += count;
+            extentOffsets[length + 1] = extentLength;
+        }
+
+        length++;
+    }
+
+    /**
+     * Removes the first count documents from the buffer.
+     */
+    void dropBuffered(int count) {
+        if (count <= 0) {
+            return;
+        }
+
+        int remaining = length - count;
+        System.arraycopy(documents, count, documents, 0, remaining);
+        System.arraycopy(counts, count, counts, 0, remaining);
+
+        if (extentSource != null) {
+            int shift = extentOffsets[count];
+            int extentRemaining = extentLength - shift;
+
+            System.arraycopy(begins, shift, begins, 0, extentRemaining);
+            System.arraycopy(ends, shift, ends, 0, extentRemaining);
+            if (weights != null) {
+                System.arraycopy(weights, shift, weights, 0, extentRemaining);
+            }
+            for (int i = 0; i <= remaining; i++) {
+                extentOffsets[i] = extentOffsets[i + count] - shift;
+            }
+            extentLength = extentRemaining;
+        }
+
+        base += count;
+        length = remaining;
+    }
+
+    /**
+     * Returns the index of the first element of array[start..end) that is
+     * at least target, or end if there isn't one.
+     */
+    static int search(int[] array, int start, int end, int target) {
+        while (start < end) {
+            int middle = (start + end) >>> 1;
+            if (array[middle] < target) {
+                start = middle + 1;
+            } else {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+    static int[] grow(int[] array, int capacity) {
+        int[] result = new int[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    static double[] grow(double[] array, int capacity) {
+        double[] result = new double[capacity];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+
+    /**
+     * One consumer's position in the shared list.
+     */
+    public class View extends ExtentIterator {
+        int index;
+        CountIterator detached;
+        ExtentArray extentArray;
+        int loadedIndex;
+
+        View() {
+            extentArray = new ExtentArray();
+            loadedIndex = -1;
+        }
+
+        /// True if this view is reading the source directly, not the buffer.
+        boolean atSource() {
+            return index == sourceIndex;
+        }
+
+        public boolean isDetached() {
+            return detached != null;
+        }
+
+        public boolean isDone() {
+            if (detached != null) {
+                return detached.isDone();
+            }
+            return atSource() && source.isDone();
+        }
+
+        public int document() {
+            if (detached != null) {
+                return detached.document();
+            }
+            if (atSource()) {
+                return source.document();
+            }
+            return documents[index - base];
+        }
+
+        public int count() {
+            if (detached != null) {
+                return detached.count();
+            }
+            if (atSource()) {
+                return source.count();
+            }
+            return counts[index - base];
+        }
+
+        public ExtentArray extents() {
+            if (detached != null) {
+                return ((ExtentIterator) detached).extents();
+            }
+            if (extentSource == null) {
+                throw new IllegalStateException("This shared list doesn't record extents.");
+            }
+            if (atSource()) {
+                return extentSource.extents();
+            }
+
+            if (loadedIndex != index) {
+                extentArray.reset();
+
+                int document = documents[index - base];
+                int start = extentOffsets[index - base];
+                int end = extentOffsets[index - base + 1];
+
+                for (int i = start; i < end; i++) {
+                    if (weights == null) {
+                        extentArray.add(document, begins[i], ends[i]);
+                    } else {
+                        extentArray.add(document, begins[i], ends[i], weights[i]);
+                    }
+                }
+                loadedIndex = index;
+            }
+            return extentArray;
+        }
+
+        public void nextDocument() throws IOException {
+            if (detached != null) {
+                detached.nextDocument();
+                return;
+            }
+            if (isDone()) {
+                return;
+            }
+
+            index++;
+            if (index > sourceIndex) {
+                advanceSource(this);
+            }
+        }
+
+        @Override
+        public boolean skipToDocument(int target) throws IOException {
+            if (detached != null) {
+                return detached.skipToDocument(target);
+            }
+
+            if (!atSource()) {
+                // a binary search through the buffered documents
+                int position = search(documents, index - base, length, target);
+                index = base + position;
+                if (!atSource()) {
+                    return documents[position] == target;
+                }
+            }
+
+            if (source.isDone() || source.document() >= target) {
+                return !source.isDone() && source.document() == target;
+            }
+
+            if (minimumIndex(this) > sourceIndex) {
+                // nobody else needs the documents in between
+                source.skipToDocument(target);
+                sourceIndex++;
+                index = sourceIndex;
+                base = sourceIndex;
+                length = 0;
+            } else {
+                while (!source.isDone() && source.document() < target) {
+                    index++;
+                    advanceSource(this);
+                }
+            }
+            return !isDone() && document() == target;
+        }
+
+        public void reset() throws IOException {
+            loadedIndex = -1;
+            rewind(this);
+        }
+    }
+
+    /**
+     * A view of a list that comes straight from the index, which passes
+     * along the list's statistics and count bounds.
+     */
+    public class IndexView extends View implements IndexIterator, BoundedCountIterator {
+        public String getRecordString() {
+            if (isDone()) {
+                return "";
+            }
+            return document() + "," + count();
+        }
+
+        public boolean nextRecord() throws IOException {
+            nextDocument();
+            return !isDone();
+        }
+
+        public long collectionFrequency() {
+            return ((IndexIterator) source).collectionFrequency();
+        }
+
+        public long documentFrequency() {
+            return ((IndexIterator) source).documentFrequency();
+        }
+
+        public int maximumCount() {
+            if (source instanceof BoundedCountIterator) {
+                return ((BoundedCountIterator) source).maximumCount();
+            }
+            return -1;
+        }
+
+        public int maximumCount(int document) throws IOException {
+            if (detached != null) {
+                if (detached instanceof BoundedCountIterator) {
+                    return ((BoundedCountIterator) detached).maximumCount(document);
+                }
+                return -1;
+            }
+
+            // buffered documents have exact counts
+            if (!atSource() && document <= documents[length - 1]) {
+                int position = search(documents, index - base, length, document);
+                return documents[position] == document ? counts[position] : 0;
+            }
+            if (!source.isDone() && document < source.document()) {
+                return 0;
+            }
+            if (source instanceof BoundedCountIterator) {
+                return ((BoundedCountIterator) source).maximumCount(document);
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.galagosearch.core.retrieval.QueryBudget;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.tupleflow.Parameters.Value;
+
+/**
+ * <p>Remembers the collection frequency and document frequency of compound
+ * extent nodes, like <tt>#od:1(a b)</tt> or <tt>#uw:8(a b)</tt>.  The index
+ * doesn't store statistics for these, so without a cache they're computed by
+ * running the whole window iterator over the collection every time a query
+ * uses one.  Entries are shared by every thread and every query that uses
+ * the same index.</p>
+ *
+ * <p>Nodes are keyed by their canonical text: the operator, the parameters
+ * sorted by name, and the children.  The <tt>evaluationOrder</tt> parameter
+ * is left out, since it doesn't change what the node matches.</p>
+ *
+ * <p>The cache can be written to a file and read back, so a restarted server
+ * starts with the statistics it had before.  The file records the size of
+ * the collection, and is ignored if it was written for a different index.</p>
+ *
+ * @author trevor
+ */
+public class StatisticsCache {
+    static final int VERSION = 1;
+
+    ConcurrentHashMap<String, TermStatistics> statistics;
+    int maximumEntries;
+    AtomicLong hits;
+    AtomicLong misses;
+
+    public StatisticsCache(int maximumEntries) {
+        this.maximumEntries = maximumEntries;
+        this.statistics = new ConcurrentHashMap<String, TermStatistics>();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    public static String key(Node node) {
+        StringBuilder builder = new StringBuilder();
+        appendKey(node, builder);
+        return builder.toString();
+    }
+
+    static void appendKey(Node node, StringBuilder builder) {
+        builder.append('#');
+        builder.append(node.getOperator());
+
+        Map<String, List<Value>> parameterMap = node.getParameters().value().map();
+        if (parameterMap != null) {
+            TreeMap<String, String> sorted = new TreeMap<String, String>();
+            for (Map.Entry<String, List<Value>> entry : parameterMap.entrySet()) {
+                if (!entry.getKey().equals("evaluationOrder")) {
+                    sorted.put(entry.getKey(), entry.getValue().toString());
+                }
+            }
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                builder.append(':');
+                builder.append(entry.getKey());
+                builder.append('=');
+                builder.append(entry.getValue());
+            }
+        }
+
+        builder.append('(');
+        for (Node child : node.getInternalNodes()) {
+            builder.append(' ');
+            appendKey(child, builder);
+        }
+        builder.append(" )");
+    }
+
+    /**
+     * Returns the cached statistics for this node, or null.
+     */
+    public TermStatistics get(Node node) {
+        TermStatistics result = statistics.get(key(node));
+
+        if (result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Adds statistics for a node.  Once the cache is full, new entries
+     * are dropped; the statistics of an index don't change, so there's
+     * nothing to gain from evicting old ones.
+     */
+    public void put(Node node, TermStatistics value) {
+        if (statistics.size() < maximumEntries) {
+            statistics.putIfAbsent(key(node), value);
+        }
+    }
+
+    /**
+     * Returns the statistics for this node, computing them with the iterator
+     * if they aren't cached.  The iterator is reset afterwards.
+     */
+    public TermStatistics get(Node node, CountIterator iterator) throws IOException {
+        return get(node, iterator, null);
+    }
+
+    /**
+     * Like get(node, iterator), for an iterator that charges a query budget
+     * through meter.  The meter is paused while the statistics are gathered,
+     * so they're complete, but not while the iterator is reset.
+     */
+    public TermStatistics get(Node node, CountIterator iterator, QueryBudget.Meter meter)
+            throws IOException {
+        TermStatistics result = get(node);
+
+        if (result == null) {
+            StatisticsGatherer gatherer = new StatisticsGatherer(iterator);
+            if (meter != null) {
+                meter.pause();
+            }
+            try {
+                gatherer.run();
+            } finally {
+                if (meter != null) {
+                    meter.resume();
+                }
+            }
+            iterator.reset();
+
+            result = new TermStatistics(gatherer.getTermCount(), gatherer.getDocumentCount());
+            put(node, result);
+        }
+        return result;
+    }
+
+    public int size() {
+        return statistics.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void clear() {
+        statistics.clear();
+    }
+
+    /**
+     * Writes the cache to a file.  The file is written under a temporary
+     * name first, so a crash never leaves a partial cache behind.
+     */
+    public void write(File file, long collectionLength, long documentCount) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temporary)));
+
+        try {
+            output.writeInt(VERSION);
+            output.writeLong(collectionLength);
+            output.writeLong(documentCount);
+
+            for (Map.Entry<String, TermStatistics> entry : statistics.entrySet()) {
+                String key = entry.getKey();
+                // writeUTF can't handle strings this long, and queries this long are rare
+                if (key.length() > 16384) {
+                    continue;
+                }
+                output.writeBoolean(true);
+                output.writeUTF(key);
+                output.writeLong(entry.getValue().collectionFrequency);
+                output.writeLong(entry.getValue().documentFrequency);
+            }
+            output.writeBoolean(false);
+        } finally {
+            output.close();
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Couldn't replace the statistics cache at " + file);
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Couldn't write the statistics cache to " + file);
+        }
+    }
+
+    /**
+     * Reads entries from a file written by write.  Nothing is read if
+     * the file doesn't exist, or if it was written for a collection
+     * of a different size.
+     *
+     * @return true if the file was read.
+     */
+    public boolean read(File file, long collectionLength, long documentCount) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            if (input.readInt() != VERSION ||
+                input.readLong() != collectionLength ||
+                input.readLong() != documentCount) {
+                return false;
+            }
+
+            while (input.readBoolean() && statistics.size() < maximumEntries) {
+                String key = input.readUTF();
+                long collectionFrequency = input.readLong();
+                long documentFrequency = input.readLong();
+                statistics.put(key, new TermStatistics(collectionFrequency, documentFrequency));
+            }
+        } finally {
+            input.close();
+        }
+        return true;
+    }
+}
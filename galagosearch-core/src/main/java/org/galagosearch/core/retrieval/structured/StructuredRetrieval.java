@@ -5,36 +5,124 @@ package org.galagosearch.core.retrieval.structured;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.galagosearch.core.index.PrefetchedLists;
 import org.galagosearch.core.index.StructuredIndex;
 import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.core.retrieval.Retrieval;
 import org.galagosearch.core.retrieval.ScoredDocument;
 import org.galagosearch.core.retrieval.query.NodeType;
 import org.galagosearch.core.retrieval.query.Traversal;
+import org.galagosearch.core.retrieval.traversal.QueryPlanningTraversal;
 import org.galagosearch.tupleflow.Parameters;
 
 /**
+ * <p>Evaluates structured queries against a StructuredIndex.</p>
+ *
+ * <p>If the index is memory mapped and <tt>queryThreads</tt> is more than 1,
+ * an expensive query is split into ranges of document numbers, and each range
+ * is scored by its own iterator tree on a thread pool.  The number of ranges
+ * grows with the estimated cost of the query: roughly one range for every
+ * <tt>partitionCost</tt> postings, up to <tt>queryThreads</tt> ranges.  The
+ * results are the same as with a single thread.</p>
+ *
+ * <p>Subtrees that appear more than once in a query, like the terms of a
+ * sequential dependence query, are built once and shared by every part of
+ * the tree that uses them (see CommonSubexpressions and SharedCursor).  The
+ * <tt>shareSubexpressions</tt> parameter turns this off.</p>
+ *
+ * <p>If <tt>blockScoring</tt> is set, queries that are a #combine of features
+ * are scored <tt>blockSize</tt> document numbers at a time by BlockEvaluator.</p>
+ *
+ * <p>runRerankedQuery evaluates a query in two phases: a cheap candidate
+ * query picks the top documents, and an expensive rerank query scores only
+ * those documents.</p>
+ *
+ * <p>Each query can be given a QueryBudget, which limits its time
+ * (<tt>queryTimeLimit</tt>, in milliseconds), the documents it scores
+ * (<tt>queryDocumentLimit</tt>) and the postings it reads
+ * (<tt>queryPostingsLimit</tt>).  A query that runs out of budget returns
+ * the best documents it found before stopping.</p>
+ *
+ * <p>If <tt>prefetchThreads</tt> is more than 0, the lists of every term in
+ * a query are read at the same time on that many I/O threads before the
+ * iterators are built, instead of one after another as each iterator is
+ * made (see StructuredIndex.prefetch).  The lists belong to that query, and
+ * any it didn't use are dropped when it finishes.  When the query is planned
+ * (<tt>queryPlanning</tt>), the lists are read before planning, so the
+ * planner and the cost estimates use their headers; they're kept for the
+ * next runQuery of the planned query.</p>
  *
  * @author trevor
  */
 public class StructuredRetrieval extends Retrieval {
+    /// The most planned queries whose prefetched lists are kept until they run.
+    static final int PLANNED_QUERIES = 16;
+
     StructuredIndex index;
     FeatureFactory featureFactory;
+    boolean pruning;
+    int queryThreads;
+    long partitionCost;
+    boolean shareSubexpressions;
+    int sharedBufferLimit;
+    boolean blockScoring;
+    int blockSize;
+    Parameters parameters;
+    AtomicLong budgetExceeded;
+    ExecutorService executor;
+    int prefetchThreads;
+    ExecutorService prefetchExecutor;
+    AtomicLong prefetchedLists;
+    AtomicLong unusedPrefetchedLists;
+    LinkedHashMap<Node, PrefetchedLists> plannedLists;
 
     public StructuredRetrieval(StructuredIndex index, Parameters factoryParameters) {
         this.index = index;
+        this.pruning = factoryParameters.get("pruning", false);
+        this.queryThreads = (int) factoryParameters.get("queryThreads", 1);
+        this.partitionCost = factoryParameters.get("partitionCost", 1000000);
+        this.shareSubexpressions = factoryParameters.get("shareSubexpressions", true);
+        this.sharedBufferLimit = (int) factoryParameters.get("sharedBufferLimit", 4096);
+        this.blockScoring = factoryParameters.get("blockScoring", false);
+        this.blockSize = (int) factoryParameters.get("blockSize", 1024);
+        this.prefetchThreads = (int) factoryParameters.get("prefetchThreads", 0);
+        this.parameters = factoryParameters;
+        this.budgetExceeded = new AtomicLong();
+        this.prefetchedLists = new AtomicLong();
+        this.unusedPrefetchedLists = new AtomicLong();
+        this.plannedLists = new LinkedHashMap<Node, PrefetchedLists>() {
+            protected boolean removeEldestEntry(Map.Entry<Node, PrefetchedLists> eldest) {
+                if (size() > PLANNED_QUERIES) {
+                    release(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
         Parameters featureParameters = factoryParameters.clone();
         featureParameters.add("collectionLength", Long.toString(index.getCollectionLength()));
         featureParameters.add("documentCount", Long.toString(index.getDocumentCount()));
         featureFactory = new FeatureFactory(featureParameters);
+        featureFactory.setStatisticsCache(index.getStatisticsCache());
     }
 
     public StructuredRetrieval(String filename, Parameters parameters)
             throws FileNotFoundException, IOException {
-        this(new StructuredIndex(filename), parameters);
+        this(new StructuredIndex(filename, parameters), parameters);
     }
 
     public StructuredIndex getIndex() {
@@ -60,46 +148,399 @@ public class StructuredRetrieval extends Retrieval {
     }
     
     public StructuredIterator createIterator(Node node) throws Exception {
+        return createIterator(node, null);
+    }
+
+    /**
+     * Builds the iterator tree for a query.  Subtrees listed in subexpressions
+     * are built once; every place they appear gets its own view of the shared
+     * iterator.  If subexpressions is null, nothing is shared.
+     */
+    public StructuredIterator createIterator(Node node, CommonSubexpressions subexpressions)
+            throws Exception {
+        return createIterator(node, subexpressions, null);
+    }
+
+    /**
+     * Builds the iterator tree for a query, starting index lists from the
+     * ones in prefetched (which may be null) when they were read ahead.
+     */
+    public StructuredIterator createIterator(Node node, CommonSubexpressions subexpressions,
+            PrefetchedLists prefetched) throws Exception {
+        return createIterator(node, subexpressions, prefetched, null);
+    }
+
+    /**
+     * Builds the iterator tree for a query.  Iterators that move through
+     * their lists on their own, like windows, charge that work to meter
+     * (which may be null).
+     */
+    StructuredIterator createIterator(Node node, CommonSubexpressions subexpressions,
+            PrefetchedLists prefetched, QueryBudget.Meter meter) throws Exception {
+        CommonSubexpressions.Subexpression shared =
+                (subexpressions == null) ? null : subexpressions.get(node);
+        if (shared == null) {
+            return buildIterator(node, subexpressions, prefetched, meter);
+        }
+
+        if (shared.cursor == null) {
+            final Node sourceNode = shared.getNode();
+            StructuredIterator iterator =
+                    buildIterator(sourceNode, subexpressions, prefetched, meter);
+            boolean usable = iterator instanceof CountIterator &&
+                    (!shared.needsExtents() || iterator instanceof ExtentIterator);
+
+            // decoded lists are already shared through the list cache
+            if (index.getListCache() != null && sourceNode.getInternalNodes().size() == 0) {
+                usable = false;
+            }
+
+            if (!usable) {
+                subexpressions.setUnshareable(shared);
+                return node.equals(sourceNode) ? iterator
+                        : buildIterator(node, subexpressions, prefetched, meter);
+            }
+
+            SharedCursor cursor = new SharedCursor((CountIterator) iterator,
+                                                   shared.needsExtents(), sharedBufferLimit) {
+                protected CountIterator open() throws Exception {
+                    return (CountIterator) buildIterator(sourceNode, null, null, null);
+                }
+            };
+            subexpressions.setCursor(shared, cursor);
+        }
+
+        return shared.cursor.newView();
+    }
+
+    StructuredIterator buildIterator(Node node, CommonSubexpressions subexpressions,
+            PrefetchedLists prefetched, QueryBudget.Meter meter) throws Exception {
         ArrayList<StructuredIterator> internalIterators = new ArrayList<StructuredIterator>();
 
         for (Node internalNode : node.getInternalNodes()) {
-            StructuredIterator internalIterator = createIterator(internalNode);
+            StructuredIterator internalIterator =
+                    createIterator(internalNode, subexpressions, prefetched, meter);
             internalIterators.add(internalIterator);
         }
         
-        StructuredIterator iterator = index.getIterator(node);
+        StructuredIterator iterator = index.getIterator(node, prefetched);
         if (iterator == null) {
-            iterator = featureFactory.getIterator(node, internalIterators);
+            iterator = featureFactory.getIterator(node, internalIterators, meter);
+        }
+        // conjunctions from other factories still charge the budget once they're built
+        if (meter != null && iterator instanceof ExtentConjunctionIterator) {
+            ((ExtentConjunctionIterator) iterator).setMeter(meter);
         }
         
         return iterator;
     }
 
     public Node transformQuery(Node queryTree) throws Exception {
+        return transformQuery(queryTree, true);
+    }
+
+    @Override
+    public Node transformQuery(Node queryTree, boolean plan) throws Exception {
         List<Traversal> traversals = featureFactory.getTraversals(this);
+        PrefetchedLists lists = null;
+
         for (Traversal traversal : traversals) {
+            if (traversal instanceof QueryPlanningTraversal) {
+                if (!plan) {
+                    continue;
+                }
+                lists = prefetchForPlanning((QueryPlanningTraversal) traversal, queryTree, lists);
+            }
             queryTree = StructuredQuery.copy(traversal, queryTree);
         }
+        keepPlannedLists(queryTree, lists);
         return queryTree;
     }
 
     /**
-     * Evaluates a query.
-     *
-     * @param queryTree A query tree that has been already transformed with StructuredRetrieval.transformQuery.
-     * @param requested The number of documents to retrieve, at most.
-     * @return
-     * @throws java.lang.Exception
+     * Runs the planning traversals (if any are configured) over a query
+     * that was transformed without them.
      */
-    public ScoredDocument[] runQuery(Node queryTree, int requested) throws Exception {
+    @Override
+    public Node planQuery(Node queryTree) throws Exception {
+        List<Traversal> traversals = featureFactory.getTraversals(this);
+        PrefetchedLists lists = null;
+
+        for (Traversal traversal : traversals) {
+            if (traversal instanceof QueryPlanningTraversal) {
+                lists = prefetchForPlanning((QueryPlanningTraversal) traversal, queryTree, lists);
+                queryTree = StructuredQuery.copy(traversal, queryTree);
+            }
+        }
+        keepPlannedLists(queryTree, lists);
+        return queryTree;
+    }
+
+    /**
+     * Reads the lists of a query ahead before the planner runs (if
+     * prefetchThreads is set, and they weren't read already), and gives
+     * them to the planner, so it doesn't read their headers one at a time.
+     */
+    PrefetchedLists prefetchForPlanning(QueryPlanningTraversal planner, Node queryTree,
+            PrefetchedLists lists) throws InterruptedException {
+        if (lists == null) {
+            lists = prefetch(queryTree);
+        }
+        planner.setPrefetchedLists(lists);
+        return lists;
+    }
+
+    /**
+     * Keeps the lists read ahead while planning a query, until the planned
+     * query runs.  Only the most recently planned queries are kept; the
+     * lists of older ones are released.
+     */
+    synchronized void keepPlannedLists(Node queryTree, PrefetchedLists lists) {
+        if (lists != null) {
+            release(plannedLists.put(queryTree, lists));
+        }
+    }
+
+    /**
+     * Returns the lists for running a query: the ones read ahead when it
+     * was planned, if they're still kept, or a new set.  Returns null if
+     * nothing was prefetched.
+     */
+    PrefetchedLists prefetchForQuery(Node queryTree) throws InterruptedException {
+        PrefetchedLists lists;
+        synchronized (this) {
+            lists = plannedLists.remove(queryTree);
+        }
+        if (lists == null) {
+            lists = prefetch(queryTree);
+        }
+        return lists;
+    }
+
+    /**
+     * Prints the plan for a transformed query: every node, with the number
+     * of documents it should match and the number of postings it reads.
+     */
+    @Override
+    public String explainQuery(Node queryTree) throws Exception {
+        return new QueryPlanningTraversal(new Parameters(), this).explain(queryTree);
+    }
+
+    /**
+     * Returns the statistics of a count node.  Index lists have them stored;
+     * anything else (like a window) is run over the collection, and the
+     * result is kept in the statistics cache.
+     */
+    @Override
+    public TermStatistics getStatistics(Node node) throws Exception {
+        TermStatistics statistics = index.getStatistics(node);
+        if (statistics != null && statistics.collectionFrequency >= 0 &&
+            statistics.documentFrequency >= 0) {
+            return statistics;
+        }
+
+        StructuredIterator iterator = createIterator(node);
+        if (!(iterator instanceof CountIterator)) {
+            throw new IllegalArgumentException("Can't find statistics for " + node + ", " +
+                                               "since it isn't a count node.");
+        }
+
+        StatisticsCache cache = index.getStatisticsCache();
+        if (cache != null) {
+            return cache.get(node, (CountIterator) iterator);
+        }
+
+        StatisticsGatherer gatherer = new StatisticsGatherer((CountIterator) iterator);
+        gatherer.run();
+        return new TermStatistics(gatherer.getTermCount(), gatherer.getDocumentCount());
+    }
+
+    @Override
+    public Parameters getCollectionStatistics() {
+        Parameters statistics = new Parameters();
+        statistics.add("collectionLength", Long.toString(index.getCollectionLength()));
+        statistics.add("documentCount", Long.toString(index.getDocumentCount()));
+        statistics.add("documentLimit", Integer.toString(index.getDocumentLimit()));
+        return statistics;
+    }
+
+    /**
+     * Estimates the cost of evaluating a query tree as the number of postings
+     * it reads.  Lists that need positions count twice, since their positions
+     * have to be decoded too.  Nodes without stored statistics cost nothing
+     * themselves; their children are counted instead.
+     */
+    public long estimateCost(Node node) throws IOException {
+        return estimateCost(node, null);
+    }
+
+    /**
+     * Estimates the cost of a query tree, taking the statistics of lists
+     * read ahead in prefetched (which may be null) from there.
+     */
+    long estimateCost(Node node, PrefetchedLists prefetched) throws IOException {
+        TermStatistics statistics = index.getStatistics(node, prefetched);
+
+        if (statistics != null && statistics.documentFrequency >= 0) {
+            long cost = statistics.documentFrequency;
+            if (node.getOperator().equals("extents")) {
+                cost *= 2;
+            }
+            return cost;
+        }
+
+        long cost = 0;
+        for (Node child : node.getInternalNodes()) {
+            cost += estimateCost(child, prefetched);
+        }
+        return cost;
+    }
+
+    /**
+     * Returns the number of document ranges to split this query into.
+     */
+    public int getPartitionCount(Node queryTree) throws IOException {
+        return getPartitionCount(queryTree, null);
+    }
+
+    int getPartitionCount(Node queryTree, PrefetchedLists prefetched) throws IOException {
+        if (queryThreads <= 1 || !index.isMemoryMapped()) {
+            return 1;
+        }
+
+        long partitions = estimateCost(queryTree, prefetched) / Math.max(1, partitionCost);
+        return (int) Math.max(1, Math.min(queryThreads, partitions));
+    }
+
+    synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(queryThreads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "query-partition");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    synchronized ExecutorService getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = Executors.newFixedThreadPool(prefetchThreads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "list-prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Reads the lists of this query ahead of time, if prefetchThreads is set.
+     * Returns the lists, or null if nothing was prefetched.
+     */
+    PrefetchedLists prefetch(Node queryTree) throws InterruptedException {
+        if (prefetchThreads <= 0) {
+            return null;
+        }
+        PrefetchedLists lists = index.prefetch(queryTree, getPrefetchExecutor());
+        prefetchedLists.addAndGet(lists.size());
+        return lists;
+    }
+
+    /**
+     * Drops the prefetched lists of a finished query, counting the ones it didn't use.
+     */
+    void release(PrefetchedLists lists) {
+        if (lists != null) {
+            unusedPrefetchedLists.addAndGet(lists.size());
+            lists.clear();
+        }
+    }
+
+    /// The number of lists read ahead by prefetch so far.
+    public long getPrefetchedListCount() {
+        return prefetchedLists.get();
+    }
+
+    /// The number of prefetched lists that their queries finished without using.
+    public long getUnusedPrefetchedListCount() {
+        return unusedPrefetchedLists.get();
+    }
+
+    @Override
+    public QueryBudget newBudget() {
+        return QueryBudget.fromParameters(parameters);
+    }
+
+    @Override
+    public long getBudgetExceededCount() {
+        return budgetExceeded.get();
+    }
+
+    /**
+     * Scores the documents numbered from start up to (but not including) end.
+     * The queue holds at most requested documents, with the lowest score at the head.
+     * If the budget isn't null, scoring stops when it runs out.
+     */
+    PriorityQueue<ScoredDocument> evaluate(Node queryTree, int requested, int start, int end,
+            QueryBudget budget, PrefetchedLists prefetched) throws Exception {
         // construct the query iterators
-        ScoreIterator iterator = (ScoreIterator) createIterator(queryTree);
+        CommonSubexpressions subexpressions =
+                shareSubexpressions ? new CommonSubexpressions(queryTree) : null;
+        // windows charge the lists they read to a meter of their own, from the moment they're built
+        QueryBudget.Meter conjunctionMeter = (budget == null) ? null : budget.meter(start);
+
+        try {
+            ScoreIterator iterator =
+                    (ScoreIterator) createIterator(queryTree, subexpressions, prefetched, conjunctionMeter);
+            return evaluate(iterator, subexpressions, requested, start, end, budget);
+        } finally {
+            if (conjunctionMeter != null) {
+                conjunctionMeter.finish();
+            }
+        }
+    }
+
+    PriorityQueue<ScoredDocument> evaluate(ScoreIterator iterator, CommonSubexpressions subexpressions,
+            int requested, int start, int end, QueryBudget budget) throws Exception {
+        // the shared lists can skip straight to the start of the range
+        if (subexpressions != null && start > 0) {
+            subexpressions.skipAll(start);
+        }
+
+        if (pruning && MaxScoreEvaluator.canEvaluate(iterator)) {
+            MaxScoreEvaluator evaluator = new MaxScoreEvaluator(index);
+            evaluator.setBudget(budget);
+            return evaluator.evaluate(iterator, requested, start, end);
+        }
+
+        if (blockScoring && BlockEvaluator.canEvaluate(iterator)) {
+            BlockEvaluator evaluator = new BlockEvaluator(index, blockSize);
+            evaluator.setBudget(budget);
+            return evaluator.evaluate(iterator, requested, start, end).toQueue();
+        }
+
+        if (start > 0) {
+            iterator.moveTo(start);
+        }
 
         // now there should be an iterator at the root of this tree
         PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+        QueryBudget.Meter meter = (budget == null) ? null : budget.meter(start);
 
         while (!iterator.isDone()) {
             int document = iterator.nextCandidate();
+            if (document >= end) {
+                break;
+            }
+            if (meter != null && meter.tick(document, 1)) {
+                break;
+            }
+
             int length = index.getLength(document);
             double score = iterator.score(document, length);
 
@@ -115,7 +556,212 @@ public class StructuredRetrieval extends Retrieval {
             iterator.movePast(document);
         }
 
-        return getArrayResults(queue);
+        if (meter != null) {
+            meter.finish();
+        }
+        return queue;
+    }
+
+    /**
+     * Starts a budget for a query: the postings it reads are estimated from
+     * its cost, so that has to be computed first if there's a postings limit.
+     */
+    void startBudget(Node queryTree, QueryBudget budget, PrefetchedLists prefetched)
+            throws IOException {
+        if (budget != null && budget.hasPostingsLimit()) {
+            budget.setPostingsEstimate(estimateCost(queryTree, prefetched), index.getDocumentLimit());
+        }
+    }
+
+    /**
+     * Counts a query against the budget-exceeded metric if its budget ran out.
+     */
+    void finishBudget(QueryBudget budget) {
+        if (budget != null && budget.isExceeded()) {
+            budgetExceeded.incrementAndGet();
+        }
+    }
+
+    /**
+     * Evaluates a query, with the budget from this retrieval's parameters.
+     */
+    public ScoredDocument[] runQuery(Node queryTree, int requested) throws Exception {
+        return runQuery(queryTree, requested, newBudget());
+    }
+
+    /**
+     * Evaluates a query.  If the pruning parameter is set and the query is a
+     * #combine of bounded features, MaxScoreEvaluator is used instead of
+     * scoring every document; the results are the same either way.  Otherwise,
+     * if blockScoring is set, a #combine of features is scored by BlockEvaluator.
+     *
+     * @param queryTree A query tree that has been already transformed with StructuredRetrieval.transformQuery.
+     * @param requested The number of documents to retrieve, at most.
+     * @param budget Limits on the work the query can do, shared by every range; may be null.
+     * @return
+     * @throws java.lang.Exception
+     */
+    @Override
+    public ScoredDocument[] runQuery(Node queryTree, int requested, QueryBudget budget)
+            throws Exception {
+        PrefetchedLists prefetched = prefetchForQuery(queryTree);
+        startBudget(queryTree, budget, prefetched);
+
+        try {
+            return getArrayResults(evaluateRanges(queryTree, requested, budget, prefetched));
+        } finally {
+            release(prefetched);
+            finishBudget(budget);
+        }
+    }
+
+    /**
+     * Evaluates a query, splitting it into ranges if it's expensive enough.
+     */
+    PriorityQueue<ScoredDocument> evaluateRanges(Node queryTree, int requested,
+            QueryBudget budget, PrefetchedLists prefetched) throws Exception {
+        int partitions = getPartitionCount(queryTree, prefetched);
+
+        if (partitions == 1) {
+            return evaluate(queryTree, requested, 0, Integer.MAX_VALUE, budget, prefetched);
+        }
+
+        final Node tree = queryTree;
+        final int count = requested;
+        final QueryBudget queryBudget = budget;
+        final PrefetchedLists lists = prefetched;
+        int documentLimit = index.getDocumentLimit();
+        ArrayList<Future<PriorityQueue<ScoredDocument>>> futures =
+                new ArrayList<Future<PriorityQueue<ScoredDocument>>>();
+
+        for (int i = 0; i < partitions; i++) {
+            final int start = (int) ((long) documentLimit * i / partitions);
+            final int end = (i == partitions - 1) ? Integer.MAX_VALUE
+                    : (int) ((long) documentLimit * (i + 1) / partitions);
+
+            futures.add(getExecutor().submit(new Callable<PriorityQueue<ScoredDocument>>() {
+                public PriorityQueue<ScoredDocument> call() throws Exception {
+                    return evaluate(tree, count, start, end, queryBudget, lists);
+                }
+            }));
+        }
+
+        // the top documents overall are the top documents of the merged range results
+        PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+        try {
+            for (Future<PriorityQueue<ScoredDocument>> future : futures) {
+                queue.addAll(future.get());
+
+                while (queue.size() > requested) {
+                    queue.poll();
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+
+        return queue;
+    }
+
+    /**
+     * Evaluates a query in two phases.  The candidate query, which should be
+     * cheap (like a #combine of terms), finds the top candidates documents.
+     * Then the rerank query, which can use expensive operators like windows
+     * and fields, scores just those documents; its scores are the final ones.
+     * Every candidate gets a rerank score, even if the rerank query doesn't
+     * match it.
+     *
+     * @param candidateQuery A transformed query that picks the candidates.
+     * @param candidates The number of candidates to rerank.
+     * @param rerankQuery A transformed query that scores the candidates.
+     * @param requested The number of documents to retrieve, at most.
+     * @param budget Limits on the work done by both phases; may be null.
+     */
+    @Override
+    public ScoredDocument[] runRerankedQuery(Node candidateQuery, int candidates,
+            Node rerankQuery, int requested, QueryBudget budget) throws Exception {
+        PrefetchedLists prefetched = prefetchForQuery(candidateQuery);
+        startBudget(candidateQuery, budget, prefetched);
+
+        try {
+            ScoredDocument[] firstPhase =
+                    getArrayResults(evaluateRanges(candidateQuery, candidates, budget, prefetched));
+            release(prefetched);
+            prefetched = null;
+
+            if (budget != null && budget.isExceeded()) {
+                // the candidates are partial, and there's no time left to rerank them
+                ScoredDocument[] results = new ScoredDocument[Math.min(requested, firstPhase.length)];
+                System.arraycopy(firstPhase, 0, results, 0, results.length);
+                return results;
+            }
+
+            int[] documents = new int[firstPhase.length];
+
+            for (int i = 0; i < firstPhase.length; i++) {
+                documents[i] = firstPhase[i].document;
+            }
+            Arrays.sort(documents);
+
+            prefetched = prefetchForQuery(rerankQuery);
+            return getArrayResults(rerank(rerankQuery, documents, requested, budget, prefetched));
+        } finally {
+            release(prefetched);
+            finishBudget(budget);
+        }
+    }
+
+    /**
+     * Scores a sorted list of documents with a query.  The iterators are
+     * moved to each document in turn, so every list is still read forward,
+     * skipping from one candidate to the next.  The queue holds at most
+     * requested documents, with the lowest score at the head.  If the budget
+     * runs out, the candidates scored so far are returned.
+     */
+    PriorityQueue<ScoredDocument> rerank(Node queryTree, int[] documents, int requested,
+            QueryBudget budget, PrefetchedLists prefetched) throws Exception {
+        PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+
+        if (requested <= 0 || documents.length == 0) {
+            return queue;
+        }
+
+        CommonSubexpressions subexpressions =
+                shareSubexpressions ? new CommonSubexpressions(queryTree) : null;
+        // the conjunctions run on this thread, so they share its meter
+        QueryBudget.Meter meter = (budget == null) ? null : budget.meter(documents[0]);
+        ScoreIterator iterator =
+                (ScoreIterator) createIterator(queryTree, subexpressions, prefetched, meter);
+
+        for (int document : documents) {
+            if (meter != null && meter.tick(document, 1)) {
+                break;
+            }
+            // no part of the tree needs anything before this document, so shared lists can skip
+            if (subexpressions != null) {
+                subexpressions.skipAll(document);
+            }
+            iterator.moveTo(document);
+
+            int length = index.getLength(document);
+            double score = iterator.score(document, length);
+
+            if (queue.size() < requested || queue.peek().score < score) {
+                queue.add(new ScoredDocument(document, score));
+
+                if (queue.size() > requested) {
+                    queue.poll();
+                }
+            }
+        }
+
+        if (meter != null) {
+            meter.finish();
+        }
+        return queue;
     }
 
     public String getDocumentName(int document) {
@@ -123,6 +769,20 @@ public class StructuredRetrieval extends Retrieval {
     }
 
     public void close() throws IOException {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+            if (prefetchExecutor != null) {
+                prefetchExecutor.shutdown();
+                prefetchExecutor = null;
+            }
+            for (PrefetchedLists lists : plannedLists.values()) {
+                release(lists);
+            }
+            plannedLists.clear();
+        }
         index.close();
     }
 }
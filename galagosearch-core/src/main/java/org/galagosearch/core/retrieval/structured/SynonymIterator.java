@@ -1,8 +1,6 @@
 // BSD License (http://www.galagosearch.org/license)
 package org.galagosearch.core.retrieval.structured;
 
-import java.util.ArrayList;
-import java.util.PriorityQueue;
 import org.galagosearch.tupleflow.Parameters;
 
 /**
@@ -10,8 +8,14 @@ import org.galagosearch.tupleflow.Parameters;
  * @author trevor
  */
 public class SynonymIterator extends ExtentDisjunctionIterator {
+    // scratch space for loadExtents, reused for every document
+    ExtentIterator[] useable;
+    ExtentArrayIterator[] arrayIterators;
+
     public SynonymIterator(Parameters parameters, ExtentIterator[] iterators) {
         super(iterators);
+        useable = new ExtentIterator[iterators.length];
+        arrayIterators = new ExtentArrayIterator[iterators.length];
         loadExtents();
     }
 
@@ -20,31 +24,49 @@ public class SynonymIterator extends ExtentDisjunctionIterator {
         document = iter.document();
 
         // get all the iteators that point to this document
-        ArrayList<ExtentIterator> useable = new ArrayList<ExtentIterator>();
+        int count = 0;
         while (iterators.size() > 0 && iterators.peek().document() == document) {
-            useable.add(iterators.poll());
+            useable[count++] = iterators.poll();
         }
-        useable.add(iter);
+        useable[count++] = iter;
 
-        // make a priority queue of these ExtentArrayIterators
-        PriorityQueue<ExtentArrayIterator> arrayIterators = new PriorityQueue<ExtentArrayIterator>();
-        for (ExtentIterator iterator : useable) {
-            arrayIterators.offer(new ExtentArrayIterator(iterator.extents()));
+        // point an ExtentArrayIterator at each of them
+        for (int i = 0; i < count; i++) {
+            if (arrayIterators[i] == null) {
+                arrayIterators[i] = new ExtentArrayIterator(useable[i].extents());
+            } else {
+                arrayIterators[i].reset(useable[i].extents());
+            }
         }
-        while (arrayIterators.size() > 0) {
-            ExtentArrayIterator top = arrayIterators.poll();
-            extents.add(top.current());
 
-            if (top.next()) {
-                arrayIterators.offer(top);
+        // merge the extents in position order; there are usually only a few
+        // synonyms, so a linear scan for the smallest is cheap enough
+        int active = count;
+        while (active > 0) {
+            int top = 0;
+            for (int i = 1; i < active; i++) {
+                if (arrayIterators[i].begin() < arrayIterators[top].begin()) {
+                    top = i;
+                }
+            }
+
+            arrayIterators[top].copyTo(extents);
+
+            if (!arrayIterators[top].next()) {
+                // swap the finished iterator out of the active range
+                active--;
+                ExtentArrayIterator finished = arrayIterators[top];
+                arrayIterators[top] = arrayIterators[active];
+                arrayIterators[active] = finished;
             }
         }
 
         // put back the ones we used
-        for (ExtentIterator i : useable) {
-            if (!i.isDone()) {
-                iterators.offer(i);
+        for (int i = 0; i < count; i++) {
+            if (!useable[i].isDone()) {
+                iterators.offer(useable[i]);
             }
+            useable[i] = null;
         }
     }
 }
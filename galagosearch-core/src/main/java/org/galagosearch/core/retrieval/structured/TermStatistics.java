@@ -0,0 +1,26 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval.structured;
+
+/**
+ * Collection statistics for a single inverted list, read from the
+ * list header without decoding the postings.  A value of -1 means that
+ * the index doesn't store that statistic.
+ * 
+ * @author trevor
+ */
+public class TermStatistics {
+    public TermStatistics(long collectionFrequency, long documentFrequency) {
+        this.collectionFrequency = collectionFrequency;
+        this.documentFrequency = documentFrequency;
+    }
+
+    public String toString() {
+        return String.format("%d,%d", collectionFrequency, documentFrequency);
+    }
+
+    /// Total number of occurrences of the term in the collection.
+    public long collectionFrequency;
+    /// Number of documents that contain the term.
+    public long documentFrequency;
+}
@@ -0,0 +1,136 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.structured;
+
+import java.util.PriorityQueue;
+import org.galagosearch.core.retrieval.ScoredDocument;
+
+/**
+ * <p>Keeps the top scoring documents seen so far, in a binary heap stored as
+ * two parallel arrays.  Unlike a PriorityQueue of ScoredDocuments, offering a
+ * document allocates nothing.</p>
+ *
+ * <p>Documents are ordered the same way as ScoredDocument: by score, and then
+ * by document number, with lower numbers first.  The worst document is at the
+ * root of the heap.</p>
+ *
+ * @author trevor
+ */
+public class TopDocuments {
+    int[] documents;
+    double[] scores;
+    int size;
+
+    public TopDocuments(int capacity) {
+        capacity = Math.max(0, capacity);
+        documents = new int[capacity];
+        scores = new double[capacity];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return documents.length;
+    }
+
+    public boolean isFull() {
+        return size == documents.length;
+    }
+
+    /**
+     * The lowest score in the heap, which a document has to beat once the
+     * heap is full.  Returns negative infinity if the heap isn't full.
+     */
+    public double minimumScore() {
+        if (!isFull() || size == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return scores[0];
+    }
+
+    /// True if document a ranks below document b.
+    static boolean worse(double scoreA, int documentA, double scoreB, int documentB) {
+        if (scoreA != scoreB) {
+            return scoreA < scoreB;
+        }
+        return documentA > documentB;
+    }
+
+    /**
+     * Adds a document, if it belongs in the top documents.
+     */
+    public void offer(int document, double score) {
+        if (size < documents.length) {
+            // sift the new document up from the bottom
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (!worse(score, document, scores[parent], documents[parent])) {
+                    break;
+                }
+                documents[index] = documents[parent];
+                scores[index] = scores[parent];
+                index = parent;
+            }
+            documents[index] = document;
+            scores[index] = score;
+        } else if (size > 0 && worse(scores[0], documents[0], score, document)) {
+            siftDown(document, score);
+        }
+    }
+
+    /**
+     * Replaces the root with a new document and restores the heap.
+     */
+    void siftDown(int document, double score) {
+        int index = 0;
+        int half = size >>> 1;
+
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+
+            if (right < size && worse(scores[right], documents[right], scores[child], documents[child])) {
+                child = right;
+            }
+            if (!worse(scores[child], documents[child], score, document)) {
+                break;
+            }
+            documents[index] = documents[child];
+            scores[index] = scores[child];
+            index = child;
+        }
+        documents[index] = document;
+        scores[index] = score;
+    }
+
+    /**
+     * Returns the documents, best first.  The heap is left empty.
+     */
+    public ScoredDocument[] toArray() {
+        ScoredDocument[] results = new ScoredDocument[size];
+
+        for (int i = size - 1; i >= 0; i--) {
+            results[i] = new ScoredDocument(documents[0], scores[0]);
+            size--;
+            if (size > 0) {
+                siftDown(documents[size], scores[size]);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the documents in a PriorityQueue, with the lowest score at
+     * the head, like the queues built by StructuredRetrieval.evaluate.
+     */
+    public PriorityQueue<ScoredDocument> toQueue() {
+        PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+        for (int i = 0; i < size; i++) {
+            queue.add(new ScoredDocument(documents[i], scores[i]));
+        }
+        return queue;
+    }
+}
@@ -3,6 +3,7 @@ package org.galagosearch.core.retrieval.structured;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.Utility;
 
@@ -16,7 +17,12 @@ public class UnorderedWindowIterator extends ExtentConjunctionIterator {
 
     /** Creates a new instance of UnorderedWindowIterator */
     public UnorderedWindowIterator(Parameters parameters, ExtentIterator[] extentIterators) throws IOException {
-        super(extentIterators);
+        this(parameters, extentIterators, null);
+    }
+
+    public UnorderedWindowIterator(Parameters parameters, ExtentIterator[] extentIterators,
+            QueryBudget.Meter meter) throws IOException {
+        super(parameters, extentIterators, meter);
         this.width = (int) parameters.getAsDefault("width", -1);
         this.overlap = parameters.get("overlap", false);
         findDocument();
@@ -25,17 +31,14 @@ public class UnorderedWindowIterator extends ExtentConjunctionIterator {
     public void loadExtents() {
         extents.reset();
 
-        ExtentArrayIterator[] iterators;
+        ExtentArrayIterator[] iterators = resetArrayIterators();
         int maximumPosition = 0;
         int minimumPosition = Integer.MAX_VALUE;
 
         // someday this will be a heap/priorityQueue for the overlapping case
-        iterators = new ExtentArrayIterator[extentIterators.length];
-
-        for (int i = 0; i < extentIterators.length; i++) {
-            iterators[i] = new ExtentArrayIterator(extentIterators[i].extents());
-            minimumPosition = Math.min(iterators[i].current().begin, minimumPosition);
-            maximumPosition = Math.max(iterators[i].current().end, maximumPosition);
+        for (int i = 0; i < iterators.length; i++) {
+            minimumPosition = Math.min(iterators[i].begin(), minimumPosition);
+            maximumPosition = Math.max(iterators[i].end(), maximumPosition);
         }
 
         do {
@@ -49,7 +52,7 @@ public class UnorderedWindowIterator extends ExtentConjunctionIterator {
                 // either it didn't just match or we don't care about overlap,
                 // so we want to increment only the very first iterator
                 for (int i = 0; i < iterators.length; i++) {
-                    if (iterators[i].current().begin == minimumPosition) {
+                    if (iterators[i].begin() == minimumPosition) {
                         boolean result = iterators[i].next();
 
                         if (!result) {
@@ -60,7 +63,7 @@ public class UnorderedWindowIterator extends ExtentConjunctionIterator {
             } else {
                 // last was a match, so increment all iterators past the end of the match
                 for (int i = 0; i < iterators.length; i++) {
-                    while (iterators[i].current().begin < maximumPosition) {
+                    while (iterators[i].begin() < maximumPosition) {
                         boolean result = iterators[i].next();
 
                         if (!result) {
@@ -76,8 +79,8 @@ public class UnorderedWindowIterator extends ExtentConjunctionIterator {
 
             // now, reset bounds
             for (int i = 0; i < iterators.length; i++) {
-                minimumPosition = Math.min(minimumPosition, iterators[i].current().begin);
-                maximumPosition = Math.max(maximumPosition, iterators[i].current().end);
+                minimumPosition = Math.min(minimumPosition, iterators[i].begin());
+                maximumPosition = Math.max(maximumPosition, iterators[i].end());
             }
         } while (true);
     }
@@ -6,6 +6,7 @@ import org.galagosearch.core.retrieval.query.Node;
 import org.galagosearch.core.retrieval.query.NodeType;
 import org.galagosearch.core.retrieval.query.Traversal;
 import org.galagosearch.core.retrieval.structured.CountIterator;
+import org.galagosearch.core.retrieval.structured.ExtentIterator;
 import org.galagosearch.core.retrieval.structured.ScoreIterator;
 import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
 import org.galagosearch.tupleflow.Parameters;
@@ -17,6 +18,10 @@ import org.galagosearch.tupleflow.Parameters;
  * #combine(dog).  This transformation automatically adds the #feature:dirichlet
  * operator.
  * 
+ * When a scoring feature only needs counts, this traversal also replaces an
+ * index #extents node underneath it with the equivalent #counts node, if the
+ * index part supplies one, so that term positions are never read.
+ * 
  * @author trevor
  */
 public class ImplicitFeatureCastTraversal implements Traversal {
@@ -28,10 +33,31 @@ public class ImplicitFeatureCastTraversal implements Traversal {
     
     Node createSmoothingNode(Node child) {
         ArrayList<Node> data = new ArrayList<Node>();
-        data.add(child);
+        data.add(countsNode(child));
         return new Node("feature", "dirichlet", data, child.getPosition());
     }
     
+    /**
+     * Returns a #counts version of an #extents node, if the index has a
+     * matching counts iterator, or the original node otherwise.
+     */
+    Node countsNode(Node child) {
+        if (!child.getOperator().equals("extents")) {
+            return child;
+        }
+
+        Node counts = new Node("counts", child.getParameters(),
+                               child.getInternalNodes(), child.getPosition());
+        try {
+            if (isCountNode(counts)) {
+                return counts;
+            }
+        } catch (Exception e) {
+            // no index part supplies this node, so keep the extents
+        }
+        return child;
+    }
+
     public boolean isCountNode(Node node) throws Exception {
         NodeType nodeType = retrieval.getNodeType(node);
         if (nodeType == null) return false;
@@ -60,6 +86,10 @@ public class ImplicitFeatureCastTraversal implements Traversal {
                 isCountNode(children.get(i-1))) {
                 Node feature = createSmoothingNode(child);
                 newChildren.add(feature);
+            } else if (CountIterator.class.isAssignableFrom(types[i]) &&
+                       !ExtentIterator.class.isAssignableFrom(types[i])) {
+                // The parent only needs counts, so positions aren't necessary.
+                newChildren.add(countsNode(child));
             } else {
                 newChildren.add(child);
             }
@@ -0,0 +1,265 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.core.retrieval.traversal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import org.galagosearch.core.index.PrefetchedLists;
+import org.galagosearch.core.index.StructuredIndex;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.NodeType;
+import org.galagosearch.core.retrieval.query.Traversal;
+import org.galagosearch.core.retrieval.structured.ExtentConjunctionIterator;
+import org.galagosearch.core.retrieval.structured.ExtentDisjunctionIterator;
+import org.galagosearch.core.retrieval.structured.ExtentIterator;
+import org.galagosearch.core.retrieval.structured.FilteredCombinationIterator;
+import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+import org.galagosearch.core.retrieval.structured.UnfilteredCombinationIterator;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * <p>Plans the evaluation of a query using the document frequencies stored
+ * in the index.  If the <tt>queryPlanning</tt> parameter is set, this
+ * traversal runs after ImplicitFeatureCastTraversal, once the tree has its
+ * final shape.  It's off by default, since it reads the header of every
+ * term's list while the query is transformed.  With <tt>prefetchThreads</tt>
+ * set, StructuredRetrieval reads the lists ahead before planning, and the
+ * headers come from those lists instead (see setPrefetchedLists).</p>
+ *
+ * <p>Conjunctive operators (#od, #uw, #inside, #filter) only match documents
+ * that all their children match, and they find those documents fastest when
+ * the rarest child leads.  The children can't be reordered in the tree, since
+ * the order matters to #od and #inside, so this traversal adds an
+ * <tt>evaluationOrder</tt> parameter (like <tt>evaluationOrder=2,0,1</tt>)
+ * that lists the children from most to least selective.</p>
+ *
+ * <p>A conjunction that contains a term missing from the index can't match
+ * anything.  Extent nodes like that are replaced with <tt>#null()</tt>, so
+ * none of their lists are opened.  Most missing terms are rejected by the
+ * term filter of their index part, so finding them costs no I/O.</p>
+ *
+ * <p>The explain method prints a plan with the estimated number of matching
+ * documents and the estimated cost (postings read) of every node.</p>
+ *
+ * @author trevor
+ */
+public class QueryPlanningTraversal implements Traversal {
+    public static final long UNKNOWN = -1;
+
+    StructuredRetrieval retrieval;
+    StructuredIndex index;
+    PrefetchedLists prefetched;
+    IdentityHashMap<Node, Long> estimates;
+
+    public QueryPlanningTraversal(Parameters parameters, StructuredRetrieval retrieval) {
+        this.retrieval = retrieval;
+        this.index = retrieval.getIndex();
+        this.estimates = new IdentityHashMap<Node, Long>();
+    }
+
+    /**
+     * Takes the statistics of index lists from prefetched, when they were
+     * read ahead there, instead of reading their headers.  May be null.
+     */
+    public void setPrefetchedLists(PrefetchedLists prefetched) {
+        this.prefetched = prefetched;
+    }
+
+    public void beforeNode(Node node) throws Exception {
+    }
+
+    public Node afterNode(Node node) throws Exception {
+        Class type = getIteratorClass(node);
+        ArrayList<Node> children = node.getInternalNodes();
+
+        if (type == null || children.size() == 0) {
+            return node;
+        }
+
+        // an extent operator that can't match anything becomes a #null node
+        if (ExtentIterator.class.isAssignableFrom(type) && estimate(node) == 0 &&
+            (isConjunction(type) || isDisjunction(type))) {
+            Node empty = new Node("null", new ArrayList<Node>(), node.getPosition());
+            estimates.put(empty, 0L);
+            return empty;
+        }
+
+        if (isConjunction(type) && children.size() > 1) {
+            String order = evaluationOrder(children);
+
+            if (order != null) {
+                Parameters parameters = node.getParameters().clone();
+                parameters.set("evaluationOrder", order);
+                Node planned = new Node(node.getOperator(), parameters, children, node.getPosition());
+                estimates.put(planned, estimate(node));
+                return planned;
+            }
+        }
+
+        return node;
+    }
+
+    Class getIteratorClass(Node node) {
+        try {
+            NodeType type = retrieval.getNodeType(node);
+            return type == null ? null : type.getIteratorClass();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    static boolean isConjunction(Class type) {
+        return ExtentConjunctionIterator.class.isAssignableFrom(type) ||
+               FilteredCombinationIterator.class.isAssignableFrom(type);
+    }
+
+    static boolean isDisjunction(Class type) {
+        return ExtentDisjunctionIterator.class.isAssignableFrom(type) ||
+               UnfilteredCombinationIterator.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Returns the children's indexes sorted from the fewest to the most
+     * matching documents, separated by commas, or null if the children
+     * are already in that order.  Children without estimates go last.
+     */
+    String evaluationOrder(ArrayList<Node> children) {
+        int count = children.size();
+        Integer[] order = new Integer[count];
+        final long[] keys = new long[count];
+
+        for (int i = 0; i < count; i++) {
+            long estimate = estimate(children.get(i));
+            keys[i] = (estimate == UNKNOWN) ? Long.MAX_VALUE : estimate;
+            order[i] = i;
+        }
+
+        // a stable sort, so children with equal estimates keep query order
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                if (keys[a] != keys[b]) {
+                    return keys[a] < keys[b] ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+
+        boolean changed = false;
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (order[i] != i) {
+                changed = true;
+            }
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(order[i]);
+        }
+
+        return changed ? builder.toString() : null;
+    }
+
+    /**
+     * Estimates the number of documents this node matches, or returns
+     * UNKNOWN if there's no way to tell.  Index nodes use the stored
+     * document frequency.  A conjunction matches no more documents than
+     * its rarest child, and a disjunction no more than all its children
+     * together.
+     */
+    public long estimate(Node node) {
+        Long cached = estimates.get(node);
+        if (cached != null) {
+            return cached;
+        }
+
+        long estimate = computeEstimate(node);
+        estimates.put(node, estimate);
+        return estimate;
+    }
+
+    long computeEstimate(Node node) {
+        if (node.getOperator().equals("null")) {
+            return 0;
+        }
+
+        TermStatistics statistics = null;
+        try {
+            statistics = index.getStatistics(node, prefetched);
+        } catch (Exception e) {
+            // this part can't estimate the node; use its children instead
+        }
+        if (statistics != null && statistics.documentFrequency >= 0) {
+            return statistics.documentFrequency;
+        }
+
+        ArrayList<Node> children = node.getInternalNodes();
+        Class type = getIteratorClass(node);
+        if (children.size() == 0 || type == null) {
+            return UNKNOWN;
+        }
+
+        if (isConjunction(type)) {
+            long minimum = UNKNOWN;
+            for (Node child : children) {
+                long estimate = estimate(child);
+                if (estimate != UNKNOWN && (minimum == UNKNOWN || estimate < minimum)) {
+                    minimum = estimate;
+                }
+            }
+            return minimum;
+        } else if (isDisjunction(type)) {
+            long total = 0;
+            for (Node child : children) {
+                long estimate = estimate(child);
+                if (estimate == UNKNOWN) {
+                    return UNKNOWN;
+                }
+                total += estimate;
+            }
+            long documentCount = index.getDocumentCount();
+            return documentCount > 0 ? Math.min(total, documentCount) : total;
+        } else if (children.size() == 1) {
+            return estimate(children.get(0));
+        }
+
+        return UNKNOWN;
+    }
+
+    /**
+     * Returns the plan for a query tree (usually one that this traversal
+     * has already transformed), one node per line, indented to show the
+     * tree structure.
+     */
+    public String explain(Node tree) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        explain(tree, 0, builder);
+        return builder.toString();
+    }
+
+    void explain(Node node, int depth, StringBuilder builder) throws Exception {
+        for (int i = 0; i < depth; i++) {
+            builder.append("  ");
+        }
+
+        // print the node without its children
+        String label = new Node(node.getOperator(), node.getParameters(),
+                                new ArrayList<Node>(), node.getPosition()).toString();
+        if (label.endsWith("()")) {
+            label = label.substring(0, label.length() - 2);
+        }
+        builder.append(label);
+
+        long estimate = estimate(node);
+        builder.append("  documents=");
+        builder.append(estimate == UNKNOWN ? "?" : Long.toString(estimate));
+        builder.append(" cost=");
+        builder.append(retrieval.estimateCost(node));
+        builder.append('\n');
+
+        for (Node child : node.getInternalNodes()) {
+            explain(child, depth + 1, builder);
+        }
+    }
+}
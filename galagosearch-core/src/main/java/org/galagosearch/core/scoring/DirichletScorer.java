@@ -2,6 +2,8 @@
 package org.galagosearch.core.scoring;
 
 import java.io.IOException;
+import org.galagosearch.core.retrieval.structured.BoundedCountIterator;
+import org.galagosearch.core.retrieval.structured.BoundedScoreIterator;
 import org.galagosearch.core.retrieval.structured.CountIterator;
 import org.galagosearch.core.retrieval.structured.RequiredStatistics;
 import org.galagosearch.core.retrieval.structured.ScoringFunctionIterator;
@@ -11,18 +13,28 @@ import org.galagosearch.tupleflow.Parameters;
  *
  * @author trevor
  */
-@RequiredStatistics(statistics = {"collectionLength"})
-public class DirichletScorer extends ScoringFunctionIterator {
+@RequiredStatistics(statistics = {"collectionLength", "collectionFrequency"})
+public class DirichletScorer extends ScoringFunctionIterator implements BoundedScoreIterator {
     double background;
     double mu;
+    BoundedCountIterator bounded;
 
     public DirichletScorer(Parameters parameters, CountIterator iterator) throws IOException {
         super(iterator);
 
+        if (iterator instanceof BoundedCountIterator) {
+            bounded = (BoundedCountIterator) iterator;
+        }
+
         mu = parameters.get("mu", 1500);
         if (parameters.containsKey("collectionProbability")) {
             background = parameters.get("collectionProbability", 0.0001);
+        } else if (parameters.containsKey("collectionFrequency")) {
+            long collectionLength = parameters.get("collectionLength", (long)0);
+            long count = parameters.get("collectionFrequency", (long)0);
+            background = (double)count / (double)collectionLength;
         } else {
+            // no stored statistics for this iterator (e.g. a window), so scan it
             long collectionLength = parameters.get("collectionLength", (long)0);
             long count = 0;
             
@@ -42,5 +54,39 @@ public class DirichletScorer extends ScoringFunctionIterator {
 
         return Math.log(numerator / denominator);
     }
+
+    @Override
+    public void scoreBlock(int[] counts, int[] lengths, double[] scores, int blockSize) {
+        double smoothing = mu * background;
+
+        for (int i = 0; i < blockSize; i++) {
+            scores[i] = Math.log((counts[i] + smoothing) / (lengths[i] + mu));
+        }
+    }
+
+    // The score grows with the count and shrinks with the document length,
+    // so the bounds use the largest count and the smallest length.
+
+    public double maximumScore() {
+        if (bounded == null || bounded.maximumCount() < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return scoreCount(bounded.maximumCount(), 0);
+    }
+
+    public double maximumUnmatchedScore() {
+        return scoreCount(0, 0);
+    }
+
+    public double maximumScore(int document, int length) throws IOException {
+        if (bounded == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+        int count = bounded.maximumCount(document);
+        if (count < 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return scoreCount(count, length);
+    }
 }
 
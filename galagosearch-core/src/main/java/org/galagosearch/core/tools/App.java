@@ -55,12 +55,39 @@ public class App {
         System.out.println();
         System.out.println("  Args:");
         System.out.println("     --index=path_to_your_index");
+        System.out.println("                 Give --index more than once to search several index");
+        System.out.println("                 shards as one index, with collection-wide statistics.");
+        System.out.println("                 A shard can also be the http:// URL of a galago search");
+        System.out.println("                 server.  Documents are numbered in shard order.");
         System.out.println("     --count : Number of results to return for each query, default=1000");
+        System.out.println("     --threads : Number of queries to run at once, default=1.  The output");
+        System.out.println("                 is in the same order either way.  Each thread opens its");
+        System.out.println("                 own copy of the index unless --memoryMapped=true is set.");
+        System.out.println("     --queryPlanning : If true, orders the children of windows by their");
+        System.out.println("                 document frequencies, and drops windows over missing");
+        System.out.println("                 terms.  This reads list headers when queries are parsed.");
+        System.out.println("     --printPlans : If true, prints each query's evaluation plan, with");
+        System.out.println("                 estimated document counts and costs, to stderr.");
+        System.out.println("     --candidates : Number of documents a query with a rerank tag passes");
+        System.out.println("                 to its rerank query, default=count.");
+        System.out.println("     --queryTimeLimit : Milliseconds each query may run before it stops");
+        System.out.println("                 and returns the best documents found so far.");
+        System.out.println("     --queryDocumentLimit : Documents each query may score.");
+        System.out.println("     --queryPostingsLimit : Postings (estimated) each query may read.");
+        System.out.println("                 Queries that run out of budget are reported on stderr.");
+        System.out.println("     --prefetchThreads : Number of threads that read the lists of a");
+        System.out.println("                 query's terms at the same time before it is scored,");
+        System.out.println("                 default=0 (lists are read one at a time).");
+        System.out.println();
+        System.out.println("  Throughput and query latency percentiles are printed to stderr at the end.");
         System.out.println();
         System.out.println("  Query file format:");
         System.out.println("    The query file is an XML file containing a set of queries.  Each query");
         System.out.println("    has text tag, which contains the text of the query, and a number tag, ");
-        System.out.println("    which uniquely identifies the query in the output.");
+        System.out.println("    which uniquely identifies the query in the output.  A query can also");
+        System.out.println("    have a rerank tag, with a more expensive query that rescores just the");
+        System.out.println("    top documents of the first one, and a candidates tag, which sets how");
+        System.out.println("    many documents are rescored.");
         System.out.println();
         System.out.println("  Example query file:");
         System.out.println("  <parameters>");
@@ -71,6 +98,8 @@ public class App {
         System.out.println("     <query>");
         System.out.println("        <number>WIKI-410</number>");
         System.out.println("        <text>#combine(another query)</text>");
+        System.out.println("        <rerank>#combine(another query #od:1(another query))</rerank>");
+        System.out.println("        <candidates>100</candidates>");
         System.out.println("     </query>");
         System.out.println("  </parameters>");
     }
@@ -97,6 +126,12 @@ public class App {
         System.out.println("  --stemming={true|false}: Selects whether to build stemmed inverted ");
         System.out.println("                           lists in addition to non-stemmed ones.");
         System.out.println("                           [default=true]");
+        System.out.println("  --postingsCodec={vbyte|block}: Selects the compression used for ");
+        System.out.println("                           inverted lists; block is faster to decode.");
+        System.out.println("                           [default=vbyte]");
+        System.out.println("  --writerPartitions=<n>:  Writes each inverted list part with n ");
+        System.out.println("                           parallel writers, as n partitions.");
+        System.out.println("                           [default=1]");
     }
 
     private static void handleBuild(String[] args) throws Exception {
@@ -116,6 +151,8 @@ public class App {
         boolean stemming = p.get("stemming", true);
 
         BuildIndex build = new BuildIndex();
+        build.setPostingsCodec(p.get("postingsCodec", "vbyte"));
+        build.setWriterPartitions((int) p.get("writerPartitions", 1));
         Job job = build.getIndexJob(args[1], docs, useLinks, stemming);
         ErrorStore store = new ErrorStore();
         JobExecutor.runLocally(job, store);
@@ -124,6 +161,22 @@ public class App {
         }
     }
 
+    private static void handleMergeIndex(String[] args) throws Exception {
+        if (args.length <= 2) {
+            commandHelp(args[0]);
+            return;
+        }
+
+        new File(args[1]).mkdirs();
+        MergeIndex merge = new MergeIndex();
+        Job job = merge.getMergeJob(args[1], Utility.subarray(args, 2));
+        ErrorStore store = new ErrorStore();
+        JobExecutor.runLocally(job, store);
+        if (store.hasStatements()) {
+            System.out.println(store.toString());
+        }
+    }
+
     private static void handleDoc(String[] args) throws IOException {
         if (args.length <= 2) {
             commandHelp(args[0]);
@@ -264,7 +317,13 @@ public class App {
         }
 
         Parameters p = new Parameters(flags);
-        Retrieval retrieval = Retrieval.instance(indexPath, p);
+        ArrayList<String> indexPaths = new ArrayList<String>();
+        indexPaths.add(indexPath);
+        for (Parameters.Value value : p.list("shard")) {
+            indexPaths.add(value.toString());
+        }
+
+        Retrieval retrieval = Retrieval.instance(indexPaths, p);
         handleSearch(retrieval, getDocumentStore(corpusFiles));
     }
 
@@ -335,6 +394,7 @@ public class App {
         System.out.println("   dump-keys");
         System.out.println("   eval");
         System.out.println("   make-corpus");
+        System.out.println("   merge-index");
         System.out.println("   search");
     }
 
@@ -382,6 +442,14 @@ public class App {
             System.out.println("          specified as you like.  Galago can read html, xml, txt, ");
             System.out.println("          arc (Heritrix), trectext, trecweb and corpus files.");
             System.out.println("          Files may be gzip compressed (.gz).");
+        } else if (command.equals("merge-index")) {
+            System.out.println("galago merge-index <index> (<input-index>)+");
+            System.out.println();
+            System.out.println("  Merges indexes built by galago build into a new index, without");
+            System.out.println("  parsing the documents again.  The documents of each input index");
+            System.out.println("  are numbered after those of the inputs before it, so the result is");
+            System.out.println("  the index of all the collections, in the order given.  Every input");
+            System.out.println("  index must have the same parts.");
         } else if (command.equals("search")) {
             System.out.println("galago search [--parameters=<filename>] <index> <corpus>+");
             System.out.println();
@@ -394,9 +462,24 @@ public class App {
             System.out.println("  the documentation for ");
             System.out.println("  org.galagosearch.core.retrieval.structured.FeatureFactory for more");
             System.out.println("  information.");
+            System.out.println();
+            System.out.println("  Setting --resultCacheEntries=<n> caches the results of the n most");
+            System.out.println("  recent queries, so repeated queries and later result pages are");
+            System.out.println("  served without running the query again.  --resultCacheBytes limits");
+            System.out.println("  the memory the cache uses (default 64MB).");
+            System.out.println();
+            System.out.println("  --queryTimeLimit=<ms>, --queryDocumentLimit=<n> and");
+            System.out.println("  --queryPostingsLimit=<n> limit the work each query can do.  A query");
+            System.out.println("  that runs out of budget returns the best results found so far, and");
+            System.out.println("  is marked partial in the results page and the XML output.");
+            System.out.println();
+            System.out.println("  --shard=<index or URL> adds another index shard; the index and its");
+            System.out.println("  shards are searched together as one index.  A shard can be the");
+            System.out.println("  http://host:port URL of another galago search server.");
         } else if (command.equals("all")) {
             String[] commands = { "batch-search", "build", "doc", "dump-connection", "dump-corpus",
-                                  "dump-index", "dump-keys", "eval", "make-corpus", "search" };
+                                  "dump-index", "dump-keys", "eval", "make-corpus", "merge-index",
+                                  "search" };
             for (String c : commands) {
                 commandHelp(c);
                 System.out.println();
@@ -432,6 +515,8 @@ public class App {
             handleDumpKeys(args);
         } else if (command.equals("make-corpus")) {
             handleMakeCorpus(args);
+        } else if (command.equals("merge-index")) {
+            handleMergeIndex(args);
         } else if (command.equals("search")) {
             handleSearch(args);
         } else {
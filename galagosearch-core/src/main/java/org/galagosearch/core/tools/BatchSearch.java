@@ -1,7 +1,20 @@
 // BSD License (http://www.galagosearch.org/license)
 package org.galagosearch.core.tools;
 
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.galagosearch.core.retrieval.QueryBudget;
 import org.galagosearch.core.retrieval.Retrieval;
 import org.galagosearch.core.retrieval.ScoredDocument;
 import org.galagosearch.core.retrieval.query.Node;
@@ -41,33 +54,222 @@ public class BatchSearch {
         return String.format("%10.8f", score);
     }
 
-    public static void main(String[] args) throws Exception {
-        // read in parameters
-        Parameters parameters = new Parameters(args);
-        List<Parameters.Value> queries = parameters.list("query");
+    /**
+     * Runs one query and returns its results in TREC format.  If the query
+     * has a rerank tag, its text is a second query that rescores the top
+     * candidates documents found by the first one.  The number of candidates
+     * comes from the query's candidates tag, or the candidates parameter,
+     * or else it's the number of requested results.
+     */
+    public static String runQuery(Retrieval retrieval, Parameters.Value query,
+            Parameters parameters, int requested) throws Exception {
+        // parse the query
+        String queryText = query.get("text");
+        Node queryRoot = parseQuery(queryText, parameters);
+        Node transformed = retrieval.transformQuery(queryRoot);
+        Node rerank = null;
+
+        if (query.containsKey("rerank")) {
+            rerank = retrieval.transformQuery(parseQuery(query.get("rerank"), parameters));
+        }
+
+        if (parameters.get("printPlans", false)) {
+            String plan = retrieval.explainQuery(transformed);
+            if (rerank != null) {
+                plan += "# rerank\n" + retrieval.explainQuery(rerank);
+            }
+            synchronized (System.err) {
+                System.err.print("# query " + query.get("number") + "\n" + plan);
+            }
+        }
+
+        ScoredDocument[] results;
+        QueryBudget budget = retrieval.newBudget();
+        if (rerank == null) {
+            results = retrieval.runQuery(transformed, requested, budget);
+        } else {
+            int candidates = (int) parameters.get("candidates", requested);
+            candidates = Integer.parseInt(query.get("candidates", Integer.toString(candidates)));
+            results = retrieval.runRerankedQuery(transformed, candidates, rerank, requested, budget);
+        }
+
+        if (budget != null && budget.isExceeded()) {
+            synchronized (System.err) {
+                System.err.println("# query " + query.get("number") +
+                                   " ran out of budget; its results are partial");
+            }
+        }
+        StringBuilder output = new StringBuilder();
+
+        for (int i = 0; i < results.length; i++) {
+            String document = retrieval.getDocumentName(results[i].document);
+            double score = results[i].score;
+            int rank = i + 1;
+
+            output.append(String.format("%s Q0 %s %d %s galago\n", query.get("number"), document, rank,
+                                        formatScore(score)));
+        }
+
+        return output.toString();
+    }
+
+    /**
+     * A query task for the worker pool.  Each task borrows a retrieval
+     * handle from the pool, so no two threads use the same handle at once
+     * (unless the index is memory mapped, in which case the handle is shared).
+     */
+    static class QueryTask implements Callable<String> {
+        BlockingQueue<Retrieval> retrievals;
+        Parameters.Value query;
+        Parameters parameters;
+        int requested;
+        long elapsed;
 
-        // open index
-        Retrieval retrieval = Retrieval.instance(parameters.get("index"), parameters);
+        QueryTask(BlockingQueue<Retrieval> retrievals, Parameters.Value query,
+                Parameters parameters, int requested) {
+            this.retrievals = retrievals;
+            this.query = query;
+            this.parameters = parameters;
+            this.requested = requested;
+        }
+
+        public String call() throws Exception {
+            Retrieval retrieval = retrievals.take();
+
+            try {
+                long start = System.nanoTime();
+                String output = runQuery(retrieval, query, parameters, requested);
+                elapsed = System.nanoTime() - start;
+                return output;
+            } finally {
+                retrievals.put(retrieval);
+            }
+        }
+    }
+
+    static double percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        index = Math.max(0, Math.min(sorted.length - 1, index));
+        return sorted[index] / 1000000.0;
+    }
+
+    /**
+     * Prints throughput and latency percentiles for the run.
+     */
+    static void printStatistics(PrintStream output, long[] latencies, long elapsed) {
+        Arrays.sort(latencies);
+        double seconds = elapsed / 1000000000.0;
+        double throughput = seconds > 0 ? latencies.length / seconds : 0;
+
+        output.format("queries: %d, seconds: %.3f, queries/second: %.2f\n",
+                      latencies.length, seconds, throughput);
+        output.format("latency (ms): p50 %.2f, p90 %.2f, p99 %.2f, max %.2f\n",
+                      percentile(latencies, 0.50), percentile(latencies, 0.90),
+                      percentile(latencies, 0.99), percentile(latencies, 1.0));
+    }
+
+    /**
+     * Runs every query in the parameters, printing results to output in query
+     * order.  If the <tt>threads</tt> parameter is more than 1, queries run
+     * concurrently on a pool of that many threads.  Unless the index is memory
+     * mapped, each thread gets its own Retrieval.  The output is the same as
+     * with one thread.
+     *
+     * @return The latency of each query, in nanoseconds.
+     */
+    public static long[] run(Parameters parameters, PrintStream output) throws Exception {
+        List<Parameters.Value> queries = parameters.list("query");
+        int threads = (int) Math.max(1, parameters.get("threads", 1));
+        boolean shared = parameters.get("memoryMapped", false);
 
         // record results requested
         int requested = (int) parameters.get("count", 1000);
+        long[] latencies = new long[queries.size()];
 
-        // for each query, run it, get the results, look up the docnos, print in TREC format
-        for (Parameters.Value query : queries) {
-            // parse the query
-            String queryText = query.get("text");
-            Node queryRoot = parseQuery(queryText, parameters);
+        // open index; with several index parameters, the indexes are searched as shards of one
+        ArrayList<String> indexPaths = new ArrayList<String>();
+        for (Parameters.Value value : parameters.list("index")) {
+            indexPaths.add(value.toString());
+        }
+
+        ArrayList<Retrieval> opened = new ArrayList<Retrieval>();
+        BlockingQueue<Retrieval> retrievals = new LinkedBlockingQueue<Retrieval>();
+
+        for (int i = 0; i < threads; i++) {
+            if (i == 0 || !shared) {
+                opened.add(Retrieval.instance(indexPaths, parameters));
+            }
+            retrievals.add(opened.get(opened.size() - 1));
+        }
+
+        ExecutorService executor = null;
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
 
-            ScoredDocument[] results = retrieval.runQuery(queryRoot, requested);
+        try {
+            // keep a bounded number of queries in flight, and print them in order
+            LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+            LinkedList<QueryTask> pendingTasks = new LinkedList<QueryTask>();
+            int maximumPending = threads * 4;
+            int printed = 0;
 
-            for (int i = 0; i < results.length; i++) {
-                String document = retrieval.getDocumentName(results[i].document);
-                double score = results[i].score;
-                int rank = i + 1;
+            for (int i = 0; i < queries.size() || pending.size() > 0;) {
+                if (i < queries.size() && pending.size() < maximumPending) {
+                    QueryTask task = new QueryTask(retrievals, queries.get(i), parameters, requested);
 
-                System.out.format("%s Q0 %s %d %s galago\n", query.get("number"), document, rank,
-                                  formatScore(score));
+                    if (executor == null) {
+                        FutureTask<String> future = new FutureTask<String>(task);
+                        future.run();
+                        pending.add(future);
+                    } else {
+                        pending.add(executor.submit(task));
+                    }
+                    pendingTasks.add(task);
+                    i++;
+                    continue;
+                }
+
+                try {
+                    output.print(pending.removeFirst().get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+                latencies[printed++] = pendingTasks.removeFirst().elapsed;
+            }
+
+            long exceeded = 0;
+            for (Retrieval retrieval : opened) {
+                exceeded += retrieval.getBudgetExceededCount();
+            }
+            if (exceeded > 0) {
+                System.err.format("queries over budget: %d of %d\n", exceeded, queries.size());
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (Retrieval retrieval : opened) {
+                retrieval.close();
             }
         }
+
+        return latencies;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // read in parameters
+        Parameters parameters = new Parameters(args);
+
+        long start = System.nanoTime();
+        long[] latencies = run(parameters, System.out);
+        System.out.flush();
+        printStatistics(System.err, latencies, System.nanoTime() - start);
     }
 }
@@ -60,12 +60,31 @@ public class BuildIndex {
     String indexPath;
     boolean stemming;
     boolean useLinks;
+    String postingsCodec = "vbyte";
+    int writerPartitions = 1;
 
     public BuildIndex() {
         this.stemming = false;
         this.useLinks = false;
     }
 
+    /**
+     * Sets the PostingsCodec used for the postings parts (vbyte or block).
+     */
+    public void setPostingsCodec(String postingsCodec) {
+        this.postingsCodec = postingsCodec;
+    }
+
+    /**
+     * Sets how many instances write each of the postings, stemmedPostings
+     * and extents parts.  With more than one, the keys are hashed across
+     * the writers, and each part becomes a directory of partitions that
+     * StructuredIndex reads as a single part.
+     */
+    public void setWriterPartitions(int writerPartitions) {
+        this.writerPartitions = writerPartitions;
+    }
+
     public BuildIndex(String indexPath) {
         this.indexPath = indexPath;
         this.stemming = true;
@@ -249,6 +268,8 @@ public class BuildIndex {
         stage.add(new InputStep(inputName));
         Parameters p = new Parameters();
         p.add("filename", indexPath + File.separator + "parts" + File.separator + indexName);
+        p.add("postingsCodec", postingsCodec);
+        addPartitionCount(p);
         stage.add(new Step(PositionIndexWriter.class, p));
         return stage;
     }
@@ -263,10 +284,30 @@ public class BuildIndex {
         stage.add(new InputStep("numberedExtents"));
         Parameters p = new Parameters();
         p.add("filename", indexPath + File.separator + "parts" + File.separator + "extents");
+        addPartitionCount(p);
         stage.add(new Step(ExtentIndexWriter.class, p));
         return stage;
     }
 
+    private void addPartitionCount(Parameters p) {
+        if (writerPartitions > 1) {
+            p.add("partitionCount", Integer.toString(writerPartitions));
+        }
+    }
+
+    /**
+     * Connects a numbering stage to the stage that writes its part, either
+     * combined into one writer, or hashed by key across writerPartitions writers.
+     */
+    private void connectWriter(Job job, String sourceName, String destinationName, String[] hashType) {
+        if (writerPartitions > 1) {
+            job.connect(sourceName, destinationName, ConnectionAssignmentType.Each,
+                        hashType, writerPartitions);
+        } else {
+            job.connect(sourceName, destinationName, ConnectionAssignmentType.Combined);
+        }
+    }
+
     public Stage getWriteDatesStage() {
         Stage stage = new Stage("writeDates");
 
@@ -411,8 +452,8 @@ public class BuildIndex {
         job.connect("numberDocuments", "numberExtents", ConnectionAssignmentType.Combined);
         job.connect("parsePostings", "numberPostings", ConnectionAssignmentType.Each);
         job.connect("parsePostings", "numberExtents", ConnectionAssignmentType.Each);
-        job.connect("numberExtents", "writeExtents", ConnectionAssignmentType.Combined);
-        job.connect("numberPostings", "writePostings", ConnectionAssignmentType.Combined);
+        connectWriter(job, "numberExtents", "writeExtents", new String[] { "+extentName" });
+        connectWriter(job, "numberPostings", "writePostings", new String[] { "+word" });
         job.connect("parsePostings", "collectionLength", ConnectionAssignmentType.Combined);
         job.connect("collectionLength", "writeManifest", ConnectionAssignmentType.Combined);
 
@@ -434,7 +475,7 @@ public class BuildIndex {
                                           "stemmedPostings"));
             job.connect("parsePostings", "numberStemmedPostings", ConnectionAssignmentType.Each);
             job.connect("numberDocuments", "numberStemmedPostings", ConnectionAssignmentType.Combined);
-            job.connect("numberStemmedPostings", "writeStemmedPostings", ConnectionAssignmentType.Combined);
+            connectWriter(job, "numberStemmedPostings", "writeStemmedPostings", new String[] { "+word" });
         }
 
         return job;
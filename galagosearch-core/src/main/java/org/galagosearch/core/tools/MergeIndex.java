@@ -0,0 +1,212 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.galagosearch.core.index.DocumentDataMerger;
+import org.galagosearch.core.index.DocumentLengthsReader;
+import org.galagosearch.core.index.ExtentIndexMerger;
+import org.galagosearch.core.index.ExtentIndexReader;
+import org.galagosearch.core.index.ExtentIndexWriter;
+import org.galagosearch.core.index.IndexReader;
+import org.galagosearch.core.index.ManifestMerger;
+import org.galagosearch.core.index.PositionIndexMerger;
+import org.galagosearch.core.index.PositionIndexReader;
+import org.galagosearch.core.index.PositionIndexWriter;
+import org.galagosearch.core.index.SparseFloatListMerger;
+import org.galagosearch.core.index.SparseFloatListReader;
+import org.galagosearch.core.index.SparseFloatListWriter;
+import org.galagosearch.core.types.NumberedDocumentData;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.execution.ConnectionAssignmentType;
+import org.galagosearch.tupleflow.execution.ConnectionPointType;
+import org.galagosearch.tupleflow.execution.Job;
+import org.galagosearch.tupleflow.execution.OutputStep;
+import org.galagosearch.tupleflow.execution.Stage;
+import org.galagosearch.tupleflow.execution.StageConnectionPoint;
+import org.galagosearch.tupleflow.execution.Step;
+import org.galagosearch.tupleflow.types.XMLFragment;
+
+/**
+ * Merges several indexes built by BuildIndex into one, without parsing the
+ * documents again.  The documents of each index are numbered after those
+ * of the indexes before it, so the merged index is the same as an index
+ * of all the collections, in order.
+ *
+ * Each part is merged in its own stage, key by key, from the lists already
+ * stored in the inputs.  Document names and lengths are copied, and the
+ * collection length and document count of the manifest are summed.
+ *
+ * @author trevor
+ */
+public class MergeIndex {
+    /// Manifest entries of a part that are carried over to the merged part.
+    static final String[] partSettings = { "postingsCodec", "skipDistance",
+                                           "skipMinimumBinLength", "stemmer" };
+
+    String indexPath;
+    String[] inputs;
+    int[] documentOffsets;
+
+    void readDocumentOffsets() throws IOException {
+        documentOffsets = new int[inputs.length];
+        int offset = 0;
+
+        for (int i = 0; i < inputs.length; i++) {
+            documentOffsets[i] = offset;
+            DocumentLengthsReader lengths =
+                    new DocumentLengthsReader(inputs[i] + File.separator + "documentLengths");
+            offset += lengths.getDocumentCount();
+            lengths.close();
+        }
+    }
+
+    /**
+     * Returns the index files that hold a part: the part itself, or each of
+     * its partitions if it was written in partitions.
+     */
+    static ArrayList<String> getPartFiles(String path) throws IOException {
+        ArrayList<String> files = new ArrayList<String>();
+        File file = new File(path);
+
+        if (file.isDirectory()) {
+            String first = path + File.separator + "0";
+            IndexReader reader = new IndexReader(first);
+            int partitionCount = (int) reader.getManifest().get("partitionCount", 1);
+            reader.close();
+
+            for (int i = 0; i < partitionCount; i++) {
+                files.add(path + File.separator + i);
+            }
+        } else if (file.isFile() && IndexReader.isIndexFile(path)) {
+            files.add(path);
+        }
+        return files;
+    }
+
+    public Stage getMergeDocumentsStage() {
+        Stage stage = new Stage("mergeDocuments");
+
+        stage.add(new StageConnectionPoint(ConnectionPointType.Output,
+                "numberedDocumentData", new NumberedDocumentData.NumberOrder()));
+        Parameters p = new Parameters();
+        for (String input : inputs) {
+            p.add("index", input);
+        }
+        stage.add(new Step(DocumentDataMerger.class, p));
+        stage.add(new OutputStep("numberedDocumentData"));
+        return stage;
+    }
+
+    public Stage getMergeManifestStage() {
+        Stage stage = new Stage("mergeManifest");
+
+        stage.add(new StageConnectionPoint(ConnectionPointType.Output,
+                "collectionLength", new XMLFragment.NodePathOrder()));
+        Parameters p = new Parameters();
+        for (String input : inputs) {
+            p.add("index", input);
+        }
+        stage.add(new Step(ManifestMerger.class, p));
+        stage.add(new OutputStep("collectionLength"));
+        return stage;
+    }
+
+    /**
+     * Returns a stage that merges the part called partName from every
+     * input, or throws an exception if the part isn't a kind that can be merged.
+     */
+    public Stage getMergePartStage(String partName) throws IOException {
+        Parameters mergerParameters = new Parameters();
+        Parameters writerParameters = new Parameters();
+        writerParameters.add("filename", indexPath + File.separator + "parts" + File.separator + partName);
+        Parameters partManifest = null;
+
+        for (int i = 0; i < inputs.length; i++) {
+            String path = inputs[i] + File.separator + "parts" + File.separator + partName;
+            ArrayList<String> files = getPartFiles(path);
+            if (files.size() == 0) {
+                throw new IOException("Can't merge the " + partName + " part, because " +
+                                      inputs[i] + " doesn't have one.");
+            }
+
+            for (String file : files) {
+                mergerParameters.add("input", file);
+                mergerParameters.add("documentOffset", Integer.toString(documentOffsets[i]));
+            }
+            if (partManifest == null) {
+                IndexReader reader = new IndexReader(files.get(0));
+                partManifest = reader.getManifest();
+                reader.close();
+            }
+        }
+
+        for (String setting : partSettings) {
+            if (partManifest.containsKey(setting)) {
+                writerParameters.add(setting, partManifest.get(setting));
+            }
+        }
+
+        String readerClass = partManifest.get("readerClass", "");
+        Class merger;
+        Class writer;
+        if (readerClass.equals(PositionIndexReader.class.getName())) {
+            merger = PositionIndexMerger.class;
+            writer = PositionIndexWriter.class;
+        } else if (readerClass.equals(ExtentIndexReader.class.getName())) {
+            merger = ExtentIndexMerger.class;
+            writer = ExtentIndexWriter.class;
+        } else if (readerClass.equals(SparseFloatListReader.class.getName())) {
+            merger = SparseFloatListMerger.class;
+            writer = SparseFloatListWriter.class;
+        } else {
+            throw new IOException("Can't merge the " + partName + " part, because parts read by " +
+                                  readerClass + " can't be merged.");
+        }
+
+        String stageName = "merge" + Character.toUpperCase(partName.charAt(0)) +
+                           partName.substring(1) + "Part";
+        Stage stage = new Stage(stageName);
+        stage.add(new Step(merger, mergerParameters));
+        stage.add(new Step(writer, writerParameters));
+        return stage;
+    }
+
+    /**
+     * Returns a job that merges the indexes in inputDirectories, in that
+     * order, into a new index in indexDirectory.  Every input needs the
+     * same parts.
+     */
+    public Job getMergeJob(String indexDirectory, String[] inputDirectories) throws IOException {
+        this.indexPath = indexDirectory;
+        this.inputs = inputDirectories;
+        readDocumentOffsets();
+
+        Job job = new Job();
+        BuildIndex buildIndex = new BuildIndex(indexDirectory);
+
+        job.add(getMergeDocumentsStage());
+        job.add(getMergeManifestStage());
+        job.add(buildIndex.getWriteDocumentLengthsStage());
+        job.add(buildIndex.getWriteDocumentNamesStage());
+        job.add(buildIndex.getWriteManifestStage());
+
+        job.connect("mergeDocuments", "writeDocumentLengths", ConnectionAssignmentType.Combined);
+        job.connect("mergeDocuments", "writeDocumentNames", ConnectionAssignmentType.Combined);
+        job.connect("mergeManifest", "writeManifest", ConnectionAssignmentType.Combined);
+
+        String[] partNames = new File(inputs[0], "parts").list();
+        Arrays.sort(partNames);
+        for (String partName : partNames) {
+            String path = inputs[0] + File.separator + "parts" + File.separator + partName;
+            if (getPartFiles(path).size() > 0) {
+                job.add(getMergePartStage(partName));
+            }
+        }
+
+        return job;
+    }
+}
@@ -31,6 +31,10 @@ public class Search {
         generator = new SnippetGenerator();
     }
 
+    public Retrieval getRetrieval() {
+        return retrieval;
+    }
+
     public void close() throws IOException {
         store.close();
         retrieval.close();
@@ -40,6 +44,8 @@ public class Search {
         public Node query;
         public Node transformedQuery;
         public List<SearchResultItem> items;
+        /// True if the query ran out of budget, so these may not be the best results.
+        public boolean partial;
     }
 
     public static class SearchResultItem {
@@ -73,6 +79,13 @@ public class Search {
         return StructuredQuery.parse(query);
     }
 
+    /**
+     * Returns the number of queries that have run out of budget.
+     */
+    public long getBudgetExceededCount() {
+        return retrieval.getBudgetExceededCount();
+    }
+
     public Document getDocument(String identifier) throws IOException {
         return store.get(identifier);
     }
@@ -80,8 +93,10 @@ public class Search {
     public SearchResult runQuery(String query, int startAt, int count, boolean summarize) throws Exception {
         Node tree = parseQuery(query, new Parameters());
         Node transformed = retrieval.transformQuery(tree);
-        ScoredDocument[] results = retrieval.runQuery(transformed, startAt + count);
+        QueryBudget budget = retrieval.newBudget();
+        ScoredDocument[] results = retrieval.runQuery(transformed, startAt + count, budget);
         SearchResult result = new SearchResult();
+        result.partial = budget != null && budget.isExceeded();
         Set<String> queryTerms = StructuredQuery.findQueryTerms(tree);
         result.query = tree;
         result.transformedQuery = transformed;
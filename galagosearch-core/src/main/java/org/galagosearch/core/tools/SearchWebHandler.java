@@ -16,8 +16,15 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.galagosearch.core.parse.Document;
+import org.galagosearch.core.retrieval.QueryBudget;
+import org.galagosearch.core.retrieval.Retrieval;
+import org.galagosearch.core.retrieval.ScoredDocument;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.core.tools.Search.SearchResult;
 import org.galagosearch.core.tools.Search.SearchResultItem;
+import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.Utility;
 import org.mortbay.jetty.handler.AbstractHandler;
 import org.znerd.xmlenc.XMLOutputter;
@@ -52,6 +59,14 @@ import org.znerd.xmlenc.XMLOutputter;
  *     <td>/document</td>
  *     <td>Document Result (identifier)</td>
  *   </tr>
+ *   <tr>
+ *     <td>/shard/...</td>
+ *     <td>Requests from a RemoteRetrieval, when this server is one shard of a
+ *         FederatedRetrieval: collection, statistics (q), transform (q),
+ *         explain (q), query (q, n, and optionally timeLimit, documentLimit and
+ *         postingsLimit) and name (d).  Responses are parameters XML; query
+ *         responses say whether the results are partial.</td>
+ *   </tr>
  * </table>
  *
  * @author trevor
@@ -178,9 +193,16 @@ public class SearchWebHandler extends AbstractHandler {
                       "Parsed Query", result.query.toString()));
         writer.append(String.format("<tr><td>%s</td><td>%s</td></tr>",
                       "Transformed Query", result.transformedQuery.toString()));
+        writer.append(String.format("<tr><td>%s</td><td>%d</td></tr>",
+                      "Queries Over Budget", search.getBudgetExceededCount()));
         writer.append("</table>");
         writer.append("</div>");
 
+        if (result.partial) {
+            writer.append("<div id=\"meta\">The search ran out of time, " +
+                          "so these may not be the best results.</div>\n");
+        }
+
         for (SearchResultItem item : result.items) {
             writer.append("<div id=\"result\">\n");
             writer.append(String.format("<a href=\"document?identifier=%s\">%s</a><br/>" +
@@ -233,7 +255,10 @@ public class SearchWebHandler extends AbstractHandler {
 
         outputter.startTag("response");
 
-        writer.append("<response>\n");
+        outputter.startTag("partial");
+        outputter.pcdata(Boolean.toString(result.partial));
+        outputter.endTag();
+
         for (SearchResultItem item : result.items) {
             outputter.startTag("result");
             
@@ -266,10 +291,84 @@ public class SearchWebHandler extends AbstractHandler {
                 outputter.startTag("value");
                 outputter.pcdata(entry.getValue());
                 outputter.endTag();
+                outputter.endTag();
             }
-            
             outputter.endTag();
+
+            outputter.endTag();
+        }
+
+        outputter.endDocument();
+        writer.close();
+    }
+
+    /**
+     * Answers a request from a RemoteRetrieval.  Queries arrive already
+     * transformed (and annotated with global statistics), so they're only
+     * planned against this shard's own index before they run.
+     */
+    public void handleShard(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        Retrieval retrieval = search.getRetrieval();
+        String path = request.getPathInfo();
+        String query = request.getParameter("q");
+        Parameters result = new Parameters();
+
+        if (path.equals("/shard/collection")) {
+            result = retrieval.getCollectionStatistics();
+        } else if (path.equals("/shard/statistics")) {
+            TermStatistics statistics = retrieval.getStatistics(StructuredQuery.parse(query));
+            result.add("collectionFrequency", Long.toString(statistics.collectionFrequency));
+            result.add("documentFrequency", Long.toString(statistics.documentFrequency));
+        } else if (path.equals("/shard/transform")) {
+            boolean plan = !"false".equals(request.getParameter("plan"));
+            Node transformed = retrieval.transformQuery(StructuredQuery.parse(query), plan);
+            result.add("query", transformed.toString());
+        } else if (path.equals("/shard/explain")) {
+            result.add("plan", retrieval.explainQuery(StructuredQuery.parse(query)));
+        } else if (path.equals("/shard/query")) {
+            int requested = Integer.parseInt(request.getParameter("n"));
+            Node planned = retrieval.planQuery(StructuredQuery.parse(query));
+            QueryBudget budget = getBudget(request, retrieval);
+            ScoredDocument[] results = retrieval.runQuery(planned, requested, budget);
+            result.add("partial", Boolean.toString(budget != null && budget.isExceeded()));
+
+            for (ScoredDocument document : results) {
+                Parameters.Value value = result.value().add("result");
+                value.add("document", Integer.toString(document.document));
+                value.add("score", Double.toString(document.score));
+                value.add("name", retrieval.getDocumentName(document.document));
+            }
+        } else if (path.equals("/shard/name")) {
+            int document = Integer.parseInt(request.getParameter("d"));
+            result.add("name", retrieval.getDocumentName(document));
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        response.setContentType("text/xml; charset=UTF-8");
+        PrintWriter writer = response.getWriter();
+        writer.write(result.toString());
+        writer.close();
+    }
+
+    /**
+     * Returns the budget for a shard query: the limits sent by the
+     * RemoteRetrieval, if it sent any, or this server's own.
+     */
+    QueryBudget getBudget(HttpServletRequest request, Retrieval retrieval) {
+        long timeLimit = parseLimit(request.getParameter("timeLimit"));
+        long documentLimit = parseLimit(request.getParameter("documentLimit"));
+        long postingsLimit = parseLimit(request.getParameter("postingsLimit"));
+
+        if (timeLimit <= 0 && documentLimit <= 0 && postingsLimit <= 0) {
+            return retrieval.newBudget();
         }
+        return new QueryBudget(timeLimit, documentLimit, postingsLimit);
+    }
+
+    static long parseLimit(String value) {
+        return value == null ? 0 : Long.parseLong(value);
     }
 
     public void writeStyle(PrintWriter writer) {
@@ -325,6 +424,12 @@ public class SearchWebHandler extends AbstractHandler {
             } catch(Exception e) {
                 throw new ServletException("Caught exception from handleSearchXML", e);
             }
+        } else if (request.getPathInfo().startsWith("/shard/")) {
+            try {
+                handleShard(request, response);
+            } catch(Exception e) {
+                throw new ServletException("Caught exception from handleShard", e);
+            }
         } else if (request.getPathInfo().equals("/snippet")) {
             handleSnippet(request, response);
         } else if (request.getPathInfo().startsWith("/images")) {
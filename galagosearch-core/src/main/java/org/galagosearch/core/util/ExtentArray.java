@@ -5,17 +5,26 @@ package org.galagosearch.core.util;
 import org.galagosearch.core.retrieval.structured.Extent;
 
 /**
+ * A growable list of extents, stored as parallel int arrays (one each for
+ * document, begin and end) instead of as Extent objects, so filling and
+ * resetting an ExtentArray never allocates once it's big enough.  Weights
+ * are stored only if some extent has a weight other than 1.
+ *
  * @author trevor
  */
 public class ExtentArray {
-    Extent[] _array;
-    int _position;
+    int[] documents;
+    int[] begins;
+    int[] ends;
+    double[] weights;
+    int position;
 
     public ExtentArray(int capacity) {
-        _array = new Extent[capacity];
-        for(int i=0; i<_array.length; i++)
-            _array[i] = new Extent();
-        _position = 0;
+        capacity = Math.max(1, capacity);
+        documents = new int[capacity];
+        begins = new int[capacity];
+        ends = new int[capacity];
+        position = 0;
     }
 
     public ExtentArray() {
@@ -23,55 +32,102 @@ public class ExtentArray {
     }
 
     private void makeRoomForOneObject() {
-        if(_position == _array.length) {
+        if (position == begins.length) {
             // grow array if we're out of space
-            _array = _copyArray(_array.length * 2);
+            int capacity = begins.length * 2;
+            documents = copyArray(documents, capacity);
+            begins = copyArray(begins, capacity);
+            ends = copyArray(ends, capacity);
+
+            if (weights != null) {
+                double[] copy = new double[capacity];
+                System.arraycopy(weights, 0, copy, 0, position);
+                weights = copy;
+            }
         }
     }
-    
-    public void add(Extent value) {
-        makeRoomForOneObject();
-        
-        _array[_position] = value;
-        _position += 1;
+
+    private int[] copyArray(int[] array, int capacity) {
+        int[] copy = new int[capacity];
+        System.arraycopy(array, 0, copy, 0, position);
+        return copy;
     }
-    
+
     public void add(int document, int begin, int end) {
-        add(document, begin, end, 1);
+        makeRoomForOneObject();
+
+        documents[position] = document;
+        begins[position] = begin;
+        ends[position] = end;
+        if (weights != null) {
+            weights[position] = 1;
+        }
+        position += 1;
     }
 
     public void add(int document, int begin, int end, double weight) {
-        makeRoomForOneObject();
-        
-        Extent e = _array[_position];
-        e.document = document;
-        e.begin = begin;
-        e.end = end;
-        e.weight = weight;
-        _position += 1;
+        if (weight != 1 && weights == null) {
+            weights = new double[begins.length];
+            for (int i = 0; i < position; i++) {
+                weights[i] = 1;
+            }
+        }
+
+        add(document, begin, end);
+        if (weights != null) {
+            weights[position - 1] = weight;
+        }
     }
-    
-    public Extent[] getBuffer() {
-        return _array;
+
+    /**
+     * Copies extent number index of another array onto the end of this one.
+     */
+    public void add(ExtentArray other, int index) {
+        add(other.documents[index], other.begins[index], other.ends[index], other.weight(index));
     }
 
     public int getPosition() {
-        return _position;
+        return position;
     }
 
-    private Extent[] _copyArray(int newSize) {
-        Extent[] result = new Extent[newSize];
-        System.arraycopy(_array, 0, result, 0, _position);
-        for(int i=_position; i<result.length; i++)
-            result[i] = new Extent();
-        return result;
+    public int document(int index) {
+        return documents[index];
     }
 
+    public int begin(int index) {
+        return begins[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    public double weight(int index) {
+        if (weights == null) {
+            return 1;
+        }
+        return weights[index];
+    }
+
+    /**
+     * Returns a copy of the extents as Extent objects.  This allocates,
+     * so it's meant for debugging and tests, not for query evaluation.
+     */
     public Extent[] toArray() {
-        return _copyArray(_position);
+        Extent[] result = new Extent[position];
+
+        for (int i = 0; i < position; i++) {
+            result[i] = new Extent();
+            result[i].document = documents[i];
+            result[i].begin = begins[i];
+            result[i].end = ends[i];
+            result[i].weight = weight(i);
+        }
+
+        return result;
     }
-    
+
     public void reset() {
-        _position = 0;
+        position = 0;
     }
 }
@@ -0,0 +1,77 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.index;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.galagosearch.tupleflow.MemoryDataStream;
+
+/**
+ *
+ * @author trevor
+ */
+public class BlockCodecTest extends TestCase {
+    public BlockCodecTest(String testName) {
+        super(testName);
+    }
+
+    public void testRoundTrip() throws Exception {
+        BlockCodec codec = new BlockCodec();
+        PostingsCodec.Encoder encoder = codec.getEncoder();
+        Random random = new Random(7);
+        int[] values = new int[1000];
+
+        for (int i = 0; i < values.length; i++) {
+            // mostly small numbers, with a few large exceptions
+            if (i % 37 == 0) {
+                values[i] = random.nextInt(Integer.MAX_VALUE);
+            } else {
+                values[i] = random.nextInt(20);
+            }
+            encoder.add(values[i]);
+        }
+        encoder.flush();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.write(output);
+        byte[] data = output.toByteArray();
+        assertEquals(encoder.length(), data.length);
+        // 1000 VByte numbers would take at least 1000 bytes
+        assertTrue(data.length < 1000);
+
+        PostingsCodec.Decoder decoder = codec.getDecoder(new MemoryDataStream(data, 0, data.length));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(values[i], decoder.readInt());
+        }
+        // skip the end of this block and two full blocks
+        decoder.skip(400);
+        for (int i = 500; i < values.length; i++) {
+            assertEquals(values[i], decoder.readInt());
+        }
+    }
+
+    public void testSeekAfterFlush() throws Exception {
+        BlockCodec codec = new BlockCodec();
+        PostingsCodec.Encoder encoder = codec.getEncoder();
+
+        for (int i = 0; i < 10; i++) {
+            encoder.add(i);
+        }
+        encoder.flush();
+        long offset = encoder.length();
+        for (int i = 0; i < 10; i++) {
+            encoder.add(1000 + i);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        encoder.write(output);
+        byte[] data = output.toByteArray();
+
+        PostingsCodec.Decoder decoder = codec.getDecoder(new MemoryDataStream(data, 0, data.length));
+        assertEquals(0, decoder.readInt());
+        decoder.seek(offset);
+        assertEquals(1000, decoder.readInt());
+        assertEquals(1001, decoder.readInt());
+    }
+}
@@ -11,6 +11,9 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import junit.framework.TestCase;
 import org.galagosearch.core.index.IndexReader;
 import org.galagosearch.tupleflow.Parameters;
@@ -156,4 +159,124 @@ public class IndexWriterTest extends TestCase {
         }
         reader.close();
     }
+
+    public void testVocabularyLookup() throws IOException {
+        Parameters parameters = new Parameters();
+        parameters.add("blockSize", Long.toString(1024));
+        temporary = Utility.createTemporary();
+        IndexWriter writer = new IndexWriter(temporary.getAbsolutePath(), parameters);
+
+        // keys whose UTF-8 byte order differs from Java's String order
+        String[] prefixes = { "a", "\u00e9", "\uff21", "\ud83d\ude00" };
+        ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        for (String prefix : prefixes) {
+            for (int i = 0; i < 250; i++) {
+                keys.add(Utility.makeBytes(prefix + String.format("%05d", i * 2)));
+            }
+        }
+        Collections.sort(keys, new Comparator<byte[]>() {
+            public int compare(byte[] one, byte[] two) {
+                return Utility.compare(one, two);
+            }
+        });
+        for (byte[] key : keys) {
+            writer.add(new GenericElement(key, Utility.makeBytes("value" + Utility.makeString(key))));
+        }
+        writer.close();
+
+        for (String cacheBlocks : new String[] { "0", "1024", "2" }) {
+            Parameters readerParameters = new Parameters();
+            readerParameters.add("vocabularyCacheBlocks", cacheBlocks);
+            IndexReader reader = new IndexReader(temporary.getAbsolutePath(), readerParameters);
+
+            // twice, so the second pass uses cached blocks
+            for (int pass = 0; pass < 2; pass++) {
+                for (byte[] keyBytes : keys) {
+                    String key = Utility.makeString(keyBytes);
+                    assertEquals("value" + key, reader.getValueString(key));
+                    assertEquals(key, reader.prefetchIterator(key).getKey());
+                    assertNull(reader.getIterator(key + "!"));
+                    assertNull(reader.prefetchIterator(key.substring(0, key.length() - 1) + "1"));
+                }
+            }
+
+            IndexReader.Iterator iterator = reader.getIterator();
+            int count = 0;
+            do {
+                assertEquals(Utility.makeString(keys.get(count)), iterator.getKey());
+                count++;
+            } while (iterator.nextKey());
+            assertEquals(keys.size(), count);
+
+            // skipTo finds the first key at or after the target
+            iterator = reader.getIterator();
+            iterator.skipTo(Utility.makeBytes("\u00e900101"));
+            assertEquals("\u00e900102", iterator.getKey());
+
+            if (cacheBlocks.equals("0")) {
+                assertNull(reader.blockCache);
+            } else {
+                assertTrue(reader.blockCache.size() <= Integer.parseInt(cacheBlocks));
+            }
+
+            if (cacheBlocks.equals("2")) {
+                // the least recently used block is the one that's evicted
+                String first = Utility.makeString(keys.get(0));
+                String middle = Utility.makeString(keys.get(keys.size() / 2));
+                String last = Utility.makeString(keys.get(keys.size() - 1));
+                long firstBlock = reader.getIterator(first).block.startFileOffset;
+                long middleBlock = reader.getIterator(middle).block.startFileOffset;
+                long lastBlock = reader.getIterator(last).block.startFileOffset;
+                assertTrue(firstBlock != middleBlock && middleBlock != lastBlock);
+
+                reader.getIterator(first);
+                reader.getIterator(last);
+                reader.getIterator(first);
+                reader.getIterator(middle);
+                assertEquals(2, reader.blockCache.size());
+                assertTrue(reader.blockCache.containsKey(firstBlock));
+                assertTrue(reader.blockCache.containsKey(middleBlock));
+                assertFalse(reader.blockCache.containsKey(lastBlock));
+            }
+            reader.close();
+        }
+    }
+
+    public void testTermFilter() throws IOException {
+        for (String bitsPerKey : new String[] { "10", "0" }) {
+            Parameters parameters = new Parameters();
+            parameters.add("blockSize", Long.toString(1024));
+            parameters.add("termFilterBitsPerKey", bitsPerKey);
+            temporary = Utility.createTemporary();
+            IndexWriter writer = new IndexWriter(temporary.getAbsolutePath(), parameters);
+
+            for (int i = 0; i < 1000; ++i) {
+                writer.add(new GenericElement(String.format("%05d", i * 2), "value"));
+            }
+            writer.close();
+
+            IndexReader reader = new IndexReader(temporary.getAbsolutePath());
+            if (bitsPerKey.equals("0")) {
+                assertNull(reader.getTermFilter());
+            }
+
+            int passed = 0;
+            for (int i = 0; i < 1000; ++i) {
+                assertTrue(reader.mightContain(Utility.makeBytes(String.format("%05d", i * 2))));
+                assertEquals("value", reader.getValueString(String.format("%05d", i * 2)));
+                assertNull(reader.getIterator(String.format("%05d", i * 2 + 1)));
+
+                if (reader.mightContain(Utility.makeBytes(String.format("%05d", i * 2 + 1)))) {
+                    passed++;
+                }
+            }
+
+            // about 1% of missing keys pass a 10 bit per key filter
+            if (bitsPerKey.equals("10")) {
+                assertTrue(passed < 50);
+            }
+            reader.close();
+            temporary.delete();
+        }
+    }
 }
@@ -8,6 +8,7 @@ package org.galagosearch.core.index;
 import org.galagosearch.core.index.VocabularyWriter;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import junit.framework.TestCase;
 
@@ -43,4 +44,52 @@ public class VocabularyWriterTest extends TestCase {
         assertTrue(Arrays.equals(second, buffer));
         assertEquals(256, input.readLong());
     }
+
+    public void testPacked() throws Exception {
+        String[] words = { "apple", "banana", "cherry", "date" };
+        VocabularyWriter unpackedWriter = new VocabularyWriter();
+        VocabularyWriter packedWriter = new VocabularyWriter(true);
+
+        for (int i = 0; i < words.length; i++) {
+            unpackedWriter.add(words[i].getBytes("UTF-8"), i * 100);
+            packedWriter.add(words[i].getBytes("UTF-8"), i * 100);
+        }
+
+        VocabularyReader unpacked = new VocabularyReader(unpackedWriter.data(), 1000);
+        VocabularyReader packed = new VocabularyReader(ByteBuffer.wrap(packedWriter.data()), 1000);
+        String[] keys = { "a", "apple", "avocado", "banana", "cat", "cherry", "date", "zebra" };
+
+        String[] expected = { "apple", "apple", "apple", "banana", "banana", "cherry", "date", "date" };
+
+        for (int i = 0; i < keys.length; i++) {
+            byte[] key = keys[i].getBytes("UTF-8");
+
+            for (VocabularyReader reader : new VocabularyReader[] { unpacked, packed }) {
+                int slot = reader.findSlot(key);
+                assertEquals(keys[i], expected[i], new String(reader.getKey(slot), "UTF-8"));
+                assertEquals(keys[i], reader.getBegin(slot), reader.findBlock(key));
+                assertEquals(keys[i], slot * 100, reader.findBlock(key));
+            }
+        }
+
+        assertEquals(words.length, unpacked.getSlotCount());
+        assertEquals(words.length, packed.getSlotCount());
+        assertEquals(100, unpacked.getLength(0));
+        assertEquals(700, packed.getLength(3));
+        assertEquals(700, unpacked.getLength(3));
+
+        VocabularyReader empty = new VocabularyReader(ByteBuffer.wrap(new VocabularyWriter(true).data()), 0);
+        assertEquals(0, empty.getSlotCount());
+        assertEquals(-1, empty.findSlot(new byte[0]));
+        assertEquals(-1, empty.findBlock(new byte[0]));
+        assertEquals(-1, new VocabularyReader(new VocabularyWriter().data(), 0).findBlock(new byte[0]));
+    }
+
+    public void testKeyBytes() throws Exception {
+        String[] keys = { "", "apple", "caf\u00e9", "\u6771\u4eac" };
+
+        for (String key : keys) {
+            assertTrue(key, Arrays.equals(key.getBytes("UTF-8"), IndexReader.keyBytes(key)));
+        }
+    }
 }
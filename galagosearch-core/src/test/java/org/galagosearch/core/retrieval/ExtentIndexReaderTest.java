@@ -10,6 +10,7 @@ import org.galagosearch.core.index.IndexReader;
 import org.galagosearch.core.index.ExtentIndexReader;
 import org.galagosearch.core.index.ExtentIndexWriter;
 import org.galagosearch.core.retrieval.structured.ExtentArrayIterator;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.Utility;
 import org.galagosearch.core.util.ExtentArray;
@@ -63,6 +64,22 @@ public class ExtentIndexReaderTest extends TestCase {
         tempPath.delete();
     }
 
+    public void testStatistics() throws Exception {
+        ExtentIndexReader reader = new ExtentIndexReader(new IndexReader(tempPath.toString()));
+        TermStatistics title = reader.getTermStatistics("title");
+        assertEquals(3, title.collectionFrequency);
+        assertEquals(2, title.documentFrequency);
+
+        TermStatistics missing = reader.getTermStatistics("missing");
+        assertEquals(0, missing.collectionFrequency);
+        assertEquals(0, missing.documentFrequency);
+
+        ExtentIndexReader.Iterator extents = reader.getExtents("z");
+        assertEquals(1, extents.collectionFrequency());
+        assertEquals(1, extents.documentFrequency());
+        reader.close();
+    }
+
     public void testReadTitle() throws Exception {
         ExtentIndexReader reader = new ExtentIndexReader(new IndexReader(tempPath.toString()));
         ExtentIndexReader.Iterator extents = reader.getExtents("title");
@@ -75,14 +92,14 @@ public class ExtentIndexReaderTest extends TestCase {
 
         assertEquals(1, extents.document());
 
-        assertEquals(2, iter.current().begin);
-        assertEquals(3, iter.current().end);
+        assertEquals(2, iter.begin());
+        assertEquals(3, iter.end());
 
         iter.next();
         assertFalse(iter.isDone());
 
-        assertEquals(10, iter.current().begin);
-        assertEquals(11, iter.current().end);
+        assertEquals(10, iter.begin());
+        assertEquals(11, iter.end());
 
         iter.next();
         assertTrue(iter.isDone());
@@ -95,8 +112,8 @@ public class ExtentIndexReaderTest extends TestCase {
 
         assertEquals(9, extents.document());
 
-        assertEquals(5, iter.current().begin);
-        assertEquals(10, iter.current().end);
+        assertEquals(5, iter.begin());
+        assertEquals(10, iter.end());
 
         extents.nextDocument();
         assertTrue(extents.isDone());
@@ -115,8 +132,8 @@ public class ExtentIndexReaderTest extends TestCase {
 
         assertEquals(15, extents.document());
 
-        assertEquals(9, iter.current().begin);
-        assertEquals(11, iter.current().end);
+        assertEquals(9, iter.begin());
+        assertEquals(11, iter.end());
 
         extents.nextDocument();
         assertTrue(extents.isDone());
@@ -0,0 +1,294 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
+import org.galagosearch.core.store.NullStore;
+import org.galagosearch.core.tools.Search;
+import org.galagosearch.core.tools.SearchWebHandler;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Utility;
+import org.mortbay.jetty.Server;
+
+/**
+ *
+ * @author trevor
+ */
+public class FederatedRetrievalTest extends TestCase {
+    // z doesn't occur in the first shard
+    static final String[] terms = { "a", "b", "c", "d", "e", "z" };
+    static final int[] termStarts = { 0, 0, 0, 0, 0, 500 };
+    static final int[] splits = { 0, 500, 1300, 2000 };
+    static final String[] queries = {
+        "#combine( a b c d e )",
+        "#combine( a e )",
+        "#combine( #od:1( a b ) #uw:8( c d ) e )",
+        "#combine( #scale:weight=0.25( a ) #scale:weight=2( e ) c )",
+        "#combine( #od:1( a z ) b )"
+    };
+
+    File combinedPath;
+    ArrayList<File> shardPaths;
+
+    public FederatedRetrievalTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        combinedPath = StructuredRetrievalTest.makeRandomIndex(terms, termStarts, 0, 2000);
+        shardPaths = new ArrayList<File>();
+        for (int i = 0; i + 1 < splits.length; i++) {
+            shardPaths.add(StructuredRetrievalTest.makeRandomIndex(terms, termStarts,
+                                                                   splits[i], splits[i + 1]));
+        }
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        Utility.deleteDirectory(combinedPath);
+        for (File shardPath : shardPaths) {
+            Utility.deleteDirectory(shardPath);
+        }
+    }
+
+    /**
+     * Checks that the federated retrieval finds exactly the documents, names
+     * and scores that the combined index does.  The federated retrieval
+     * transforms queries without planning them.
+     */
+    void assertSameResults(Retrieval combined, Retrieval federated) throws Exception {
+        for (String query : queries) {
+            Node root = combined.transformQuery(StructuredQuery.parse(query));
+            Node federatedRoot = federated.transformQuery(StructuredQuery.parse(query));
+            assertEquals(query, combined.transformQuery(StructuredQuery.parse(query), false).toString(),
+                         federatedRoot.toString());
+
+            for (int requested : new int[] { 1, 10, 1000 }) {
+                ScoredDocument[] expected = combined.runQuery(root, requested);
+                ScoredDocument[] actual = federated.runQuery(federatedRoot, requested);
+
+                assertEquals(query, expected.length, actual.length);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(query, expected[i].document, actual[i].document);
+                    assertEquals(query, expected[i].score, actual[i].score);
+                    assertEquals(query, combined.getDocumentName(expected[i].document),
+                                 federated.getDocumentName(actual[i].document));
+                }
+            }
+        }
+    }
+
+    public void testLocalShards() throws Exception {
+        StructuredRetrieval combined = new StructuredRetrieval(combinedPath.toString(), new Parameters());
+        ArrayList<String> paths = new ArrayList<String>();
+        for (File shardPath : shardPaths) {
+            paths.add(shardPath.toString());
+        }
+        Retrieval federated = Retrieval.instance(paths, new Parameters());
+        assertTrue(federated instanceof FederatedRetrieval);
+
+        Parameters statistics = federated.getCollectionStatistics();
+        assertEquals(combined.getIndex().getCollectionLength(), statistics.get("collectionLength", 0L));
+        assertEquals(2000, statistics.get("documentLimit", 0L));
+
+        Node window = StructuredQuery.parse("#od:1( #extents:a:part=postings() #extents:b:part=postings() )");
+        assertEquals(combined.getStatistics(window).toString(), federated.getStatistics(window).toString());
+
+        assertSameResults(combined, federated);
+
+        // the annotated query scores the same on any one shard as it would in the combined index
+        FederatedRetrieval shards = (FederatedRetrieval) federated;
+        Node root = combined.transformQuery(StructuredQuery.parse(queries[0]));
+        ScoredDocument[] local = shards.getShards().get(1).runQuery(shards.annotate(root), 5);
+        ScoredDocument[] all = combined.runQuery(root, 2000);
+        for (ScoredDocument document : local) {
+            int global = document.document + splits[1];
+            for (ScoredDocument expected : all) {
+                if (expected.document == global) {
+                    assertEquals(expected.score, document.score);
+                }
+            }
+        }
+
+        combined.close();
+        federated.close();
+    }
+
+    /**
+     * A window with a term that's missing from one shard can still match in
+     * the others, so planning on that shard alone mustn't drop it.
+     */
+    public void testTermMissingFromShard() throws Exception {
+        Parameters planning = new Parameters();
+        planning.add("queryPlanning", "true");
+        StructuredRetrieval combined = new StructuredRetrieval(combinedPath.toString(), planning);
+        ArrayList<String> paths = new ArrayList<String>();
+        for (File shardPath : shardPaths) {
+            paths.add(shardPath.toString());
+        }
+        FederatedRetrieval federated = (FederatedRetrieval) Retrieval.instance(paths, planning);
+        Node query = StructuredQuery.parse("#combine( #od:1( a z ) b )");
+
+        // the first shard on its own plans the window away
+        Retrieval first = federated.getShards().get(0);
+        assertTrue(first.transformQuery(query).toString().contains("#null()"));
+        assertTrue(combined.transformQuery(query).toString().contains("evaluationOrder"));
+
+        Node root = federated.transformQuery(query);
+        assertFalse(root.toString().contains("#null()"));
+
+        ScoredDocument[] expected = combined.runQuery(combined.transformQuery(query), 2000);
+        ScoredDocument[] actual = federated.runQuery(root, 2000);
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertFalse(Double.isInfinite(actual[i].score));
+            assertEquals(expected[i].document, actual[i].document);
+            assertEquals(expected[i].score, actual[i].score);
+        }
+
+        combined.close();
+        federated.close();
+    }
+
+    /**
+     * The statistics a query needs are gathered from every shard at once,
+     * and only once.
+     */
+    public void testParallelStatistics() throws Exception {
+        final CountDownLatch asked = new CountDownLatch(shardPaths.size());
+        final AtomicInteger requests = new AtomicInteger();
+        ArrayList<Retrieval> shards = new ArrayList<Retrieval>();
+
+        for (File shardPath : shardPaths) {
+            shards.add(new StructuredRetrieval(shardPath.toString(), new Parameters()) {
+                public TermStatistics getStatistics(Node node) throws Exception {
+                    requests.incrementAndGet();
+                    asked.countDown();
+                    // no shard answers until every shard has been asked
+                    assertTrue(asked.await(10, TimeUnit.SECONDS));
+                    return super.getStatistics(node);
+                }
+            });
+        }
+
+        FederatedRetrieval federated = new FederatedRetrieval(shards, new Parameters());
+        StructuredRetrieval combined = new StructuredRetrieval(combinedPath.toString(), new Parameters());
+        Node root = federated.transformQuery(StructuredQuery.parse(queries[2]));
+        Node annotated = federated.annotate(root);
+
+        // three features, asked of each shard once
+        assertEquals(3 * shards.size(), requests.get());
+        assertEquals(annotated.toString(), federated.annotate(root).toString());
+        assertEquals(3 * shards.size(), requests.get());
+
+        Node window = root.getInternalNodes().get(0).getInternalNodes().get(0);
+        assertEquals(combined.getStatistics(window).toString(),
+                     federated.getStatistics(window).toString());
+
+        combined.close();
+        federated.close();
+    }
+
+    public void testRemoteShards() throws Exception {
+        StructuredRetrieval combined = new StructuredRetrieval(combinedPath.toString(), new Parameters());
+        ArrayList<Server> servers = new ArrayList<Server>();
+        ArrayList<String> paths = new ArrayList<String>();
+
+        try {
+            // the first shard is local; the others are served over HTTP
+            paths.add(shardPaths.get(0).toString());
+
+            for (int i = 1; i < shardPaths.size(); i++) {
+                Retrieval shard = Retrieval.instance(shardPaths.get(i).toString(), new Parameters());
+                int port = Utility.getFreePort();
+                Server server = new Server(port);
+                server.addHandler(new SearchWebHandler(new Search(shard, new NullStore())));
+                server.start();
+                servers.add(server);
+                paths.add("http://localhost:" + port);
+            }
+
+            Retrieval federated = Retrieval.instance(paths, new Parameters());
+            assertTrue(((FederatedRetrieval) federated).getShards().get(1) instanceof RemoteRetrieval);
+            assertSameResults(combined, federated);
+
+            // names that weren't in any results are fetched one at a time
+            RemoteRetrieval remote = (RemoteRetrieval) ((FederatedRetrieval) federated).getShards().get(2);
+            assertEquals("DOC1300", federated.getDocumentName(1300));
+            assertEquals("DOC1999", remote.getDocumentName(699));
+
+            federated.close();
+        } finally {
+            for (Server server : servers) {
+                server.stop();
+            }
+            combined.close();
+        }
+    }
+
+    /**
+     * Remote shards get what's left of the caller's limits, and a shard that
+     * stops early marks the caller's budget, so its results aren't cached.
+     */
+    public void testRemoteBudget() throws Exception {
+        Parameters limited = new Parameters();
+        limited.add("queryDocumentLimit", "10");
+        Retrieval shard = Retrieval.instance(shardPaths.get(1).toString(), limited);
+        int port = Utility.getFreePort();
+        Server server = new Server(port);
+        server.addHandler(new SearchWebHandler(new Search(shard, new NullStore())));
+        server.start();
+
+        try {
+            String url = "http://localhost:" + port;
+            RemoteRetrieval remote = new RemoteRetrieval(url);
+            Node root = remote.transformQuery(StructuredQuery.parse(queries[0]));
+
+            // the caller's limits replace the server's own
+            QueryBudget generous = new QueryBudget(0, 100000, 0);
+            assertEquals(10, remote.runQuery(root, 10, generous).length);
+            assertFalse(generous.isExceeded());
+
+            QueryBudget tight = new QueryBudget(0, 300, 0);
+            remote.runQuery(root, 10, tight);
+            assertTrue(tight.isExceeded());
+
+            // without limits of its own, the caller still learns that the server stopped early
+            QueryBudget unlimited = remote.newBudget();
+            remote.runQuery(root, 10, unlimited);
+            assertTrue(unlimited.isExceeded());
+
+            Parameters caching = new Parameters();
+            caching.add("resultCacheEntries", "10");
+            CachedRetrieval cached = (CachedRetrieval) Retrieval.instance(url, caching);
+            cached.runQuery(root, 10);
+            assertEquals(0, cached.getCache().getEntryCount());
+            cached.runQuery(root, 10, new QueryBudget(0, 100000, 0));
+            assertEquals(1, cached.getCache().getEntryCount());
+            cached.close();
+
+            ArrayList<String> paths = new ArrayList<String>();
+            paths.add(shardPaths.get(0).toString());
+            paths.add(url);
+            Retrieval federated = Retrieval.instance(paths, new Parameters());
+            QueryBudget budget = federated.newBudget();
+            federated.runQuery(federated.transformQuery(StructuredQuery.parse(queries[0])), 10, budget);
+            assertTrue(budget.isExceeded());
+            assertEquals(1, federated.getBudgetExceededCount());
+            federated.close();
+        } finally {
+            server.stop();
+            shard.close();
+        }
+    }
+}
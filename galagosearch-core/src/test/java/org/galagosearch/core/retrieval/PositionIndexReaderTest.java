@@ -7,9 +7,15 @@
 package org.galagosearch.core.retrieval;
 
 import org.galagosearch.core.index.PositionIndexReader;
+import org.galagosearch.core.index.PostingListCache;
+import org.galagosearch.core.index.PrefetchedLists;
 import org.galagosearch.tupleflow.Utility;
 import org.galagosearch.core.index.PositionIndexWriter;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.structured.CountIterator;
 import org.galagosearch.core.retrieval.structured.ExtentArrayIterator;
+import org.galagosearch.core.retrieval.structured.ExtentIterator;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.core.util.ExtentArray;
 import java.io.File;
@@ -88,8 +94,8 @@ public class PositionIndexReaderTest extends TestCase {
 
             for (int i = 1; i < doc.length; i++) {
                 assertFalse(iter.isDone());
-                assertEquals(doc[i], iter.current().begin);
-                assertEquals(doc[i] + 1, iter.current().end);
+                assertEquals(doc[i], iter.begin());
+                assertEquals(doc[i] + 1, iter.end());
                 iter.next();
             }
 
@@ -115,4 +121,283 @@ public class PositionIndexReaderTest extends TestCase {
         internalTestIterator(termExtents, dataB);
         reader.close();
     }
+
+    public void testStatistics() throws Exception {
+        PositionIndexReader reader = new PositionIndexReader(tempPath.toString());
+        TermStatistics a = reader.getTermStatistics("a");
+        assertEquals(4, a.collectionFrequency);
+        assertEquals(2, a.documentFrequency);
+
+        PositionIndexReader.Iterator b = reader.getTermExtents("b");
+        assertEquals(3, b.collectionFrequency());
+        assertEquals(2, b.documentFrequency());
+
+        TermStatistics missing = reader.getTermStatistics("c");
+        assertEquals(0, missing.collectionFrequency);
+        reader.close();
+    }
+
+    public void testCounts() throws Exception {
+        PositionIndexReader reader = new PositionIndexReader(tempPath.toString());
+        PositionIndexReader.TermCountIterator counts = reader.getTermCounts("b");
+
+        assertFalse(counts.isDone());
+        assertEquals(149, counts.document());
+        assertEquals(2, counts.count());
+        assertTrue(counts.skipToDocument(555555));
+        assertEquals(1, counts.count());
+        counts.nextDocument();
+        assertTrue(counts.isDone());
+
+        assertNull(reader.getTermCounts("c"));
+        reader.close();
+    }
+
+    public void testLazyExtents() throws Exception {
+        PositionIndexReader reader = new PositionIndexReader(tempPath.toString());
+        PositionIndexReader.Iterator termExtents = reader.getTermExtents("a");
+
+        // move past the first document without looking at its positions
+        assertEquals(2, termExtents.count());
+        termExtents.nextDocument();
+        assertEquals(19, termExtents.document());
+
+        ExtentArray e = termExtents.extents();
+        assertEquals(2, e.getPosition());
+        assertEquals(27, e.begin(0));
+        assertEquals(300, e.begin(1));
+        reader.close();
+    }
+
+    public void testMemoryMapped() throws Exception {
+        Parameters p = new Parameters();
+        p.add("memoryMapped", "true");
+        PositionIndexReader reader = new PositionIndexReader(tempPath.toString(), p);
+
+        internalTestIterator(reader.getTermExtents("a"), dataA);
+        internalTestIterator(reader.getTermExtents("b"), dataB);
+        reader.close();
+    }
+
+    public void testSkipping() throws Exception {
+        internalTestSkipping("vbyte");
+    }
+
+    public void testBlockCodec() throws Exception {
+        internalTestSkipping("block");
+    }
+
+    public void internalTestSkipping(String codec) throws Exception {
+        File skipPath = File.createTempFile("galago-test-index", null);
+
+        try {
+            Parameters p = new Parameters();
+            p.add("filename", skipPath.toString());
+            p.add("postingsCodec", codec);
+            p.add("skipDistance", "10");
+            p.add("skipMinimumBinLength", "20");
+
+            PositionIndexWriter writer =
+                    new PositionIndexWriter(new org.galagosearch.tupleflow.FakeParameters(p));
+            writer.processWord(Utility.makeBytes("c"));
+
+            for (int document = 3; document < 3000; document += 3) {
+                writer.processDocument(document);
+                for (int position = 1; position <= document % 5 + 1; position++) {
+                    writer.processPosition(position * 7);
+                }
+            }
+            writer.close();
+
+            PositionIndexReader reader = new PositionIndexReader(skipPath.toString());
+            PositionIndexReader.Iterator termExtents = reader.getTermExtents("c");
+            int[] targets = {3, 5, 6, 31, 32, 33, 300, 301, 1500, 2997};
+
+            for (int target : targets) {
+                boolean found = termExtents.skipToDocument(target);
+                int expected = ((target + 2) / 3) * 3;
+
+                assertEquals(target % 3 == 0, found);
+                assertEquals(expected, termExtents.document());
+                assertEquals(expected % 5 + 1, termExtents.count());
+
+                ExtentArray e = termExtents.extents();
+                assertEquals(expected % 5 + 1, e.getPosition());
+                for (int i = 0; i < e.getPosition(); i++) {
+                    assertEquals((i + 1) * 7, e.begin(i));
+                }
+            }
+
+            assertFalse(termExtents.skipToDocument(3000));
+            assertTrue(termExtents.isDone());
+
+            PositionIndexReader.TermCountIterator termCounts = reader.getTermCounts("c");
+            for (int target : targets) {
+                int expected = ((target + 2) / 3) * 3;
+                assertEquals(target % 3 == 0, termCounts.skipToDocument(target));
+                assertEquals(expected, termCounts.document());
+                assertEquals(expected % 5 + 1, termCounts.count());
+            }
+            assertFalse(termCounts.skipToDocument(3000));
+            assertTrue(termCounts.isDone());
+
+            // the cached copy of the list skips the same way
+            reader.setCache(new PostingListCache(1 << 20));
+            ExtentIterator cached = (ExtentIterator) reader.getIterator(new Node("extents", "c"));
+            for (int target : targets) {
+                int expected = ((target + 2) / 3) * 3;
+                assertEquals(target % 3 == 0, cached.skipToDocument(target));
+                assertEquals(expected, cached.document());
+                assertEquals(expected % 5 + 1, cached.count());
+                assertEquals(expected % 5 + 1, cached.extents().getPosition());
+                assertEquals(7, cached.extents().begin(0));
+            }
+            assertFalse(cached.skipToDocument(3000));
+            assertTrue(cached.isDone());
+            reader.close();
+        } finally {
+            skipPath.delete();
+        }
+    }
+
+    public void testPrefetch() throws Exception {
+        File longPath = File.createTempFile("galago-test-index", null);
+
+        try {
+            Parameters p = new Parameters();
+            p.add("filename", longPath.toString());
+            p.add("skipDistance", "10");
+            p.add("skipMinimumBinLength", "20");
+
+            // long enough that prefetch only keeps its header
+            PositionIndexWriter writer =
+                    new PositionIndexWriter(new org.galagosearch.tupleflow.FakeParameters(p));
+            writer.processWord(Utility.makeBytes("long"));
+            for (int document = 0; document < 20000; document++) {
+                writer.processDocument(document);
+                for (int position = 1; position <= document % 3 + 1; position++) {
+                    writer.processPosition(position * 5);
+                }
+            }
+            writer.close();
+
+            PositionIndexReader reader = new PositionIndexReader(longPath.toString());
+            PrefetchedLists lists = new PrefetchedLists();
+            reader.prefetch("long", lists);
+            reader.prefetch("missing", lists);
+            assertEquals(2, lists.size());
+
+            assertNull(reader.getIterator(new Node("extents", "missing"), lists));
+            Node term = new Node("extents", "long");
+            ExtentIterator extents = (ExtentIterator) reader.getIterator(term, lists);
+            assertEquals(0, lists.size());
+
+            assertTrue(extents.skipToDocument(15001));
+            for (int document = 15001; document < 20000; document++) {
+                assertEquals(document, extents.document());
+                assertEquals(document % 3 + 1, extents.extents().getPosition());
+                assertEquals(5, extents.extents().begin(0));
+                extents.nextDocument();
+            }
+            assertTrue(extents.isDone());
+            reader.close();
+
+            // short lists are read whole
+            reader = new PositionIndexReader(tempPath.toString());
+            reader.prefetch("a", lists);
+            assertEquals(1, lists.size());
+            Node a = new Node("extents", "a");
+            internalTestIterator((PositionIndexReader.Iterator) reader.getIterator(a, lists), dataA);
+            assertEquals(0, lists.size());
+            reader.close();
+        } finally {
+            longPath.delete();
+        }
+    }
+
+    public void testCache() throws Exception {
+        PositionIndexReader reader = new PositionIndexReader(tempPath.toString());
+        PostingListCache cache = new PostingListCache(1024);
+        reader.setCache(cache);
+
+        // counts only
+        CountIterator counts = (CountIterator) reader.getIterator(new Node("counts", "b"));
+        assertEquals(1, cache.getMisses());
+        assertEquals(149, counts.document());
+        assertEquals(2, counts.count());
+        assertTrue(counts.skipToDocument(555555));
+        assertEquals(1, counts.count());
+        counts.nextDocument();
+        assertTrue(counts.isDone());
+
+        reader.getIterator(new Node("counts", "b"));
+        assertEquals(1, cache.getHits());
+
+        // a counts-only entry can't serve extents, so the list is decoded again
+        ExtentIterator extents = (ExtentIterator) reader.getIterator(new Node("extents", "b"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getListCount());
+        ExtentArray e = extents.extents();
+        assertEquals(2, e.getPosition());
+        assertEquals(15500, e.begin(0));
+        assertEquals(30319, e.begin(1));
+
+        extents = (ExtentIterator) reader.getIterator(new Node("extents", "a"));
+        for (int[] doc : dataA) {
+            assertEquals(doc[0], extents.document());
+            assertEquals(doc.length - 1, extents.extents().getPosition());
+            extents.nextDocument();
+        }
+        assertTrue(extents.isDone());
+        assertNull(reader.getIterator(new Node("extents", "c")));
+        reader.close();
+    }
+
+    public void testCacheTooSmall() throws Exception {
+        PositionIndexReader reader = new PositionIndexReader(tempPath.toString());
+        // room for the counts of a, but not for its positions
+        PostingListCache cache = new PostingListCache(PostingListCache.estimateSize(2, -1));
+        reader.setCache(cache);
+
+        // a list that can't be cached is read from the file, not decoded for nothing
+        Object extents = reader.getIterator(new Node("extents", "a"));
+        assertTrue(extents instanceof PositionIndexReader.Iterator);
+        internalTestIterator((PositionIndexReader.Iterator) extents, dataA);
+        assertEquals(0, cache.getListCount());
+        assertEquals(0, cache.getSize());
+
+        Object counts = reader.getIterator(new Node("counts", "a"));
+        assertTrue(counts instanceof PositionIndexReader.CachedIterator);
+        assertEquals(1, cache.getListCount());
+
+        // the list of b with its positions is too big, so the counts of a stay cached
+        extents = reader.getIterator(new Node("extents", "b"));
+        assertTrue(extents instanceof PositionIndexReader.Iterator);
+        internalTestIterator((PositionIndexReader.Iterator) extents, dataB);
+        assertEquals(1, cache.getListCount());
+        assertEquals(0, cache.getEvictions());
+        assertNotNull(cache.get(reader, "a", false));
+        reader.close();
+    }
+
+    public void testCacheEviction() {
+        PostingListCache cache = new PostingListCache(300);
+        PostingListCache.DecodedList list = new PostingListCache.DecodedList();
+        list.documents = new int[10];
+        list.counts = new int[10];
+        long size = list.size();
+
+        cache.put(this, "a", list);
+        cache.put(this, "b", list);
+        assertEquals(2 * size, cache.getSize());
+        assertNotNull(cache.get(this, "a", false));
+
+        // b is the least recently used list
+        cache.put(this, "c", list);
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(this, "b", false));
+        assertNotNull(cache.get(this, "a", false));
+        assertNotNull(cache.get(this, "c", false));
+        assertNull(cache.get(this, "c", true));
+    }
 }
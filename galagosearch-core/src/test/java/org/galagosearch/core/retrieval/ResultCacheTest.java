@@ -0,0 +1,123 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval;
+
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+
+/**
+ *
+ * @author trevor
+ */
+public class ResultCacheTest extends TestCase {
+    public ResultCacheTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Returns documents 0 through 99, with decreasing scores, and counts
+     * how many times it was called.
+     */
+    public static class CountingRetrieval extends Retrieval {
+        int queries = 0;
+        int documentCount = 100;
+
+        public String getDocumentName(int document) {
+            return "DOC" + document;
+        }
+
+        public Node transformQuery(Node query) {
+            return query;
+        }
+
+        public ScoredDocument[] runQuery(Node query, int requested) {
+            queries++;
+            int count = Math.min(requested, documentCount);
+            ScoredDocument[] results = new ScoredDocument[count];
+            for (int i = 0; i < count; i++) {
+                results[i] = new ScoredDocument(i, -i);
+            }
+            return results;
+        }
+
+        public void close() throws IOException {
+        }
+    }
+
+    public void testPrefixes() throws Exception {
+        CountingRetrieval counting = new CountingRetrieval();
+        CachedRetrieval retrieval = new CachedRetrieval(counting, new ResultCache(10, 1000000));
+        Node query = StructuredQuery.parse("#combine( a b )");
+
+        assertEquals(20, retrieval.runQuery(query, 20).length);
+        assertEquals(1, counting.queries);
+
+        // the first page comes from the cached prefix
+        ScoredDocument[] results = retrieval.runQuery(query, 10);
+        assertEquals(10, results.length);
+        assertEquals(9, results[9].document);
+        assertEquals(1, counting.queries);
+
+        // the next page needs a longer prefix
+        assertEquals(30, retrieval.runQuery(query, 30).length);
+        assertEquals(2, counting.queries);
+        assertEquals(20, retrieval.runQuery(query, 20).length);
+        assertEquals(2, counting.queries);
+
+        // a complete ranking serves any request
+        assertEquals(100, retrieval.runQuery(query, 500).length);
+        assertEquals(100, retrieval.runQuery(query, 1000).length);
+        assertEquals(3, counting.queries);
+
+        // a different query isn't served from the cache
+        retrieval.runQuery(StructuredQuery.parse("#combine( a c )"), 10);
+        assertEquals(4, counting.queries);
+    }
+
+    public void testSwap() throws Exception {
+        CountingRetrieval first = new CountingRetrieval();
+        CachedRetrieval retrieval = new CachedRetrieval(first, new ResultCache(10, 1000000));
+        Node query = StructuredQuery.parse("#combine( a b )");
+
+        retrieval.runQuery(query, 10);
+        retrieval.runQuery(query, 10);
+        assertEquals(1, first.queries);
+
+        CountingRetrieval second = new CountingRetrieval();
+        assertSame(first, retrieval.setRetrieval(second));
+        assertEquals(1, retrieval.getVersion());
+        assertEquals(0, retrieval.getCache().getEntryCount());
+
+        retrieval.runQuery(query, 10);
+        assertEquals(1, first.queries);
+        assertEquals(1, second.queries);
+    }
+
+    public void testEviction() {
+        ResultCache cache = new ResultCache(2, 1000000);
+        Node a = StructuredQuery.parse("a");
+        Node b = StructuredQuery.parse("b");
+        Node c = StructuredQuery.parse("c");
+        ScoredDocument[] results = { new ScoredDocument(1, 1.0) };
+
+        cache.put(a, 0, 10, results);
+        cache.put(b, 0, 10, results);
+        assertNotNull(cache.get(a, 0, 10));
+        cache.put(c, 0, 10, results);
+
+        // b was the least recently used entry
+        assertEquals(2, cache.getEntryCount());
+        assertNull(cache.get(b, 0, 10));
+        assertNotNull(cache.get(a, 0, 10));
+        assertNull(cache.get(a, 1, 10));
+
+        // entries that are too big for the byte limit aren't stored
+        ResultCache small = new ResultCache(10, ResultCache.ENTRY_SIZE + ResultCache.DOCUMENT_SIZE);
+        small.put(a, 0, 10, results);
+        small.put(b, 0, 10, new ScoredDocument[2]);
+        assertEquals(1, small.getEntryCount());
+        assertNull(small.get(b, 0, 10));
+    }
+}
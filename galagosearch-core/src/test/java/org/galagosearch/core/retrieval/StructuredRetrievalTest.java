@@ -2,30 +2,63 @@
 
 package org.galagosearch.core.retrieval;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.structured.BlockEvaluator;
+import org.galagosearch.core.retrieval.structured.CommonSubexpressions;
+import org.galagosearch.core.retrieval.structured.CountIterator;
+import org.galagosearch.core.retrieval.structured.MaxScoreEvaluator;
+import org.galagosearch.core.retrieval.structured.ScoreIterator;
+import org.galagosearch.core.retrieval.structured.SharedCursor;
+import org.galagosearch.core.retrieval.structured.StatisticsCache;
 import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.core.retrieval.structured.TermStatistics;
 import org.galagosearch.core.index.DocumentLengthsWriter;
 import org.galagosearch.core.index.DocumentNameWriter;
 import org.galagosearch.core.index.ExtentIndexWriter;
+import org.galagosearch.core.index.PositionIndexReader;
 import org.galagosearch.core.index.PositionIndexWriter;
+import org.galagosearch.core.index.PostingListCache;
+import org.galagosearch.core.index.PrefetchedLists;
+import org.galagosearch.core.parse.Document;
 import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.store.DocumentStore;
+import org.galagosearch.core.store.NullStore;
+import org.galagosearch.core.tools.Search;
+import org.galagosearch.core.tools.SearchWebHandler;
 import org.galagosearch.core.types.NumberedDocumentData;
 import org.galagosearch.tupleflow.Utility;
 import org.galagosearch.tupleflow.Parameters;
 import org.galagosearch.tupleflow.FakeParameters;
 import org.galagosearch.tupleflow.TupleFlowParameters;
+import org.mortbay.jetty.Server;
 
 /**
  *
  * @author trevor
  */
 public class StructuredRetrievalTest extends TestCase {
+    static final String[] randomTerms = { "a", "b", "c", "d", "e" };
+
     File tempPath;
+    File randomPath;
+    ArrayList<Retrieval> opened = new ArrayList<Retrieval>();
 
     public StructuredRetrievalTest(String testName) {
         super(testName);
@@ -116,6 +149,100 @@ public class StructuredRetrievalTest extends TestCase {
         return tempPath;
     }
 
+    /**
+     * Makes an index of 2000 documents with random lengths, where term i
+     * appears in a random document with probability 1/(i+2).
+     */
+    public static File makeRandomIndex(String[] terms) throws FileNotFoundException, IOException {
+        return makeRandomIndex(terms, 0, 2000);
+    }
+
+    /**
+     * Makes a shard of the random index that holds documents first through
+     * last - 1, numbered from 0.  Splitting the index into consecutive
+     * shards gives the same documents, with the same names, as the whole index.
+     */
+    public static File makeRandomIndex(String[] terms, int first, int last)
+            throws FileNotFoundException, IOException {
+        return makeRandomIndex(terms, new int[terms.length], first, last);
+    }
+
+    /**
+     * Makes a shard of the random index, where term t only occurs in
+     * documents numbered termStarts[t] or higher (in the whole index).
+     */
+    public static File makeRandomIndex(String[] terms, int[] termStarts, int first, int last)
+            throws FileNotFoundException, IOException {
+        File tempPath = File.createTempFile("galago-test-index", null);
+        tempPath.delete();
+        tempPath.mkdir();
+
+        String partsPath = tempPath.toString() + File.separator + "parts";
+        new File(partsPath).mkdir();
+
+        int documentCount = 2000;
+        Random random = new Random(42);
+        int[] lengths = new int[documentCount];
+        long collectionLength = 0;
+
+        for (int i = 0; i < documentCount; i++) {
+            lengths[i] = 10 + random.nextInt(500);
+            if (i >= first && i < last) {
+                collectionLength += lengths[i];
+            }
+        }
+
+        Parameters pp = new Parameters();
+        pp.add("filename", partsPath + File.separator + "postings");
+        pp.add("skipDistance", "8");
+        pp.add("skipMinimumBinLength", "16");
+        PositionIndexWriter pwriter = new PositionIndexWriter(new FakeParameters(pp));
+
+        for (int t = 0; t < terms.length; t++) {
+            // terms that start after this shard have no list in it
+            if (termStarts[t] < last) {
+                pwriter.processWord(Utility.makeBytes(terms[t]));
+            }
+
+            for (int i = 0; i < documentCount; i++) {
+                if (random.nextInt(t + 2) != 0) {
+                    continue;
+                }
+
+                int count = 1 + random.nextInt(random.nextInt(10) == 0 ? 30 : 3);
+                if (i < first || i >= last || i < termStarts[t]) {
+                    continue;
+                }
+
+                pwriter.processDocument(i - first);
+                for (int j = 0; j < count; j++) {
+                    pwriter.processPosition(j * 2 + t % 2);
+                }
+            }
+        }
+        pwriter.close();
+
+        Parameters dnp = new Parameters();
+        dnp.add("filename", tempPath + File.separator + "documentNames");
+        DocumentNameWriter dnWriter = new DocumentNameWriter(new FakeParameters(dnp));
+        Parameters lp = new Parameters();
+        lp.add("filename", tempPath + File.separator + "documentLengths");
+        DocumentLengthsWriter lWriter = new DocumentLengthsWriter(new FakeParameters(lp));
+
+        for (int i = first; i < last; i++) {
+            dnWriter.process(new NumberedDocumentData("DOC" + i, "", i - first, lengths[i]));
+            lWriter.process(new NumberedDocumentData("DOC" + i, "", i - first, lengths[i]));
+        }
+        dnWriter.close();
+        lWriter.close();
+
+        Parameters mainParameters = new Parameters();
+        mainParameters.add("collectionLength", Long.toString(collectionLength));
+        mainParameters.add("documentCount", Integer.toString(last - first));
+        mainParameters.write(tempPath + File.separator + "manifest");
+        return tempPath;
+    }
+
     @Override
     public void setUp() throws IOException {
         this.tempPath = makeIndex();
@@ -123,7 +250,60 @@ public class StructuredRetrievalTest extends TestCase {
 
     @Override
     public void tearDown() throws IOException {
+        for (Retrieval retrieval : opened) {
+            retrieval.close();
+        }
         Utility.deleteDirectory(tempPath);
+        if (randomPath != null) {
+            Utility.deleteDirectory(randomPath);
+        }
+    }
+
+    /**
+     * Opens the random index (made the first time it's needed) with these
+     * parameter names and values.  It's closed in tearDown.
+     */
+    StructuredRetrieval openRandom(String... settings) throws IOException {
+        if (randomPath == null) {
+            randomPath = makeRandomIndex(randomTerms);
+        }
+        Parameters p = new Parameters();
+        for (int i = 0; i + 1 < settings.length; i += 2) {
+            p.add(settings[i], settings[i + 1]);
+        }
+        StructuredRetrieval retrieval = new StructuredRetrieval(randomPath.toString(), p);
+        opened.add(retrieval);
+        return retrieval;
+    }
+
+    /**
+     * Runs a transformed query on both retrievals, checks that they find
+     * the same documents with the same scores, and returns the results.
+     */
+    static ScoredDocument[] assertSameResults(Retrieval expected, Retrieval actual, Node root,
+            int requested) throws Exception {
+        ScoredDocument[] one = expected.runQuery(root, requested);
+        ScoredDocument[] two = actual.runQuery(root, requested);
+
+        assertEquals(root.toString(), one.length, two.length);
+        for (int i = 0; i < one.length; i++) {
+            assertEquals(root.toString(), one[i].document, two[i].document);
+            assertEquals(root.toString(), one[i].score, two[i].score);
+        }
+        return two;
+    }
+
+    /**
+     * Checks each query, transformed by expected, for each number of requested documents.
+     */
+    static void assertSameResults(Retrieval expected, Retrieval actual, String[] queries,
+            int... requested) throws Exception {
+        for (String query : queries) {
+            Node root = expected.transformQuery(StructuredQuery.parse(query));
+            for (int count : requested) {
+                assertSameResults(expected, actual, root, count);
+            }
+        }
     }
 
     public void testDocuments() throws FileNotFoundException, IOException {
@@ -191,4 +371,622 @@ public class StructuredRetrievalTest extends TestCase {
             lastScore = score;
         }
     }
+
+    public void testPruning() throws Exception {
+        StructuredRetrieval exhaustive = openRandom();
+        StructuredRetrieval pruned = openRandom("pruning", "true");
+
+        String[] queries = {
+            "#combine( a b c d e )",
+            "#combine( a e )",
+            "#combine( d e )",
+            "#combine( #scale:weight=0.25( a ) #scale:weight=2( e ) c )"
+        };
+
+        long matched = 0;
+        long scored = 0;
+        long skipped = 0;
+
+        for (String query : queries) {
+            Node root = exhaustive.transformQuery(StructuredQuery.parse(query));
+            for (int requested : new int[] { 1, 10, 100 }) {
+                assertEquals(requested, assertSameResults(exhaustive, pruned, root, requested).length);
+            }
+
+            // exhaustive evaluation scores every document that matches a term
+            int matches = exhaustive.runQuery(root, 100000).length;
+            ScoreIterator iterator = (ScoreIterator) pruned.createIterator(root);
+            assertTrue(query, MaxScoreEvaluator.canEvaluate(iterator));
+            MaxScoreEvaluator evaluator = new MaxScoreEvaluator(pruned.getIndex());
+            assertEquals(query, 10, evaluator.evaluate(iterator, 10).size());
+
+            assertTrue(query, evaluator.getDocumentsScored() >= 10);
+            assertTrue(query, evaluator.getDocumentsScored() + evaluator.getDocumentsSkipped() <= matches);
+            matched += matches;
+            scored += evaluator.getDocumentsScored();
+            skipped += evaluator.getDocumentsSkipped();
+        }
+
+        // Non-essential lists don't produce candidates, and some candidates
+        // are skipped by their block-max bound.
+        assertTrue(scored + skipped < matched);
+        assertTrue(skipped > 0);
+    }
+
+    public void testPartitions() throws Exception {
+        StructuredRetrieval sequential = openRandom();
+        StructuredRetrieval partitioned = openRandom("memoryMapped", "true", "queryThreads", "4",
+                                                     "partitionCost", "1");
+
+        String[] queries = {
+            "#combine( a b c d e )",
+            "#combine( #od:1( a b ) #uw:8( c d ) e )",
+            "#combine( #syn( b e ) #od:2( a c ) )"
+        };
+
+        for (String query : queries) {
+            Node root = sequential.transformQuery(StructuredQuery.parse(query));
+            assertEquals(1, sequential.getPartitionCount(root));
+            assertEquals(4, partitioned.getPartitionCount(root));
+
+            for (int requested : new int[] { 1, 10, 100 }) {
+                assertSameResults(sequential, partitioned, root, requested);
+            }
+
+            // the ranges cover every matching document exactly once
+            ScoredDocument[] all = partitioned.runQuery(root, 100000);
+            assertEquals(query, sequential.runQuery(root, 100000).length, all.length);
+            HashSet<Integer> documents = new HashSet<Integer>();
+            for (ScoredDocument document : all) {
+                assertTrue(query, documents.add(document.document));
+            }
+        }
+
+        // the number of ranges follows the estimated cost, up to queryThreads
+        Node expensive = sequential.transformQuery(StructuredQuery.parse(queries[0]));
+        Node cheap = sequential.transformQuery(StructuredQuery.parse("#combine( a )"));
+        long cost = sequential.estimateCost(expensive);
+        assertTrue(sequential.estimateCost(cheap) < cost);
+
+        StructuredRetrieval third = openRandom("memoryMapped", "true", "queryThreads", "4",
+                                               "partitionCost", Long.toString(cost / 3));
+        assertEquals(3, third.getPartitionCount(expensive));
+        assertTrue(third.getPartitionCount(cheap) < 3);
+        assertEquals(1, openRandom("memoryMapped", "true", "queryThreads", "4",
+                                   "partitionCost", Long.toString(cost + 1)).getPartitionCount(expensive));
+
+        // readers that aren't memory mapped can't be shared by threads
+        assertEquals(1, openRandom("queryThreads", "4", "partitionCost", "1").getPartitionCount(expensive));
+    }
+
+    public void testPrefetch() throws Exception {
+        StructuredRetrieval plain = openRandom();
+        String[] queries = {
+            "#combine( a b c d e )",
+            "#combine( #od:1( a b ) #uw:8( c d ) e missing )",
+            "#combine( a a e )"
+        };
+
+        // a query's lists are read into a set of its own, and its iterators use them up
+        Node root = plain.transformQuery(StructuredQuery.parse(queries[0]));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        PrefetchedLists lists = plain.getIndex().prefetch(root, executor);
+        executor.shutdown();
+        assertEquals(5, lists.size());
+        plain.createIterator(root, null, lists);
+        assertEquals(0, lists.size());
+
+        for (String memoryMapped : new String[] { "false", "true" }) {
+            StructuredRetrieval prefetched = openRandom("memoryMapped", memoryMapped,
+                                                        "prefetchThreads", "4");
+            assertSameResults(plain, prefetched, queries, 1, 10);
+            assertTrue(prefetched.getPrefetchedListCount() > 0);
+            assertEquals(0, prefetched.getUnusedPrefetchedListCount());
+        }
+
+        // queries running at the same time don't take each other's lists
+        final StructuredRetrieval prefetched = openRandom("memoryMapped", "true", "prefetchThreads", "4");
+        final Node[] roots = new Node[queries.length];
+        final ScoredDocument[][] expected = new ScoredDocument[queries.length][];
+        for (int i = 0; i < queries.length; i++) {
+            roots[i] = plain.transformQuery(StructuredQuery.parse(queries[i]));
+            expected[i] = assertSameResults(plain, prefetched, roots[i], 10);
+        }
+        long listsPerPass = prefetched.getPrefetchedListCount();
+
+        ExecutorService queryThreads = Executors.newFixedThreadPool(8);
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int t = 0; t < 16; t++) {
+            futures.add(queryThreads.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    for (int i = 0; i < roots.length; i++) {
+                        ScoredDocument[] actual = prefetched.runQuery(roots[i], 10);
+                        assertEquals(expected[i].length, actual.length);
+                        for (int j = 0; j < actual.length; j++) {
+                            assertEquals(expected[i][j].document, actual[j].document);
+                            assertEquals(expected[i][j].score, actual[j].score);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+        queryThreads.shutdown();
+
+        assertEquals(17 * listsPerPass, prefetched.getPrefetchedListCount());
+        assertEquals(0, prefetched.getUnusedPrefetchedListCount());
+    }
+
+    /**
+     * A planned query has its lists read ahead before it's planned, so the
+     * planner, the cost estimates and the iterators all use the prefetched
+     * headers: a cold query reads the header of each list once.
+     */
+    public void testPrefetchBeforePlanning() throws Exception {
+        StructuredRetrieval plain = openRandom();
+        // a postings limit and a partition cost, so the query's cost is estimated twice
+        StructuredRetrieval planned = openRandom("queryPlanning", "true", "prefetchThreads", "4",
+                                                 "memoryMapped", "true", "queryThreads", "4",
+                                                 "partitionCost", "1000000000",
+                                                 "queryPostingsLimit", "1000000000");
+        PositionIndexReader postings =
+                (PositionIndexReader) planned.getIndex().getIndexPart("postings");
+        String query = "#combine( #od:1( a b ) #uw:8( c d ) e )";
+
+        Node root = planned.transformQuery(StructuredQuery.parse(query));
+        assertTrue(root.toString().contains("evaluationOrder"));
+        assertEquals(5, postings.getHeaderReadCount());
+
+        ScoredDocument[] expected = plain.runQuery(plain.transformQuery(StructuredQuery.parse(query)), 10);
+        ScoredDocument[] actual = planned.runQuery(root, 10);
+        assertEquals(5, postings.getHeaderReadCount());
+        assertEquals(5, planned.getPrefetchedListCount());
+        assertEquals(0, planned.getUnusedPrefetchedListCount());
+
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].document, actual[i].document);
+            assertEquals(expected[i].score, actual[i].score);
+        }
+    }
+
+    public void testListCache() throws Exception {
+        StructuredRetrieval uncached = openRandom();
+        StructuredRetrieval cached = openRandom("listCacheSize", "1000000");
+        PostingListCache cache = cached.getIndex().getListCache();
+        assertNull(uncached.getIndex().getListCache());
+
+        String[] queries = {
+            "#combine( a b c d e )",
+            "#combine( #od:1( a b ) #uw:8( c d ) e )",
+            "#combine( a e )"
+        };
+
+        // the first pass decodes each list once, for counts or for extents
+        assertSameResults(uncached, cached, queries, 10);
+        long misses = cache.getMisses();
+        assertTrue(misses > 0);
+        assertTrue(cache.getListCount() > 0);
+        assertEquals(0, cache.getEvictions());
+        assertTrue(cache.getSize() <= cache.getCapacity());
+
+        // the second pass reads every list from the cache
+        long hits = cache.getHits();
+        assertSameResults(uncached, cached, queries, 10);
+        assertEquals(misses, cache.getMisses());
+        assertTrue(cache.getHits() > hits);
+        assertTrue(cached.getIndex().getIterator(new Node("extents", "a"))
+                   instanceof PositionIndexReader.CachedIterator);
+        assertTrue(cached.getIndex().getIterator(new Node("counts", "e"))
+                   instanceof PositionIndexReader.CachedIterator);
+
+        // a cache with room for half of those lists evicts some, but stays in its budget
+        StructuredRetrieval small = openRandom("listCacheSize", Long.toString(cache.getSize() / 2));
+        PostingListCache smallCache = small.getIndex().getListCache();
+        assertSameResults(uncached, small, queries, 10);
+        assertSameResults(uncached, small, queries, 10);
+        assertTrue(smallCache.getEvictions() > 0);
+        assertTrue(smallCache.getListCount() < cache.getListCount());
+        assertTrue(smallCache.getSize() <= smallCache.getCapacity());
+
+        // threads querying a memory mapped index share the lists one query cached
+        final StructuredRetrieval shared = openRandom("listCacheSize", "1000000", "memoryMapped", "true");
+        final Node root = uncached.transformQuery(StructuredQuery.parse(queries[1]));
+        final ScoredDocument[] expected = assertSameResults(uncached, shared, root, 10);
+        PostingListCache sharedCache = shared.getIndex().getListCache();
+        misses = sharedCache.getMisses();
+        hits = sharedCache.getHits();
+
+        ExecutorService queryThreads = Executors.newFixedThreadPool(8);
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int t = 0; t < 16; t++) {
+            futures.add(queryThreads.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    ScoredDocument[] actual = shared.runQuery(root, 10);
+                    assertEquals(expected.length, actual.length);
+                    for (int j = 0; j < actual.length; j++) {
+                        assertEquals(expected[j].document, actual[j].document);
+                        assertEquals(expected[j].score, actual[j].score);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+        queryThreads.shutdown();
+
+        assertEquals(misses, sharedCache.getMisses());
+        assertEquals(hits + 16 * 5, sharedCache.getHits());
+    }
+
+    public void testStatisticsCache() throws Exception {
+        StructuredRetrieval uncached = openRandom("statisticsCacheEntries", "0");
+        assertNull(uncached.getIndex().getStatisticsCache());
+
+        // this one is closed and reopened here, since closing saves its statistics
+        Parameters p = new Parameters();
+        p.add("persistStatistics", "true");
+        StructuredRetrieval cached = new StructuredRetrieval(randomPath.toString(), p);
+        StatisticsCache cache = cached.getIndex().getStatisticsCache();
+
+        // the same windows appear in both queries, like in sequential dependence queries
+        String[] queries = {
+            "#combine( a b c #od:1( a b ) #od:1( b c ) #uw:8( a b ) #uw:8( b c ) )",
+            "#combine( #od:1( a b ) #uw:8( b c ) d )"
+        };
+
+        assertSameResults(uncached, cached, queries, 10);
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.getHits());
+
+        // the cache holds the window's collection frequency and document frequency
+        Node window = findOperator(cached.transformQuery(StructuredQuery.parse(queries[1])), "od");
+        CountIterator iterator = (CountIterator) cached.createIterator(window);
+        long count = 0;
+        long documents = 0;
+        for (; !iterator.isDone(); iterator.nextDocument()) {
+            count += iterator.count();
+            documents++;
+        }
+        TermStatistics statistics = cache.get(window);
+        assertTrue(documents > 0);
+        assertEquals(count, statistics.collectionFrequency);
+        assertEquals(documents, statistics.documentFrequency);
+        cached.close();
+
+        // a new retrieval starts with the statistics the last one saved
+        StructuredRetrieval restarted = new StructuredRetrieval(randomPath.toString(), p);
+        cache = restarted.getIndex().getStatisticsCache();
+        assertEquals(4, cache.size());
+        restarted.runQuery(restarted.transformQuery(StructuredQuery.parse(queries[1])), 10);
+        assertEquals(0, cache.getMisses());
+        restarted.close();
+
+        // the scorer takes the window's statistics from the cache, without counting them
+        StructuredRetrieval changed = openRandom();
+        Node root = changed.transformQuery(StructuredQuery.parse("#combine( #od:1( a b ) )"));
+        changed.getIndex().getStatisticsCache().put(window,
+                new TermStatistics(statistics.collectionFrequency * 100, statistics.documentFrequency));
+        HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+        for (ScoredDocument document : uncached.runQuery(root, 100000)) {
+            scores.put(document.document, document.score);
+        }
+        ScoredDocument[] actual = changed.runQuery(root, 10);
+        assertEquals(0, changed.getIndex().getStatisticsCache().getMisses());
+        assertEquals(10, actual.length);
+        for (ScoredDocument document : actual) {
+            assertTrue(document.score > scores.get(document.document));
+        }
+    }
+
+    /**
+     * Returns the first node in this tree with this operator, or null.
+     */
+    static Node findOperator(Node node, String operator) {
+        if (node.getOperator().equals(operator)) {
+            return node;
+        }
+        for (Node child : node.getInternalNodes()) {
+            Node found = findOperator(child, operator);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    public void testSharedSubexpressions() throws Exception {
+        StructuredRetrieval unshared = openRandom("shareSubexpressions", "false");
+        StructuredRetrieval[] shared = {
+            openRandom(),
+            openRandom("sharedBufferLimit", "2")
+        };
+
+        String[] queries = {
+            "#combine( a b c #od:1( a b ) #od:1( b c ) #uw:8( a b ) #uw:8( b c ) )",
+            "#combine( #od:1( a b ) #od:1( a b ) a )",
+            "#combine( #syn( a e ) #inside( e #od:1( a e ) ) e )"
+        };
+
+        for (StructuredRetrieval retrieval : shared) {
+            assertSameResults(unshared, retrieval, queries, 20);
+        }
+
+        // The repeated window is read once, through two views.  Its terms are
+        // only read by that one window, plus the unigram a.
+        Node root = unshared.transformQuery(StructuredQuery.parse(queries[1]));
+        CommonSubexpressions subexpressions = new CommonSubexpressions(root);
+        shared[0].createIterator(root, subexpressions);
+
+        ArrayList<Integer> views = new ArrayList<Integer>();
+        for (SharedCursor cursor : subexpressions.getCursors()) {
+            views.add(cursor.getViewCount());
+        }
+        Collections.sort(views);
+        assertEquals("[1, 2, 2]", views.toString());
+
+        // Each list is read from the file once per query, however often the
+        // query uses it; without sharing, every use reads it again.
+        int[] uses = { 11, 5, 6 };
+        int[] terms = { 3, 2, 2 };
+        for (int i = 0; i < queries.length; i++) {
+            root = unshared.transformQuery(StructuredQuery.parse(queries[i]));
+            assertEquals(queries[i], uses[i], countHeaderReads(unshared, root));
+            assertEquals(queries[i], terms[i], countHeaderReads(shared[0], root));
+        }
+    }
+
+    /**
+     * Runs a query, and returns the number of list headers it read from the postings file.
+     */
+    static long countHeaderReads(StructuredRetrieval retrieval, Node root) throws Exception {
+        PositionIndexReader postings = (PositionIndexReader) retrieval.getIndex().getIndexPart("postings");
+        long before = postings.getHeaderReadCount();
+        retrieval.runQuery(root, 10);
+        return postings.getHeaderReadCount() - before;
+    }
+
+    public void testRerank() throws Exception {
+        StructuredRetrieval retrieval = openRandom();
+        Node candidateQuery = retrieval.transformQuery(StructuredQuery.parse("#combine( a b )"));
+        Node rerankQuery = retrieval.transformQuery(
+                StructuredQuery.parse("#combine( a b #od:1( a b ) #uw:8( b c ) )"));
+        // a always has even positions and b odd ones, so this window never matches
+        Node neverQuery = retrieval.transformQuery(StructuredQuery.parse("#combine( #uw:1( a b ) )"));
+
+        // every candidate matches a or b, so the full rerank query scores all of them
+        HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+        for (ScoredDocument document : retrieval.runQuery(rerankQuery, 100000)) {
+            scores.put(document.document, document.score);
+        }
+
+        for (int candidates : new int[] { 1, 10, 50 }) {
+            ScoredDocument[] firstPhase = retrieval.runQuery(candidateQuery, candidates);
+            HashSet<Integer> candidateSet = new HashSet<Integer>();
+            ArrayList<ScoredDocument> expected = new ArrayList<ScoredDocument>();
+            for (ScoredDocument document : firstPhase) {
+                candidateSet.add(document.document);
+                expected.add(new ScoredDocument(document.document, scores.get(document.document)));
+            }
+            Collections.sort(expected, Collections.reverseOrder());
+
+            ScoredDocument[] actual =
+                    retrieval.runRerankedQuery(candidateQuery, candidates, rerankQuery, 5);
+            assertEquals(Math.min(5, expected.size()), actual.length);
+            for (int i = 0; i < actual.length; i++) {
+                assertTrue(candidateSet.contains(actual[i].document));
+                assertEquals(expected.get(i).document, actual[i].document);
+                assertEquals(expected.get(i).score, actual[i].score);
+            }
+
+            // every candidate is scored, even by a query that matches none of them
+            ScoredDocument[] unmatched =
+                    retrieval.runRerankedQuery(candidateQuery, candidates, neverQuery, candidates);
+            assertEquals(firstPhase.length, unmatched.length);
+            for (ScoredDocument document : unmatched) {
+                assertTrue(candidateSet.remove(document.document));
+            }
+            assertTrue(candidateSet.isEmpty());
+        }
+
+        // the best document for the rerank query isn't one of these candidates, so it's left out
+        ScoredDocument[] best = retrieval.runQuery(rerankQuery, 1);
+        Node otherCandidates = retrieval.transformQuery(StructuredQuery.parse("#combine( c d )"));
+        HashSet<Integer> others = new HashSet<Integer>();
+        for (ScoredDocument document : retrieval.runQuery(otherCandidates, 10)) {
+            others.add(document.document);
+        }
+        assertFalse(others.contains(best[0].document));
+        for (ScoredDocument document : retrieval.runRerankedQuery(otherCandidates, 10, rerankQuery, 10)) {
+            assertTrue(others.contains(document.document));
+        }
+
+        // a cached retrieval stores reranked results too
+        Parameters p = new Parameters();
+        p.add("resultCacheEntries", "10");
+        CachedRetrieval cached = (CachedRetrieval) Retrieval.instance(randomPath.toString(), p);
+        opened.add(cached);
+        ScoredDocument[] first = cached.runRerankedQuery(candidateQuery, 10, rerankQuery, 5);
+        ScoredDocument[] second = cached.runRerankedQuery(candidateQuery, 10, rerankQuery, 5);
+        assertEquals(1, cached.getCache().getHits());
+        assertEquals(first.length, second.length);
+        for (int i = 0; i < first.length; i++) {
+            assertEquals(first[i].document, second[i].document);
+        }
+    }
+
+    public void testBlockScoring() throws Exception {
+        StructuredRetrieval usual = openRandom();
+        // a small block, so queries span several windows
+        StructuredRetrieval block = openRandom("blockScoring", "true", "blockSize", "16");
+
+        String[] queries = {
+            "#combine( a b c d e )",
+            "#combine( #od:1( a b ) #uw:8( c d ) e )",
+            "#combine( #scale:weight=0.25( a ) #scale:weight=2( e ) c )",
+            "#combine( a zzz )"
+        };
+
+        for (String query : queries) {
+            Node root = usual.transformQuery(StructuredQuery.parse(query));
+            assertTrue(query, BlockEvaluator.canEvaluate((ScoreIterator) block.createIterator(root)));
+
+            HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+            for (ScoredDocument document : usual.runQuery(root, 100000)) {
+                scores.put(document.document, document.score);
+            }
+
+            for (int requested : new int[] { 1, 10, 1000 }) {
+                ScoredDocument[] expected = usual.runQuery(root, requested);
+                ScoredDocument[] actual = block.runQuery(root, requested);
+
+                // The usual evaluation sums feature scores as floats, so documents
+                // with nearly equal scores can come out in either order; this
+                // can't use assertSameResults.
+                assertEquals(query, expected.length, actual.length);
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(query, expected[i].score, actual[i].score, 0.0001);
+                    assertEquals(query, scores.get(actual[i].document), actual[i].score, 0.0001);
+                }
+            }
+        }
+
+        // every matching document is scored once, in windows of sixteen document numbers
+        Node root = usual.transformQuery(StructuredQuery.parse(queries[0]));
+        ScoredDocument[] all = usual.runQuery(root, 100000);
+        BlockEvaluator evaluator = new BlockEvaluator(block.getIndex(), 16);
+        ScoredDocument[] top = evaluator.evaluate((ScoreIterator) block.createIterator(root),
+                                                  10, 0, Integer.MAX_VALUE).toArray();
+        assertEquals(all.length, evaluator.getDocumentsScored());
+        assertTrue(evaluator.getWindowCount() >= (all.length + 15) / 16);
+        assertTrue(evaluator.getWindowCount() <= (block.getIndex().getDocumentCount() + 15) / 16);
+        assertEquals(10, top.length);
+        for (int i = 0; i < top.length; i++) {
+            assertEquals(all[i].score, top[i].score, 0.0001);
+        }
+    }
+
+    public void testQueryBudget() throws Exception {
+        StructuredRetrieval usual = openRandom();
+        Node root = usual.transformQuery(StructuredQuery.parse("#combine( a b c d e )"));
+        HashMap<Integer, Double> scores = new HashMap<Integer, Double>();
+        ScoredDocument[] all = usual.runQuery(root, 100000);
+        for (ScoredDocument document : all) {
+            scores.put(document.document, document.score);
+        }
+
+        // a budget that's never reached gives the usual results
+        QueryBudget generous = new QueryBudget(60000, 1000000, 1000000000);
+        ScoredDocument[] complete = usual.runQuery(root, 10, generous);
+        assertFalse(generous.isExceeded());
+        assertEquals(all.length, generous.getDocumentsScored());
+        assertEquals(10, complete.length);
+        for (int i = 0; i < complete.length; i++) {
+            assertEquals(all[i].document, complete[i].document);
+        }
+        assertEquals(0, usual.getBudgetExceededCount());
+
+        StructuredRetrieval limited = openRandom("queryDocumentLimit", "300");
+        QueryBudget budget = limited.newBudget();
+        assertNotNull(budget);
+        ScoredDocument[] partial = limited.runQuery(root, 10, budget);
+
+        // evaluation stopped at the first check past the limit, and what it found was scored correctly
+        assertTrue(budget.isExceeded());
+        assertTrue(budget.getDocumentsScored() >= 300);
+        assertTrue(budget.getDocumentsScored() < 300 + QueryBudget.CHECK_INTERVAL);
+        assertTrue(budget.getDocumentsScored() < all.length);
+        assertEquals(10, partial.length);
+        for (ScoredDocument document : partial) {
+            assertEquals(scores.get(document.document), document.score);
+        }
+        assertEquals(1, limited.getBudgetExceededCount());
+
+        // the parameters give every query a budget
+        limited.runQuery(root, 10);
+        assertEquals(2, limited.getBudgetExceededCount());
+
+        // searches say whether their results are partial, and the metric counts them
+        Search search = new Search(limited, new NullStore());
+        assertTrue(search.runQuery("#combine( a b c d e )", 0, 10, false).partial);
+        assertEquals(3, search.getBudgetExceededCount());
+        assertFalse(new Search(usual, new NullStore()).runQuery("#combine( a b c d e )", 0, 10, false).partial);
+
+        // postings are estimated from the query cost
+        QueryBudget postings = new QueryBudget(0, 0, 100);
+        usual.runQuery(root, 10, postings);
+        assertTrue(postings.isExceeded());
+        assertTrue(postings.getPostingsRead() > 100);
+
+        // a always has even positions and b odd ones, so this window never matches;
+        // no document is ever scored, but the window still charges what it reads
+        Node never = usual.transformQuery(StructuredQuery.parse("#combine( #uw:1( a b ) )"));
+        StructuredRetrieval windowLimited = openRandom("queryPostingsLimit", "200");
+        budget = windowLimited.newBudget();
+        assertEquals(0, windowLimited.runQuery(never, 10, budget).length);
+        assertTrue(budget.isExceeded());
+        assertEquals(0, budget.getDocumentsScored());
+        assertTrue(budget.getPostingsRead() > 200);
+
+        // partial results aren't cached
+        CachedRetrieval cached = new CachedRetrieval(openRandom("queryDocumentLimit", "300"),
+                                                     new ResultCache(10, 1000000));
+        budget = cached.newBudget();
+        cached.runQuery(root, 10, budget);
+        assertTrue(budget.isExceeded());
+        assertEquals(0, cached.getCache().getEntryCount());
+        assertEquals(1, cached.getBudgetExceededCount());
+
+        // the XML results page is marked partial too; it needs a URL for every document
+        DocumentStore store = new NullStore() {
+            @Override
+            public Document get(String identifier) throws IOException {
+                Document document = super.get(identifier);
+                document.metadata.put("url", "http://" + identifier);
+                return document;
+            }
+        };
+        int port = Utility.getFreePort();
+        Server server = new Server(port);
+        server.addHandler(new SearchWebHandler(new Search(limited, store)));
+        server.start();
+        try {
+            String page = readPage("http://localhost:" + port + "/searchxml?q=" +
+                                   URLEncoder.encode("#combine( a b c d e )", "UTF-8"));
+            assertTrue(page.contains("<partial>true</partial>"));
+            assertTrue(page.contains("<rank>10</rank>"));
+            assertTrue(page.trim().endsWith("</response>"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    static String readPage(String url) throws IOException {
+        InputStream stream = new URL(url).openStream();
+        try {
+            ByteArrayOutputStream page = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read; (read = stream.read(buffer)) > 0;) {
+                page.write(buffer, 0, read);
+            }
+            return page.toString("UTF-8");
+        } finally {
+            stream.close();
+        }
+    }
+
+    public void testStatisticsKey() {
+        Node plain = StructuredQuery.parse("#od:1( a b )");
+        Node planned = StructuredQuery.parse("#od:1:evaluationOrder=@/1,0/( a b )");
+        Node other = StructuredQuery.parse("#od:2( a b )");
+
+        assertEquals(StatisticsCache.key(plain), StatisticsCache.key(planned));
+        assertFalse(StatisticsCache.key(plain).equals(StatisticsCache.key(other)));
+    }
 }
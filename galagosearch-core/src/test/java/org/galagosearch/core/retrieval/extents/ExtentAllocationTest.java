@@ -0,0 +1,191 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval.extents;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.structured.ExtentInsideIterator;
+import org.galagosearch.core.retrieval.structured.ExtentIterator;
+import org.galagosearch.core.retrieval.structured.OrderedWindowIterator;
+import org.galagosearch.core.retrieval.structured.SynonymIterator;
+import org.galagosearch.core.retrieval.structured.UnorderedWindowIterator;
+import org.galagosearch.core.util.ExtentArray;
+import org.galagosearch.tupleflow.Parameters;
+
+/**
+ * Measures how many bytes the extent operators allocate per document.
+ * The measurement needs the HotSpot extension of ThreadMXBean; on other
+ * VMs the test just checks that the operators run.  Run main to print
+ * the allocation rate of each operator.
+ *
+ * @author trevor
+ */
+public class ExtentAllocationTest extends TestCase {
+    static final int DOCUMENTS = 20000;
+
+    public ExtentAllocationTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * An extent list whose ExtentArrays are all built up front, so
+     * that reading it allocates nothing.
+     */
+    public static class PrebuiltExtentIterator extends ExtentIterator {
+        ExtentArray[] arrays;
+        int index;
+
+        public PrebuiltExtentIterator(ExtentArray[] arrays) {
+            this.arrays = arrays;
+        }
+
+        public void nextDocument() {
+            index++;
+        }
+
+        public int document() {
+            return arrays[index].document(0);
+        }
+
+        public int count() {
+            return arrays[index].getPosition();
+        }
+
+        public ExtentArray extents() {
+            return arrays[index];
+        }
+
+        public boolean isDone() {
+            return index >= arrays.length;
+        }
+
+        public void reset() {
+            index = 0;
+        }
+    }
+
+    /**
+     * Makes a list that appears in most documents, with a few positions
+     * in each, so that the window operators find some matches.
+     */
+    public static PrebuiltExtentIterator makeList(Random random, int offset) {
+        ExtentArray[] arrays = new ExtentArray[DOCUMENTS];
+        int count = 0;
+
+        for (int document = 0; document < DOCUMENTS; document++) {
+            if (random.nextInt(10) == 0) {
+                continue;
+            }
+            ExtentArray array = new ExtentArray();
+            int position = offset;
+            for (int i = 0; i < 8; i++) {
+                position += 1 + random.nextInt(4);
+                array.add(document, position, position + 1);
+            }
+            arrays[count++] = array;
+        }
+
+        ExtentArray[] result = new ExtentArray[count];
+        System.arraycopy(arrays, 0, result, 0, count);
+        return new PrebuiltExtentIterator(result);
+    }
+
+    public static ExtentIterator[] makeLists(int count) {
+        Random random = new Random(7);
+        ExtentIterator[] lists = new ExtentIterator[count];
+        for (int i = 0; i < count; i++) {
+            lists[i] = makeList(random, i);
+        }
+        return lists;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by this thread,
+     * or -1 if the VM can't tell us.
+     */
+    public static long allocatedBytes() {
+        try {
+            Class beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            Object bean = ManagementFactory.getThreadMXBean();
+            if (!beanClass.isInstance(bean)) {
+                return -1;
+            }
+            Method method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads every document of the iterator a few times, then returns the
+     * bytes allocated per document on the last pass (or -1 if allocation
+     * can't be measured).
+     */
+    public static double bytesPerDocument(ExtentIterator iterator) throws IOException {
+        int documents = 0;
+        long before = 0;
+
+        for (int pass = 0; pass < 5; pass++) {
+            iterator.reset();
+            documents = 0;
+            before = allocatedBytes();
+
+            while (!iterator.isDone()) {
+                documents++;
+                iterator.nextDocument();
+            }
+        }
+
+        long after = allocatedBytes();
+        if (before < 0 || after < 0) {
+            return -1;
+        }
+        return (double) (after - before) / Math.max(1, documents);
+    }
+
+    public static Parameters width(int width) {
+        Parameters parameters = new Parameters();
+        parameters.add("width", Integer.toString(width));
+        return parameters;
+    }
+
+    public static ExtentIterator[] makeOperators() throws IOException {
+        ExtentIterator[] inside = makeLists(2);
+
+        return new ExtentIterator[] {
+            new OrderedWindowIterator(width(3), makeLists(2)),
+            new UnorderedWindowIterator(width(8), makeLists(3)),
+            new SynonymIterator(new Parameters(), makeLists(3)),
+            new ExtentInsideIterator(new Parameters(), inside[0], inside[1])
+        };
+    }
+
+    public void testAllocation() throws IOException {
+        ExtentIterator[] operators = makeOperators();
+
+        for (ExtentIterator operator : operators) {
+            double rate = bytesPerDocument(operator);
+
+            // each pass reads a few thousand documents, so anything allocated
+            // per document would show up as many bytes per document here
+            if (rate >= 0) {
+                assertTrue(operator.getClass().getSimpleName() + " allocated " +
+                           rate + " bytes per document", rate < 1.0);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        ExtentIterator[] operators = makeOperators();
+
+        for (ExtentIterator operator : operators) {
+            System.out.printf("%-24s %10.2f bytes/document\n",
+                              operator.getClass().getSimpleName(),
+                              bytesPerDocument(operator));
+        }
+    }
+}
@@ -26,9 +26,9 @@ public class ExtentArrayIteratorTest extends TestCase {
         
         ExtentArrayIterator instance = new ExtentArrayIterator( array );
         assertFalse( instance.isDone() );
-        assertEquals( instance.current().document, 1 );
-        assertEquals( instance.current().begin, 5 );
-        assertEquals( instance.current().end, 7 );
+        assertEquals( instance.document(), 1 );
+        assertEquals( instance.begin(), 5 );
+        assertEquals( instance.end(), 7 );
         
         instance.next();
         assertTrue( instance.isDone() );
@@ -41,15 +41,15 @@ public class ExtentArrayIteratorTest extends TestCase {
         
         ExtentArrayIterator instance = new ExtentArrayIterator( array );
         assertFalse( instance.isDone() );
-        assertEquals( instance.current().document, 1 );
-        assertEquals( instance.current().begin, 5 );
-        assertEquals( instance.current().end, 7 );
+        assertEquals( instance.document(), 1 );
+        assertEquals( instance.begin(), 5 );
+        assertEquals( instance.end(), 7 );
 
         instance.next();
         assertFalse( instance.isDone() );
-        assertEquals( instance.current().document, 1 );
-        assertEquals( instance.current().begin, 9 );
-        assertEquals( instance.current().end, 11 );
+        assertEquals( instance.document(), 1 );
+        assertEquals( instance.begin(), 9 );
+        assertEquals( instance.end(), 11 );
 
         instance.next();
         assertTrue( instance.isDone() );
@@ -35,9 +35,9 @@ public class OrderedWindowIteratorTest extends TestCase {
         ExtentArray array = instance.extents();
 
         assertEquals(array.getPosition(), 1);
-        assertEquals(array.getBuffer()[0].document, 1);
-        assertEquals(array.getBuffer()[0].begin, 3);
-        assertEquals(array.getBuffer()[0].end, 5);
+        assertEquals(array.document(0), 1);
+        assertEquals(array.begin(0), 3);
+        assertEquals(array.end(0), 5);
     }
 
     public void testWrongOrder() throws IOException {
@@ -33,16 +33,16 @@ public class SynonymIteratorTest extends TestCase {
 
         assertFalse(instance.isDone());
         assertEquals(1, array.getPosition());
-        assertEquals(1, array.getBuffer()[0].document);
-        assertEquals(3, array.getBuffer()[0].begin);
-        assertEquals(4, array.getBuffer()[0].end);
+        assertEquals(1, array.document(0));
+        assertEquals(3, array.begin(0));
+        assertEquals(4, array.end(0));
 
         instance.nextDocument();
         assertFalse(instance.isDone());
         assertEquals(1, array.getPosition());
-        assertEquals(2, array.getBuffer()[0].document);
-        assertEquals(4, array.getBuffer()[0].begin);
-        assertEquals(5, array.getBuffer()[0].end);
+        assertEquals(2, array.document(0));
+        assertEquals(4, array.begin(0));
+        assertEquals(5, array.end(0));
 
         instance.nextDocument();
         assertTrue(instance.isDone());
@@ -60,13 +60,13 @@ public class SynonymIteratorTest extends TestCase {
 
         assertFalse(instance.isDone());
         assertEquals(array.getPosition(), 2);
-        assertEquals(array.getBuffer()[0].document, 1);
-        assertEquals(array.getBuffer()[0].begin, 3);
-        assertEquals(array.getBuffer()[0].end, 4);
+        assertEquals(array.document(0), 1);
+        assertEquals(array.begin(0), 3);
+        assertEquals(array.end(0), 4);
 
-        assertEquals(array.getBuffer()[1].document, 1);
-        assertEquals(array.getBuffer()[1].begin, 4);
-        assertEquals(array.getBuffer()[1].end, 5);
+        assertEquals(array.document(1), 1);
+        assertEquals(array.begin(1), 4);
+        assertEquals(array.end(1), 5);
 
         instance.nextDocument();
         assertTrue(instance.isDone());
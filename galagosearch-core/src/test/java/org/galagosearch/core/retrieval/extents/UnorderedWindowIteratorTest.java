@@ -30,9 +30,9 @@ public class UnorderedWindowIteratorTest extends TestCase {
         assertFalse(instance.isDone());
 
         assertEquals(array.getPosition(), 1);
-        assertEquals(array.getBuffer()[0].document, 1);
-        assertEquals(array.getBuffer()[0].begin, 3);
-        assertEquals(array.getBuffer()[0].end, 5);
+        assertEquals(array.document(0), 1);
+        assertEquals(array.begin(0), 3);
+        assertEquals(array.end(0), 5);
 
         instance.nextDocument();
         assertTrue(instance.isDone());
@@ -52,9 +52,9 @@ public class UnorderedWindowIteratorTest extends TestCase {
         assertFalse(instance.isDone());
 
         assertEquals(array.getPosition(), 1);
-        assertEquals(array.getBuffer()[0].document, 1);
-        assertEquals(array.getBuffer()[0].begin, 3);
-        assertEquals(array.getBuffer()[0].end, 5);
+        assertEquals(array.document(0), 1);
+        assertEquals(array.begin(0), 3);
+        assertEquals(array.end(0), 5);
 
         instance.nextDocument();
         assertTrue(instance.isDone());
@@ -91,17 +91,17 @@ public class UnorderedWindowIteratorTest extends TestCase {
         assertFalse(instance.isDone());
 
         assertEquals(array.getPosition(), 1);
-        assertEquals(array.getBuffer()[0].document, 1);
-        assertEquals(array.getBuffer()[0].begin, 3);
-        assertEquals(array.getBuffer()[0].end, 5);
+        assertEquals(array.document(0), 1);
+        assertEquals(array.begin(0), 3);
+        assertEquals(array.end(0), 5);
 
         instance.nextDocument();
         assertFalse(instance.isDone());
 
         assertEquals(array.getPosition(), 1);
-        assertEquals(array.getBuffer()[0].document, 5);
-        assertEquals(array.getBuffer()[0].begin, 9);
-        assertEquals(array.getBuffer()[0].end, 12);
+        assertEquals(array.document(0), 5);
+        assertEquals(array.begin(0), 9);
+        assertEquals(array.end(0), 12);
 
         instance.nextDocument();
         assertTrue(instance.isDone());
@@ -117,4 +117,16 @@ public class StructuredQueryTest extends TestCase {
                 "#combine( #smoothinside( #text:a() #field:b() ) #smoothinside( #text:a() #extentor( #field:b() #field:c() ) ) )",
                 result.toString());
     }
+
+    public void testEquality() {
+        Node a = StructuredQuery.parse("#combine( #counts:a:part=postings() b )");
+        Node b = StructuredQuery.parse("#combine( #counts:a:part=postings() b )");
+        Node c = StructuredQuery.parse("#combine( #counts:c:part=postings() b )");
+        Node d = StructuredQuery.parse("#combine( #counts:a:part=stemmedPostings() b )");
+
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(c));
+        assertFalse(a.equals(d));
+    }
 }
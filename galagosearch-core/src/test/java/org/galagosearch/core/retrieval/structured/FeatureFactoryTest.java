@@ -7,6 +7,7 @@ import org.galagosearch.core.retrieval.structured.StructuredIterator;
 import org.galagosearch.core.retrieval.structured.NullExtentIterator;
 import org.galagosearch.core.retrieval.structured.OrderedWindowIterator;
 import org.galagosearch.core.retrieval.structured.SynonymIterator;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import junit.framework.TestCase;
@@ -116,6 +117,59 @@ public class FeatureFactoryTest extends TestCase {
         assertEquals(OrderedWindowIterator.class.getName(), iterator.getClass().getName());
     }
 
+    public void testGetIteratorTwoChildren() throws Exception {
+        FeatureFactory f = new FeatureFactory(new Parameters());
+        ArrayList<StructuredIterator> iterators = new ArrayList();
+        iterators.add(new NullExtentIterator());
+        iterators.add(new NullExtentIterator());
+        StructuredIterator iterator = f.getIterator(new Node("inside", ""), iterators);
+        assertEquals(ExtentInsideIterator.class.getName(), iterator.getClass().getName());
+
+        iterators.add(new NullExtentIterator());
+        try {
+            f.getIterator(new Node("inside", ""), iterators);
+            fail("#inside can't take three arguments");
+        } catch (Exception e) {
+        }
+    }
+
+    public void testNodeTypeCached() throws Exception {
+        FeatureFactory f = new FeatureFactory(new Parameters());
+        assertSame(f.getNodeType(new Node("od", "")), f.getNodeType(new Node("ordered", "")));
+        assertSame(f.getFactory(new Node("combine", "")), f.getFactory(new Node("combine", "")));
+    }
+
+    public static class CustomWindowIterator extends OrderedWindowIterator {
+        public CustomWindowIterator(Parameters parameters, ExtentIterator[] iterators) throws IOException {
+            super(parameters, iterators);
+        }
+    }
+
+    public void testCustomOperator() throws Exception {
+        String config = "" +
+            "<parameters>\n" +
+            "    <operators>\n" +
+            "        <operator>\n" +
+            "            <class>" + CustomWindowIterator.class.getName() + "</class>\n" +
+            "            <name>custom</name>\n" +
+            "        </operator>\n" +
+            "    </operators>\n" +
+            "</parameters>";
+        Parameters p = new Parameters(config.getBytes("UTF-8"));
+        FeatureFactory f = new FeatureFactory(p);
+
+        ArrayList<StructuredIterator> iterators = new ArrayList();
+        iterators.add(new NullExtentIterator());
+        iterators.add(new NullExtentIterator());
+        StructuredIterator iterator = f.getIterator(new Node("custom", ""), iterators);
+        assertEquals(CustomWindowIterator.class, iterator.getClass());
+        assertSame(f.getFactory(new Node("custom", "")), f.getFactory(new Node("custom", "")));
+
+        Node feature = new Node("feature", "");
+        feature.getParameters().add("class", CustomWindowIterator.class.getName());
+        assertEquals(CustomWindowIterator.class, f.getClass(feature));
+    }
+
     public void testGetClassNameConfig() throws Exception {
         String config = "" +
             "<parameters>\n" +
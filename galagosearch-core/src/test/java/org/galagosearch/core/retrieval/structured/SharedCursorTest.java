@@ -0,0 +1,190 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval.structured;
+
+import java.io.IOException;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.extents.FakeExtentIterator;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.util.ExtentArray;
+
+/**
+ *
+ * @author trevor
+ */
+public class SharedCursorTest extends TestCase {
+    static final int[][] data = {
+        { 1, 3, 7 }, { 4, 2 }, { 5, 1, 2, 9 }, { 9, 4 }, { 12, 6, 8 }, { 20, 1 }
+    };
+
+    public SharedCursorTest(String testName) {
+        super(testName);
+    }
+
+    /**
+     * Counts how many documents the shared list reads.
+     */
+    public static class CountingIterator extends FakeExtentIterator {
+        int reads = 0;
+
+        public CountingIterator(int[][] data) {
+            super(data);
+        }
+
+        @Override
+        public void nextDocument() {
+            reads++;
+            super.nextDocument();
+        }
+    }
+
+    static class TestCursor extends SharedCursor {
+        int opened = 0;
+
+        TestCursor(CountIterator source, int bufferLimit) {
+            super(source, true, bufferLimit);
+        }
+
+        protected CountIterator open() {
+            opened++;
+            return new FakeExtentIterator(data);
+        }
+    }
+
+    void assertAt(ExtentIterator iterator, int row) {
+        assertFalse(iterator.isDone());
+        assertEquals(data[row][0], iterator.document());
+        assertEquals(data[row].length - 1, iterator.count());
+
+        ExtentArray extents = iterator.extents();
+        assertEquals(data[row].length - 1, extents.getPosition());
+        for (int i = 0; i < extents.getPosition(); i++) {
+            assertEquals(data[row][0], extents.document(i));
+            assertEquals(data[row][i + 1], extents.begin(i));
+        }
+    }
+
+    public void testLaggingView() throws IOException {
+        CountingIterator source = new CountingIterator(data);
+        TestCursor cursor = new TestCursor(source, 100);
+        ExtentIterator leader = cursor.newView();
+        ExtentIterator follower = cursor.newView();
+
+        assertTrue(leader.skipToDocument(9));
+        assertAt(leader, 3);
+        assertEquals(3, cursor.getBufferedCount());
+
+        // the follower still sees every document, from the buffer
+        for (int row = 0; row < data.length; row++) {
+            assertAt(follower, row);
+            follower.nextDocument();
+        }
+        assertTrue(follower.isDone());
+        assertAt(leader, 3);
+
+        leader.nextDocument();
+        leader.nextDocument();
+        assertAt(leader, 5);
+        leader.nextDocument();
+        assertTrue(leader.isDone());
+
+        // the list was only read once
+        assertEquals(data.length, source.reads);
+        assertEquals(0, cursor.opened);
+    }
+
+    public void testSkipThroughBuffer() throws IOException {
+        TestCursor cursor = new TestCursor(new FakeExtentIterator(data), 100);
+        ExtentIterator leader = cursor.newView();
+        ExtentIterator follower = cursor.newView();
+
+        leader.skipToDocument(20);
+        assertFalse(follower.skipToDocument(6));
+        assertAt(follower, 3);
+        assertTrue(follower.skipToDocument(12));
+        assertAt(follower, 4);
+        assertFalse(follower.skipToDocument(21));
+        assertTrue(follower.isDone());
+    }
+
+    public void testSkipAll() throws IOException {
+        CountingIterator source = new CountingIterator(data);
+        TestCursor cursor = new TestCursor(source, 100);
+        ExtentIterator first = cursor.newView();
+        ExtentIterator second = cursor.newView();
+
+        cursor.skipAll(6);
+        assertAt(first, 3);
+        assertAt(second, 3);
+        assertEquals(0, cursor.getBufferedCount());
+
+        second.nextDocument();
+        assertAt(second, 4);
+        assertAt(first, 3);
+    }
+
+    public void testDetach() throws IOException {
+        TestCursor cursor = new TestCursor(new FakeExtentIterator(data), 2);
+        ExtentIterator leader = cursor.newView();
+        ExtentIterator follower = cursor.newView();
+
+        follower.nextDocument();
+        while (!leader.isDone()) {
+            leader.nextDocument();
+        }
+
+        // the follower fell too far behind, so it reads its own copy now
+        assertEquals(1, cursor.opened);
+        assertTrue(((SharedCursor.View) follower).isDetached());
+        for (int row = 1; row < data.length; row++) {
+            assertAt(follower, row);
+            follower.nextDocument();
+        }
+        assertTrue(follower.isDone());
+    }
+
+    public void testReset() throws IOException {
+        CountingIterator source = new CountingIterator(data);
+        TestCursor cursor = new TestCursor(source, 100);
+        ExtentIterator only = cursor.newView();
+
+        while (!only.isDone()) {
+            only.nextDocument();
+        }
+        assertEquals(0, cursor.getBufferedCount());
+
+        // a view by itself just starts the source over
+        only.reset();
+        assertAt(only, 0);
+        assertEquals(0, cursor.opened);
+
+        ExtentIterator other = cursor.newView();
+        only.skipToDocument(12);
+        other.reset();
+        assertAt(other, 0);
+        assertEquals(0, cursor.opened);
+    }
+
+    public void testCommonSubexpressions() throws Exception {
+        Node tree = StructuredQuery.parse(
+                "#combine( #feature:dirichlet( #counts:a:part=postings() ) " +
+                "#feature:dirichlet( #od:1( #extents:a:part=postings() #extents:b:part=postings() ) ) " +
+                "#feature:dirichlet( #od:1( #extents:a:part=postings() #extents:b:part=postings() ) ) " +
+                "#feature:dirichlet( #counts:c:part=postings() ) )");
+        CommonSubexpressions subexpressions = new CommonSubexpressions(tree);
+
+        // a appears as #counts and inside both copies of the #od
+        Node counts = StructuredQuery.parse("#counts:a:part=postings()");
+        CommonSubexpressions.Subexpression a = subexpressions.get(counts);
+        assertNotNull(a);
+        assertEquals(3, a.getOccurrences());
+        assertTrue(a.needsExtents());
+        assertEquals("extents", a.getNode().getOperator());
+
+        assertNull(subexpressions.get(StructuredQuery.parse("#counts:c:part=postings()")));
+        assertNotNull(subexpressions.get(StructuredQuery.parse("#extents:b:part=postings()")));
+        assertNotNull(subexpressions.get(
+                StructuredQuery.parse("#od:1( #extents:a:part=postings() #extents:b:part=postings() )")));
+    }
+}
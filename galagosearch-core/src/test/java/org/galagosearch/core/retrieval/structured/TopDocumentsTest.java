@@ -0,0 +1,71 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval.structured;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.ScoredDocument;
+
+/**
+ *
+ * @author trevor
+ */
+public class TopDocumentsTest extends TestCase {
+    public TopDocumentsTest(String testName) {
+        super(testName);
+    }
+
+    public void testSmall() {
+        TopDocuments top = new TopDocuments(3);
+        top.offer(1, 0.5);
+        top.offer(2, 2.0);
+        assertEquals(Double.NEGATIVE_INFINITY, top.minimumScore());
+        top.offer(3, 1.0);
+        assertEquals(0.5, top.minimumScore());
+        top.offer(4, 0.1);
+        top.offer(5, 1.0);
+
+        ScoredDocument[] results = top.toArray();
+        assertEquals(3, results.length);
+        assertEquals(2, results[0].document);
+        // ties go to the lower document number
+        assertEquals(3, results[1].document);
+        assertEquals(5, results[2].document);
+    }
+
+    public void testEmpty() {
+        TopDocuments top = new TopDocuments(0);
+        top.offer(1, 1.0);
+        assertEquals(0, top.size());
+        assertEquals(0, top.toArray().length);
+    }
+
+    public void testMatchesPriorityQueue() {
+        Random random = new Random(7);
+
+        for (int requested : new int[] { 1, 5, 100 }) {
+            TopDocuments top = new TopDocuments(requested);
+            PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>();
+
+            for (int document = 0; document < 1000; document++) {
+                // few distinct scores, so there are plenty of ties
+                double score = random.nextInt(20);
+                top.offer(document, score);
+
+                queue.add(new ScoredDocument(document, score));
+                if (queue.size() > requested) {
+                    queue.poll();
+                }
+            }
+
+            ScoredDocument[] results = top.toArray();
+            assertEquals(queue.size(), results.length);
+            for (int i = results.length - 1; i >= 0; i--) {
+                ScoredDocument expected = queue.poll();
+                assertEquals(expected.document, results[i].document);
+                assertEquals(expected.score, results[i].score);
+            }
+        }
+    }
+}
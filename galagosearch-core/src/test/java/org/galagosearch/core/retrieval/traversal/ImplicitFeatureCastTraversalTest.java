@@ -42,4 +42,17 @@ public class ImplicitFeatureCastTraversalTest extends TestCase {
         // Just a smoke test for now, verifies that no exceptions are thrown
         //Node result = StructuredQuery.copy(traversal, tree);
     }
+
+    public void testCountsRewrite() throws Exception {
+        StructuredIndex index = new StructuredIndex(indexPath.getAbsolutePath());
+        StructuredRetrieval retrieval = new StructuredRetrieval(index, new Parameters());
+        ImplicitFeatureCastTraversal traversal = new ImplicitFeatureCastTraversal(new Parameters(), retrieval);
+        Node tree = StructuredQuery.parse("#combine(#extents:a:part=terms() #extents:title:part=extents())");
+        Node result = StructuredQuery.copy(traversal, tree);
+
+        // the term part supplies counts, but the extents part doesn't
+        assertEquals("#combine( #feature:dirichlet( #counts:a:part=terms() ) " +
+                     "#feature:dirichlet( #extents:title:part=extents() ) )", result.toString());
+        index.close();
+    }
 }
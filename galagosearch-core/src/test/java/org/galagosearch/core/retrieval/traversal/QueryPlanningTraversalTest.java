@@ -0,0 +1,126 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.retrieval.traversal;
+
+import java.io.File;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.ScoredDocument;
+import org.galagosearch.core.retrieval.StructuredRetrievalTest;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Utility;
+
+/**
+ *
+ * @author trevor
+ */
+public class QueryPlanningTraversalTest extends TestCase {
+    File indexPath;
+
+    public QueryPlanningTraversalTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        // term i appears in about 1/(i+2) of the documents, so e is the rarest
+        indexPath = StructuredRetrievalTest.makeRandomIndex(new String[] { "a", "b", "c", "d", "e" });
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        Utility.deleteDirectory(indexPath);
+    }
+
+    StructuredRetrieval plannedRetrieval() throws Exception {
+        Parameters parameters = new Parameters();
+        parameters.add("queryPlanning", "true");
+        return new StructuredRetrieval(indexPath.toString(), parameters);
+    }
+
+    public void testOptIn() throws Exception {
+        StructuredRetrieval retrieval = new StructuredRetrieval(indexPath.toString(), new Parameters());
+        Node tree = retrieval.transformQuery(StructuredQuery.parse("#combine( #od:1( a e ) #od:1( b zzz ) )"));
+        String query = tree.toString();
+
+        // without queryPlanning, the planner doesn't run
+        assertFalse(query, query.contains("evaluationOrder"));
+        assertFalse(query, query.contains("#null()"));
+        retrieval.close();
+    }
+
+    public void testEvaluationOrder() throws Exception {
+        StructuredRetrieval retrieval = plannedRetrieval();
+        Node tree = retrieval.transformQuery(StructuredQuery.parse("#combine( #od:1( a e ) #uw:8( e d ) )"));
+        String query = tree.toString();
+
+        // the rarer term leads the #od, but the #uw children are already in order
+        assertTrue(query, query.contains("#od:1:evaluationOrder=@/1,0/"));
+        assertTrue(query, query.contains("#uw:8( "));
+        retrieval.close();
+    }
+
+    public void testMissingTerm() throws Exception {
+        StructuredRetrieval retrieval = plannedRetrieval();
+        Node tree = retrieval.transformQuery(
+                StructuredQuery.parse("#combine( #od:1( a #od:1( b zzz ) ) #syn( yyy zzz ) c )"));
+        String query = tree.toString();
+
+        // both the nested #od and the #od containing it are empty, and so is the #syn
+        assertEquals(2, query.split("#null\\(\\)").length - 1);
+        assertFalse(query, query.contains("zzz"));
+        assertTrue(query, query.contains("#counts:c:part=postings()"));
+        retrieval.close();
+    }
+
+    public void testSameResults() throws Exception {
+        StructuredRetrieval planned = plannedRetrieval();
+        StructuredRetrieval unplanned = new StructuredRetrieval(indexPath.toString(), new Parameters());
+
+        String[] queries = {
+            "#combine( #od:1( a e ) b )",
+            "#combine( #uw:8( a b e ) #od:2( d c ) )",
+            "#filter( a b e )",
+            "#combine( #inside( e #od:1( a b ) ) c )",
+            "#combine( #od:1( a zzz ) b )"
+        };
+
+        for (String query : queries) {
+            Node plannedTree = planned.transformQuery(StructuredQuery.parse(query));
+            Node unplannedTree = unplanned.transformQuery(StructuredQuery.parse(query));
+            ScoredDocument[] expected = unplanned.runQuery(unplannedTree, 20);
+            ScoredDocument[] actual = planned.runQuery(plannedTree, 20);
+
+            assertEquals(query, expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(query, expected[i].document, actual[i].document);
+                assertEquals(query, expected[i].score, actual[i].score, 0.00001);
+            }
+        }
+
+        planned.close();
+        unplanned.close();
+    }
+
+    public void testExplain() throws Exception {
+        StructuredRetrieval retrieval = plannedRetrieval();
+        Node tree = retrieval.transformQuery(StructuredQuery.parse("#combine( #od:1( a e ) )"));
+        String plan = retrieval.explainQuery(tree);
+        String[] lines = plan.split("\n");
+
+        // #combine, #feature, #od, and two #extents nodes
+        assertEquals(plan, 5, lines.length);
+        assertTrue(plan, lines[0].startsWith("#combine"));
+        assertTrue(plan, lines[2].startsWith("    #od:1"));
+
+        QueryPlanningTraversal traversal = new QueryPlanningTraversal(new Parameters(), retrieval);
+        long a = traversal.estimate(tree.getInternalNodes().get(0).getInternalNodes().get(0).getInternalNodes().get(0));
+        long e = traversal.estimate(tree.getInternalNodes().get(0).getInternalNodes().get(0).getInternalNodes().get(1));
+        assertTrue(a > e);
+        assertTrue(lines[3], lines[3].contains("documents=" + a + " cost=" + (2 * a)));
+        assertTrue(lines[2], lines[2].contains("documents=" + e + " cost=" + (2 * (a + e))));
+        retrieval.close();
+    }
+}
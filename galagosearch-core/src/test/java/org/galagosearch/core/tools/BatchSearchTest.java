@@ -0,0 +1,69 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import junit.framework.TestCase;
+import org.galagosearch.core.retrieval.StructuredRetrievalTest;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Utility;
+
+/**
+ *
+ * @author trevor
+ */
+public class BatchSearchTest extends TestCase {
+    public BatchSearchTest(String testName) {
+        super(testName);
+    }
+
+    public String runBatch(File index, String extra) throws Exception {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<parameters>");
+        xml.append("<index>" + index + "</index>");
+        xml.append("<count>20</count>");
+        xml.append(extra);
+
+        String[] queries = { "a b", "c", "#od:1( a b ) e", "b d e", "#syn( a c ) d" };
+        for (int i = 0; i < 40; i++) {
+            xml.append("<query><number>" + i + "</number><text>#combine( " +
+                       queries[i % queries.length] + " )</text></query>");
+        }
+        xml.append("</parameters>");
+
+        Parameters parameters = new Parameters(Utility.makeBytes(xml.toString()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(bytes);
+
+        long[] latencies = BatchSearch.run(parameters, output);
+        assertEquals(40, latencies.length);
+        output.close();
+        return bytes.toString();
+    }
+
+    public void testThreadedOutput() throws Exception {
+        File index = StructuredRetrievalTest.makeRandomIndex(new String[] { "a", "b", "c", "d", "e" });
+
+        try {
+            String sequential = runBatch(index, "");
+            String threaded = runBatch(index, "<threads>4</threads>");
+            String shared = runBatch(index, "<threads>4</threads><memoryMapped>true</memoryMapped>");
+
+            assertTrue(sequential.startsWith("0 Q0 DOC"));
+            assertEquals(40 * 20, sequential.split("\n").length);
+            assertEquals(sequential, threaded);
+            assertEquals(sequential, shared);
+        } finally {
+            Utility.deleteDirectory(index);
+        }
+    }
+
+    public void testPercentile() {
+        long[] latencies = { 1000000, 2000000, 3000000, 4000000 };
+        assertEquals(2.0, BatchSearch.percentile(latencies, 0.5), 0.0001);
+        assertEquals(4.0, BatchSearch.percentile(latencies, 0.99), 0.0001);
+        assertEquals(0.0, BatchSearch.percentile(new long[0], 0.5), 0.0001);
+    }
+}
@@ -2,10 +2,22 @@
 
 package org.galagosearch.core.tools;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 import junit.framework.TestCase;
+import org.galagosearch.core.index.PartitionedIndexReader;
+import org.galagosearch.core.index.StructuredIndex;
+import org.galagosearch.core.retrieval.ScoredDocument;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.structured.IndexIterator;
+import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Utility;
 import org.galagosearch.tupleflow.execution.ErrorStore;
 import org.galagosearch.tupleflow.execution.Job;
+import org.galagosearch.tupleflow.execution.JobExecutor;
 import org.galagosearch.tupleflow.execution.Verification;
 
 /**
@@ -180,4 +192,98 @@ public class BuildIndexTest extends TestCase {
         Verification.verify(job, store);
         assertEquals("", store.toString());
     }
+
+    public void testJobWithWriterPartitions() throws IOException {
+        BuildIndex buildIndex = new BuildIndex();
+        buildIndex.setWriterPartitions(4);
+        Job job = buildIndex.getIndexJob("one", new String[] {"/"}, true, true);
+        ErrorStore store = new ErrorStore();
+
+        Verification.verify(job, store);
+        assertEquals("", store.toString());
+    }
+
+    int countKeys(File index, String part) throws IOException {
+        IndexIterator iterator = StructuredIndex.openIndexPart(
+                index.getPath() + File.separator + "parts" + File.separator + part).getIterator();
+        int count = 0;
+        do {
+            count++;
+        } while (iterator.nextRecord());
+        return count;
+    }
+
+    /**
+     * Builds the same collection with one writer and with several, and
+     * checks that the partitioned index finds the same documents.
+     */
+    public void testWriterPartitions() throws Exception {
+        String[] words = { "apple", "bear", "cider", "dune", "elm", "fig", "gorge", "heron",
+                           "iris", "jade", "kiln", "lark", "moss", "newt", "oak", "pine" };
+        Random random = new Random(7);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            text.append("<DOC>\n<DOCNO>DOC" + i + "</DOCNO>\n<TEXT>\n");
+            for (int j = 0; j < 40; j++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            text.append("\n</TEXT>\n</DOC>\n");
+        }
+
+        File input = Utility.createTemporary();
+        File documents = new File(input.getPath() + ".trectext");
+        input.delete();
+        Utility.copyStringToFile(text.toString(), documents);
+        File single = Utility.createTemporary();
+        File partitioned = Utility.createTemporary();
+        single.delete();
+        single.mkdir();
+        partitioned.delete();
+        partitioned.mkdir();
+
+        try {
+            for (File index : new File[] { single, partitioned }) {
+                BuildIndex buildIndex = new BuildIndex();
+                buildIndex.setWriterPartitions(index == single ? 1 : 3);
+                Job job = buildIndex.getIndexJob(index.getPath(),
+                                                 new String[] { documents.getPath() }, false, true);
+                ErrorStore store = new ErrorStore();
+                JobExecutor.runLocally(job, store, false);
+                assertEquals("", store.toString());
+            }
+
+            File postings = new File(partitioned, "parts" + File.separator + "postings");
+            assertTrue(postings.isDirectory());
+            assertEquals(3, postings.list().length);
+            assertTrue(StructuredIndex.openIndexPart(postings.getPath()) instanceof PartitionedIndexReader);
+            for (String part : new String[] { "postings", "stemmedPostings", "extents" }) {
+                assertEquals(part, countKeys(single, part), countKeys(partitioned, part));
+            }
+
+            StructuredRetrieval expected = new StructuredRetrieval(single.getPath(), new Parameters());
+            StructuredRetrieval actual = new StructuredRetrieval(partitioned.getPath(), new Parameters());
+            String[] queries = { "#combine( apple bear )", "#combine( #od:1( cider dune ) pine )",
+                                 "#combine( #uw:8( oak lark ) zebra )" };
+
+            for (String query : queries) {
+                Node root = expected.transformQuery(StructuredQuery.parse(query));
+                ScoredDocument[] one = expected.runQuery(root, 50);
+                ScoredDocument[] many = actual.runQuery(root, 50);
+
+                assertTrue(one.length > 0);
+                assertEquals(one.length, many.length);
+                for (int i = 0; i < one.length; i++) {
+                    assertEquals(one[i].document, many[i].document);
+                    assertEquals(one[i].score, many[i].score);
+                }
+            }
+
+            expected.close();
+            actual.close();
+        } finally {
+            documents.delete();
+            Utility.deleteDirectory(single);
+            Utility.deleteDirectory(partitioned);
+        }
+    }
 }
@@ -0,0 +1,185 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.core.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.galagosearch.core.index.SparseFloatListReader;
+import org.galagosearch.core.index.SparseFloatListWriter;
+import org.galagosearch.core.retrieval.ScoredDocument;
+import org.galagosearch.core.retrieval.query.Node;
+import org.galagosearch.core.retrieval.query.StructuredQuery;
+import org.galagosearch.core.retrieval.structured.StructuredRetrieval;
+import org.galagosearch.tupleflow.FakeParameters;
+import org.galagosearch.tupleflow.Parameters;
+import org.galagosearch.tupleflow.Utility;
+import org.galagosearch.tupleflow.execution.ErrorStore;
+import org.galagosearch.tupleflow.execution.Job;
+import org.galagosearch.tupleflow.execution.JobExecutor;
+import org.galagosearch.tupleflow.execution.Verification;
+
+/**
+ *
+ * @author trevor
+ */
+public class MergeIndexTest extends TestCase {
+    static final String[] words = { "apple", "bear", "cider", "dune", "elm", "fig", "gorge", "heron",
+                                    "iris", "jade", "kiln", "lark", "moss", "newt", "oak", "pine" };
+    static final int[] splits = { 0, 70, 200 };
+
+    File[] pieces;
+    File combined;
+    File[] inputs;
+    File merged;
+
+    public MergeIndexTest(String testName) {
+        super(testName);
+    }
+
+    static File makeDirectory() throws IOException {
+        File directory = Utility.createTemporary();
+        directory.delete();
+        directory.mkdir();
+        return directory;
+    }
+
+    static File makeDocuments(int start, int end) throws IOException {
+        Random random = new Random(start);
+        StringBuilder text = new StringBuilder();
+        for (int i = start; i < end; i++) {
+            // padded, so documents are numbered in the same order they're written
+            text.append(String.format("<DOC>\n<DOCNO>DOC-%04d</DOCNO>\n<TEXT>\n", i));
+            for (int j = 0; j < 40; j++) {
+                text.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            text.append("\n</TEXT>\n</DOC>\n");
+        }
+
+        File temporary = Utility.createTemporary();
+        File documents = new File(temporary.getPath() + ".trectext");
+        temporary.delete();
+        Utility.copyStringToFile(text.toString(), documents);
+        return documents;
+    }
+
+    static void run(Job job) throws Exception {
+        ErrorStore store = new ErrorStore();
+        JobExecutor.runLocally(job, store, false);
+        assertEquals("", store.toString());
+    }
+
+    static void buildIndex(File index, File[] documents, int writerPartitions) throws Exception {
+        String[] paths = new String[documents.length];
+        for (int i = 0; i < documents.length; i++) {
+            paths[i] = documents[i].getPath();
+        }
+        BuildIndex buildIndex = new BuildIndex();
+        buildIndex.setWriterPartitions(writerPartitions);
+        run(buildIndex.getIndexJob(index.getPath(), paths, false, true));
+    }
+
+    /**
+     * Adds a sparse float part with a score for every tenth document.
+     */
+    static void addScores(File index, int start, int end) throws IOException {
+        Parameters p = new Parameters();
+        p.add("filename", index.getPath() + File.separator + "parts" + File.separator + "scores");
+        SparseFloatListWriter writer = new SparseFloatListWriter(new FakeParameters(p));
+        writer.processWord(Utility.makeBytes("prior"));
+        for (int i = start; i < end; i++) {
+            if (i % 10 == 0) {
+                writer.processNumber(i - start);
+                writer.processTuple(i / 10);
+            }
+        }
+        writer.close();
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        pieces = new File[splits.length - 1];
+        inputs = new File[splits.length - 1];
+        for (int i = 0; i < pieces.length; i++) {
+            pieces[i] = makeDocuments(splits[i], splits[i + 1]);
+            inputs[i] = makeDirectory();
+            buildIndex(inputs[i], new File[] { pieces[i] }, i + 1);
+            addScores(inputs[i], splits[i], splits[i + 1]);
+        }
+        combined = makeDirectory();
+        buildIndex(combined, pieces, 1);
+        merged = makeDirectory();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        for (int i = 0; i < pieces.length; i++) {
+            pieces[i].delete();
+            Utility.deleteDirectory(inputs[i]);
+        }
+        Utility.deleteDirectory(combined);
+        Utility.deleteDirectory(merged);
+    }
+
+    String[] getInputPaths() {
+        String[] paths = new String[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            paths[i] = inputs[i].getPath();
+        }
+        return paths;
+    }
+
+    public void testMergeJob() throws Exception {
+        Job job = new MergeIndex().getMergeJob(merged.getPath(), getInputPaths());
+        ErrorStore store = new ErrorStore();
+
+        Verification.verify(job, store);
+        assertEquals("", store.toString());
+    }
+
+    /**
+     * Merges the indexes of two halves of a collection, and checks that
+     * the result searches the same as an index built from the whole thing.
+     */
+    public void testMerge() throws Exception {
+        run(new MergeIndex().getMergeJob(merged.getPath(), getInputPaths()));
+
+        StructuredRetrieval expected = new StructuredRetrieval(combined.getPath(), new Parameters());
+        StructuredRetrieval actual = new StructuredRetrieval(merged.getPath(), new Parameters());
+        assertEquals(expected.getIndex().getDocumentCount(), actual.getIndex().getDocumentCount());
+        assertEquals(expected.getIndex().getCollectionLength(), actual.getIndex().getCollectionLength());
+        assertEquals(splits[splits.length - 1], actual.getIndex().getDocumentCount());
+
+        String[] queries = { "#combine( apple bear )", "#combine( #od:1( cider dune ) pine )",
+                             "#combine( #uw:8( oak lark ) moss )" };
+        for (String query : queries) {
+            Node root = expected.transformQuery(StructuredQuery.parse(query));
+            ScoredDocument[] one = expected.runQuery(root, 100);
+            ScoredDocument[] two = actual.runQuery(root, 100);
+
+            assertTrue(one.length > 0);
+            assertEquals(one.length, two.length);
+            for (int i = 0; i < one.length; i++) {
+                assertEquals(one[i].document, two[i].document);
+                assertEquals(one[i].score, two[i].score);
+                assertEquals(expected.getDocumentName(one[i].document),
+                             actual.getDocumentName(two[i].document));
+            }
+        }
+        expected.close();
+        actual.close();
+
+        SparseFloatListReader scores = new SparseFloatListReader(
+                merged.getPath() + File.separator + "parts" + File.separator + "scores");
+        SparseFloatListReader.Iterator iterator = scores.getScores("prior");
+        for (int i = 0; i < splits[splits.length - 1]; i += 10) {
+            assertFalse(iterator.isDone());
+            assertEquals(i, iterator.nextCandidate());
+            assertEquals((double) (i / 10), iterator.score(i, 0));
+            iterator.movePast(i);
+        }
+        assertTrue(iterator.isDone());
+        scores.close();
+    }
+}
@@ -22,6 +22,10 @@ public class FakeParameters implements TupleFlowParameters {
         return null;
     }
 
+    public int getInstanceId() {
+        return 0;
+    }
+
     public TypeReader getTypeReader(String specification) throws IOException {
         return null;
     }
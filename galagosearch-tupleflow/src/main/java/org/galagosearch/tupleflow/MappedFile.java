@@ -0,0 +1,70 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.tupleflow;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>A read-only, memory-mapped view of an entire file.  Java can't map more
+ * than 2GB in a single ByteBuffer, so the file is mapped as a series of
+ * fixed-size segments.</p>
+ *
+ * <p>MappedFile has no file pointer of its own; all reads go through
+ * MappedFileDataStream objects, which each keep their own position.  Because
+ * of this, any number of threads can read from the same MappedFile at once,
+ * as long as each thread uses its own streams.</p>
+ *
+ * @author trevor
+ */
+public class MappedFile {
+    ByteBuffer[] segments;
+    int segmentBits;
+    long length;
+
+    public MappedFile(RandomAccessFile file) throws IOException {
+        this(file, 30);
+    }
+
+    /**
+     * Maps the file in segments of (1 &lt;&lt; segmentBits) bytes.
+     */
+    public MappedFile(RandomAccessFile file, int segmentBits) throws IOException {
+        assert segmentBits > 0 && segmentBits < 31;
+
+        FileChannel channel = file.getChannel();
+        long segmentLength = 1L << segmentBits;
+
+        this.length = channel.size();
+        this.segmentBits = segmentBits;
+        this.segments = new ByteBuffer[(int) ((length + segmentLength - 1) >>> segmentBits)];
+
+        for (int i = 0; i < segments.length; i++) {
+            long start = (long) i << segmentBits;
+            long size = Math.min(segmentLength, length - start);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns a stream over the byte range [start, end) of the file.
+     */
+    public MappedFileDataStream getStream(long start, long end) {
+        assert start <= end;
+        assert end <= length;
+        return new MappedFileDataStream(this, start, end);
+    }
+
+    /**
+     * Drops references to the mapped segments.  The operating system
+     * releases the mappings when they're garbage collected.
+     */
+    public void close() {
+        segments = new ByteBuffer[0];
+    }
+}
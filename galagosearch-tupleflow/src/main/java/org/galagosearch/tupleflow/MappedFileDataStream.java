@@ -0,0 +1,186 @@
+// BSD License (http://www.galagosearch.org/license)
+package org.galagosearch.tupleflow;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A DataStream over a region of a MappedFile.  Each stream keeps its own
+ * position and only uses absolute reads on the underlying buffers, so
+ * separate streams over the same file can be used from different threads.
+ *
+ * @author trevor
+ */
+public class MappedFileDataStream implements DataStream {
+    MappedFile file;
+    long startPosition;
+    long stopPosition;
+    long position;
+
+    ByteBuffer segment;
+    long segmentStart;
+    long segmentEnd;
+
+    public MappedFileDataStream(MappedFile file, long start, long end) {
+        assert start <= end;
+
+        this.file = file;
+        this.startPosition = start;
+        this.stopPosition = end;
+        this.position = start;
+        this.segment = null;
+        this.segmentStart = 0;
+        this.segmentEnd = 0;
+    }
+
+    public MappedFileDataStream subStream(long start, long length) {
+        assert start <= length();
+        assert start + length <= length();
+        return new MappedFileDataStream(file, startPosition + start,
+                                        startPosition + start + length);
+    }
+
+    public long getPosition() {
+        return position - startPosition;
+    }
+
+    public boolean isDone() {
+        return position >= stopPosition;
+    }
+
+    public long length() {
+        return stopPosition - startPosition;
+    }
+
+    /**
+     * Seeks to a particular byte offset, relative to the start position of
+     * this data stream.  Unlike BufferedFileDataStream, reverse seeks are allowed.
+     */
+    public void seek(long offset) {
+        position = startPosition + offset;
+    }
+
+    private void findSegment() {
+        int index = (int) (position >>> file.segmentBits);
+        segment = file.segments[index];
+        segmentStart = (long) index << file.segmentBits;
+        segmentEnd = segmentStart + segment.limit();
+    }
+
+    /**
+     * Makes sure that length bytes are available, and returns true if
+     * they're all in the current segment.
+     */
+    private boolean available(int length) throws IOException {
+        if (length == 0) {
+            return true;
+        }
+        if (position + length > stopPosition) {
+            throw new EOFException("Tried to read off the end of the file.");
+        }
+        if (position < segmentStart || position >= segmentEnd) {
+            findSegment();
+        }
+        return position + length <= segmentEnd;
+    }
+
+    public int readUnsignedByte() throws IOException {
+        available(1);
+        int result = segment.get((int) (position - segmentStart)) & 0xff;
+        position += 1;
+        return result;
+    }
+
+    public byte readByte() throws IOException {
+        return (byte) readUnsignedByte();
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readUnsignedByte() != 0;
+    }
+
+    public short readShort() throws IOException {
+        if (available(2)) {
+            short result = segment.getShort((int) (position - segmentStart));
+            position += 2;
+            return result;
+        }
+        int a = readUnsignedByte();
+        int b = readUnsignedByte();
+        return (short) ((a << 8) | b);
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xffff;
+    }
+
+    public char readChar() throws IOException {
+        return (char) readShort();
+    }
+
+    public int readInt() throws IOException {
+        if (available(4)) {
+            int result = segment.getInt((int) (position - segmentStart));
+            position += 4;
+            return result;
+        }
+        int a = readUnsignedShort();
+        int b = readUnsignedShort();
+        return (a << 16) | b;
+    }
+
+    public long readLong() throws IOException {
+        if (available(8)) {
+            long result = segment.getLong((int) (position - segmentStart));
+            position += 8;
+            return result;
+        }
+        long a = readInt();
+        long b = readInt();
+        return (a << 32) | (b & 0xFFFFFFFFL);
+    }
+
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public void readFully(byte[] buffer) throws IOException {
+        readFully(buffer, 0, buffer.length);
+    }
+
+    public void readFully(byte[] buffer, int start, int length) throws IOException {
+        available(length);
+
+        while (length > 0) {
+            if (position >= segmentEnd) {
+                findSegment();
+            }
+            int chunk = (int) Math.min(length, segmentEnd - position);
+            ByteBuffer view = segment.duplicate();
+            view.position((int) (position - segmentStart));
+            view.get(buffer, start, chunk);
+
+            position += chunk;
+            start += chunk;
+            length -= chunk;
+        }
+    }
+
+    public int skipBytes(int n) throws IOException {
+        position += n;
+        return n;
+    }
+
+    public String readLine() throws IOException {
+        throw new IOException("readLine is unimplemented and deprecated");
+    }
+
+    public String readUTF() throws IOException {
+        throw new IOException("readUTF is unimplemented");
+    }
+}
@@ -12,6 +12,8 @@ public interface TupleFlowParameters {
     public TypeReader getTypeReader(String specification) throws IOException;
     public Processor getTypeWriter(String specification) throws IOException;
     public Counter getCounter(String name);
+    /// Returns which instance of its stage this step belongs to, counting from zero.
+    public int getInstanceId();
 
     public boolean readerExists(String specification, String className, String[] order);
     public boolean writerExists(String specification, String className, String[] order);
@@ -159,6 +159,14 @@ public class Utility {
         }
     }
 
+    public static String makeString(byte[] data, int offset, int length) {
+        try {
+            return new String(data, offset, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is not supported by your Java Virtual Machine.");
+        }
+    }
+
     public static byte[] makeBytes(String word) {
         try {
             return word.getBytes("UTF-8");
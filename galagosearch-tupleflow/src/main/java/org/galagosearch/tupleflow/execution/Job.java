@@ -179,6 +179,18 @@ public class Job implements Serializable {
      * making connections between sub-jobs.
      */
     public void connect(String sourceName, String destinationName, ConnectionAssignmentType assignment) {
+        connect(sourceName, destinationName, assignment, null, -1);
+    }
+
+    /**
+     * Connects outputs from stage sourceName to inputs from stage
+     * destinationName, like connect(sourceName, destinationName, assignment),
+     * but hashes the objects by hashType into hashCount instances of the
+     * destination stage.  If hashType is null, the connection is made
+     * the usual way.
+     */
+    public void connect(String sourceName, String destinationName, ConnectionAssignmentType assignment,
+                        String[] hashType, int hashCount) {
         // scan the stages, looking for sources
         Map<String, Stage> sources = findStagesWithPrefix(sourceName);
         Map<String, Stage> destinations = findStagesWithPrefix(destinationName);
@@ -211,7 +223,11 @@ public class Job implements Serializable {
                 assert outputMap.get(destinationPoint.pointName).size() == 1;
                 StagePoint sourcePoint = outputMap.get(destinationPoint.pointName).get(0);
 
-                connect(sourcePoint, destinationPoint, assignment);
+                if (hashType == null) {
+                    connect(sourcePoint, destinationPoint, assignment);
+                } else {
+                    connect(sourcePoint, destinationPoint, assignment, hashType, hashCount);
+                }
             }
         }
     }
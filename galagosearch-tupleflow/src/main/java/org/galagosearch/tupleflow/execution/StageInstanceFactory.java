@@ -52,6 +52,10 @@ public class StageInstanceFactory {
                     new Integer(instance.getIndex()).toString(), instance.getMasterURL());
         }
 
+        public int getInstanceId() {
+            return instance.getIndex();
+        }
+
         public TypeReader getTypeReader(String specification) throws IOException {
             PipeOutput pipeOutput = instance.getReaders().get(specification);
             return StageInstanceFactory.getTypeReader(pipeOutput);
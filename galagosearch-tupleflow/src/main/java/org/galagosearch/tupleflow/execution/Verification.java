@@ -52,6 +52,10 @@ public class Verification {
         public Counter getCounter(String name) {
             return null;
         }
+
+        public int getInstanceId() {
+            return 0;
+        }
         
         public Processor getTypeWriter(String specification) throws IOException {
             return null;
@@ -0,0 +1,66 @@
+// BSD License (http://www.galagosearch.org/license)
+
+package org.galagosearch.tupleflow;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author trevor
+ */
+public class MappedFileDataStreamTest extends TestCase {
+    public MappedFileDataStreamTest(String testName) {
+        super(testName);
+    }
+
+    public void testSegmentBoundaries() throws IOException {
+        File temporary = Utility.createTemporary();
+        DataOutputStream output = new DataOutputStream(new FileOutputStream(temporary));
+        output.writeByte(7);
+        for (int i = 0; i < 100; i++) {
+            output.writeInt(i * 1000);
+            output.writeLong(i * 1000000000L);
+            output.writeShort(i);
+        }
+        output.close();
+
+        RandomAccessFile file = new RandomAccessFile(temporary, "r");
+        // 8 byte segments, so most reads cross a segment boundary
+        MappedFile mapped = new MappedFile(file, 3);
+        assertEquals(1 + 100 * 14, mapped.length());
+
+        DataStream stream = mapped.getStream(0, mapped.length());
+        assertEquals(7, stream.readByte());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 1000, stream.readInt());
+            assertEquals(i * 1000000000L, stream.readLong());
+            assertEquals(i, stream.readShort());
+        }
+        assertTrue(stream.isDone());
+
+        // substreams and reverse seeks
+        DataStream sub = stream.subStream(1 + 14 * 50, 14);
+        assertEquals(50000, sub.readInt());
+        sub.seek(0);
+        byte[] data = new byte[14];
+        sub.readFully(data);
+        assertEquals(0, data[0]);
+        assertEquals(50000 & 0xff, data[3] & 0xff);
+        assertTrue(sub.isDone());
+
+        try {
+            sub.readByte();
+            fail("Read past the end of a substream");
+        } catch (IOException e) {
+        }
+
+        mapped.close();
+        file.close();
+        temporary.delete();
+    }
+}